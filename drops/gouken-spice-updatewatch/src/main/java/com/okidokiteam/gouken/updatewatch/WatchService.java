@@ -17,30 +17,69 @@
  */
 package com.okidokiteam.gouken.updatewatch;
 
-import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URISyntaxException;
+import java.net.URI;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import org.apache.felix.dependencymanager.Service;
 import org.apache.felix.dependencymanager.ServiceStateListener;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleException;
+import org.osgi.framework.BundleListener;
 import org.osgi.service.log.LogService;
 
 /**
+ * Updates bundles when the content behind their location changes.
+ * <p/>
+ * Bundles installed from files (file: and reference:file: locations) are watched with the file system's
+ * {@link java.nio.file.WatchService}, registered on the directories that hold them, so nothing happens while nothing
+ * changes. Other URL locations (and files on file systems that cannot be watched) are polled for their last modified
+ * time, every 500 ms after a change, backing off to every 30 s while nothing changes.
+ * <p/>
+ * Bundle events wake the watching thread right away. A file that is newer than its bundle when the bundle is first
+ * seen has changed after the install and is updated at once.
+ *
  * @author Toni Menzel
  * @since Jan 21, 2010
  */
-public class WatchService implements ServiceStateListener, Runnable
+public class WatchService implements ServiceStateListener, BundleListener, Runnable
 {
 
+    private static final long MIN_DELAY = 500;
+    private static final long MAX_DELAY = 30000;
+
     private volatile LogService logService;
     private volatile BundleContext m_context;
-// just accessed from inside t
-    private Map<Long, String> changes;
+    // bundle events and signalled watch keys, each one wakes up t.
+    private final BlockingQueue<Object> m_events = new LinkedBlockingQueue<Object>();
+
+    // just accessed from inside t
+    private java.nio.file.WatchService m_watcher;
+    private final Map<Path, WatchKey> m_keys = new HashMap<Path, WatchKey>();
+    private final Map<Long, Watched> m_files = new HashMap<Long, Watched>();
+    private final Map<Long, Watched> m_polled = new HashMap<Long, Watched>();
 
     private Thread m_t;
 
@@ -50,9 +89,17 @@ public class WatchService implements ServiceStateListener, Runnable
 
     }
 
+    WatchService( BundleContext context, LogService log )
+    {
+        m_context = context;
+        logService = log;
+    }
+
     public void started( Service service )
     {
-        m_t = new Thread( this );
+        m_context.addBundleListener( this );
+        m_t = new Thread( this, "gouken-updatewatch" );
+        m_t.setDaemon( true );
         m_t.start();
     }
 
@@ -68,88 +115,365 @@ public class WatchService implements ServiceStateListener, Runnable
 
     public void stopped( Service service )
     {
+        m_context.removeBundleListener( this );
         m_t.interrupt();
 
         m_t = null;
     }
 
+    public void bundleChanged( BundleEvent event )
+    {
+        if( event.getType() == BundleEvent.INSTALLED || event.getType() == BundleEvent.UNINSTALLED || event.getType() == BundleEvent.UPDATED )
+        {
+            m_events.offer( event );
+        }
+    }
+
     public void run()
     {
         logService.log( LogService.LOG_INFO, "UpdateWatch is beginning its service." );
-        changes = new HashMap<Long, String>();
         try
         {
-            while( !m_t.isInterrupted() )
+            m_watcher = FileSystems.getDefault().newWatchService();
+            forward();
+        } catch( IOException e )
+        {
+            logService.log( LogService.LOG_WARNING, "File system cannot be watched. Polling all bundle locations.", e );
+        }
+        long delay = MIN_DELAY;
+        long nextPoll = 0;
+        try
+        {
+            sync();
+            List<WatchKey> keys = new ArrayList<WatchKey>();
+            while( !Thread.currentThread().isInterrupted() )
             {
-
-                for( Bundle b : m_context.getBundles() )
+                long timeout = m_polled.isEmpty() ? MAX_DELAY : Math.max( 1, nextPoll - System.currentTimeMillis() );
+                boolean dirty = false;
+                for( Object event = m_events.poll( timeout, TimeUnit.MILLISECONDS ); event != null; event = m_events.poll() )
                 {
-
-                    if( m_t.isInterrupted() )
+                    if( event instanceof WatchKey )
                     {
-                        break;
+                        keys.add( (WatchKey) event );
                     }
-
-                    if( needsUpdate( b ) )
+                    else
                     {
-                        try
-                        {
-                            b.update();
-                            logService.log( LogService.LOG_INFO, "Bundle " + b.getBundleId() + " has been updated." );
-                        } catch( BundleException e )
-                        {
-                            this.logService.log( LogService.LOG_ERROR, "Problem updating " + b );
-                        }
+                        dirty = true;
                     }
                 }
-                Thread.sleep( 500 );
+                if( dirty )
+                {
+                    sync();
+                }
+                for( WatchKey key : keys )
+                {
+                    changed( key );
+                }
+                keys.clear();
+                if( !m_polled.isEmpty() && System.currentTimeMillis() >= nextPoll )
+                {
+                    // back off while polled locations do not change.
+                    delay = poll() ? MIN_DELAY : Math.min( delay * 2, MAX_DELAY );
+                    nextPoll = System.currentTimeMillis() + delay;
+                }
             }
         } catch( InterruptedException e )
         {
-            e.printStackTrace();
+            // stopped.
+        } catch( ClosedWatchServiceException e )
+        {
+            // stopped.
+        } finally
+        {
+            close();
         }
     }
 
-    private boolean needsUpdate( Bundle bundle )
+    /**
+     * Hands signalled keys of m_watcher to t until m_watcher is closed.
+     */
+    private void forward()
     {
-        String val = getCurrent( bundle );
-        String in = changes.get( bundle.getBundleId() );
-        changes.put( bundle.getBundleId(), val );
+        final java.nio.file.WatchService watcher = m_watcher;
+        Thread forwarder = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    while( true )
+                    {
+                        m_events.offer( watcher.take() );
+                    }
+                } catch( InterruptedException e )
+                {
+                    // stopped.
+                } catch( ClosedWatchServiceException e )
+                {
+                    // stopped.
+                }
+            }
+        }, "gouken-updatewatch-keys"
+        );
+        forwarder.setDaemon( true );
+        forwarder.start();
+    }
 
-        if( in != null )
+    /**
+     * Brings watched and polled bundles in line with the installed bundles.
+     */
+    private void sync()
+    {
+        Set<Long> installed = new HashSet<Long>();
+        for( Bundle b : m_context.getBundles() )
         {
-            if( !val.equals( in ) )
+            long id = b.getBundleId();
+            String location = b.getLocation();
+            Watched known = m_files.containsKey( id ) ? m_files.get( id ) : m_polled.get( id );
+            if( id == 0 || ( known != null && known.m_location.equals( location ) ) )
+            {
+                installed.add( id );
+                continue;
+            }
+            m_files.remove( id );
+            m_polled.remove( id );
+            Path file = fileOf( location );
+            Watched w;
+            if( file != null && m_watcher != null && register( file.getParent() ) )
             {
-                return true;
+                w = new Watched( location, file, null );
+                m_files.put( id, w );
             }
+            else
+            {
+                URL url = urlOf( location, file );
+                if( url == null )
+                {
+                    continue;
+                }
+                w = new Watched( location, null, url );
+                m_polled.put( id, w );
+            }
+            installed.add( id );
+            // the stamp is taken now, a file written after the install would never look changed.
+            if( file != null && w.m_stamp > b.getLastModified() )
+            {
+                update( id );
+            }
+        }
+        m_files.keySet().retainAll( installed );
+        m_polled.keySet().retainAll( installed );
+
+        // directories without watched bundles are not watched anymore.
+        Set<Path> dirs = new HashSet<Path>();
+        for( Watched w : m_files.values() )
+        {
+            dirs.add( w.m_file.getParent() );
         }
-        else
+        for( Iterator<Map.Entry<Path, WatchKey>> it = m_keys.entrySet().iterator(); it.hasNext(); )
         {
-            System.out.println( "Bundle " + bundle.getBundleId() + " Location: " + bundle.getLocation() );
+            Map.Entry<Path, WatchKey> entry = it.next();
+            if( !dirs.contains( entry.getKey() ) )
+            {
+                entry.getValue().cancel();
+                it.remove();
+            }
+        }
+    }
 
+    private boolean register( Path dir )
+    {
+        if( m_keys.containsKey( dir ) )
+        {
+            return true;
+        }
+        try
+        {
+            m_keys.put( dir, dir.register( m_watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY ) );
+            return true;
+        } catch( IOException e )
+        {
+            logService.log( LogService.LOG_DEBUG, "Cannot watch " + dir + ". Polling it.", e );
+            return false;
         }
-        return false;
+    }
 
+    /**
+     * Updates the bundles whose files have changed according to the events of key.
+     */
+    private void changed( WatchKey key )
+    {
+        Path dir = (Path) key.watchable();
+        Set<Path> paths = new HashSet<Path>();
+        boolean overflow = false;
+        for( WatchEvent<?> event : key.pollEvents() )
+        {
+            if( event.kind() == StandardWatchEventKinds.OVERFLOW )
+            {
+                overflow = true;
+            }
+            else
+            {
+                paths.add( dir.resolve( (Path) event.context() ) );
+            }
+        }
+        if( !key.reset() )
+        {
+            m_keys.remove( dir );
+        }
+        for( Map.Entry<Long, Watched> entry : m_files.entrySet() )
+        {
+            Watched w = entry.getValue();
+            if( ( overflow ? dir.equals( w.m_file.getParent() ) : paths.contains( w.m_file ) ) && w.changed() )
+            {
+                update( entry.getKey() );
+            }
+        }
+    }
+
+    /**
+     * @return true if any polled location has changed.
+     */
+    private boolean poll()
+    {
+        boolean changed = false;
+        for( Map.Entry<Long, Watched> entry : m_polled.entrySet() )
+        {
+            if( Thread.currentThread().isInterrupted() )
+            {
+                break;
+            }
+            if( entry.getValue().changed() )
+            {
+                update( entry.getKey() );
+                changed = true;
+            }
+        }
+        return changed;
     }
 
-    private String getCurrent( Bundle bundle )
+    private void update( long id )
     {
+        Bundle b = m_context.getBundle( id );
+        if( b == null )
+        {
+            return;
+        }
         try
         {
-            URL url = new URL( bundle.getLocation() );
-            File f = new File( url.toURI() );
-            return String.valueOf( f.lastModified() );
-        } catch( MalformedURLException e )
+            b.update();
+            logService.log( LogService.LOG_INFO, "Bundle " + b.getBundleId() + " has been updated." );
+        } catch( BundleException e )
         {
+            this.logService.log( LogService.LOG_ERROR, "Problem updating " + b );
+        }
+    }
 
-        } catch( URISyntaxException e )
+    private void close()
+    {
+        if( m_watcher != null )
         {
+            try
+            {
+                m_watcher.close();
+            } catch( IOException e )
+            {
+                // dont care.
+            }
+        }
+        m_keys.clear();
+        m_files.clear();
+        m_polled.clear();
+    }
 
+    /**
+     * @return the file behind a file: or reference:file: location, null for other locations
+     */
+    static Path fileOf( String location )
+    {
+        String s = location.startsWith( "reference:" ) ? location.substring( "reference:".length() ) : location;
+        if( !s.startsWith( "file:" ) )
+        {
+            return null;
+        }
+        try
+        {
+            Path file = Paths.get( new URI( s ) );
+            return Files.isRegularFile( file ) ? file : null;
         } catch( Exception e )
         {
+            return null;
+        }
+    }
+
+    /**
+     * @return the URL to poll for location, null if it is none (e.g. an inputstream: location)
+     */
+    private static URL urlOf( String location, Path file )
+    {
+        try
+        {
+            return file != null ? file.toUri().toURL() : new URL( location );
+        } catch( MalformedURLException e )
+        {
+            return null;
+        }
+    }
 
+    /**
+     * Last known modification time of a watched file or polled URL.
+     */
+    private static class Watched
+    {
+
+        private final String m_location;
+        private final Path m_file;
+        private final URL m_url;
+        private long m_stamp;
+
+        Watched( String location, Path file, URL url )
+        {
+            m_location = location;
+            m_file = file;
+            m_url = url;
+            m_stamp = stamp();
         }
 
-        return bundle.getLocation();
+        /**
+         * @return true if the modification time differs from the last call
+         */
+        boolean changed()
+        {
+            long stamp = stamp();
+            boolean changed = stamp != m_stamp;
+            m_stamp = stamp;
+            return changed;
+        }
+
+        private long stamp()
+        {
+            try
+            {
+                if( m_file != null )
+                {
+                    return Files.getLastModifiedTime( m_file ).toMillis();
+                }
+                URLConnection connection = m_url.openConnection();
+                try
+                {
+                    return connection.getLastModified();
+                } finally
+                {
+                    if( connection instanceof HttpURLConnection )
+                    {
+                        ( (HttpURLConnection) connection ).disconnect();
+                    }
+                }
+            } catch( IOException e )
+            {
+                // gone for now, changed once it is back.
+                return -1;
+            }
+        }
     }
 }
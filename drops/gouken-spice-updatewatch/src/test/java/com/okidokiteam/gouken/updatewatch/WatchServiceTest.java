@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.updatewatch;
+
+import static org.hamcrest.core.Is.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.service.log.LogService;
+
+/**
+ *
+ */
+public class WatchServiceTest
+{
+
+    @Test
+    public void testFileOf()
+        throws IOException
+    {
+        File file = File.createTempFile( "gouken-updatewatch", ".jar" );
+        File missing = new File( file.getParentFile(), file.getName() + ".missing" );
+
+        assertThat( WatchService.fileOf( file.toURI().toString() ), is( file.toPath() ) );
+        assertThat( WatchService.fileOf( "reference:" + file.toURI() ), is( file.toPath() ) );
+        assertNull( WatchService.fileOf( missing.toURI().toString() ) );
+        assertNull( WatchService.fileOf( "reference:" + file.getParentFile().toURI() ) );
+        assertNull( WatchService.fileOf( "http://localhost/" + file.getName() ) );
+        assertNull( WatchService.fileOf( "inputstream:" + file.getName() ) );
+        file.delete();
+    }
+
+    @Test
+    public void testUpdatesBundleChangedRightAfterInstall()
+        throws Exception
+    {
+        File file = File.createTempFile( "gouken-updatewatch", ".jar" );
+        long installed = System.currentTimeMillis() - 60000;
+        file.setLastModified( installed - 60000 );
+
+        Bundle bundle = mock( Bundle.class );
+        when( bundle.getBundleId() ).thenReturn( 1L );
+        when( bundle.getLocation() ).thenReturn( "reference:" + file.toURI() );
+        when( bundle.getLastModified() ).thenReturn( installed );
+        final CountDownLatch updated = new CountDownLatch( 1 );
+        doAnswer( new Answer<Object>()
+        {
+            public Object answer( InvocationOnMock invocation )
+            {
+                updated.countDown();
+                return null;
+            }
+        }
+        ).when( bundle ).update();
+
+        BundleContext context = mock( BundleContext.class );
+        when( context.getBundles() ).thenReturn( new Bundle[0] );
+        when( context.getBundle( 1L ) ).thenReturn( bundle );
+
+        WatchService service = new WatchService( context, mock( LogService.class ) );
+        service.started( null );
+        try
+        {
+            // written after the install, before the service has seen the bundle.
+            file.setLastModified( installed + 1000 );
+            when( context.getBundles() ).thenReturn( new Bundle[]{ bundle } );
+            service.bundleChanged( new BundleEvent( BundleEvent.INSTALLED, bundle ) );
+
+            // far less than the 30 s the service sleeps while nothing is polled.
+            assertTrue( updated.await( 5, TimeUnit.SECONDS ) );
+        } finally
+        {
+            service.stopped( null );
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testLeavesUnchangedBundleAlone()
+        throws Exception
+    {
+        File file = File.createTempFile( "gouken-updatewatch", ".jar" );
+        long installed = System.currentTimeMillis();
+        file.setLastModified( installed - 60000 );
+
+        Bundle bundle = mock( Bundle.class );
+        when( bundle.getBundleId() ).thenReturn( 1L );
+        when( bundle.getLocation() ).thenReturn( "reference:" + file.toURI() );
+        when( bundle.getLastModified() ).thenReturn( installed );
+        BundleContext context = mock( BundleContext.class );
+        when( context.getBundles() ).thenReturn( new Bundle[]{ bundle } );
+        when( context.getBundle( 1L ) ).thenReturn( bundle );
+
+        WatchService service = new WatchService( context, mock( LogService.class ) );
+        service.started( null );
+        try
+        {
+            service.bundleChanged( new BundleEvent( BundleEvent.INSTALLED, bundle ) );
+            Thread.sleep( 500 );
+            verify( bundle, never() ).update();
+        } finally
+        {
+            service.stopped( null );
+            file.delete();
+        }
+    }
+}
@@ -5,6 +5,13 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.ops4j.pax.repository.Artifact;
 import org.ops4j.pax.repository.RepositoryException;
@@ -12,61 +19,176 @@ import org.ops4j.pax.repository.Resolver;
 import org.ops4j.pax.repository.base.RepositoryFactory;
 
 import com.okidokiteam.gouken.VaultAgent;
+import com.okidokiteam.gouken.cache.ArtifactCache;
+import com.okidokiteam.gouken.cache.CachingResolver;
 
 /**
  * 
  * Lazily resolves artifacts from a file in classpath (shipped with the jar), resolves them (lazily).
  * 
+ * The lines of the provision file are resolved concurrently on a bounded pool. With an {@link ArtifactCache}, resolved
+ * artifacts are kept on disk through a {@link CachingResolver}: later boots use them without asking the resolver
+ * (release coordinates) or until the revalidation interval has passed (SNAPSHOT coordinates). If a SNAPSHOT cannot
+ * be revalidated, the cached copy is used.
+ * 
  * @author tonit
  * 
  */
 public class AceVaultAgent implements VaultAgent
 {
     private static final String LOCATION = "/META-INF/bundles.provision";
+    public static final int DEFAULT_THREADS = 4;
+
     private final Resolver m_resolver;
+    private final CachingResolver m_cache;
+    private final int m_threads;
 
-    private Artifact[] m_artifacts;
+    private volatile Artifact[] m_artifacts;
 
     public AceVaultAgent( Resolver resolver ) throws IOException
+    {
+        this( resolver, null, DEFAULT_THREADS, CachingResolver.DEFAULT_SNAPSHOT_REVALIDATE_MILLIS );
+    }
+
+    /**
+     * @param resolver resolver for provision lines that are not cached (yet).
+     * @param cache cache to keep resolved artifacts in across boots, usually {@link ArtifactCache#getDefault()}. null to not cache on disk.
+     * @param threads maximum number of concurrent resolver calls.
+     * @param snapshotRevalidateMillis how long cached SNAPSHOT artifacts are used before they are resolved again.
+     */
+    public AceVaultAgent( Resolver resolver, ArtifactCache cache, int threads, long snapshotRevalidateMillis ) throws IOException
     {
         assert ( resolver != null ) : "Resolver should not be null.";
-        m_resolver = resolver;
+        assert ( threads > 0 ) : "threads must be positive.";
+        m_cache = cache == null ? null : new CachingResolver( resolver, cache, snapshotRevalidateMillis );
+        m_resolver = m_cache == null ? resolver : m_cache;
+        m_threads = threads;
     }
 
-    public synchronized Artifact[] getArtifacts() throws RepositoryException
+    public Artifact[] getArtifacts() throws RepositoryException
     {
-        if (m_artifacts == null)
+        Artifact[] artifacts = m_artifacts;
+        if (artifacts == null)
         {
-            resolve();
+            synchronized (this)
+            {
+                if (m_artifacts == null)
+                {
+                    m_artifacts = resolve( readLocation() );
+                }
+                artifacts = m_artifacts;
+            }
         }
-        return m_artifacts;
-
+        return artifacts;
     }
 
-    private void resolve() throws RepositoryException
+    private List<String> readLocation() throws RepositoryException
     {
-        List<Artifact> list = new ArrayList<Artifact>();
+        List<String> list = new ArrayList<String>();
 
         BufferedReader bufferedReader = new BufferedReader( new InputStreamReader( getClass().getResourceAsStream( LOCATION ) ) );
         String line = null;
 
         try
         {
-            while (( line = bufferedReader.readLine() ) != null)
+            try
             {
-                line = line.trim();
-                if (!line.isEmpty())
+                while (( line = bufferedReader.readLine() ) != null)
                 {
-                    list.add( m_resolver.find( RepositoryFactory.createQuery( line ) ) );
+                    line = line.trim();
+                    if (line.length() > 0)
+                    {
+                        list.add( line );
+                    }
                 }
+            } finally
+            {
+                bufferedReader.close();
             }
         } catch (IOException e)
         {
 
             throw new RepositoryException( "Problem reading artifacts from " + LOCATION, e );
         }
+        return list;
+    }
+
+    /**
+     * @return artifacts in the order of coordinates. Cache hits are taken right away, the rest is resolved concurrently.
+     */
+    Artifact[] resolve( List<String> coordinates ) throws RepositoryException
+    {
+        Artifact[] artifacts = new Artifact[coordinates.size()];
+        List<Integer> misses = new ArrayList<Integer>();
+        for (int i = 0; i < artifacts.length; i++)
+        {
+            artifacts[i] = m_cache == null ? null : m_cache.lookup( RepositoryFactory.createQuery( coordinates.get( i ) ) );
+            if (artifacts[i] == null)
+            {
+                misses.add( i );
+            }
+        }
+        if (misses.size() <= 1 || m_threads == 1)
+        {
+            for (int i : misses)
+            {
+                artifacts[i] = find( coordinates.get( i ) );
+            }
+            return artifacts;
+        }
 
-        m_artifacts = list.toArray( new Artifact[list.size()] );
+        ExecutorService pool = Executors.newFixedThreadPool( Math.min( m_threads, misses.size() ), new ResolveThreadFactory() );
+        try
+        {
+            List<Future<Artifact>> futures = new ArrayList<Future<Artifact>>( misses.size() );
+            for (int i : misses)
+            {
+                final String coordinate = coordinates.get( i );
+                futures.add( pool.submit( new Callable<Artifact>()
+                {
+                    public Artifact call() throws RepositoryException
+                    {
+                        return find( coordinate );
+                    }
+                } ) );
+            }
+            for (int j = 0; j < futures.size(); j++)
+            {
+                artifacts[misses.get( j )] = futures.get( j ).get();
+            }
+            return artifacts;
+        } catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RepositoryException)
+            {
+                throw (RepositoryException) e.getCause();
+            }
+            throw new RepositoryException( "Problem resolving artifacts from " + LOCATION, e.getCause() );
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException( "Interrupted while resolving artifacts from " + LOCATION, e );
+        } finally
+        {
+            // cancels what is still pending after a failure.
+            pool.shutdownNow();
+        }
+    }
+
+    private Artifact find( String coordinate ) throws RepositoryException
+    {
+        return m_resolver.find( RepositoryFactory.createQuery( coordinate ) );
     }
 
+    private static class ResolveThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        public Thread newThread( Runnable r )
+        {
+            Thread t = new Thread( r, "gouken-ace-resolve-" + m_count.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        }
+    }
 }
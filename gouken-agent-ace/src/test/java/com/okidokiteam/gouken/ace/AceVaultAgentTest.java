@@ -17,13 +17,22 @@
  */
 package com.okidokiteam.gouken.ace;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.Test;
+import org.ops4j.base.io.InputStreamSource;
 import org.ops4j.pax.repository.Artifact;
 import org.ops4j.pax.repository.ArtifactQuery;
 import org.ops4j.pax.repository.RepositoryException;
 import org.ops4j.pax.repository.Resolver;
 
+import com.okidokiteam.gouken.cache.ArtifactCache;
+
 import static org.hamcrest.core.Is.*;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
@@ -46,4 +55,124 @@ public class AceVaultAgentTest
 
         verify( resolver, times( ENTRIES_IN_SAMPLE ) ).find( any( ArtifactQuery.class ) );
     }
+
+    @Test
+    public void testResolvesConcurrently() throws Exception
+    {
+        final CountDownLatch together = new CountDownLatch( ENTRIES_IN_SAMPLE );
+        final Artifact artifact = artifact( "content" );
+        // not a mock: mock invocations are serialized.
+        Resolver resolver = new Resolver()
+        {
+            public Artifact find( ArtifactQuery query ) throws RepositoryException
+            {
+                // only returns if all lines are resolved at the same time.
+                together.countDown();
+                try
+                {
+                    if (!together.await( 5, TimeUnit.SECONDS ))
+                    {
+                        throw new RepositoryException( "Not resolved concurrently" );
+                    }
+                } catch (InterruptedException e)
+                {
+                    throw new RepositoryException( "Interrupted", e );
+                }
+                return artifact;
+            }
+        };
+
+        AceVaultAgent agent = new AceVaultAgent( resolver, null, ENTRIES_IN_SAMPLE, 0 );
+        Artifact[] artifacts = agent.getArtifacts();
+        assertThat( artifacts.length, is( ENTRIES_IN_SAMPLE ) );
+        assertThat( artifacts[3], is( artifact ) );
+    }
+
+    @Test
+    public void testCachesResolvedArtifactsOnDisk() throws Exception
+    {
+        ArtifactCache cache = cache();
+        Resolver resolver = mock( Resolver.class );
+        Artifact artifact = artifact( "content" );
+        when( resolver.find( any( ArtifactQuery.class ) ) ).thenReturn( artifact );
+
+        new AceVaultAgent( resolver, cache, 2, 0 ).getArtifacts();
+        verify( resolver, times( ENTRIES_IN_SAMPLE ) ).find( any( ArtifactQuery.class ) );
+
+        // next boot: release coordinates come from disk.
+        Artifact[] artifacts = new AceVaultAgent( resolver, cache, 2, 0 ).getArtifacts();
+        verify( resolver, times( ENTRIES_IN_SAMPLE ) ).find( any( ArtifactQuery.class ) );
+        assertThat( read( artifacts[0] ), is( "content" ) );
+    }
+
+    @Test
+    public void testRevalidatesSnapshotsAfterInterval() throws Exception
+    {
+        ArtifactCache cache = cache();
+        Resolver resolver = mock( Resolver.class );
+        Artifact first = artifact( "first" );
+        Artifact second = artifact( "second" );
+        when( resolver.find( any( ArtifactQuery.class ) ) ).thenReturn( first, second );
+
+        String snapshot = "org.example:example:1.0.0-SNAPSHOT";
+        new AceVaultAgent( resolver, cache, 1, 0 ).resolve( Arrays.asList( snapshot ) );
+
+        // within the interval the cached copy is used.
+        Artifact[] cached = new AceVaultAgent( resolver, cache, 1, 60000 ).resolve( Arrays.asList( snapshot ) );
+        assertThat( read( cached[0] ), is( "first" ) );
+        verify( resolver, times( 1 ) ).find( any( ArtifactQuery.class ) );
+
+        // lets the entry age beyond an interval of 0.
+        Thread.sleep( 5 );
+        Artifact[] revalidated = new AceVaultAgent( resolver, cache, 1, 0 ).resolve( Arrays.asList( snapshot ) );
+        assertThat( read( revalidated[0] ), is( "second" ) );
+
+        // resolver is gone: the stale copy still boots.
+        when( resolver.find( any( ArtifactQuery.class ) ) ).thenThrow( new RepositoryException( "offline" ) );
+        Artifact[] stale = new AceVaultAgent( resolver, cache, 1, 0 ).resolve( Arrays.asList( snapshot ) );
+        assertThat( read( stale[0] ), is( "second" ) );
+    }
+
+    private static ArtifactCache cache() throws IOException
+    {
+        File dir = File.createTempFile( "gouken-ace", "" );
+        dir.delete();
+        dir.deleteOnExit();
+        return new ArtifactCache( dir, 1024 * 1024 );
+    }
+
+    private static Artifact artifact( final String content )
+    {
+        return new Artifact()
+        {
+            public InputStreamSource getContent()
+            {
+                return new InputStreamSource()
+                {
+                    public InputStream get()
+                    {
+                        return new ByteArrayInputStream( content.getBytes() );
+                    }
+                };
+            }
+        };
+    }
+
+    private static String read( Artifact artifact ) throws Exception
+    {
+        InputStream in = artifact.getContent().get();
+        try
+        {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while (( c = in.read() ) != -1)
+            {
+                sb.append( (char) c );
+            }
+            return sb.toString();
+        } finally
+        {
+            in.close();
+        }
+    }
 }
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.composite;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+
+import org.ops4j.pax.repository.Artifact;
+import org.ops4j.pax.repository.RepositoryException;
+
+import com.okidokiteam.gouken.FileArtifact;
+import com.okidokiteam.gouken.VaultAgent;
+
+/**
+ * Merges the artifacts of several agents, e.g. a base agent and site specific extras.
+ * <p/>
+ * All agents are asked concurrently. Artifacts are listed in agent order, bundles with the same symbolic name and
+ * version are listed once, at their first position. Of such duplicates, the copy of the first agent listing it is
+ * used, no matter which agent finished first. Artifacts without a Bundle-SymbolicName are never merged.
+ * If any agent fails, the composite fails as well, a partial management agent is not installed.
+ * <p/>
+ * The manifests that identify bundles are read one task per artifact, starting as soon as an agent has listed its
+ * artifacts. Local files are opened directly, other artifacts are only read up to their manifest.
+ *
+ * @author Toni Menzel
+ */
+public class CompositeVaultAgent implements VaultAgent
+{
+
+    // threads reading manifests, next to one per agent.
+    private static final int READERS = 4;
+
+    private final VaultAgent[] m_agents;
+
+    public CompositeVaultAgent( VaultAgent... agents )
+    {
+        assert ( agents.length > 0 ) : "At least one agent is needed.";
+        m_agents = agents.clone();
+    }
+
+    public Artifact[] getArtifacts()
+        throws RepositoryException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool( m_agents.length + READERS, new SourceThreadFactory() );
+        CompletionService<Source> completion = new ExecutorCompletionService<Source>( pool );
+        Source[] sources = new Source[m_agents.length];
+        try
+        {
+            for( int i = 0; i < m_agents.length; i++ )
+            {
+                completion.submit( new Source( i, m_agents[ i ] ) );
+            }
+            // in completion order, so a failing agent is noticed without waiting for the ones before it.
+            for( int i = 0; i < m_agents.length; i++ )
+            {
+                Source source = completion.take().get();
+                source.identify( pool );
+                sources[ source.m_index ] = source;
+            }
+
+            List<Artifact> artifacts = new ArrayList<Artifact>();
+            Set<String> listed = new HashSet<String>();
+            for( Source source : sources )
+            {
+                for( int j = 0; j < source.m_artifacts.length; j++ )
+                {
+                    String identity = source.m_identities.get( j ).get();
+                    if( identity == null || listed.add( identity ) )
+                    {
+                        artifacts.add( source.m_artifacts[ j ] );
+                    }
+                }
+            }
+            return artifacts.toArray( new Artifact[artifacts.size()] );
+        } catch( ExecutionException e )
+        {
+            if( e.getCause() instanceof RepositoryException )
+            {
+                throw (RepositoryException) e.getCause();
+            }
+            throw new RepositoryException( "Problem getting artifacts from " + this, e.getCause() );
+        } catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException( "Interrupted while getting artifacts from " + this, e );
+        } finally
+        {
+            // cancels the other agents and reads after a failure.
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return symbolic name and normalized version of the bundle artifact, null if it is no bundle.
+     */
+    static String identity( Artifact artifact )
+        throws RepositoryException
+    {
+        Manifest manifest;
+        try
+        {
+            if( artifact instanceof FileArtifact )
+            {
+                JarFile jar = new JarFile( ( (FileArtifact) artifact ).getFile() );
+                try
+                {
+                    manifest = jar.getManifest();
+                } finally
+                {
+                    jar.close();
+                }
+            }
+            else
+            {
+                InputStream in = artifact.getContent().get();
+                try
+                {
+                    manifest = new JarInputStream( in ).getManifest();
+                } finally
+                {
+                    in.close();
+                }
+            }
+        } catch( IOException e )
+        {
+            throw new RepositoryException( "Cannot read the manifest of " + artifact, e );
+        }
+        if( manifest == null )
+        {
+            return null;
+        }
+        Attributes attributes = manifest.getMainAttributes();
+        String name = attributes.getValue( "Bundle-SymbolicName" );
+        if( name == null )
+        {
+            return null;
+        }
+        int directives = name.indexOf( ';' );
+        if( directives >= 0 )
+        {
+            name = name.substring( 0, directives );
+        }
+        return name.trim() + ";" + normalize( attributes.getValue( "Bundle-Version" ) );
+    }
+
+    /**
+     * @return version with major, minor and micro, so 1.0 and 1.0.0 are equal.
+     */
+    private static String normalize( String version )
+    {
+        String[] parts = version == null ? new String[0] : version.trim().split( "\\.", 4 );
+        StringBuilder sb = new StringBuilder();
+        for( int i = 0; i < Math.max( 3, parts.length ); i++ )
+        {
+            if( i > 0 )
+            {
+                sb.append( '.' );
+            }
+            sb.append( i < parts.length && parts[ i ].length() > 0 ? parts[ i ] : "0" );
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder( "[CompositeVaultAgent" );
+        for( VaultAgent agent : m_agents )
+        {
+            sb.append( ' ' ).append( agent );
+        }
+        return sb.append( ']' ).toString();
+    }
+
+    /**
+     * Artifacts of one agent, with their identities once they are read.
+     */
+    private static class Source implements Callable<Source>
+    {
+
+        private final int m_index;
+        private final VaultAgent m_agent;
+        private Artifact[] m_artifacts;
+        private List<Future<String>> m_identities;
+
+        Source( int index, VaultAgent agent )
+        {
+            m_index = index;
+            m_agent = agent;
+        }
+
+        public Source call()
+            throws RepositoryException
+        {
+            m_artifacts = m_agent.getArtifacts();
+            return this;
+        }
+
+        void identify( ExecutorService pool )
+        {
+            m_identities = new ArrayList<Future<String>>( m_artifacts.length );
+            for( final Artifact artifact : m_artifacts )
+            {
+                m_identities.add( pool.submit( new Callable<String>()
+                {
+                    public String call()
+                        throws RepositoryException
+                    {
+                        return identity( artifact );
+                    }
+                }
+                ) );
+            }
+        }
+    }
+
+    private static class SourceThreadFactory implements ThreadFactory
+    {
+
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        public Thread newThread( Runnable r )
+        {
+            Thread t = new Thread( r, "gouken-composite-" + m_count.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.composite;
+
+import static org.hamcrest.core.Is.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.junit.Test;
+import org.ops4j.base.io.InputStreamSource;
+import org.ops4j.pax.repository.Artifact;
+import org.ops4j.pax.repository.RepositoryException;
+
+import com.okidokiteam.gouken.FileArtifact;
+import com.okidokiteam.gouken.VaultAgent;
+
+public class CompositeVaultAgentTest
+{
+
+    @Test
+    public void testMergesBySymbolicNameAndVersion()
+        throws Exception
+    {
+        Artifact a = bundle( "a", "1.0" );
+        Artifact b = bundle( "b;singleton:=true", "1.0.0" );
+        Artifact plain = bundle( null, null );
+        Artifact b2 = bundle( "b", "1.0" );
+        Artifact b3 = bundle( "b", "2.0" );
+        Artifact c = bundle( "c", null );
+
+        Artifact[] artifacts = new CompositeVaultAgent( agent( a, b, plain ), agent( b2, b3, plain, c ) ).getArtifacts();
+
+        assertThat( artifacts.length, is( 6 ) );
+        assertThat( artifacts[ 0 ], is( a ) );
+        assertThat( artifacts[ 1 ], is( b ) );
+        assertThat( artifacts[ 2 ], is( plain ) );
+        assertThat( artifacts[ 3 ], is( b3 ) );
+        assertThat( artifacts[ 4 ], is( plain ) );
+        assertThat( artifacts[ 5 ], is( c ) );
+    }
+
+    @Test
+    public void testFirstAgentCopyWinsEvenIfSlower()
+        throws Exception
+    {
+        final CountDownLatch fastDone = new CountDownLatch( 1 );
+        final Artifact slowCopy = bundle( "a", "1.0" );
+        final Artifact fastCopy = bundle( "a", "1.0" );
+        VaultAgent slow = new VaultAgent()
+        {
+            public Artifact[] getArtifacts()
+                throws RepositoryException
+            {
+                try
+                {
+                    // only returns if the agents are asked concurrently.
+                    if( !fastDone.await( 5, TimeUnit.SECONDS ) )
+                    {
+                        throw new RepositoryException( "Not asked concurrently" );
+                    }
+                    Thread.sleep( 100 );
+                } catch( InterruptedException e )
+                {
+                    throw new RepositoryException( "Interrupted", e );
+                }
+                return new Artifact[]{ slowCopy };
+            }
+        };
+        VaultAgent fast = new VaultAgent()
+        {
+            public Artifact[] getArtifacts()
+            {
+                fastDone.countDown();
+                return new Artifact[]{ fastCopy };
+            }
+        };
+
+        Artifact[] artifacts = new CompositeVaultAgent( slow, fast ).getArtifacts();
+
+        assertThat( artifacts.length, is( 1 ) );
+        assertThat( artifacts[ 0 ], is( slowCopy ) );
+    }
+
+    @Test
+    public void testReadsManifestsOfOneAgentConcurrently()
+        throws Exception
+    {
+        final CountDownLatch reading = new CountDownLatch( 2 );
+        Artifact[] bundles = new Artifact[]{ bundle( "a", "1.0" ), bundle( "b", "1.0" ) };
+        Artifact[] blocking = new Artifact[bundles.length];
+        for( int i = 0; i < blocking.length; i++ )
+        {
+            final Artifact artifact = bundles[ i ];
+            blocking[ i ] = new Artifact()
+            {
+                public InputStreamSource getContent()
+                    throws RepositoryException
+                {
+                    reading.countDown();
+                    try
+                    {
+                        // only returns if both manifests are read at the same time.
+                        if( !reading.await( 5, TimeUnit.SECONDS ) )
+                        {
+                            throw new RepositoryException( "Not read concurrently" );
+                        }
+                    } catch( InterruptedException e )
+                    {
+                        throw new RepositoryException( "Interrupted", e );
+                    }
+                    return artifact.getContent();
+                }
+            };
+        }
+
+        Artifact[] artifacts = new CompositeVaultAgent( agent( blocking ) ).getArtifacts();
+
+        assertThat( artifacts.length, is( 2 ) );
+    }
+
+    @Test
+    public void testReadsManifestOfLocalFileFromFile()
+        throws Exception
+    {
+        final File file = File.createTempFile( "gouken-composite", ".jar" );
+        FileOutputStream out = new FileOutputStream( file );
+        try
+        {
+            InputStream in = bundle( "a", "1.0" ).getContent().get();
+            int c;
+            while( ( c = in.read() ) != -1 )
+            {
+                out.write( c );
+            }
+        } finally
+        {
+            out.close();
+        }
+        Artifact local = new FileArtifact()
+        {
+            public File getFile()
+            {
+                return file;
+            }
+
+            public InputStreamSource getContent()
+                throws RepositoryException
+            {
+                throw new RepositoryException( "Content should not be fetched" );
+            }
+        };
+
+        assertThat( CompositeVaultAgent.identity( local ), is( "a;1.0.0" ) );
+        file.delete();
+    }
+
+    @Test( expected = RepositoryException.class )
+    public void testFailsIfAnAgentFails()
+        throws Exception
+    {
+        VaultAgent broken = new VaultAgent()
+        {
+            public Artifact[] getArtifacts()
+                throws RepositoryException
+            {
+                throw new RepositoryException( "offline" );
+            }
+        };
+        new CompositeVaultAgent( agent( bundle( "a", "1.0" ) ), broken ).getArtifacts();
+    }
+
+    private static VaultAgent agent( final Artifact... artifacts )
+    {
+        return new VaultAgent()
+        {
+            public Artifact[] getArtifacts()
+            {
+                return artifacts;
+            }
+        };
+    }
+
+    private static Artifact bundle( String symbolicName, String version )
+        throws IOException
+    {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putValue( "Manifest-Version", "1.0" );
+        if( symbolicName != null )
+        {
+            manifest.getMainAttributes().putValue( "Bundle-SymbolicName", symbolicName );
+        }
+        if( version != null )
+        {
+            manifest.getMainAttributes().putValue( "Bundle-Version", version );
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new JarOutputStream( out, manifest ).close();
+        final byte[] content = out.toByteArray();
+        return new Artifact()
+        {
+            public InputStreamSource getContent()
+            {
+                return new InputStreamSource()
+                {
+                    public InputStream get()
+                    {
+                        return new ByteArrayInputStream( content );
+                    }
+                };
+            }
+        };
+    }
+}
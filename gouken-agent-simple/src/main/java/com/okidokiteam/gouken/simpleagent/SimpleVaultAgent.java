@@ -1,6 +1,8 @@
 package com.okidokiteam.gouken.simpleagent;
 
 import com.okidokiteam.gouken.VaultAgent;
+import com.okidokiteam.gouken.cache.ArtifactCache;
+import com.okidokiteam.gouken.cache.CachedArtifact;
 import org.ops4j.pax.repository.Artifact;
 import org.ops4j.pax.repository.RepositoryException;
 import org.ops4j.pax.repository.Resolver;
@@ -13,6 +15,8 @@ import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -22,15 +26,33 @@ import static org.ops4j.pax.swissbox.tinybundles.core.TinyBundles.withBnd;
 public class SimpleVaultAgent implements VaultAgent
 {
 
+    // part of every dynamic bundle key, bump when the way bundles are built changes.
+    private static final String DYNAMIC_FORMAT = "tinybundle-1:";
+
     private final Resolver m_resolver;
 
     private final Store<InputStream> m_store;
 
+    private final ArtifactCache m_cache;
+
+    /**
+     * Builds dynamic bundles on every boot, see {@link #SimpleVaultAgent(Resolver, Store, ArtifactCache)} to keep them.
+     */
     @Inject
     public SimpleVaultAgent( Resolver resolver, Store store )
+    {
+        this( resolver, store, null );
+    }
+
+    /**
+     * @param cache keeps dynamic bundles across boots, keyed by a digest of their classes and headers. null to build
+     *              them on every boot.
+     */
+    public SimpleVaultAgent( Resolver resolver, Store store, ArtifactCache cache )
     {
         m_resolver = resolver;
         m_store = store;
+        m_cache = cache;
     }
 
     public Artifact[] getArtifacts()
@@ -51,9 +73,17 @@ public class SimpleVaultAgent implements VaultAgent
         return null;
     }
 
-    private Artifact installDynamicBundle( String name, Class a, Class... extraContent )
+    Artifact installDynamicBundle( String name, Class a, Class... extraContent )
         throws IOException
     {
+        // bnd takes hundreds of milliseconds, so unchanged bundles come from the cache.
+        String key = m_cache != null ? dynamicKey( name, a, extraContent ) : null;
+        CachedArtifact cached = key != null ? m_cache.lookup( key, -1 ) : null;
+        if( cached != null )
+        {
+            return cached;
+        }
+
         TinyBundle tb = newBundle();
 
         for( Class c : extraContent )
@@ -66,6 +96,17 @@ public class SimpleVaultAgent implements VaultAgent
             tb.add( a );
             tb.set( "Bundle-Activator", a.getName() );
         }
+        if( key != null )
+        {
+            InputStream in = tb.build( withBnd() );
+            try
+            {
+                return m_cache.store( key, in );
+            } finally
+            {
+                in.close();
+            }
+        }
         return new LocalArtifact(
             new File( m_store.getLocation(
                 m_store.store( tb.build( withBnd() ) )
@@ -74,6 +115,69 @@ public class SimpleVaultAgent implements VaultAgent
         );
     }
 
+    /**
+     * @return key of a dynamic bundle: a digest of its name, the bytecode of its classes and its headers. Null if
+     *         the bytecode of a class cannot be read (the bundle is not cached then).
+     */
+    String dynamicKey( String name, Class a, Class... extraContent )
+        throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance( "SHA-256" );
+        } catch( NoSuchAlgorithmException e )
+        {
+            return null;
+        }
+        digest.update( ( name + "\n" ).getBytes( "UTF-8" ) );
+        for( Class c : extraContent )
+        {
+            if( !digestClass( digest, c ) )
+            {
+                return null;
+            }
+        }
+        if( a != null )
+        {
+            if( !digestClass( digest, a ) )
+            {
+                return null;
+            }
+            digest.update( ( "Bundle-Activator: " + a.getName() + "\n" ).getBytes( "UTF-8" ) );
+        }
+        StringBuilder key = new StringBuilder( DYNAMIC_FORMAT );
+        for( byte b : digest.digest() )
+        {
+            key.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        return key.toString();
+    }
+
+    private static boolean digestClass( MessageDigest digest, Class c )
+        throws IOException
+    {
+        InputStream in = c.getResourceAsStream( "/" + c.getName().replace( '.', '/' ) + ".class" );
+        if( in == null )
+        {
+            return false;
+        }
+        try
+        {
+            digest.update( ( c.getName() + "\n" ).getBytes( "UTF-8" ) );
+            byte[] buffer = new byte[4096];
+            int n;
+            while( ( n = in.read( buffer ) ) != -1 )
+            {
+                digest.update( buffer, 0, n );
+            }
+            return true;
+        } finally
+        {
+            in.close();
+        }
+    }
+
     @Override
     public String toString()
     {
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.simpleagent;
+
+import static org.hamcrest.core.Is.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Test;
+import org.ops4j.pax.repository.Artifact;
+import org.ops4j.pax.repository.Resolver;
+import org.ops4j.store.Store;
+import com.okidokiteam.gouken.cache.ArtifactCache;
+
+/**
+ *
+ */
+public class SimpleVaultAgentTest
+{
+
+    @Test
+    public void testUnchangedClassesComeFromCache()
+        throws Exception
+    {
+        ArtifactCache cache = new ArtifactCache( tempDir(), 1024 * 1024 );
+        Store store = mock( Store.class );
+        SimpleVaultAgent agent = new SimpleVaultAgent( mock( Resolver.class ), store, cache );
+        cache.store( agent.dynamicKey( "dynamic", null, SimpleVaultAgentTest.class ), new ByteArrayInputStream( "cached".getBytes() ) );
+
+        Artifact artifact = agent.installDynamicBundle( "dynamic", null, SimpleVaultAgentTest.class );
+
+        // a rebuild would have produced a jar.
+        assertThat( read( artifact ), is( "cached" ) );
+        verifyZeroInteractions( store );
+    }
+
+    @Test
+    public void testChangedClassesChangeKey()
+        throws Exception
+    {
+        SimpleVaultAgent agent = new SimpleVaultAgent( mock( Resolver.class ), mock( Store.class ), new ArtifactCache( tempDir(), 1024 ) );
+
+        String key = agent.dynamicKey( "dynamic", null, SimpleVaultAgentTest.class );
+        assertThat( agent.dynamicKey( "dynamic", null, SimpleVaultAgentTest.class ), is( key ) );
+        assertFalse( key.equals( agent.dynamicKey( "dynamic", null, SimpleVaultAgent.class ) ) );
+        assertFalse( key.equals( agent.dynamicKey( "dynamic", SimpleVaultAgentTest.class ) ) );
+        assertFalse( key.equals( agent.dynamicKey( "other", null, SimpleVaultAgentTest.class ) ) );
+    }
+
+    private static File tempDir()
+        throws IOException
+    {
+        File dir = File.createTempFile( "gouken-simple", "" );
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static String read( Artifact artifact )
+        throws Exception
+    {
+        InputStream in = artifact.getContent().get();
+        try
+        {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while( ( c = in.read() ) != -1 )
+            {
+                sb.append( (char) c );
+            }
+            return sb.toString();
+        } finally
+        {
+            in.close();
+        }
+    }
+}
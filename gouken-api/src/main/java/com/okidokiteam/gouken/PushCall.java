@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken;
+
+/**
+ * A unit of work against the push service inside a vault.
+ * Used for calls that are handed to the vault asynchronously and run once the service is available.
+ *
+ * @param <PUSHTYPE> push service type of the vault
+ * @param <R>        result type
+ */
+public interface PushCall<PUSHTYPE, R>
+{
+
+    /**
+     * @param service the push service currently registered inside the vault. Only valid during this call.
+     *
+     * @return result that is handed to the caller.
+     *
+     * @throws Exception anything. Reported to the caller unchanged.
+     */
+    R call( PUSHTYPE service )
+        throws Exception;
+}
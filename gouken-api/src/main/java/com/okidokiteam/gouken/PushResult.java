@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken;
+
+/**
+ * Outcome of one call of a batch: either the value it returned or the exception it threw.
+ *
+ * @param <R> result type
+ */
+public final class PushResult<R>
+{
+
+    private final R m_value;
+    private final Exception m_exception;
+
+    private PushResult( R value, Exception exception )
+    {
+        m_value = value;
+        m_exception = exception;
+    }
+
+    public static <R> PushResult<R> success( R value )
+    {
+        return new PushResult<R>( value, null );
+    }
+
+    public static <R> PushResult<R> failure( Exception exception )
+    {
+        if( exception == null )
+        {
+            throw new IllegalArgumentException( "exception must not be null" );
+        }
+        return new PushResult<R>( null, exception );
+    }
+
+    /**
+     * @return true if the call threw an exception.
+     */
+    public boolean isFailed()
+    {
+        return m_exception != null;
+    }
+
+    /**
+     * @return value returned by the call. Null if it failed.
+     */
+    public R getValue()
+    {
+        return m_value;
+    }
+
+    /**
+     * @return exception thrown by the call, null if it succeeded.
+     */
+    public Exception getException()
+    {
+        return m_exception;
+    }
+
+    @Override
+    public String toString()
+    {
+        return isFailed() ? "PushResult{failed: " + m_exception + "}" : "PushResult{" + m_value + "}";
+    }
+}
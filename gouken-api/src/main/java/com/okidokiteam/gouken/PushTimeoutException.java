@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken;
+
+/**
+ * Raised by a push call that did not complete within the deadline of its method.
+ * The call may still be running inside the vault.
+ */
+public class PushTimeoutException extends RuntimeException
+{
+
+    public PushTimeoutException( String message )
+    {
+        super( message );
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken;
+
+/**
+ * Raised by a push call when no push service showed up inside the vault in time.
+ */
+public class PushUnavailableException extends RuntimeException
+{
+
+    public PushUnavailableException( String message )
+    {
+        super( message );
+    }
+
+    public PushUnavailableException( String message, Throwable cause )
+    {
+        super( message, cause );
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken;
+
+/**
+ * Optional hooks a Vault offers around a checkpoint of the hosting JVM (for example with CRaC).
+ *
+ * A checkpoint image must not contain open files or running threads.
+ * So before the checkpoint the vault releases them, after the restore it brings the started state back.
+ * The handle returned by {@link Vault#start} stays valid across checkpoint and restore.
+ */
+public interface VaultLifecycle
+{
+
+    /**
+     * Suspends a running vault. Does nothing if the vault is not running.
+     *
+     * @throws KernelException in case of an unexpected problem.
+     */
+    void beforeCheckpoint()
+        throws KernelException;
+
+    /**
+     * Resumes a vault suspended by {@link #beforeCheckpoint()}. Does nothing otherwise.
+     *
+     * @throws KernelException in case of an unexpected problem.
+     */
+    void afterRestore()
+        throws KernelException;
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.okidokiteam.gouken.ace.AceVaultAgent;
+import com.okidokiteam.gouken.cache.ArtifactCache;
+import com.okidokiteam.gouken.cache.CachingResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ops4j.pax.repository.Artifact;
+import org.ops4j.pax.repository.ArtifactQuery;
+import org.ops4j.pax.repository.RepositoryException;
+import org.ops4j.pax.repository.Resolver;
+
+/**
+ * Resolution of the shipped ACE provision list against an in-memory resolver that takes latency microseconds per lookup,
+ * like a remote repository would. threads=1 resolves line by line, cached reads release coordinates from a warm
+ * on-disk cache. A new agent is created per call since agents cache their artifacts.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 1 )
+public class AceVaultAgentBenchmark
+{
+
+    @Param( { "0", "1000" } )
+    public int latency;
+
+    @Param( { "1", "4" } )
+    public int threads;
+
+    @Param( { "false", "true" } )
+    public boolean cached;
+
+    private Resolver m_resolver;
+    private File m_cacheDir;
+    private ArtifactCache m_cache;
+
+    @Setup
+    public void prepare()
+        throws Exception
+    {
+        final Resolver resolver = new InMemoryResolver( new byte[ 1024 ] );
+        m_resolver = new Resolver()
+        {
+            public Artifact find( ArtifactQuery query )
+                throws RepositoryException
+            {
+                if( latency > 0 )
+                {
+                    LockSupport.parkNanos( TimeUnit.MICROSECONDS.toNanos( latency ) );
+                }
+                return resolver.find( query );
+            }
+        };
+        if( cached )
+        {
+            m_cacheDir = File.createTempFile( "gouken-ace", "" );
+            m_cacheDir.delete();
+            m_cache = new ArtifactCache( m_cacheDir, ArtifactCache.DEFAULT_CACHE_SIZE );
+            agent().getArtifacts();
+        }
+    }
+
+    @TearDown
+    public void cleanup()
+    {
+        if( m_cacheDir != null )
+        {
+            delete( m_cacheDir );
+        }
+    }
+
+    private static void delete( File file )
+    {
+        File[] files = file.listFiles();
+        for( int i = 0; files != null && i < files.length; i++ )
+        {
+            delete( files[ i ] );
+        }
+        file.delete();
+    }
+
+    @Benchmark
+    public Artifact[] resolve()
+        throws Exception
+    {
+        return agent().getArtifacts();
+    }
+
+    private AceVaultAgent agent()
+        throws Exception
+    {
+        return new AceVaultAgent( m_resolver, m_cache, threads, CachingResolver.DEFAULT_SNAPSHOT_REVALIDATE_MILLIS );
+    }
+}
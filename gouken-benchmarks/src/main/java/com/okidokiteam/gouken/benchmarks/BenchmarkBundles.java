@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import com.okidokiteam.gouken.benchmarks.bundle.EchoActivator;
+import com.okidokiteam.gouken.benchmarks.bundle.EchoImpl;
+import com.okidokiteam.gouken.benchmarks.push.Echo;
+import org.ops4j.io.StreamUtils;
+
+/**
+ * Writes small bundles to disk so benchmarks never touch a repository.
+ */
+public class BenchmarkBundles
+{
+
+    private BenchmarkBundles()
+    {
+    }
+
+    /**
+     * @return bundle that registers {@link Echo} when started.
+     */
+    public static File echoBundle( File dir )
+        throws IOException
+    {
+        Manifest manifest = manifest( "gouken.benchmarks.echo" );
+        manifest.getMainAttributes().putValue( "Bundle-Activator", EchoActivator.class.getName() );
+        manifest.getMainAttributes().putValue( "Import-Package", "org.osgi.framework," + Echo.class.getPackage().getName() );
+        return write( new File( dir, "echo.jar" ), manifest, EchoActivator.class, EchoImpl.class );
+    }
+
+    /**
+     * @return bundle without any content. Good for measuring the bare install and start cost.
+     */
+    public static File emptyBundle( File dir, String symbolicName )
+        throws IOException
+    {
+        return write( new File( dir, symbolicName + ".jar" ), manifest( symbolicName ) );
+    }
+
+    private static Manifest manifest( String symbolicName )
+    {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+        attributes.putValue( "Bundle-ManifestVersion", "2" );
+        attributes.putValue( "Bundle-SymbolicName", symbolicName );
+        attributes.putValue( "Bundle-Version", "1.0.0" );
+        return manifest;
+    }
+
+    private static File write( File file, Manifest manifest, Class<?>... classes )
+        throws IOException
+    {
+        file.getParentFile().mkdirs();
+        JarOutputStream out = new JarOutputStream( new FileOutputStream( file ), manifest );
+        try
+        {
+            for( Class<?> c : classes )
+            {
+                String name = c.getName().replace( '.', '/' ) + ".class";
+                out.putNextEntry( new JarEntry( name ) );
+                InputStream in = c.getClassLoader().getResourceAsStream( name );
+                try
+                {
+                    StreamUtils.copyStream( in, out, false );
+                } finally
+                {
+                    in.close();
+                }
+                out.closeEntry();
+            }
+        } finally
+        {
+            out.close();
+        }
+        return file;
+    }
+}
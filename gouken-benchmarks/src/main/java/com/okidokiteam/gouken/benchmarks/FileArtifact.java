@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.ops4j.base.io.InputStreamSource;
+import org.ops4j.pax.repository.Artifact;
+
+/**
+ * Artifact backed by a local file.
+ */
+public class FileArtifact implements Artifact
+{
+
+    private final File m_file;
+
+    public FileArtifact( File file )
+    {
+        m_file = file;
+    }
+
+    public InputStreamSource getContent()
+    {
+        return new InputStreamSource()
+        {
+            public InputStream get()
+                throws IOException
+            {
+                return new FileInputStream( m_file );
+            }
+        };
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[FileArtifact " + m_file + "]";
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import com.okidokiteam.gouken.VaultAgent;
+import com.okidokiteam.gouken.benchmarks.push.Echo;
+import com.okidokiteam.gouken.kernel.CoreVault;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cold start of a vault (fresh storage, full provisioning) against resuming a suspended one
+ * through the checkpoint hooks ({@link CoreVault#beforeCheckpoint()} / {@link CoreVault#afterRestore()}).
+ * Both end with the management agent active and the push service available.
+ * <p/>
+ * No checkpoint is taken: the resume case times a stop and restart of the framework from its storage inside the
+ * same JVM. It does not measure restoring a JVM from a CRaC checkpoint image.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5 )
+@Measurement( iterations = 20 )
+@Fork( value = 1, jvmArgsAppend = { Vaults.IGNORE_UNKNOWN, Vaults.OPENS_1, Vaults.OPENS_2, Vaults.OPENS_3 } )
+public class FrameworkResumeBenchmark
+{
+
+    @Param( { "25" } )
+    public int bundles;
+
+    private File m_coldFolder;
+    private File m_resumeFolder;
+    private VaultAgent m_agent;
+    private CoreVault<Echo> m_cold;
+    private CoreVault<Echo> m_suspended;
+    private Echo m_resumedEcho;
+
+    @Setup( Level.Trial )
+    public void prepare()
+        throws Exception
+    {
+        m_coldFolder = Vaults.newFolder( "cold" );
+        m_resumeFolder = Vaults.newFolder( "resume" );
+        File repository = Vaults.newFolder( "resume-repo" );
+        File[] files = new File[ bundles + 1 ];
+        files[ 0 ] = BenchmarkBundles.echoBundle( repository );
+        for( int i = 1; i <= bundles; i++ )
+        {
+            files[ i ] = BenchmarkBundles.emptyBundle( repository, "gouken.benchmarks.b" + i );
+        }
+        m_agent = new LocalFileAgent( files );
+
+        m_suspended = new CoreVault<Echo>( Vaults.settings( m_resumeFolder ), Echo.class );
+        m_resumedEcho = m_suspended.start( m_agent );
+    }
+
+    @Setup( Level.Invocation )
+    public void suspend()
+        throws Exception
+    {
+        Vaults.clean( m_coldFolder );
+        m_cold = new CoreVault<Echo>( Vaults.settings( m_coldFolder ), Echo.class );
+        m_suspended.beforeCheckpoint();
+    }
+
+    @TearDown( Level.Invocation )
+    public void stopCold()
+        throws Exception
+    {
+        m_cold.stop();
+    }
+
+    @TearDown( Level.Trial )
+    public void stopResumed()
+        throws Exception
+    {
+        m_suspended.stop();
+    }
+
+    @Benchmark
+    public int coldStart()
+        throws Exception
+    {
+        return m_cold.start( m_agent ).echo( 1 );
+    }
+
+    @Benchmark
+    public int resumedStart()
+        throws Exception
+    {
+        m_suspended.afterRestore();
+        return m_resumedEcho.echo( 1 );
+    }
+}
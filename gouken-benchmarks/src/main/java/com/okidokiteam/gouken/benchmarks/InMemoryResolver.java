@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.ops4j.base.io.InputStreamSource;
+import org.ops4j.pax.repository.Artifact;
+import org.ops4j.pax.repository.ArtifactQuery;
+import org.ops4j.pax.repository.Resolver;
+
+/**
+ * Resolves every query to the same in-memory artifact. Keeps repository I/O out of the measurements.
+ */
+public class InMemoryResolver implements Resolver
+{
+
+    private final Artifact m_artifact;
+
+    public InMemoryResolver( final byte[] content )
+    {
+        m_artifact = new Artifact()
+        {
+            public InputStreamSource getContent()
+            {
+                return new InputStreamSource()
+                {
+                    public InputStream get()
+                    {
+                        return new ByteArrayInputStream( content );
+                    }
+                };
+            }
+        };
+    }
+
+    public Artifact find( ArtifactQuery artifactQuery )
+    {
+        return m_artifact;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.benchmarks;
+
+import java.io.File;
+
+import com.okidokiteam.gouken.VaultAgent;
+import org.ops4j.pax.repository.Artifact;
+
+/**
+ * Agent that provisions a fixed list of local files.
+ */
+public class LocalFileAgent implements VaultAgent
+{
+
+    private final Artifact[] m_artifacts;
+
+    public LocalFileAgent( File... files )
+    {
+        m_artifacts = new Artifact[ files.length ];
+        for( int i = 0; i < files.length; i++ )
+        {
+            m_artifacts[ i ] = new FileArtifact( files[ i ] );
+        }
+    }
+
+    public Artifact[] getArtifacts()
+    {
+        return m_artifacts;
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.okidokiteam.gouken.kernel.ComponentGraph;
+import com.okidokiteam.gouken.kernel.MAReport;
+import com.okidokiteam.gouken.kernel.RootCauseAnalysis;
+import org.apache.felix.dm.ComponentDeclaration;
+import org.apache.felix.dm.ComponentDependencyDeclaration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * {@link MAReport#collect} over a synthetic registry of dependency manager components, once scanning the registry
+ * and once from a {@link ComponentGraph} that did not change in between (the health check case), as text, JSON lines
+ * and as a JSON diff against the unchanged graph. rootCauses measures the root cause analysis alone.
+ * The registry is a plain in-memory fake, so only the report itself is measured.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 1 )
+public class MAReportBenchmark
+{
+
+    @Param( { "10", "100", "1000" } )
+    public int components;
+
+    @Param( { "3" } )
+    public int dependencies;
+
+    private BundleContext m_context;
+    private PrintStream m_out;
+    private MAReport m_report;
+    private ComponentGraph m_graph;
+    private String[] m_diff;
+    private List<ComponentGraph.Node> m_nodes;
+
+    @Setup
+    public void prepare()
+    {
+        m_context = new SyntheticRegistry( components, dependencies ).context();
+        m_out = new PrintStream( new OutputStream()
+        {
+            @Override
+            public void write( int b )
+            {
+            }
+
+            @Override
+            public void write( byte[] b, int off, int len )
+            {
+            }
+        }
+        );
+        m_report = new MAReport();
+        m_graph = new ComponentGraph( m_context );
+        m_diff = new String[]{ "json", "since=" + m_graph.getVersion() };
+        m_nodes = m_graph.getComponents();
+    }
+
+    @TearDown
+    public void close()
+    {
+        m_graph.close();
+    }
+
+    @Benchmark
+    public void collect()
+    {
+        m_report.collect( m_context, m_out, m_out );
+    }
+
+    @Benchmark
+    public void collectCached()
+    {
+        m_report.collect( m_graph, m_out, m_out );
+    }
+
+    @Benchmark
+    public void collectJson()
+    {
+        m_report.collect( m_graph, new String[]{ "json" }, m_out, m_out );
+    }
+
+    @Benchmark
+    public void collectJsonDiff()
+    {
+        m_report.collect( m_graph, m_diff, m_out, m_out );
+    }
+
+    @Benchmark
+    public List<ComponentGraph.Node> scan()
+    {
+        return ComponentGraph.scan( m_context );
+    }
+
+    @Benchmark
+    public RootCauseAnalysis rootCauses()
+    {
+        return RootCauseAnalysis.analyze( m_nodes );
+    }
+
+    @Benchmark
+    public List<ComponentGraph.Node> unavailableCached()
+    {
+        return m_graph.getUnavailable();
+    }
+
+    /**
+     * Components spread over ten bundles. Every third component misses one of its required dependencies.
+     */
+    static class SyntheticRegistry
+    {
+
+        private final ServiceReference[] m_references;
+        private final Map<ServiceReference, ComponentDeclaration> m_services = new HashMap<ServiceReference, ComponentDeclaration>();
+
+        SyntheticRegistry( int components, int dependencies )
+        {
+            Bundle[] bundles = new Bundle[ 10 ];
+            for( int i = 0; i < bundles.length; i++ )
+            {
+                bundles[ i ] = bundle( i + 1 );
+            }
+            m_references = new ServiceReference[ components ];
+            for( int i = 0; i < components; i++ )
+            {
+                m_references[ i ] = reference( bundles[ i % bundles.length ] );
+                m_services.put( m_references[ i ], new Component( "org.example.component.Component" + i, i % 3 != 0, i, dependencies ) );
+            }
+        }
+
+        BundleContext context()
+        {
+            return (BundleContext) Proxy.newProxyInstance( getClass().getClassLoader(), new Class<?>[]{ BundleContext.class }, new InvocationHandler()
+            {
+                public Object invoke( Object proxy, Method method, Object[] args )
+                {
+                    if( "getServiceReferences".equals( method.getName() ) )
+                    {
+                        return m_references.clone();
+                    }
+                    if( "getService".equals( method.getName() ) )
+                    {
+                        return m_services.get( args[ 0 ] );
+                    }
+                    if( "ungetService".equals( method.getName() ) )
+                    {
+                        return Boolean.TRUE;
+                    }
+                    if( method.getName().endsWith( "Listener" ) )
+                    {
+                        // nothing changes in the synthetic registry.
+                        return null;
+                    }
+                    throw new UnsupportedOperationException( method.getName() );
+                }
+            }
+            );
+        }
+
+        private static Bundle bundle( final long id )
+        {
+            return (Bundle) Proxy.newProxyInstance( SyntheticRegistry.class.getClassLoader(), new Class<?>[]{ Bundle.class }, new InvocationHandler()
+            {
+                public Object invoke( Object proxy, Method method, Object[] args )
+                {
+                    if( "getBundleId".equals( method.getName() ) )
+                    {
+                        return id;
+                    }
+                    if( "getSymbolicName".equals( method.getName() ) )
+                    {
+                        return "org.example.bundle" + id;
+                    }
+                    if( "hashCode".equals( method.getName() ) )
+                    {
+                        return (int) id;
+                    }
+                    if( "equals".equals( method.getName() ) )
+                    {
+                        return proxy == args[ 0 ];
+                    }
+                    throw new UnsupportedOperationException( method.getName() );
+                }
+            }
+            );
+        }
+
+        private static ServiceReference reference( final Bundle bundle )
+        {
+            return (ServiceReference) Proxy.newProxyInstance( SyntheticRegistry.class.getClassLoader(), new Class<?>[]{ ServiceReference.class }, new InvocationHandler()
+            {
+                public Object invoke( Object proxy, Method method, Object[] args )
+                {
+                    if( "getBundle".equals( method.getName() ) )
+                    {
+                        return bundle;
+                    }
+                    if( "hashCode".equals( method.getName() ) )
+                    {
+                        return System.identityHashCode( proxy );
+                    }
+                    if( "equals".equals( method.getName() ) )
+                    {
+                        return proxy == args[ 0 ];
+                    }
+                    if( "getProperty".equals( method.getName() ) )
+                    {
+                        return null;
+                    }
+                    throw new UnsupportedOperationException( method.getName() );
+                }
+            }
+            );
+        }
+    }
+
+    static class Component implements ComponentDeclaration
+    {
+
+        private final String m_name;
+        private final boolean m_registered;
+        private final ComponentDependencyDeclaration[] m_dependencies;
+
+        Component( String name, boolean registered, int index, int dependencies )
+        {
+            m_name = name;
+            m_registered = registered;
+            m_dependencies = new ComponentDependencyDeclaration[ dependencies ];
+            for( int i = 0; i < dependencies; i++ )
+            {
+                boolean available = registered || i > 0;
+                m_dependencies[ i ] = new Dependency( "org.example.service.Service" + ( ( index + i ) % 50 ), available );
+            }
+        }
+
+        public ComponentDependencyDeclaration[] getComponentDependencies()
+        {
+            return m_dependencies;
+        }
+
+        public String getName()
+        {
+            return m_name;
+        }
+
+        public int getState()
+        {
+            return m_registered ? STATE_REGISTERED : STATE_UNREGISTERED;
+        }
+
+        public BundleContext getBundleContext()
+        {
+            return null;
+        }
+    }
+
+    static class Dependency implements ComponentDependencyDeclaration
+    {
+
+        private final String m_name;
+        private final boolean m_available;
+
+        Dependency( String name, boolean available )
+        {
+            m_name = name;
+            m_available = available;
+        }
+
+        public String getName()
+        {
+            return m_name;
+        }
+
+        public String getType()
+        {
+            return "service";
+        }
+
+        public int getState()
+        {
+            return m_available ? STATE_AVAILABLE_REQUIRED : STATE_UNAVAILABLE_REQUIRED;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import com.okidokiteam.gouken.benchmarks.bundle.EchoActivator;
+import com.okidokiteam.gouken.benchmarks.push.Echo;
+import com.okidokiteam.gouken.kernel.CoreVault;
+import com.okidokiteam.gouken.kernel.KernelProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Four host threads calling {@link Echo#work(int)} through the push proxy while the management agent registers
+ * several Echo services that each handle one call at a time. Shows how the dispatch policies spread the load.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( value = 1, jvmArgsAppend = { Vaults.IGNORE_UNKNOWN, Vaults.OPENS_1, Vaults.OPENS_2, Vaults.OPENS_3 } )
+public class PushDispatchBenchmark
+{
+
+    @Param( {
+        KernelProperties.PUSH_POLICY_BEST,
+        KernelProperties.PUSH_POLICY_ROUND_ROBIN,
+        KernelProperties.PUSH_POLICY_LEAST_OUTSTANDING,
+        KernelProperties.PUSH_POLICY_SHARDED
+    } )
+    public String policy;
+
+    @Param( { "4" } )
+    public String workers;
+
+    private CoreVault<Echo> m_vault;
+    private Echo m_echo;
+
+    @Setup( Level.Trial )
+    public void start()
+        throws Exception
+    {
+        System.setProperty( KernelProperties.PUSH_POLICY, policy );
+        System.setProperty( EchoActivator.WORKERS, workers );
+        File folder = Vaults.newFolder( "dispatch" );
+        m_vault = new CoreVault<Echo>( Vaults.settings( folder ), Echo.class );
+        m_echo = m_vault.start( new LocalFileAgent( BenchmarkBundles.echoBundle( Vaults.newFolder( "dispatch-repo" ) ) ) );
+    }
+
+    @TearDown( Level.Trial )
+    public void stop()
+        throws Exception
+    {
+        m_vault.stop();
+        System.clearProperty( KernelProperties.PUSH_POLICY );
+        System.clearProperty( EchoActivator.WORKERS );
+    }
+
+    @Benchmark
+    @Threads( 4 )
+    public int work( Caller caller )
+    {
+        return m_echo.work( caller.m_key++ );
+    }
+
+    /**
+     * Each calling thread walks its own range of keys.
+     */
+    @State( Scope.Thread )
+    public static class Caller
+    {
+
+        private int m_key = (int) Thread.currentThread().getId() << 20;
+    }
+}
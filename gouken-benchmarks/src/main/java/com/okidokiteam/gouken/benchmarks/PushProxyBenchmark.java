@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.okidokiteam.gouken.PushCall;
+import com.okidokiteam.gouken.PushResult;
+import com.okidokiteam.gouken.benchmarks.push.Echo;
+import com.okidokiteam.gouken.kernel.CoreVault;
+import com.okidokiteam.gouken.kernel.KernelProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Host to vault calls through the push proxy returned by {@link CoreVault#start}.
+ * Throughput and the latency distribution (SampleTime) are measured with one and with four calling threads,
+ * for the generated invoker and proxy and for the reflective ones, with and without per method metrics. {@link #batch()} runs the same calls through {@link CoreVault#batch},
+ * scores are per call.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( value = 1, jvmArgsAppend = { Vaults.IGNORE_UNKNOWN, Vaults.OPENS_1, Vaults.OPENS_2, Vaults.OPENS_3 } )
+public class PushProxyBenchmark
+{
+
+    @Param( { KernelProperties.PUSH_INVOKER_GENERATED, KernelProperties.PUSH_INVOKER_REFLECTIVE } )
+    public String invoker;
+
+    @Param( { "true", "false" } )
+    public String metrics;
+
+    private static final int BATCH = 100;
+
+    private CoreVault<Echo> m_vault;
+    private Echo m_echo;
+    private int m_value;
+    private List<PushCall<Echo, Integer>> m_batch;
+
+    @Setup( Level.Trial )
+    public void start()
+        throws Exception
+    {
+        System.setProperty( KernelProperties.PUSH_INVOKER, invoker );
+        System.setProperty( KernelProperties.PUSH_METRICS, metrics );
+        File folder = Vaults.newFolder( "push" );
+        m_vault = new CoreVault<Echo>( Vaults.settings( folder ), Echo.class );
+        m_echo = m_vault.start( new LocalFileAgent( BenchmarkBundles.echoBundle( Vaults.newFolder( "push-repo" ) ) ) );
+        m_batch = new ArrayList<PushCall<Echo, Integer>>( BATCH );
+        for( int i = 0; i < BATCH; i++ )
+        {
+            final int value = i;
+            m_batch.add( new PushCall<Echo, Integer>()
+            {
+                public Integer call( Echo service )
+                {
+                    return service.echo( value );
+                }
+            }
+            );
+        }
+    }
+
+    @TearDown( Level.Trial )
+    public void stop()
+        throws Exception
+    {
+        m_vault.stop();
+        System.clearProperty( KernelProperties.PUSH_INVOKER );
+        System.clearProperty( KernelProperties.PUSH_METRICS );
+    }
+
+    @Benchmark
+    @Threads( 1 )
+    public int call()
+    {
+        return m_echo.echo( m_value++ );
+    }
+
+    @Benchmark
+    @Threads( 4 )
+    public int callContended()
+    {
+        return m_echo.echo( 42 );
+    }
+
+    @Benchmark
+    @Threads( 1 )
+    @OperationsPerInvocation( BATCH )
+    public List<PushResult<Integer>> batch()
+    {
+        return m_vault.batch( m_batch );
+    }
+}
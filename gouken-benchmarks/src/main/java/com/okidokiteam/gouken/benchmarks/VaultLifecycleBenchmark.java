@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import com.okidokiteam.gouken.VaultAgent;
+import com.okidokiteam.gouken.VaultPush;
+import com.okidokiteam.gouken.kernel.CoreVault;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ops4j.pax.repository.Artifact;
+
+/**
+ * Full start/stop cycles of a {@link CoreVault} on a clean working folder.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5 )
+@Measurement( iterations = 10 )
+@Fork( value = 1, jvmArgsAppend = { Vaults.IGNORE_UNKNOWN, Vaults.OPENS_1, Vaults.OPENS_2, Vaults.OPENS_3 } )
+public class VaultLifecycleBenchmark
+{
+
+    @Param( { "10", "25" } )
+    public int bundles;
+
+    private File m_folder;
+    private VaultAgent m_emptyAgent;
+    private VaultAgent m_localFileAgent;
+
+    @Setup( Level.Trial )
+    public void prepare()
+        throws Exception
+    {
+        m_folder = Vaults.newFolder( "lifecycle" );
+        File repository = Vaults.newFolder( "lifecycle-repo" );
+        File[] files = new File[ bundles ];
+        for( int i = 0; i < bundles; i++ )
+        {
+            files[ i ] = BenchmarkBundles.emptyBundle( repository, "gouken.benchmarks.b" + i );
+        }
+        m_localFileAgent = new LocalFileAgent( files );
+        m_emptyAgent = new VaultAgent()
+        {
+            public Artifact[] getArtifacts()
+            {
+                return new Artifact[ 0 ];
+            }
+        };
+    }
+
+    @Setup( Level.Invocation )
+    public void clean()
+    {
+        Vaults.clean( m_folder );
+    }
+
+    @Benchmark
+    public CoreVault<VaultPush> startStopEmptyAgent()
+        throws Exception
+    {
+        return cycle( m_emptyAgent );
+    }
+
+    @Benchmark
+    public CoreVault<VaultPush> startStopLocalFileAgent()
+        throws Exception
+    {
+        return cycle( m_localFileAgent );
+    }
+
+    private CoreVault<VaultPush> cycle( VaultAgent agent )
+        throws Exception
+    {
+        CoreVault<VaultPush> vault = new CoreVault<VaultPush>( Vaults.settings( m_folder ), VaultPush.class );
+        vault.start( agent );
+        vault.stop();
+        return vault;
+    }
+}
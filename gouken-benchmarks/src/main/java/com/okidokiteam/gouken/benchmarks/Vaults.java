@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.okidokiteam.gouken.VaultSettings;
+import org.ops4j.io.FileUtils;
+
+/**
+ * Working folders for benchmark vaults.
+ */
+public class Vaults
+{
+
+    /**
+     * Felix 3 needs these opens on Java 9 and later. Add them to every fork that boots a vault.
+     * Older JVMs skip them thanks to IgnoreUnrecognizedVMOptions.
+     */
+    public static final String IGNORE_UNKNOWN = "-XX:+IgnoreUnrecognizedVMOptions";
+    public static final String OPENS_1 = "--add-opens=java.base/java.lang=ALL-UNNAMED";
+    public static final String OPENS_2 = "--add-opens=java.base/java.net=ALL-UNNAMED";
+    public static final String OPENS_3 = "--add-opens=java.base/java.security=ALL-UNNAMED";
+
+    private Vaults()
+    {
+    }
+
+    public static File newFolder( String name )
+        throws IOException
+    {
+        File folder = File.createTempFile( "gouken-" + name, "" );
+        folder.delete();
+        folder.mkdirs();
+        return folder;
+    }
+
+    public static void clean( File folder )
+    {
+        FileUtils.delete( folder );
+        folder.mkdirs();
+    }
+
+    public static VaultSettings settings( final File folder )
+    {
+        return new VaultSettings()
+        {
+            public File getWorkingFolder()
+            {
+                return folder;
+            }
+        };
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.benchmarks.bundle;
+
+import com.okidokiteam.gouken.benchmarks.push.Echo;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Activator of the generated echo bundle. Lives inside the vault, registers the push service.
+ */
+public class EchoActivator implements BundleActivator
+{
+
+    /**
+     * System property with the number of Echo services to register. Defaults to 1.
+     */
+    public static final String WORKERS = "gouken.benchmarks.echo.workers";
+
+    public void start( BundleContext context )
+        throws Exception
+    {
+        int workers = Integer.getInteger( WORKERS, 1 );
+        for( int i = 0; i < workers; i++ )
+        {
+            context.registerService( Echo.class.getName(), new EchoImpl(), null );
+        }
+    }
+
+    public void stop( BundleContext context )
+        throws Exception
+    {
+    }
+
+}
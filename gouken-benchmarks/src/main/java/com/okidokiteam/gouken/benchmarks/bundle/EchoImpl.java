@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.benchmarks.bundle;
+
+import java.util.concurrent.locks.LockSupport;
+
+import com.okidokiteam.gouken.benchmarks.push.Echo;
+
+/**
+ *
+ */
+public class EchoImpl implements Echo
+{
+
+    private static final long WORK_NANOS = 50000;
+
+    public int echo( int value )
+    {
+        return value;
+    }
+
+    public String name()
+    {
+        return "echo";
+    }
+
+    public synchronized int work( int key )
+    {
+        LockSupport.parkNanos( WORK_NANOS );
+        return key;
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.benchmarks.push;
+
+/**
+ * Push type used by the benchmarks. Its package is delegated to the host classloader by the vault.
+ */
+public interface Echo
+{
+
+    int echo( int value );
+
+    String name();
+
+    /**
+     * Blocks for a short while, like a call waiting for I/O. Implementations handle one call at a time,
+     * like a single threaded worker.
+     */
+    int work( int key );
+}
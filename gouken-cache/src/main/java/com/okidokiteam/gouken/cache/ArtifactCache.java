@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content addressed artifact store on disk, meant to be shared by all vaults of a host.
+ * <p/>
+ * Contents are kept once per SHA-256 digest under blobs/ab/abcd..., keys (e.g. artifact queries) map to digests
+ * through small files under keys/. Everything is written to a temporary file and renamed into place, so several
+ * processes can use the same directory. The total size is bounded: once it grows beyond the limit, the least
+ * recently used contents are deleted. Use {@link CachedArtifact#materialize(File)} to give a vault its own hard link
+ * that survives eviction.
+ */
+public final class ArtifactCache
+{
+
+    /**
+     * System property with the directory of the host wide cache, see {@link #getDefault()}.
+     */
+    public static final String CACHE_DIR = "gouken.cache.dir";
+    /**
+     * System property with the size limit in bytes of the host wide cache, see {@link #getDefault()}.
+     */
+    public static final String CACHE_SIZE = "gouken.cache.size";
+    public static final long DEFAULT_CACHE_SIZE = 1024L * 1024 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static ArtifactCache s_default;
+
+    private final File m_blobs;
+    private final File m_keys;
+    private final long m_maxBytes;
+    // -1 until the blobs on disk have been counted.
+    private final AtomicLong m_size = new AtomicLong( -1 );
+
+    /**
+     * @param root     directory of the cache. Created when needed.
+     * @param maxBytes size limit of all contents together
+     */
+    public ArtifactCache( File root, long maxBytes )
+    {
+        if( maxBytes <= 0 )
+        {
+            throw new IllegalArgumentException( "maxBytes must be positive." );
+        }
+        m_blobs = new File( root, "blobs" );
+        m_keys = new File( root, "keys" );
+        m_maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cache of this host: {@value #CACHE_DIR} or ~/.gouken/artifacts, bounded by {@value #CACHE_SIZE}
+     *         or 1 GB.
+     */
+    public static synchronized ArtifactCache getDefault()
+    {
+        if( s_default == null )
+        {
+            String dir = System.getProperty( CACHE_DIR );
+            File root = dir != null ? new File( dir ) : new File( System.getProperty( "user.home" ), ".gouken" + File.separator + "artifacts" );
+            s_default = new ArtifactCache( root, Long.getLong( CACHE_SIZE, DEFAULT_CACHE_SIZE ) );
+        }
+        return s_default;
+    }
+
+    /**
+     * @param key       key the content was stored with
+     * @param maxAgeMillis ignore entries stored longer ago than this, negative to take entries of any age
+     *
+     * @return the cached content, null if there is none (or it is too old or has been evicted)
+     */
+    public CachedArtifact lookup( String key, long maxAgeMillis )
+    {
+        File keyFile = keyFile( key );
+        long stored = keyFile.lastModified();
+        if( stored == 0 || ( maxAgeMillis >= 0 && System.currentTimeMillis() - stored > maxAgeMillis ) )
+        {
+            return null;
+        }
+        String digest;
+        try
+        {
+            digest = new String( read( keyFile ), "US-ASCII" ).trim();
+        } catch( IOException e )
+        {
+            return null;
+        }
+        File blob = blob( digest );
+        // the modification time of a blob is its last use.
+        if( digest.length() != 64 || !blob.setLastModified( System.currentTimeMillis() ) )
+        {
+            return null;
+        }
+        return new CachedArtifact( digest, blob );
+    }
+
+    /**
+     * Stores content under key. Content that is already cached (under any key) is not stored again.
+     *
+     * @return the cached content
+     *
+     * @throws IOException if content cannot be read or written
+     */
+    public CachedArtifact store( String key, InputStream content )
+        throws IOException
+    {
+        // counts what is there before this content arrives.
+        size();
+        mkdirs( m_blobs );
+        File tmp = File.createTempFile( "blob", ".tmp", m_blobs );
+        String digest;
+        long length = 0;
+        try
+        {
+            MessageDigest sha = sha256();
+            OutputStream out = new FileOutputStream( tmp );
+            try
+            {
+                byte[] buffer = new byte[8192];
+                int n;
+                while( ( n = content.read( buffer ) ) != -1 )
+                {
+                    sha.update( buffer, 0, n );
+                    out.write( buffer, 0, n );
+                    length += n;
+                }
+            } finally
+            {
+                out.close();
+            }
+            digest = hex( sha.digest() );
+            File blob = blob( digest );
+            if( blob.isFile() )
+            {
+                blob.setLastModified( System.currentTimeMillis() );
+                length = 0;
+            }
+            else
+            {
+                mkdirs( blob.getParentFile() );
+                if( !tmp.renameTo( blob ) && !blob.isFile() )
+                {
+                    throw new IOException( "Cannot move " + tmp + " to " + blob );
+                }
+            }
+        } finally
+        {
+            tmp.delete();
+        }
+        writeKey( key, digest );
+        if( length > 0 && m_size.addAndGet( length ) > m_maxBytes )
+        {
+            trim();
+        }
+        return new CachedArtifact( digest, blob( digest ) );
+    }
+
+    /**
+     * Deletes least recently used contents until the cache is 10% below its limit.
+     */
+    public synchronized void trim()
+    {
+        List<File> blobs = blobs();
+        long size = 0;
+        for( File blob : blobs )
+        {
+            size += blob.length();
+        }
+        if( size > m_maxBytes )
+        {
+            Collections.sort( blobs, new Comparator<File>()
+            {
+                public int compare( File f1, File f2 )
+                {
+                    long m1 = f1.lastModified();
+                    long m2 = f2.lastModified();
+                    return m1 < m2 ? -1 : ( m1 == m2 ? 0 : 1 );
+                }
+            }
+            );
+            long target = m_maxBytes - m_maxBytes / 10;
+            for( int i = 0; i < blobs.size() && size > target; i++ )
+            {
+                long length = blobs.get( i ).length();
+                if( blobs.get( i ).delete() )
+                {
+                    size -= length;
+                }
+            }
+        }
+        m_size.set( size );
+    }
+
+    /**
+     * @return size of all cached contents in bytes, as far as this process knows
+     */
+    public long size()
+    {
+        long size = m_size.get();
+        if( size < 0 )
+        {
+            size = 0;
+            for( File blob : blobs() )
+            {
+                size += blob.length();
+            }
+            m_size.compareAndSet( -1, size );
+            size = m_size.get();
+        }
+        return size;
+    }
+
+    private List<File> blobs()
+    {
+        List<File> blobs = new ArrayList<File>();
+        File[] dirs = m_blobs.listFiles();
+        if( dirs != null )
+        {
+            for( File dir : dirs )
+            {
+                File[] files = dir.listFiles();
+                if( files != null )
+                {
+                    for( File f : files )
+                    {
+                        blobs.add( f );
+                    }
+                }
+            }
+        }
+        return blobs;
+    }
+
+    private void writeKey( String key, String digest )
+        throws IOException
+    {
+        mkdirs( m_keys );
+        File tmp = File.createTempFile( "key", ".tmp", m_keys );
+        try
+        {
+            OutputStream out = new FileOutputStream( tmp );
+            try
+            {
+                out.write( digest.getBytes( "US-ASCII" ) );
+            } finally
+            {
+                out.close();
+            }
+            File keyFile = keyFile( key );
+            // renameTo does not replace existing files everywhere.
+            if( !tmp.renameTo( keyFile ) )
+            {
+                keyFile.delete();
+                if( !tmp.renameTo( keyFile ) )
+                {
+                    throw new IOException( "Cannot move " + tmp + " to " + keyFile );
+                }
+            }
+        } finally
+        {
+            tmp.delete();
+        }
+    }
+
+    private File blob( String digest )
+    {
+        return new File( new File( m_blobs, digest.substring( 0, Math.min( 2, digest.length() ) ) ), digest );
+    }
+
+    private File keyFile( String key )
+    {
+        try
+        {
+            return new File( m_keys, URLEncoder.encode( key, "UTF-8" ) );
+        } catch( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static void mkdirs( File dir )
+        throws IOException
+    {
+        if( !dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory() )
+        {
+            throw new IOException( "Cannot create directory " + dir );
+        }
+    }
+
+    private static byte[] read( File file )
+        throws IOException
+    {
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            byte[] data = new byte[(int) file.length()];
+            int off = 0;
+            int n;
+            while( off < data.length && ( n = in.read( data, off, data.length - off ) ) != -1 )
+            {
+                off += n;
+            }
+            return data;
+        } finally
+        {
+            in.close();
+        }
+    }
+
+    static MessageDigest sha256()
+    {
+        try
+        {
+            return MessageDigest.getInstance( "SHA-256" );
+        } catch( NoSuchAlgorithmException e )
+        {
+            // every JRE has SHA-256.
+            throw new IllegalStateException( e );
+        }
+    }
+
+    static String hex( byte[] bytes )
+    {
+        char[] chars = new char[bytes.length * 2];
+        for( int i = 0; i < bytes.length; i++ )
+        {
+            chars[ i * 2 ] = HEX[ ( bytes[ i ] >> 4 ) & 0xf ];
+            chars[ i * 2 + 1 ] = HEX[ bytes[ i ] & 0xf ];
+        }
+        return new String( chars );
+    }
+}
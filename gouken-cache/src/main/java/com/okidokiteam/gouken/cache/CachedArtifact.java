@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+
+import org.ops4j.base.io.InputStreamSource;
+
+import com.okidokiteam.gouken.FileArtifact;
+
+/**
+ * Artifact whose content lives in an {@link ArtifactCache}.
+ */
+public final class CachedArtifact implements FileArtifact
+{
+
+    // java.nio.file is looked up reflectively, so the api still runs on Java 5 and 6 (which copy instead).
+    private static final Method TO_PATH;
+    private static final Method CREATE_LINK;
+
+    static
+    {
+        Method toPath = null;
+        Method createLink = null;
+        try
+        {
+            Class<?> path = Class.forName( "java.nio.file.Path" );
+            toPath = File.class.getMethod( "toPath" );
+            createLink = Class.forName( "java.nio.file.Files" ).getMethod( "createLink", path, path );
+        } catch( Exception e )
+        {
+            toPath = null;
+            createLink = null;
+        }
+        TO_PATH = toPath;
+        CREATE_LINK = createLink;
+    }
+
+    private final String m_digest;
+    private final File m_file;
+
+    CachedArtifact( String digest, File file )
+    {
+        m_digest = digest;
+        m_file = file;
+    }
+
+    public InputStreamSource getContent()
+    {
+        return new InputStreamSource()
+        {
+            public InputStream get()
+                throws IOException
+            {
+                return new FileInputStream( m_file );
+            }
+        };
+    }
+
+    /**
+     * @return SHA-256 of the content, hex encoded
+     */
+    public String getDigest()
+    {
+        return m_digest;
+    }
+
+    /**
+     * @return the cached file. It may be evicted at any time, use {@link #materialize(File)} to keep it.
+     */
+    public File getFile()
+    {
+        return m_file;
+    }
+
+    /**
+     * Puts the content at target as a hard link to the cached file, so it takes no extra space and survives eviction.
+     * Copies it where links are not possible (other file system, Java before 7).
+     *
+     * @param target file to create. Replaced if it exists.
+     *
+     * @return true if target is a hard link, false if it is a copy
+     *
+     * @throws IOException if the content cannot be linked nor copied
+     */
+    public boolean materialize( File target )
+        throws IOException
+    {
+        target.delete();
+        if( CREATE_LINK != null )
+        {
+            try
+            {
+                CREATE_LINK.invoke( null, TO_PATH.invoke( target ), TO_PATH.invoke( m_file ) );
+                return true;
+            } catch( Exception e )
+            {
+                // fall back to a copy.
+                target.delete();
+            }
+        }
+        FileChannel in = new FileInputStream( m_file ).getChannel();
+        try
+        {
+            FileChannel out = new FileOutputStream( target ).getChannel();
+            try
+            {
+                // lets the kernel copy (sendfile, copy_file_range) instead of going through a java buffer.
+                long size = in.size();
+                long position = 0;
+                while( position < size )
+                {
+                    position += in.transferTo( position, size - position, out );
+                }
+            } finally
+            {
+                out.close();
+            }
+        } finally
+        {
+            in.close();
+        }
+        return false;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[CachedArtifact sha256=" + m_digest + "]";
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.ops4j.pax.repository.Artifact;
+import org.ops4j.pax.repository.ArtifactQuery;
+import org.ops4j.pax.repository.RepositoryException;
+import org.ops4j.pax.repository.Resolver;
+
+/**
+ * Resolver decorator that answers from an {@link ArtifactCache} and only asks the decorated resolver on a miss.
+ * Queries are cached by their query string. SNAPSHOT queries are asked again once their entry is older than
+ * the revalidation interval; if the decorated resolver fails then, the older content is used.
+ */
+public class CachingResolver implements Resolver
+{
+
+    public static final long DEFAULT_SNAPSHOT_REVALIDATE_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private final Resolver m_delegate;
+    private final ArtifactCache m_cache;
+    private final long m_snapshotRevalidateMillis;
+
+    public CachingResolver( Resolver delegate )
+    {
+        this( delegate, ArtifactCache.getDefault(), DEFAULT_SNAPSHOT_REVALIDATE_MILLIS );
+    }
+
+    /**
+     * @param delegate                 resolver asked on cache misses
+     * @param cache                    cache to use, usually {@link ArtifactCache#getDefault()}
+     * @param snapshotRevalidateMillis how long SNAPSHOT contents are used before the delegate is asked again
+     */
+    public CachingResolver( Resolver delegate, ArtifactCache cache, long snapshotRevalidateMillis )
+    {
+        m_delegate = delegate;
+        m_cache = cache;
+        m_snapshotRevalidateMillis = snapshotRevalidateMillis;
+    }
+
+    /**
+     * Answers from the cache only.
+     *
+     * @return the cached content of artifactQuery, null if there is none or a SNAPSHOT has to be revalidated
+     */
+    public CachedArtifact lookup( ArtifactQuery artifactQuery )
+    {
+        String key = artifactQuery.getQueryString();
+        return m_cache.lookup( key, isSnapshot( key ) ? m_snapshotRevalidateMillis : -1 );
+    }
+
+    public Artifact find( ArtifactQuery artifactQuery )
+        throws RepositoryException
+    {
+        CachedArtifact cached = lookup( artifactQuery );
+        if( cached != null )
+        {
+            return cached;
+        }
+        String key = artifactQuery.getQueryString();
+        boolean snapshot = isSnapshot( key );
+        Artifact artifact;
+        try
+        {
+            artifact = m_delegate.find( artifactQuery );
+        } catch( RepositoryException e )
+        {
+            CachedArtifact stale = snapshot ? m_cache.lookup( key, -1 ) : null;
+            if( stale == null )
+            {
+                throw e;
+            }
+            return stale;
+        }
+        if( artifact == null )
+        {
+            return null;
+        }
+        try
+        {
+            InputStream in = artifact.getContent().get();
+            try
+            {
+                return m_cache.store( key, in );
+            } finally
+            {
+                in.close();
+            }
+        } catch( IOException e )
+        {
+            throw new RepositoryException( "Cannot cache artifact " + key, e );
+        }
+    }
+
+    private static boolean isSnapshot( String key )
+    {
+        return key.contains( "SNAPSHOT" );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[CachingResolver " + m_delegate + "]";
+    }
+}
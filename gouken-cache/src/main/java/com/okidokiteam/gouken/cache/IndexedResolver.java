@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.cache;
+
+import org.ops4j.pax.repository.Artifact;
+import org.ops4j.pax.repository.ArtifactQuery;
+import org.ops4j.pax.repository.RepositoryException;
+import org.ops4j.pax.repository.Resolver;
+
+/**
+ * Resolver that answers from a {@link RepositoryIndex}, one mapped lookup per query. Queries the index does not know
+ * (or whose file has gone or changed, see {@link RepositoryIndex#lookup(String)}) are passed to the decorated
+ * resolver, if there is one.
+ */
+public class IndexedResolver implements Resolver
+{
+
+    private final RepositoryIndex m_index;
+    private final Resolver m_delegate;
+
+    /**
+     * Resolves from index only, for hosts without any repository access.
+     */
+    public IndexedResolver( RepositoryIndex index )
+    {
+        this( index, null );
+    }
+
+    /**
+     * @param index    index asked first
+     * @param delegate resolver asked for everything the index cannot answer, may be null
+     */
+    public IndexedResolver( RepositoryIndex index, Resolver delegate )
+    {
+        m_index = index;
+        m_delegate = delegate;
+    }
+
+    public Artifact find( ArtifactQuery artifactQuery )
+        throws RepositoryException
+    {
+        CachedArtifact artifact = m_index.lookup( artifactQuery.getQueryString() );
+        if( artifact != null )
+        {
+            return artifact;
+        }
+        if( m_delegate == null )
+        {
+            throw new RepositoryException( "Not in repository index: " + artifactQuery.getQueryString() );
+        }
+        return m_delegate.find( artifactQuery );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[IndexedResolver " + m_index.size() + " artifacts, " + m_delegate + "]";
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read only, memory mapped index from artifact coordinates to files, their sizes, modification times and SHA-256
+ * digests.
+ * <p/>
+ * The index is written once, at build time with {@link #main(String[])} or on first run with
+ * {@link #openOrBuild(File, File, Collection)}, and afterwards answers every lookup with a binary search over the
+ * mapped file. Opening the index does not touch the repository directory and a lookup only checks the size and
+ * modification time of the file it answers with, so a host without network access only needs the index and the files
+ * it points to. A file whose size or time differs from the index is hashed again; if its digest changed too, the
+ * lookup does not answer.
+ * <p/>
+ * Layout (big endian): a header (magic, version, count, 0), count slots of (coordinate hash, record offset) sorted by
+ * hash, then the records (coordinate, path, digest, size, modification time). Paths below the directory of the index are stored
+ * relative to it, so index and repository can be copied to another host together.
+ */
+public final class RepositoryIndex
+{
+
+    private static final int MAGIC = 0x474b4958;
+    private static final int VERSION = 2;
+    private static final int HEADER = 16;
+    private static final int SLOT = 12;
+    private static final int DIGEST = 32;
+    // digest, size and modification time.
+    private static final int FILE_INFO = DIGEST + 8 + 8;
+
+    private final ByteBuffer m_buffer;
+    private final File m_base;
+    private final int m_count;
+
+    private RepositoryIndex( ByteBuffer buffer, File base )
+        throws IOException
+    {
+        if( buffer.capacity() < HEADER || buffer.getInt( 0 ) != MAGIC || buffer.getInt( 4 ) != VERSION )
+        {
+            throw new IOException( "Not a repository index (version " + VERSION + ")." );
+        }
+        m_buffer = buffer;
+        m_base = base;
+        m_count = buffer.getInt( 8 );
+        if( m_count < 0 || HEADER + (long) m_count * SLOT > buffer.capacity() )
+        {
+            throw new IOException( "Truncated repository index." );
+        }
+    }
+
+    /**
+     * Maps an index file written by {@link Builder#write(File)}.
+     *
+     * @throws IOException if the file cannot be read or is no index
+     */
+    public static RepositoryIndex open( File indexFile )
+        throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile( indexFile, "r" );
+        try
+        {
+            FileChannel channel = file.getChannel();
+            // the mapping stays valid after the channel is closed.
+            return new RepositoryIndex( channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() ), indexFile.getAbsoluteFile().getParentFile() );
+        } finally
+        {
+            file.close();
+        }
+    }
+
+    /**
+     * Maps indexFile, writing it first if it does not exist yet. The coordinates are located in the maven
+     * repository by their path (see {@link #mavenPath(String)}), the repository is never listed.
+     *
+     * @throws IOException if a coordinate is not in the repository or the index cannot be written
+     */
+    public static RepositoryIndex openOrBuild( File indexFile, File repository, Collection<String> coordinates )
+        throws IOException
+    {
+        if( !indexFile.isFile() )
+        {
+            Builder builder = new Builder();
+            for( String coordinate : coordinates )
+            {
+                builder.add( coordinate, new File( repository, mavenPath( coordinate ) ) );
+            }
+            builder.write( indexFile );
+        }
+        return open( indexFile );
+    }
+
+    /**
+     * @param coordinate groupId:artifactId[:extension[:classifier]]:version
+     *
+     * @return path of coordinate relative to the root of a maven repository
+     *
+     * @throws IllegalArgumentException if coordinate does not have 3 to 5 parts
+     */
+    public static String mavenPath( String coordinate )
+    {
+        String[] parts = coordinate.split( ":" );
+        if( parts.length < 3 || parts.length > 5 )
+        {
+            throw new IllegalArgumentException( "Not a maven coordinate: " + coordinate );
+        }
+        String artifactId = parts[ 1 ];
+        String version = parts[ parts.length - 1 ];
+        String extension = parts.length > 3 ? parts[ 2 ] : "jar";
+        String classifier = parts.length > 4 ? "-" + parts[ 3 ] : "";
+        return parts[ 0 ].replace( '.', '/' ) + "/" + artifactId + "/" + version + "/"
+               + artifactId + "-" + version + classifier + "." + extension;
+    }
+
+    /**
+     * @return the indexed artifact of coordinate, null if the index does not know it or its file is gone or has
+     *         other contents than when it was indexed
+     */
+    public CachedArtifact lookup( String coordinate )
+    {
+        long hash = hash( coordinate );
+        int low = 0;
+        int high = m_count - 1;
+        while( low <= high )
+        {
+            int mid = ( low + high ) >>> 1;
+            long h = m_buffer.getLong( HEADER + mid * SLOT );
+            if( h < hash )
+            {
+                low = mid + 1;
+            }
+            else if( h > hash )
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                // walk back to the first slot of this hash, then try all of them.
+                while( mid > 0 && m_buffer.getLong( HEADER + ( mid - 1 ) * SLOT ) == hash )
+                {
+                    mid--;
+                }
+                for( ; mid < m_count && m_buffer.getLong( HEADER + mid * SLOT ) == hash; mid++ )
+                {
+                    CachedArtifact artifact = read( m_buffer.getInt( HEADER + mid * SLOT + 8 ), coordinate );
+                    if( artifact != null )
+                    {
+                        return artifact;
+                    }
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return number of indexed coordinates
+     */
+    public int size()
+    {
+        return m_count;
+    }
+
+    private CachedArtifact read( int offset, String coordinate )
+    {
+        int pos = offset;
+        String c = string( pos );
+        if( !c.equals( coordinate ) )
+        {
+            return null;
+        }
+        pos += 2 + ( m_buffer.getShort( pos ) & 0xffff );
+        String path = string( pos );
+        pos += 2 + ( m_buffer.getShort( pos ) & 0xffff );
+        byte[] digest = new byte[DIGEST];
+        for( int i = 0; i < DIGEST; i++ )
+        {
+            digest[ i ] = m_buffer.get( pos + i );
+        }
+        long size = m_buffer.getLong( pos + DIGEST );
+        long modified = m_buffer.getLong( pos + DIGEST + 8 );
+        File file = new File( path );
+        if( !file.isAbsolute() )
+        {
+            file = new File( m_base, path );
+        }
+        if( file.length() != size || file.lastModified() != modified )
+        {
+            // touched or replaced since it was indexed: only the contents tell.
+            try
+            {
+                if( !Arrays.equals( digest, digest( file ) ) )
+                {
+                    return null;
+                }
+            } catch( IOException e )
+            {
+                return null;
+            }
+        }
+        return new CachedArtifact( ArtifactCache.hex( digest ), file );
+    }
+
+    private static byte[] digest( File file )
+        throws IOException
+    {
+        MessageDigest sha = ArtifactCache.sha256();
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            byte[] buffer = new byte[8192];
+            int n;
+            while( ( n = in.read( buffer ) ) != -1 )
+            {
+                sha.update( buffer, 0, n );
+            }
+        } finally
+        {
+            in.close();
+        }
+        return sha.digest();
+    }
+
+    // absolute gets only, so lookups need no locking.
+    private String string( int pos )
+    {
+        byte[] bytes = new byte[m_buffer.getShort( pos ) & 0xffff];
+        for( int i = 0; i < bytes.length; i++ )
+        {
+            bytes[ i ] = m_buffer.get( pos + 2 + i );
+        }
+        return utf8( bytes );
+    }
+
+    // FNV-1a over the chars, so lookups do not have to encode the coordinate.
+    static long hash( String s )
+    {
+        long h = 0xcbf29ce484222325L;
+        for( int i = 0; i < s.length(); i++ )
+        {
+            h ^= s.charAt( i );
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static String utf8( byte[] bytes )
+    {
+        try
+        {
+            return new String( bytes, "UTF-8" );
+        } catch( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static byte[] utf8( String s )
+    {
+        try
+        {
+            byte[] bytes = s.getBytes( "UTF-8" );
+            if( bytes.length > 0xffff )
+            {
+                throw new IllegalArgumentException( "Too long: " + s );
+            }
+            return bytes;
+        } catch( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Writes an index at build time: java RepositoryIndex &lt;index file&gt; &lt;maven repository&gt; &lt;coordinate&gt;...
+     */
+    public static void main( String[] args )
+        throws IOException
+    {
+        if( args.length < 2 )
+        {
+            System.err.println( "Usage: RepositoryIndex <index file> <maven repository> <coordinate>..." );
+            System.exit( 1 );
+        }
+        File indexFile = new File( args[ 0 ] );
+        indexFile.delete();
+        RepositoryIndex index = openOrBuild( indexFile, new File( args[ 1 ] ), Arrays.asList( args ).subList( 2, args.length ) );
+        System.out.println( "Indexed " + index.size() + " artifacts in " + indexFile );
+    }
+
+    /**
+     * Collects the entries of a new index.
+     */
+    public static final class Builder
+    {
+
+        private final Map<String, Entry> m_entries = new LinkedHashMap<String, Entry>();
+
+        /**
+         * Adds coordinate, replacing an earlier entry of the same coordinate. Reads file once for its digest.
+         *
+         * @throws IOException if file cannot be read
+         */
+        public Builder add( String coordinate, File file )
+            throws IOException
+        {
+            // taken before hashing, so a change while hashing shows as a mismatch later.
+            long size = file.length();
+            long modified = file.lastModified();
+            m_entries.put( coordinate, new Entry( coordinate, file.getAbsoluteFile(), digest( file ), size, modified ) );
+            return this;
+        }
+
+        /**
+         * Writes all entries to indexFile, replacing it atomically where the platform allows.
+         *
+         * @throws IOException if indexFile cannot be written
+         */
+        public void write( File indexFile )
+            throws IOException
+        {
+            File dir = indexFile.getAbsoluteFile().getParentFile();
+            List<Entry> entries = new ArrayList<Entry>( m_entries.values() );
+            Entry[] sorted = entries.toArray( new Entry[entries.size()] );
+            Arrays.sort( sorted );
+
+            byte[][] coordinates = new byte[sorted.length][];
+            byte[][] paths = new byte[sorted.length][];
+            int size = HEADER + sorted.length * SLOT;
+            for( int i = 0; i < sorted.length; i++ )
+            {
+                coordinates[ i ] = utf8( sorted[ i ].m_coordinate );
+                paths[ i ] = utf8( relativize( dir, sorted[ i ].m_file ) );
+                size += 2 + coordinates[ i ].length + 2 + paths[ i ].length + FILE_INFO;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate( size );
+            buffer.putInt( MAGIC ).putInt( VERSION ).putInt( sorted.length ).putInt( 0 );
+            int offset = HEADER + sorted.length * SLOT;
+            for( int i = 0; i < sorted.length; i++ )
+            {
+                buffer.putLong( sorted[ i ].m_hash ).putInt( offset );
+                offset += 2 + coordinates[ i ].length + 2 + paths[ i ].length + FILE_INFO;
+            }
+            for( int i = 0; i < sorted.length; i++ )
+            {
+                buffer.putShort( (short) coordinates[ i ].length ).put( coordinates[ i ] );
+                buffer.putShort( (short) paths[ i ].length ).put( paths[ i ] );
+                buffer.put( sorted[ i ].m_digest ).putLong( sorted[ i ].m_size ).putLong( sorted[ i ].m_modified );
+            }
+
+            if( !dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory() )
+            {
+                throw new IOException( "Cannot create directory " + dir );
+            }
+            File tmp = File.createTempFile( "index", ".tmp", dir );
+            try
+            {
+                FileOutputStream out = new FileOutputStream( tmp );
+                try
+                {
+                    out.write( buffer.array() );
+                } finally
+                {
+                    out.close();
+                }
+                if( !tmp.renameTo( indexFile ) )
+                {
+                    indexFile.delete();
+                    if( !tmp.renameTo( indexFile ) )
+                    {
+                        throw new IOException( "Cannot move " + tmp + " to " + indexFile );
+                    }
+                }
+            } finally
+            {
+                tmp.delete();
+            }
+        }
+
+        private static String relativize( File dir, File file )
+        {
+            String base = dir.getPath() + File.separator;
+            String path = file.getPath();
+            if( path.startsWith( base ) )
+            {
+                return path.substring( base.length() ).replace( File.separatorChar, '/' );
+            }
+            return path;
+        }
+    }
+
+    private static final class Entry implements Comparable<Entry>
+    {
+
+        private final String m_coordinate;
+        private final File m_file;
+        private final byte[] m_digest;
+        private final long m_size;
+        private final long m_modified;
+        private final long m_hash;
+
+        Entry( String coordinate, File file, byte[] digest, long size, long modified )
+        {
+            m_coordinate = coordinate;
+            m_file = file;
+            m_digest = digest;
+            m_size = size;
+            m_modified = modified;
+            m_hash = hash( coordinate );
+        }
+
+        public int compareTo( Entry other )
+        {
+            return m_hash < other.m_hash ? -1 : ( m_hash == other.m_hash ? 0 : 1 );
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.cache;
+
+import static org.hamcrest.core.Is.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Test;
+import org.ops4j.base.io.InputStreamSource;
+import org.ops4j.pax.repository.Artifact;
+import org.ops4j.pax.repository.ArtifactQuery;
+import org.ops4j.pax.repository.RepositoryException;
+import org.ops4j.pax.repository.Resolver;
+
+/**
+ *
+ */
+public class CachingResolverTest
+{
+
+    @Test
+    public void testVaultsShareOneCopy()
+        throws Exception
+    {
+        File root = tempDir();
+        Resolver remote = mock( Resolver.class );
+        Artifact artifact = artifact( "bundle" );
+        when( remote.find( any( ArtifactQuery.class ) ) ).thenReturn( artifact );
+
+        // two vaults of one host, each with its own resolver.
+        CachingResolver first = new CachingResolver( remote, new ArtifactCache( root, 1024 ), 0 );
+        CachingResolver second = new CachingResolver( remote, new ArtifactCache( root, 1024 ), 0 );
+        CachedArtifact a1 = (CachedArtifact) first.find( query( "org.example:a:1.0" ) );
+        CachedArtifact a2 = (CachedArtifact) second.find( query( "org.example:a:1.0" ) );
+        verify( remote, times( 1 ) ).find( any( ArtifactQuery.class ) );
+        assertThat( a2.getFile(), is( a1.getFile() ) );
+        assertThat( read( a2 ), is( "bundle" ) );
+
+        // same content under another coordinate is stored once.
+        CachedArtifact other = (CachedArtifact) second.find( query( "org.example:b:1.0" ) );
+        assertThat( other.getDigest(), is( a1.getDigest() ) );
+        assertThat( new ArtifactCache( root, 1024 ).size(), is( 6L ) );
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed()
+        throws Exception
+    {
+        ArtifactCache cache = new ArtifactCache( tempDir(), 100 );
+        CachedArtifact a = cache.store( "a", content( 40, 'a' ) );
+        CachedArtifact b = cache.store( "b", content( 40, 'b' ) );
+        a.getFile().setLastModified( 2000000000000L );
+        b.getFile().setLastModified( 1000000000000L );
+        CachedArtifact c = cache.store( "c", content( 40, 'c' ) );
+
+        assertNull( cache.lookup( "b", -1 ) );
+        assertThat( cache.lookup( "a", -1 ).getDigest(), is( a.getDigest() ) );
+        assertThat( cache.lookup( "c", -1 ).getDigest(), is( c.getDigest() ) );
+        assertThat( cache.size(), is( 80L ) );
+    }
+
+    @Test
+    public void testMaterializedCopySurvivesEviction()
+        throws Exception
+    {
+        ArtifactCache cache = new ArtifactCache( tempDir(), 1024 );
+        CachedArtifact a = cache.store( "a", content( 10, 'a' ) );
+        File target = new File( tempDir(), "a.jar" );
+        a.materialize( target );
+        a.getFile().delete();
+        assertThat( target.length(), is( 10L ) );
+    }
+
+    @Test
+    public void testSnapshotsFallBackToCacheWhenOffline()
+        throws Exception
+    {
+        Resolver remote = mock( Resolver.class );
+        Artifact artifact = artifact( "snapshot" );
+        when( remote.find( any( ArtifactQuery.class ) ) ).thenReturn( artifact ).thenThrow( new RepositoryException( "offline" ) );
+        CachingResolver resolver = new CachingResolver( remote, new ArtifactCache( tempDir(), 1024 ), 0 );
+        resolver.find( query( "org.example:a:1.0-SNAPSHOT" ) );
+        Thread.sleep( 5 );
+        assertThat( read( resolver.find( query( "org.example:a:1.0-SNAPSHOT" ) ) ), is( "snapshot" ) );
+        verify( remote, times( 2 ) ).find( any( ArtifactQuery.class ) );
+    }
+
+    private static File tempDir()
+        throws IOException
+    {
+        File dir = File.createTempFile( "gouken-cache", "" );
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static ArtifactQuery query( final String query )
+    {
+        return new ArtifactQuery()
+        {
+            public String getQueryString()
+            {
+                return query;
+            }
+        };
+    }
+
+    private static InputStream content( int length, char c )
+    {
+        byte[] data = new byte[length];
+        for( int i = 0; i < length; i++ )
+        {
+            data[ i ] = (byte) c;
+        }
+        return new ByteArrayInputStream( data );
+    }
+
+    private static Artifact artifact( final String content )
+    {
+        return new Artifact()
+        {
+            public InputStreamSource getContent()
+            {
+                return new InputStreamSource()
+                {
+                    public InputStream get()
+                    {
+                        return new ByteArrayInputStream( content.getBytes() );
+                    }
+                };
+            }
+        };
+    }
+
+    private static String read( Artifact artifact )
+        throws Exception
+    {
+        InputStream in = artifact.getContent().get();
+        try
+        {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while( ( c = in.read() ) != -1 )
+            {
+                sb.append( (char) c );
+            }
+            return sb.toString();
+        } finally
+        {
+            in.close();
+        }
+    }
+}
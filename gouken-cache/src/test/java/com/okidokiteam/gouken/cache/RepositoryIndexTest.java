@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.cache;
+
+import static org.hamcrest.core.Is.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.ops4j.pax.repository.Artifact;
+import org.ops4j.pax.repository.ArtifactQuery;
+import org.ops4j.pax.repository.RepositoryException;
+import org.ops4j.pax.repository.Resolver;
+
+/**
+ *
+ */
+public class RepositoryIndexTest
+{
+
+    @Test
+    public void testMavenPath()
+    {
+        assertThat( RepositoryIndex.mavenPath( "org.apache.ace:ace-deployment-task:0.8.0-SNAPSHOT" ), is( "org/apache/ace/ace-deployment-task/0.8.0-SNAPSHOT/ace-deployment-task-0.8.0-SNAPSHOT.jar" ) );
+        assertThat( RepositoryIndex.mavenPath( "org.example:a:zip:bin:1.0" ), is( "org/example/a/1.0/a-1.0-bin.zip" ) );
+    }
+
+    @Test
+    public void testLookupEveryIndexedCoordinate()
+        throws Exception
+    {
+        File dir = tempDir();
+        File repository = new File( dir, "repository" );
+        List<String> coordinates = new ArrayList<String>();
+        for( int i = 0; i < 500; i++ )
+        {
+            String coordinate = "org.example:a" + i + ":1." + i;
+            write( new File( repository, RepositoryIndex.mavenPath( coordinate ) ), "content " + i );
+            coordinates.add( coordinate );
+        }
+        RepositoryIndex index = RepositoryIndex.openOrBuild( new File( dir, "index" ), repository, coordinates );
+        assertThat( index.size(), is( 500 ) );
+
+        ArtifactCache cache = new ArtifactCache( tempDir(), 1024 * 1024 );
+        for( int i = 0; i < 500; i++ )
+        {
+            CachedArtifact artifact = index.lookup( coordinates.get( i ) );
+            assertThat( artifact.getFile(), is( new File( repository, RepositoryIndex.mavenPath( coordinates.get( i ) ) ) ) );
+            String expected = cache.store( "x", new ByteArrayInputStream( ( "content " + i ).getBytes() ) ).getDigest();
+            assertThat( artifact.getDigest(), is( expected ) );
+        }
+        assertNull( index.lookup( "org.example:a1:2.0" ) );
+    }
+
+    @Test
+    public void testIndexMovesWithRepository()
+        throws Exception
+    {
+        File dir = tempDir();
+        write( new File( dir, "repository/org/example/a/1.0/a-1.0.jar" ), "a" );
+        RepositoryIndex.openOrBuild( new File( dir, "index" ), new File( dir, "repository" ), Arrays.asList( "org.example:a:1.0" ) );
+
+        File moved = tempDir();
+        moved.delete();
+        assertTrue( dir.renameTo( moved ) );
+        IndexedResolver resolver = new IndexedResolver( RepositoryIndex.open( new File( moved, "index" ) ) );
+        CachedArtifact artifact = (CachedArtifact) resolver.find( query( "org.example:a:1.0" ) );
+        assertThat( artifact.getFile(), is( new File( moved, "repository/org/example/a/1.0/a-1.0.jar" ) ) );
+        try
+        {
+            resolver.find( query( "org.example:b:1.0" ) );
+            fail( "not indexed" );
+        } catch( RepositoryException e )
+        {
+            // expected: there is no other resolver.
+        }
+    }
+
+    @Test
+    public void testChangedFileFallsThroughToDelegate()
+        throws Exception
+    {
+        File dir = tempDir();
+        File jar = new File( dir, "repository/org/example/a/1.0/a-1.0.jar" );
+        write( jar, "a" );
+        RepositoryIndex.openOrBuild( new File( dir, "index" ), new File( dir, "repository" ), Arrays.asList( "org.example:a:1.0" ) );
+
+        // same size, other contents.
+        write( jar, "b" );
+        jar.setLastModified( jar.lastModified() - 10000 );
+        Resolver remote = mock( Resolver.class );
+        Artifact artifact = mock( Artifact.class );
+        when( remote.find( any( ArtifactQuery.class ) ) ).thenReturn( artifact );
+        RepositoryIndex index = RepositoryIndex.open( new File( dir, "index" ) );
+        assertNull( index.lookup( "org.example:a:1.0" ) );
+        assertThat( new IndexedResolver( index, remote ).find( query( "org.example:a:1.0" ) ), is( artifact ) );
+
+        assertTrue( jar.delete() );
+        assertNull( index.lookup( "org.example:a:1.0" ) );
+    }
+
+    @Test
+    public void testTouchedFileIsStillIndexed()
+        throws Exception
+    {
+        File dir = tempDir();
+        File jar = new File( dir, "repository/org/example/a/1.0/a-1.0.jar" );
+        write( jar, "a" );
+        RepositoryIndex index = RepositoryIndex.openOrBuild( new File( dir, "index" ), new File( dir, "repository" ), Arrays.asList( "org.example:a:1.0" ) );
+
+        jar.setLastModified( jar.lastModified() - 10000 );
+        assertThat( index.lookup( "org.example:a:1.0" ).getFile(), is( jar ) );
+    }
+
+    @Test( expected = IOException.class )
+    public void testRejectsOtherFiles()
+        throws Exception
+    {
+        File file = new File( tempDir(), "index" );
+        write( file, "not an index" );
+        RepositoryIndex.open( file );
+    }
+
+    private static File tempDir()
+        throws IOException
+    {
+        File dir = File.createTempFile( "gouken-index", "" );
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static void write( File file, String content )
+        throws IOException
+    {
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( content.getBytes() );
+        } finally
+        {
+            out.close();
+        }
+    }
+
+    private static ArtifactQuery query( final String query )
+    {
+        return new ArtifactQuery()
+        {
+            public String getQueryString()
+            {
+                return query;
+            }
+        };
+    }
+}
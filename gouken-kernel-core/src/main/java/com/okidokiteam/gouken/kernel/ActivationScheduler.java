@@ -0,0 +1,416 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.okidokiteam.gouken.KernelException;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Starts management agent bundles in dependency order.
+ * <p/>
+ * All bundles are resolved up front. Their package wirings (taken from {@link PackageAdmin}) form a graph
+ * where a bundle depends on every other agent bundle it imports packages from.
+ * Bundles of a dependency cycle are collapsed into one group (a strongly connected component) that is started
+ * serially in list order. Groups whose dependencies have all been started make up a wave and are started in parallel.
+ * Bundles that are already active (e.g. restored from the framework storage) are skipped.
+ *
+ * @author Toni Menzel
+ */
+class ActivationScheduler
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger( ActivationScheduler.class );
+
+    private final int m_threads;
+    private final StartupProfile m_profile;
+
+    ActivationScheduler( int threads, StartupProfile profile )
+    {
+        assert threads > 0 : "threads must be positive.";
+        m_threads = threads;
+        m_profile = profile;
+    }
+
+    void start( BundleContext context, List<Bundle> bundles )
+        throws KernelException
+    {
+        List<Bundle> inactive = new ArrayList<Bundle>( bundles.size() );
+        for( Bundle b : bundles )
+        {
+            if( b.getState() != Bundle.ACTIVE )
+            {
+                inactive.add( b );
+            }
+        }
+        if( inactive.isEmpty() )
+        {
+            return;
+        }
+
+        ServiceReference ref = context.getServiceReference( PackageAdmin.class.getName() );
+        if( ref == null || m_threads == 1 )
+        {
+            startSerially( inactive );
+            return;
+        }
+
+        PackageAdmin packageAdmin = (PackageAdmin) context.getService( ref );
+        try
+        {
+            packageAdmin.resolveBundles( inactive.toArray( new Bundle[ inactive.size() ] ) );
+            startInWaves( dependencies( packageAdmin, inactive ) );
+        } finally
+        {
+            context.ungetService( ref );
+        }
+    }
+
+    /**
+     * @return each bundle mapped to the agent bundles it imports from. Iteration order is the list order.
+     */
+    Map<Bundle, Set<Bundle>> dependencies( PackageAdmin packageAdmin, List<Bundle> bundles )
+    {
+        Map<Bundle, Set<Bundle>> graph = new LinkedHashMap<Bundle, Set<Bundle>>();
+        for( Bundle b : bundles )
+        {
+            graph.put( b, new HashSet<Bundle>() );
+        }
+
+        for( Bundle exporter : bundles )
+        {
+            ExportedPackage[] exports = packageAdmin.getExportedPackages( exporter );
+            if( exports == null )
+            {
+                continue;
+            }
+            for( ExportedPackage export : exports )
+            {
+                Bundle[] importers = export.getImportingBundles();
+                if( importers == null )
+                {
+                    continue;
+                }
+                for( Bundle importer : importers )
+                {
+                    Set<Bundle> deps = graph.get( importer );
+                    if( deps != null && importer != exporter )
+                    {
+                        deps.add( exporter );
+                    }
+                }
+            }
+        }
+        return graph;
+    }
+
+    private void startInWaves( Map<Bundle, Set<Bundle>> graph )
+        throws KernelException
+    {
+        List<List<Bundle>> components = components( graph );
+        // component index of every bundle and the components each component depends on.
+        Map<Bundle, Integer> index = new HashMap<Bundle, Integer>();
+        for( int c = 0; c < components.size(); c++ )
+        {
+            for( Bundle b : components.get( c ) )
+            {
+                index.put( b, c );
+            }
+        }
+        List<Set<Integer>> deps = new ArrayList<Set<Integer>>( components.size() );
+        for( int c = 0; c < components.size(); c++ )
+        {
+            Set<Integer> d = new HashSet<Integer>();
+            for( Bundle b : components.get( c ) )
+            {
+                for( Bundle dep : graph.get( b ) )
+                {
+                    d.add( index.get( dep ) );
+                }
+            }
+            d.remove( c );
+            deps.add( d );
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool( Math.min( m_threads, components.size() ), new StartThreadFactory() );
+        try
+        {
+            // components in list order of their first bundle.
+            Set<Integer> pending = new TreeSet<Integer>();
+            for( Bundle b : graph.keySet() )
+            {
+                pending.add( index.get( b ) );
+            }
+            Set<Integer> started = new HashSet<Integer>();
+            while( !pending.isEmpty() )
+            {
+                List<List<Bundle>> wave = new ArrayList<List<Bundle>>();
+                List<Integer> waveIndexes = new ArrayList<Integer>();
+                for( Integer c : pending )
+                {
+                    if( started.containsAll( deps.get( c ) ) )
+                    {
+                        wave.add( components.get( c ) );
+                        waveIndexes.add( c );
+                    }
+                }
+                // the component graph is acyclic, so every round has a wave.
+                LOG.debug( "Starting wave of " + wave.size() + " management agent bundle groups." );
+                startWave( pool, wave );
+                pending.removeAll( waveIndexes );
+                started.addAll( waveIndexes );
+            }
+        } finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Strongly connected components of graph (Tarjan). Bundles of a dependency cycle end up in one component, which is
+     * started serially in list order. Components are numbered in the order their first bundle is listed.
+     */
+    static List<List<Bundle>> components( Map<Bundle, Set<Bundle>> graph )
+    {
+        List<Bundle> bundles = new ArrayList<Bundle>( graph.keySet() );
+        Map<Bundle, Integer> position = new HashMap<Bundle, Integer>();
+        for( int i = 0; i < bundles.size(); i++ )
+        {
+            position.put( bundles.get( i ), i );
+        }
+        int n = bundles.size();
+        int[] order = new int[ n ];
+        int[] low = new int[ n ];
+        int[] component = new int[ n ];
+        Arrays.fill( order, -1 );
+        boolean[] onStack = new boolean[ n ];
+        int[] stack = new int[ n ];
+        int sp = 0;
+        int counter = 0;
+        int components = 0;
+        // explicit call stack: node and the iterator over its dependencies.
+        int[] callNode = new int[ n ];
+        List<Iterator<Bundle>> callIt = new ArrayList<Iterator<Bundle>>( n );
+        for( int i = 0; i < n; i++ )
+        {
+            callIt.add( null );
+        }
+        for( int root = 0; root < n; root++ )
+        {
+            if( order[ root ] >= 0 )
+            {
+                continue;
+            }
+            int depth = 0;
+            callNode[ 0 ] = root;
+            callIt.set( 0, graph.get( bundles.get( root ) ).iterator() );
+            order[ root ] = low[ root ] = counter++;
+            stack[ sp++ ] = root;
+            onStack[ root ] = true;
+            while( depth >= 0 )
+            {
+                int v = callNode[ depth ];
+                Iterator<Bundle> it = callIt.get( depth );
+                if( it.hasNext() )
+                {
+                    int w = position.get( it.next() );
+                    if( order[ w ] < 0 )
+                    {
+                        order[ w ] = low[ w ] = counter++;
+                        stack[ sp++ ] = w;
+                        onStack[ w ] = true;
+                        depth++;
+                        callNode[ depth ] = w;
+                        callIt.set( depth, graph.get( bundles.get( w ) ).iterator() );
+                    }
+                    else if( onStack[ w ] )
+                    {
+                        low[ v ] = Math.min( low[ v ], order[ w ] );
+                    }
+                    continue;
+                }
+                if( low[ v ] == order[ v ] )
+                {
+                    int w;
+                    do
+                    {
+                        w = stack[ --sp ];
+                        onStack[ w ] = false;
+                        component[ w ] = components;
+                    }
+                    while( w != v );
+                    components++;
+                }
+                depth--;
+                if( depth >= 0 )
+                {
+                    int parent = callNode[ depth ];
+                    low[ parent ] = Math.min( low[ parent ], low[ v ] );
+                }
+            }
+        }
+
+        // renumber by first listed bundle, members in list order.
+        int[] renumber = new int[ components ];
+        Arrays.fill( renumber, -1 );
+        List<List<Bundle>> result = new ArrayList<List<Bundle>>( components );
+        for( int i = 0; i < n; i++ )
+        {
+            int c = component[ i ];
+            if( renumber[ c ] < 0 )
+            {
+                renumber[ c ] = result.size();
+                result.add( new ArrayList<Bundle>() );
+            }
+            result.get( renumber[ c ] ).add( bundles.get( i ) );
+        }
+        return result;
+    }
+
+    private void startWave( ExecutorService pool, List<List<Bundle>> wave )
+        throws KernelException
+    {
+        if( wave.size() == 1 )
+        {
+            startSerially( wave.get( 0 ) );
+            return;
+        }
+
+        List<Future<Object>> starts = new ArrayList<Future<Object>>( wave.size() );
+        for( final List<Bundle> component : wave )
+        {
+            if( component.size() > 1 )
+            {
+                LOG.debug( "Dependency cycle between " + component.size() + " management agent bundles. Starting them in list order." );
+            }
+            starts.add( pool.submit( new Callable<Object>()
+            {
+                public Object call()
+                    throws KernelException
+                {
+                    startSerially( component );
+                    return null;
+                }
+            }
+            )
+            );
+        }
+
+        KernelException failure = null;
+        for( int i = 0; i < wave.size(); i++ )
+        {
+            try
+            {
+                starts.get( i ).get();
+            } catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new KernelException( "Interrupted while starting Management Agent Bundle ID: " + wave.get( i ).get( 0 ).getBundleId(), e );
+            } catch( ExecutionException e )
+            {
+                Throwable cause = e.getCause();
+                KernelException problem = cause instanceof KernelException ? (KernelException) cause : startFailure( wave.get( i ).get( 0 ), cause );
+                if( failure == null )
+                {
+                    failure = problem;
+                }
+                else
+                {
+                    LOG.error( problem.getMessage(), problem.getCause() );
+                }
+            }
+        }
+        if( failure != null )
+        {
+            throw failure;
+        }
+    }
+
+    private void startSerially( List<Bundle> bundles )
+        throws KernelException
+    {
+        for( Bundle b : bundles )
+        {
+            try
+            {
+                start( b );
+            } catch( BundleException e )
+            {
+                throw startFailure( b, e );
+            } catch( RuntimeException e )
+            {
+                // e.g. an activator failing with an unchecked exception, reported like on the parallel path.
+                throw startFailure( b, e );
+            }
+        }
+    }
+
+    private void start( Bundle b )
+        throws BundleException
+    {
+        long begin = System.nanoTime();
+        b.start();
+        m_profile.bundle( b, System.nanoTime() - begin );
+    }
+
+    private KernelException startFailure( Bundle b, Throwable cause )
+    {
+        if( cause instanceof Error )
+        {
+            throw (Error) cause;
+        }
+        return new KernelException( "One of the Management Agent Bundles could not be started. Bundle ID: " + b.getBundleId(), (Exception) cause );
+    }
+
+    private static class StartThreadFactory implements ThreadFactory
+    {
+
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        public Thread newThread( Runnable r )
+        {
+            Thread t = new Thread( r, "gouken-start-" + m_count.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        }
+    }
+}
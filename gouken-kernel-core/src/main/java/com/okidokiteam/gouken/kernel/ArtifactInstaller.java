@@ -0,0 +1,842 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.jar.Attributes;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.okidokiteam.gouken.FileArtifact;
+import com.okidokiteam.gouken.KernelException;
+import com.okidokiteam.gouken.cache.CachedArtifact;
+import org.ops4j.pax.repository.Artifact;
+import org.ops4j.pax.repository.RepositoryException;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+import org.osgi.service.packageadmin.PackageAdmin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Installs management agent artifacts as a pipeline:
+ * Contents are fetched concurrently on a bounded pool while the calling thread installs them one by one
+ * (in artifact order, at the first free location "MA" + n) as soon as the next one has arrived.
+ * <p/>
+ * Installation is all-or-nothing: if any artifact fails, pending fetches are cancelled,
+ * bundles installed so far are uninstalled again and a {@link KernelException} is raised.
+ * <p/>
+ * In warm mode, the artifacts are reconciled with the bundles that survived in the framework storage. Each artifact
+ * is matched to a bundle by symbolic name and version (or only symbolic name, for a version change). A matched bundle
+ * is reused when the SHA-256 of the freshly fetched content is the one recorded on the previous start and updated
+ * otherwise, unmatched artifacts are installed and unmatched bundles uninstalled. The packages of all updated and
+ * uninstalled bundles are refreshed once at the end, so a start costs in proportion to what changed.
+ * <p/>
+ * A failed warm start does not restore bundles it has already updated, or uninstalled because their location
+ * changed. Instead, the state file is rewritten so that it matches the framework storage: updated bundles get no
+ * digest and are updated again by the next start, uninstalled ones are forgotten and installed anew.
+ * <p/>
+ * With a reference folder, artifacts that are local files ({@link FileArtifact}) are installed by reference to a file
+ * in that folder, named by its digest, instead of being copied into the framework storage. Artifacts of the gouken
+ * artifact cache are hard linked there, so they survive eviction from the cache. Other files are copied there once,
+ * since the vault does not own them: they may be rewritten or deleted while the bundle is installed.
+ *
+ * @author Toni Menzel
+ */
+class ArtifactInstaller
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger( ArtifactInstaller.class );
+    private static final String LOCATION_PREFIX = "MA";
+    private static final long REFRESH_TIMEOUT_SECONDS = 60;
+    private static final String REFERENCE = "reference:";
+
+    private final int m_threads;
+    private final File m_stateFile;
+    private final boolean m_warm;
+    private final File m_referenceDir;
+    private final StartupProfile m_profile;
+
+    ArtifactInstaller( int threads )
+    {
+        this( threads, null, false, null, new StartupProfile() );
+    }
+
+    ArtifactInstaller( int threads, File stateFile, boolean warm, StartupProfile profile )
+    {
+        this( threads, stateFile, warm, null, profile );
+    }
+
+    /**
+     * @param threads   size of the fetch pool
+     * @param stateFile where content digests of installed artifacts are recorded in warm mode. May be null otherwise.
+     * @param warm         reuse bundles that are already in the framework storage with a matching digest
+     * @param referenceDir where cached artifacts are linked to be installed by reference. Null to copy all artifacts
+     *                     into the framework storage.
+     * @param profile      receives fetch and install timings per artifact
+     */
+    ArtifactInstaller( int threads, File stateFile, boolean warm, File referenceDir, StartupProfile profile )
+    {
+        assert threads > 0 : "threads must be positive.";
+        assert !warm || stateFile != null : "warm start needs a state file.";
+        m_threads = threads;
+        m_stateFile = stateFile;
+        m_warm = warm;
+        m_referenceDir = referenceDir;
+        m_profile = profile;
+    }
+
+    List<Bundle> install( BundleContext context, Artifact[] artifacts )
+        throws KernelException
+    {
+        List<Bundle> bundles = new ArrayList<Bundle>( artifacts.length );
+        Properties digests = m_warm ? loadDigests() : new Properties();
+        List<Bundle> persisted = m_warm ? persistedBundles( context, digests ) : new ArrayList<Bundle>();
+        // bundles to refresh once everything is in place.
+        List<Bundle> changed = new ArrayList<Bundle>();
+
+        if( artifacts.length == 0 )
+        {
+            uninstallStale( persisted, changed );
+            refresh( context, changed );
+            storeDigests( new Properties() );
+            return bundles;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool( Math.min( m_threads, artifacts.length ), new FetchThreadFactory() );
+        List<Future<Content>> fetches = new ArrayList<Future<Content>>( artifacts.length );
+        List<Bundle> installed = new ArrayList<Bundle>();
+        Properties current = new Properties();
+        Set<String> locations = new HashSet<String>();
+        for( Bundle b : persisted )
+        {
+            locations.add( b.getLocation() );
+        }
+        int next = 1;
+        boolean success = false;
+        try
+        {
+            for( Artifact artifact : artifacts )
+            {
+                fetches.add( pool.submit( new Fetch( artifact, m_referenceDir ) ) );
+            }
+
+            int reused = 0;
+            for( int i = 0; i < artifacts.length; i++ )
+            {
+                Content content = await( fetches.get( i ), artifacts[ i ] );
+                Bundle existing = match( persisted, digests, content, content.getLocation( LOCATION_PREFIX + ( i + 1 ) ) );
+                long begin = System.nanoTime();
+                String action;
+                try
+                {
+                    if( existing != null && ( content.isReference() ? !existing.getLocation().equals( content.getLocation( null ) ) : existing.getLocation().startsWith( REFERENCE ) ) )
+                    {
+                        // the location of a bundle cannot change, e.g. from a copy to a reference.
+                        LOG.debug( "Location of bundle " + existing.getBundleId() + " has changed. Reinstalling it." );
+                        existing.uninstall();
+                        changed.add( existing );
+                        existing = null;
+                    }
+                    String location = existing != null ? existing.getLocation() : content.getLocation( null );
+                    if( existing == null )
+                    {
+                        if( location == null )
+                        {
+                            while( locations.contains( LOCATION_PREFIX + next ) )
+                            {
+                                next++;
+                            }
+                            location = LOCATION_PREFIX + next;
+                        }
+                        locations.add( location );
+                        existing = context.installBundle( location, content.getStream() );
+                        installed.add( existing );
+                        action = "installed";
+                    }
+                    else if( content.getDigest().equals( digests.getProperty( location ) ) )
+                    {
+                        reused++;
+                        action = "reused";
+                    }
+                    else
+                    {
+                        LOG.debug( "Content of bundle " + existing.getBundleId() + " has changed. Updating it." );
+                        // a null stream makes the framework read the (referenced) location again.
+                        existing.update( content.getStream() );
+                        changed.add( existing );
+                        action = "updated";
+                    }
+                    bundles.add( existing );
+                    current.setProperty( location, content.getDigest() );
+                    m_profile.artifact( location, String.valueOf( artifacts[ i ] ), action, content.getFetchNanos(), System.nanoTime() - begin, content.getSize() );
+                } catch( BundleException e )
+                {
+                    throw new KernelException( "Problem installing management agent resources. Artifact: " + artifacts[ i ], e );
+                }
+            }
+            if( m_warm )
+            {
+                LOG.info( "Warm start reused " + reused + " of " + artifacts.length + " management agent bundles, changed " + ( artifacts.length - reused ) + ", removed " + persisted.size() + "." );
+                uninstallStale( persisted, changed );
+                refresh( context, changed );
+            }
+            storeDigests( current );
+            removeStaleReferences( current );
+            success = true;
+            return bundles;
+        } finally
+        {
+            pool.shutdownNow();
+            if( !success )
+            {
+                for( Future<Content> fetch : fetches )
+                {
+                    fetch.cancel( true );
+                }
+                rollback( installed );
+                if( m_warm )
+                {
+                    forgetChanged( digests, changed );
+                }
+            }
+        }
+    }
+
+    /**
+     * @return management agent bundles found in the framework storage: those at an MA location and those whose
+     *         (reference) location has a recorded digest.
+     */
+    private List<Bundle> persistedBundles( BundleContext context, Properties digests )
+    {
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        for( Bundle b : context.getBundles() )
+        {
+            String location = b.getLocation();
+            if( location.startsWith( LOCATION_PREFIX ) || digests.containsKey( location ) )
+            {
+                bundles.add( b );
+            }
+        }
+        return bundles;
+    }
+
+    /**
+     * Takes the persisted bundle that content replaces out of persisted: the one with the same symbolic name and
+     * version, else one with the same symbolic name (to be updated to the new version). Contents without a symbolic
+     * name match the bundle with the same digest, else the bundle at their location.
+     *
+     * @return the bundle, null if content is new
+     */
+    private static Bundle match( List<Bundle> persisted, Properties digests, Content content, String location )
+    {
+        if( persisted.isEmpty() )
+        {
+            // spares reading the manifest on cold starts.
+            return null;
+        }
+        String name = content.getSymbolicName();
+        int found = -1;
+        for( int i = 0; i < persisted.size() && found < 0; i++ )
+        {
+            Bundle b = persisted.get( i );
+            if( name != null
+                ? name.equals( b.getSymbolicName() ) && content.getVersion().equals( b.getVersion() )
+                : content.getDigest().equals( digests.getProperty( b.getLocation() ) ) )
+            {
+                found = i;
+            }
+        }
+        for( int i = 0; i < persisted.size() && found < 0; i++ )
+        {
+            Bundle b = persisted.get( i );
+            if( name != null ? name.equals( b.getSymbolicName() ) : location.equals( b.getLocation() ) )
+            {
+                found = i;
+            }
+        }
+        return found < 0 ? null : persisted.remove( found );
+    }
+
+    /**
+     * Deletes links in the reference folder that no installed bundle refers to anymore.
+     */
+    private void removeStaleReferences( Properties current )
+    {
+        File[] files = m_referenceDir != null ? m_referenceDir.listFiles() : null;
+        if( files == null )
+        {
+            return;
+        }
+        for( File f : files )
+        {
+            if( !current.containsKey( REFERENCE + f.toURI() ) && !f.delete() )
+            {
+                LOG.debug( "Cannot delete unused " + f );
+            }
+        }
+    }
+
+    /**
+     * Uninstalls persisted management agent bundles the agent does not provide anymore.
+     */
+    private void uninstallStale( List<Bundle> persisted, List<Bundle> changed )
+        throws KernelException
+    {
+        for( Bundle b : persisted )
+        {
+            try
+            {
+                b.uninstall();
+                changed.add( b );
+            } catch( BundleException e )
+            {
+                throw new KernelException( "Problem uninstalling stale management agent bundle " + b.getBundleId(), e );
+            }
+        }
+    }
+
+    /**
+     * Refreshes the packages of all updated and uninstalled bundles at once and waits until the framework is done.
+     */
+    private void refresh( BundleContext context, List<Bundle> changed )
+        throws KernelException
+    {
+        if( changed.isEmpty() )
+        {
+            return;
+        }
+        ServiceReference reference = context.getServiceReference( PackageAdmin.class.getName() );
+        if( reference == null )
+        {
+            LOG.warn( "PackageAdmin is not available. Packages of " + changed.size() + " changed bundles are not refreshed." );
+            return;
+        }
+        final CountDownLatch refreshed = new CountDownLatch( 1 );
+        FrameworkListener listener = new FrameworkListener()
+        {
+            public void frameworkEvent( FrameworkEvent event )
+            {
+                if( event.getType() == FrameworkEvent.PACKAGES_REFRESHED )
+                {
+                    refreshed.countDown();
+                }
+            }
+        };
+        context.addFrameworkListener( listener );
+        try
+        {
+            PackageAdmin admin = (PackageAdmin) context.getService( reference );
+            admin.refreshPackages( changed.toArray( new Bundle[ changed.size() ] ) );
+            if( !refreshed.await( REFRESH_TIMEOUT_SECONDS, TimeUnit.SECONDS ) )
+            {
+                LOG.warn( "Package refresh did not finish within " + REFRESH_TIMEOUT_SECONDS + " seconds." );
+            }
+        } catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new KernelException( "Interrupted while refreshing management agent bundles.", e );
+        } finally
+        {
+            context.removeFrameworkListener( listener );
+            context.ungetService( reference );
+        }
+    }
+
+    private Properties loadDigests()
+    {
+        Properties digests = new Properties();
+        if( m_stateFile.exists() )
+        {
+            try
+            {
+                InputStream in = new FileInputStream( m_stateFile );
+                try
+                {
+                    digests.load( in );
+                } finally
+                {
+                    in.close();
+                }
+            } catch( IOException e )
+            {
+                LOG.warn( "Cannot read " + m_stateFile + ". Management agent bundles will be updated.", e );
+            }
+        }
+        return digests;
+    }
+
+    private void storeDigests( Properties digests )
+        throws KernelException
+    {
+        if( !m_warm )
+        {
+            return;
+        }
+        try
+        {
+            m_stateFile.getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream( m_stateFile );
+            try
+            {
+                digests.store( out, "Content digests of installed management agent bundles" );
+            } finally
+            {
+                out.close();
+            }
+        } catch( IOException e )
+        {
+            throw new KernelException( "Problem writing " + m_stateFile, e );
+        }
+    }
+
+    private Content await( Future<Content> fetch, Artifact artifact )
+        throws KernelException
+    {
+        try
+        {
+            return fetch.get();
+        } catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new KernelException( "Interrupted while loading management agent resources. Artifact: " + artifact, e );
+        } catch( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if( cause instanceof RepositoryException )
+            {
+                throw new KernelException( "Problem loading management agent resources. Artifact: " + artifact, (RepositoryException) cause );
+            }
+            if( cause instanceof IOException )
+            {
+                throw new KernelException( "Problem installing management agent resources. Artifact: " + artifact, (IOException) cause );
+            }
+            if( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * Records the state a failed warm start leaves behind: bundles updated so far get an empty digest, so the next
+     * start updates them again, uninstalled bundles are dropped.
+     */
+    private void forgetChanged( Properties digests, List<Bundle> changed )
+    {
+        for( Bundle b : changed )
+        {
+            if( b.getState() == Bundle.UNINSTALLED )
+            {
+                digests.remove( b.getLocation() );
+            }
+            else
+            {
+                digests.setProperty( b.getLocation(), "" );
+            }
+        }
+        try
+        {
+            storeDigests( digests );
+        } catch( KernelException e )
+        {
+            LOG.warn( "Cannot record the failed start. Delete " + m_stateFile + " before the next start.", e );
+        }
+    }
+
+    private void rollback( List<Bundle> bundles )
+    {
+        for( int i = bundles.size() - 1; i >= 0; i-- )
+        {
+            Bundle b = bundles.get( i );
+            try
+            {
+                b.uninstall();
+            } catch( Exception e )
+            {
+                LOG.warn( "Problem uninstalling bundle " + b.getBundleId() + " during rollback.", e );
+            }
+        }
+        bundles.clear();
+    }
+
+    /**
+     * Reads the whole artifact content so the installing thread never waits on the network.
+     * Local files to install by reference are only read for their digest, and copied if the reference folder does
+     * not have their content yet.
+     */
+    static class Fetch implements Callable<Content>
+    {
+
+        private final Artifact m_artifact;
+        private final File m_referenceDir;
+
+        Fetch( Artifact artifact, File referenceDir )
+        {
+            m_artifact = artifact;
+            m_referenceDir = referenceDir;
+        }
+
+        public Content call()
+            throws RepositoryException, IOException
+        {
+            long begin = System.nanoTime();
+            File file = m_referenceDir != null ? fileOf( m_artifact ) : null;
+            if( file != null )
+            {
+                if( m_artifact instanceof CachedArtifact )
+                {
+                    CachedArtifact cached = (CachedArtifact) m_artifact;
+                    return new Content( link( cached ), cached.getDigest(), System.nanoTime() - begin );
+                }
+                String digest = Content.hex( digest( file ) );
+                File reference = new File( m_referenceDir, digest + ".jar" );
+                if( !reference.isFile() )
+                {
+                    // named by the digest of the copy, in case file changed since it was hashed.
+                    reference = copy( file );
+                    digest = reference.getName().substring( 0, reference.getName().length() - 4 );
+                }
+                return new Content( reference, digest, System.nanoTime() - begin );
+            }
+
+            MessageDigest digest = Content.newDigest();
+            InputStream in = m_artifact.getContent().get();
+            try
+            {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[ 8192 ];
+                int len;
+                while( ( len = in.read( buffer ) ) != -1 )
+                {
+                    if( Thread.currentThread().isInterrupted() )
+                    {
+                        throw new IOException( "Fetch of " + m_artifact + " has been cancelled." );
+                    }
+                    out.write( buffer, 0, len );
+                    digest.update( buffer, 0, len );
+                }
+                return new Content( out.toByteArray(), Content.hex( digest.digest() ), System.nanoTime() - begin );
+            } finally
+            {
+                in.close();
+            }
+        }
+
+        /**
+         * @return a link to the cached content in the reference folder, named by its digest.
+         */
+        private File link( CachedArtifact cached )
+            throws IOException
+        {
+            File link = new File( m_referenceDir, cached.getDigest() + ".jar" );
+            if( !link.isFile() )
+            {
+                mkdirs();
+                // artifacts with equal content are linked concurrently.
+                File tmp = File.createTempFile( "link", ".tmp", m_referenceDir );
+                try
+                {
+                    cached.materialize( tmp );
+                    if( !tmp.renameTo( link ) && !link.isFile() )
+                    {
+                        throw new IOException( "Cannot move " + tmp + " to " + link );
+                    }
+                } finally
+                {
+                    tmp.delete();
+                }
+            }
+            return link;
+        }
+
+        /**
+         * Copies file into the reference folder, hashing it on the way.
+         *
+         * @return the copy, named by its digest
+         */
+        private File copy( File file )
+            throws IOException
+        {
+            mkdirs();
+            MessageDigest digest = Content.newDigest();
+            File tmp = File.createTempFile( "copy", ".tmp", m_referenceDir );
+            try
+            {
+                InputStream in = new FileInputStream( file );
+                try
+                {
+                    OutputStream out = new FileOutputStream( tmp );
+                    try
+                    {
+                        byte[] buffer = new byte[ 8192 ];
+                        int len;
+                        while( ( len = in.read( buffer ) ) != -1 )
+                        {
+                            out.write( buffer, 0, len );
+                            digest.update( buffer, 0, len );
+                        }
+                    } finally
+                    {
+                        out.close();
+                    }
+                } finally
+                {
+                    in.close();
+                }
+                File copy = new File( m_referenceDir, Content.hex( digest.digest() ) + ".jar" );
+                // artifacts with equal content are copied concurrently.
+                if( !tmp.renameTo( copy ) && !copy.isFile() )
+                {
+                    throw new IOException( "Cannot move " + tmp + " to " + copy );
+                }
+                return copy;
+            } finally
+            {
+                tmp.delete();
+            }
+        }
+
+        private void mkdirs()
+            throws IOException
+        {
+            if( !m_referenceDir.isDirectory() && !m_referenceDir.mkdirs() && !m_referenceDir.isDirectory() )
+            {
+                throw new IOException( "Cannot create directory " + m_referenceDir );
+            }
+        }
+
+        private static byte[] digest( File file )
+            throws IOException
+        {
+            MessageDigest digest = Content.newDigest();
+            InputStream in = new FileInputStream( file );
+            try
+            {
+                byte[] buffer = new byte[ 8192 ];
+                int len;
+                while( ( len = in.read( buffer ) ) != -1 )
+                {
+                    digest.update( buffer, 0, len );
+                }
+            } finally
+            {
+                in.close();
+            }
+            return digest.digest();
+        }
+
+        /**
+         * @return the local file with the content of artifact, null if it is no {@link FileArtifact} or its file is
+         *         gone.
+         */
+        static File fileOf( Artifact artifact )
+        {
+            if( !( artifact instanceof FileArtifact ) )
+            {
+                return null;
+            }
+            File file = ( (FileArtifact) artifact ).getFile();
+            return file != null && file.isFile() ? file : null;
+        }
+    }
+
+    /**
+     * Fetched artifact bytes (or the local file to install by reference) plus their SHA-256.
+     */
+    static class Content
+    {
+
+        private final byte[] m_data;
+        private final File m_file;
+        private final String m_digest;
+        private final long m_fetchNanos;
+        // read from the manifest on first use.
+        private boolean m_headers;
+        private String m_symbolicName;
+        private Version m_version;
+
+        Content( byte[] data, String digest, long fetchNanos )
+        {
+            m_data = data;
+            m_file = null;
+            m_digest = digest;
+            m_fetchNanos = fetchNanos;
+        }
+
+        Content( File file, String digest, long fetchNanos )
+        {
+            m_data = null;
+            m_file = file;
+            m_digest = digest;
+            m_fetchNanos = fetchNanos;
+        }
+
+        /**
+         * @return the content to install, null if it is installed by reference.
+         */
+        InputStream getStream()
+        {
+            return m_data != null ? new ByteArrayInputStream( m_data ) : null;
+        }
+
+        boolean isReference()
+        {
+            return m_file != null;
+        }
+
+        /**
+         * @return bundle location of this content: its reference location, else copyLocation
+         */
+        String getLocation( String copyLocation )
+        {
+            return m_file != null ? REFERENCE + m_file.toURI() : copyLocation;
+        }
+
+        /**
+         * @return Bundle-SymbolicName without directives, null if the content has none
+         */
+        String getSymbolicName()
+        {
+            readHeaders();
+            return m_symbolicName;
+        }
+
+        Version getVersion()
+        {
+            readHeaders();
+            return m_version;
+        }
+
+        private void readHeaders()
+        {
+            if( m_headers )
+            {
+                return;
+            }
+            m_headers = true;
+            try
+            {
+                InputStream in = m_data != null ? new ByteArrayInputStream( m_data ) : new FileInputStream( m_file );
+                try
+                {
+                    Manifest manifest = new JarInputStream( in ).getManifest();
+                    if( manifest != null )
+                    {
+                        Attributes attributes = manifest.getMainAttributes();
+                        String name = attributes.getValue( "Bundle-SymbolicName" );
+                        if( name != null )
+                        {
+                            m_symbolicName = ( name.indexOf( ';' ) >= 0 ? name.substring( 0, name.indexOf( ';' ) ) : name ).trim();
+                            m_version = Version.parseVersion( attributes.getValue( "Bundle-Version" ) );
+                        }
+                    }
+                } finally
+                {
+                    in.close();
+                }
+            } catch( IOException e )
+            {
+                LOG.debug( "Cannot read the manifest of " + ( m_file != null ? m_file : "fetched content" ) + ". Matching it by location.", e );
+            } catch( IllegalArgumentException e )
+            {
+                LOG.debug( "Bad Bundle-Version in " + m_symbolicName + ". Matching it by location.", e );
+                m_symbolicName = null;
+            }
+        }
+
+        String getDigest()
+        {
+            return m_digest;
+        }
+
+        long getFetchNanos()
+        {
+            return m_fetchNanos;
+        }
+
+        long getSize()
+        {
+            return m_data != null ? m_data.length : m_file.length();
+        }
+
+        static MessageDigest newDigest()
+        {
+            try
+            {
+                return MessageDigest.getInstance( "SHA-256" );
+            } catch( NoSuchAlgorithmException e )
+            {
+                throw new IllegalStateException( "SHA-256 is not available.", e );
+            }
+        }
+
+        static String hex( byte[] bytes )
+        {
+            StringBuilder sb = new StringBuilder( bytes.length * 2 );
+            for( byte b : bytes )
+            {
+                sb.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) );
+                sb.append( Character.forDigit( b & 0xf, 16 ) );
+            }
+            return sb.toString();
+        }
+    }
+
+    private static class FetchThreadFactory implements ThreadFactory
+    {
+
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        public Thread newThread( Runnable r )
+        {
+            Thread t = new Thread( r, "gouken-fetch-" + m_count.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        }
+    }
+}
@@ -0,0 +1,960 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.felix.dm.ComponentDeclaration;
+import org.apache.felix.dm.ComponentDependencyDeclaration;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory graph of the dependency manager components of a framework, for {@link MAReport} and health checks
+ * that ask for it over and over.
+ * <p/>
+ * The set of components is maintained by ComponentDeclaration service events; each declaration is got once and
+ * held until it is unregistered. Component and dependency states change with other services and bundles coming
+ * and going. An event only marks the components it can affect: those of the bundle it is about, and for service
+ * events those with a dependency on one of the service's object classes (or with a bundle dependency, for bundle
+ * events). The next query reads the states of the marked components again and reuses all others.
+ * Queries on an unchanged graph are answered from the last snapshot, without touching the service registry.
+ * <p/>
+ * Declarations are only ever called (and services only got and ungot) without holding the lock of the graph:
+ * framework events are delivered on the thread that changes a service, possibly while it holds locks of its own
+ * component, so calling the component back under the lock events need could deadlock.
+ * <p/>
+ * Changes that come without such an event (e.g. configuration dependencies) are seen after {@link #invalidate()}.
+ *
+ * @author Toni Menzel
+ */
+public class ComponentGraph implements ServiceListener, BundleListener
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger( ComponentGraph.class );
+    private static final String TYPE = ComponentDeclaration.class.getName();
+    private static final Node[] NO_NODES = new Node[0];
+    private static final int MAX_REMOVED = 1024;
+    // dependency type of bundle dependencies, and key of the components having one in m_dependents.
+    private static final String BUNDLE = "bundle";
+    private static final String[] BUNDLE_DEPENDENCY = { " " + BUNDLE };
+    private static final Comparator<Node> ORDER = new Comparator<Node>()
+    {
+        public int compare( Node n1, Node n2 )
+        {
+            if( n1.m_bundleId != n2.m_bundleId )
+            {
+                return n1.m_bundleId < n2.m_bundleId ? -1 : 1;
+            }
+            return n1.m_serviceId < n2.m_serviceId ? -1 : ( n1.m_serviceId == n2.m_serviceId ? 0 : 1 );
+        }
+    };
+
+    private final BundleContext m_context;
+    private final Map<ServiceReference, Held> m_held = new HashMap<ServiceReference, Held>();
+    // held components by bundle id and by the services they depend on, to find what an event affects.
+    private final Map<Long, List<Held>> m_byBundle = new HashMap<Long, List<Held>>();
+    private final Map<String, List<Held>> m_dependents = new HashMap<String, List<Held>>();
+    private final Set<Held> m_dirty = new LinkedHashSet<Held>();
+    private final AtomicLong m_changes = new AtomicLong();
+    private final LinkedList<Removed> m_removed = new LinkedList<Removed>();
+    private long m_forgotten = -1;
+    private volatile Snapshot m_snapshot = new Snapshot( -1, NO_NODES );
+    private boolean m_closed;
+    // thread reading dirty components without the lock, null if none is.
+    private Thread m_reader;
+
+    /**
+     * Starts listening and picks up the components already registered in context.
+     *
+     * @param context context of the framework whose components are reported
+     */
+    public ComponentGraph( BundleContext context )
+    {
+        m_context = context;
+        m_context.addServiceListener( this );
+        m_context.addBundleListener( this );
+        ServiceReference[] references = null;
+        try
+        {
+            references = m_context.getServiceReferences( TYPE, null );
+        } catch( InvalidSyntaxException e )
+        {
+            // cannot happen without filter.
+            throw new IllegalStateException( e );
+        }
+        if( references != null )
+        {
+            for( ServiceReference ref : references )
+            {
+                add( ref );
+            }
+        }
+    }
+
+    /**
+     * Reads all components of context once, without keeping anything.
+     *
+     * @param context context of the framework whose components are reported
+     *
+     * @return components ordered by bundle id
+     */
+    public static List<Node> scan( BundleContext context )
+    {
+        ServiceReference[] references = null;
+        try
+        {
+            references = context.getServiceReferences( TYPE, null );
+        } catch( InvalidSyntaxException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        return read( context, references, false );
+    }
+
+    /**
+     * Reads the components of one bundle once, without keeping anything. Only the services of that bundle are looked at.
+     *
+     * @param context  context of the framework whose components are reported
+     * @param bundleId id of the bundle the components were registered by
+     *
+     * @return components of the bundle, empty if there is no such bundle
+     */
+    public static List<Node> scan( BundleContext context, long bundleId )
+    {
+        Bundle bundle = context.getBundle( bundleId );
+        if( bundle == null )
+        {
+            return Collections.emptyList();
+        }
+        return read( context, bundle.getRegisteredServices(), true );
+    }
+
+    private static List<Node> read( BundleContext context, ServiceReference[] references, boolean filter )
+    {
+        if( references == null )
+        {
+            return Collections.emptyList();
+        }
+        List<Node> nodes = new ArrayList<Node>( references.length );
+        for( ServiceReference ref : references )
+        {
+            if( filter && !isDeclaration( ref ) )
+            {
+                continue;
+            }
+            ComponentDeclaration declaration = (ComponentDeclaration) context.getService( ref );
+            if( declaration != null )
+            {
+                try
+                {
+                    Bundle bundle = ref.getBundle();
+                    if( bundle != null )
+                    {
+                        nodes.add( new Node( bundle.getBundleId(), bundle.getSymbolicName(), serviceId( ref ), declaration ) );
+                    }
+                } finally
+                {
+                    context.ungetService( ref );
+                }
+            }
+        }
+        Node[] sorted = nodes.toArray( new Node[nodes.size()] );
+        Arrays.sort( sorted, ORDER );
+        return Collections.unmodifiableList( Arrays.asList( sorted ) );
+    }
+
+    public void serviceChanged( ServiceEvent event )
+    {
+        ServiceReference ref = event.getServiceReference();
+        if( isDeclaration( ref ) )
+        {
+            switch( event.getType() )
+            {
+                case ServiceEvent.REGISTERED:
+                    add( ref );
+                    break;
+                case ServiceEvent.UNREGISTERING:
+                    remove( ref );
+                    break;
+                default:
+                    break;
+            }
+        }
+        Bundle bundle = ref.getBundle();
+        Object classes = ref.getProperty( Constants.OBJECTCLASS );
+        touch( bundle == null ? -1 : bundle.getBundleId(), classes instanceof String[] ? (String[]) classes : null );
+    }
+
+    public void bundleChanged( BundleEvent event )
+    {
+        touch( event.getBundle().getBundleId(), BUNDLE_DEPENDENCY );
+    }
+
+    /**
+     * Makes the next query read all component states again.
+     */
+    public synchronized void invalidate()
+    {
+        if( m_closed )
+        {
+            return;
+        }
+        m_dirty.addAll( m_held.values() );
+        m_changes.incrementAndGet();
+    }
+
+    /**
+     * @return all components ordered by bundle id
+     */
+    public List<Node> getComponents()
+    {
+        return snapshot().m_all;
+    }
+
+    /**
+     * @param bundleId id of the bundle the components were registered by
+     *
+     * @return the components of that bundle, empty if it has none
+     */
+    public List<Node> getComponents( long bundleId )
+    {
+        List<Node> nodes = snapshot().m_byBundle.get( bundleId );
+        if( nodes == null )
+        {
+            return Collections.emptyList();
+        }
+        return nodes;
+    }
+
+    /**
+     * @return components that are not registered, ordered by bundle id
+     */
+    public List<Node> getUnavailable()
+    {
+        return snapshot().m_unavailable;
+    }
+
+    /**
+     * Components that changed (or showed up) and components that left since an earlier version of the graph.
+     *
+     * @param since a version returned by {@link #getVersion()} or {@link Changes#getVersion()} before, negative for all
+     *              components
+     *
+     * @return the changes, all components if since is negative or too old to tell the changes
+     */
+    public Changes getChanges( long since )
+    {
+        Snapshot snapshot = snapshot();
+        List<Node> removed = new ArrayList<Node>();
+        boolean complete;
+        synchronized( this )
+        {
+            complete = since < 0 || since < m_forgotten;
+            if( !complete )
+            {
+                for( Removed entry : m_removed )
+                {
+                    if( entry.m_version > since && entry.m_version <= snapshot.m_version )
+                    {
+                        removed.add( entry.m_node );
+                    }
+                }
+            }
+        }
+        List<Node> changed;
+        if( complete )
+        {
+            changed = snapshot.m_all;
+        }
+        else
+        {
+            changed = new ArrayList<Node>();
+            for( Node node : snapshot.m_all )
+            {
+                if( node.m_changed > since )
+                {
+                    changed.add( node );
+                }
+            }
+        }
+        return new Changes( snapshot.m_version, complete, changed, removed );
+    }
+
+    /**
+     * @return why components are not registered. Computed once per version of the graph.
+     */
+    public RootCauseAnalysis getRootCauses()
+    {
+        Snapshot snapshot = snapshot();
+        RootCauseAnalysis analysis = snapshot.m_rootCauses;
+        if( analysis == null )
+        {
+            analysis = RootCauseAnalysis.analyze( snapshot.m_all );
+            snapshot.m_rootCauses = analysis;
+        }
+        return analysis;
+    }
+
+    /**
+     * @return number of changes seen so far. Equal values mean equal graphs.
+     */
+    public long getVersion()
+    {
+        return snapshot().m_version;
+    }
+
+    /**
+     * Stops listening and ungets all held declarations.
+     */
+    public void close()
+    {
+        List<ServiceReference> held;
+        synchronized( this )
+        {
+            if( m_closed )
+            {
+                return;
+            }
+            m_closed = true;
+            held = new ArrayList<ServiceReference>( m_held.keySet() );
+            for( Held h : m_held.values() )
+            {
+                h.m_gone = true;
+            }
+            m_held.clear();
+            m_byBundle.clear();
+            m_dependents.clear();
+            m_dirty.clear();
+            m_snapshot = new Snapshot( m_changes.incrementAndGet(), NO_NODES );
+            notifyAll();
+        }
+        m_context.removeServiceListener( this );
+        m_context.removeBundleListener( this );
+        for( ServiceReference ref : held )
+        {
+            unget( ref );
+        }
+    }
+
+    private Snapshot snapshot()
+    {
+        Snapshot snapshot = m_snapshot;
+        if( snapshot.m_version == m_changes.get() )
+        {
+            return snapshot;
+        }
+        long version;
+        Held[] dirty;
+        synchronized( this )
+        {
+            // one reader at a time, others wait for its snapshot instead of publishing one without its reads.
+            while( m_reader != null && m_reader != Thread.currentThread() && !m_closed )
+            {
+                try
+                {
+                    wait();
+                } catch( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    return m_snapshot;
+                }
+            }
+            version = m_changes.get();
+            if( m_closed || m_reader != null || m_snapshot.m_version == version )
+            {
+                // closed, up to date, or called back from a declaration this thread is reading.
+                return m_snapshot;
+            }
+            dirty = m_dirty.toArray( new Held[m_dirty.size()] );
+            m_dirty.clear();
+            m_reader = Thread.currentThread();
+        }
+        Node[] read = new Node[dirty.length];
+        try
+        {
+            for( int i = 0; i < dirty.length; i++ )
+            {
+                read[ i ] = new Node( dirty[ i ].m_bundleId, dirty[ i ].m_bundleName, dirty[ i ].m_serviceId, dirty[ i ].m_declaration );
+            }
+        } finally
+        {
+            publish( dirty, read, version );
+        }
+        return m_snapshot;
+    }
+
+    /**
+     * Takes the states read for the dirty components and publishes a snapshot of version, unless a later one has been
+     * published meanwhile. Events during the reads marked their components again and moved the counter past version,
+     * so the next query reads those again.
+     */
+    private synchronized void publish( Held[] dirty, Node[] read, long version )
+    {
+        m_reader = null;
+        notifyAll();
+        boolean complete = true;
+        for( int i = 0; i < dirty.length; i++ )
+        {
+            if( read[ i ] == null )
+            {
+                // not read after a failure: read next time.
+                m_dirty.add( dirty[ i ] );
+                complete = false;
+            }
+            else if( !dirty[ i ].m_gone )
+            {
+                update( dirty[ i ], read[ i ], version );
+            }
+        }
+        if( !complete || m_closed || m_snapshot.m_version >= version )
+        {
+            return;
+        }
+        List<Node> nodes = new ArrayList<Node>( m_held.size() );
+        for( Held held : m_held.values() )
+        {
+            // components added during the reads are not read yet.
+            if( held.m_last != null )
+            {
+                nodes.add( held.m_last );
+            }
+        }
+        Node[] sorted = nodes.toArray( new Node[nodes.size()] );
+        Arrays.sort( sorted, ORDER );
+        m_snapshot = new Snapshot( version, sorted );
+    }
+
+    /**
+     * Takes the freshly read state of one held component and re-indexes it by the services it depends on.
+     */
+    private void update( Held held, Node node, long version )
+    {
+        if( held.m_last == null || !node.sameState( held.m_last ) )
+        {
+            held.m_changed = version;
+        }
+        node.m_changed = held.m_changed;
+        if( held.m_last != null )
+        {
+            for( Edge edge : held.m_last.m_dependencies )
+            {
+                unindex( m_dependents, key( edge ), held );
+            }
+        }
+        for( Edge edge : node.m_dependencies )
+        {
+            index( m_dependents, key( edge ), held );
+        }
+        held.m_last = node;
+    }
+
+    /**
+     * Marks the components of a bundle and those depending on one of services as changed.
+     *
+     * @param bundleId bundle the event is about, -1 for none
+     * @param services object classes of the service the event is about, may be null
+     */
+    private synchronized void touch( long bundleId, String[] services )
+    {
+        if( m_closed )
+        {
+            return;
+        }
+        boolean changed = mark( m_byBundle.get( bundleId ) );
+        if( services != null )
+        {
+            for( String service : services )
+            {
+                changed |= mark( m_dependents.get( service ) );
+            }
+        }
+        if( changed )
+        {
+            m_changes.incrementAndGet();
+        }
+    }
+
+    private boolean mark( List<Held> held )
+    {
+        if( held == null || held.isEmpty() )
+        {
+            return false;
+        }
+        m_dirty.addAll( held );
+        return true;
+    }
+
+    /**
+     * @return the service name of a service dependency (its name up to the filter), " bundle" for bundle
+     *         dependencies. Either is what {@link #touch} is called with.
+     */
+    private static String key( Edge edge )
+    {
+        if( BUNDLE.equals( edge.m_type ) )
+        {
+            return BUNDLE_DEPENDENCY[ 0 ];
+        }
+        String name = edge.m_name;
+        for( int i = 0; i < name.length(); i++ )
+        {
+            char c = name.charAt( i );
+            if( c == ' ' || c == '(' )
+            {
+                return name.substring( 0, i );
+            }
+        }
+        return name;
+    }
+
+    private static <K> void index( Map<K, List<Held>> index, K key, Held held )
+    {
+        List<Held> list = index.get( key );
+        if( list == null )
+        {
+            list = new ArrayList<Held>( 2 );
+            index.put( key, list );
+        }
+        list.add( held );
+    }
+
+    private static <K> void unindex( Map<K, List<Held>> index, K key, Held held )
+    {
+        List<Held> list = index.get( key );
+        if( list != null && list.remove( held ) && list.isEmpty() )
+        {
+            index.remove( key );
+        }
+    }
+
+    private void add( ServiceReference ref )
+    {
+        synchronized( this )
+        {
+            if( m_closed || m_held.containsKey( ref ) )
+            {
+                return;
+            }
+        }
+        Bundle bundle = ref.getBundle();
+        if( bundle == null )
+        {
+            // already gone.
+            return;
+        }
+        ComponentDeclaration declaration;
+        try
+        {
+            declaration = (ComponentDeclaration) m_context.getService( ref );
+        } catch( RuntimeException e )
+        {
+            LOG.warn( "Cannot get component declaration " + ref, e );
+            return;
+        }
+        if( declaration == null )
+        {
+            return;
+        }
+        synchronized( this )
+        {
+            // the service may have been added by the constructor and an event at once, or have been unregistered.
+            if( !m_closed && !m_held.containsKey( ref ) && ref.getBundle() != null )
+            {
+                Held held = new Held( bundle.getBundleId(), bundle.getSymbolicName(), serviceId( ref ), declaration );
+                m_held.put( ref, held );
+                index( m_byBundle, held.m_bundleId, held );
+                m_dirty.add( held );
+                m_changes.incrementAndGet();
+                return;
+            }
+        }
+        unget( ref );
+    }
+
+    private void remove( ServiceReference ref )
+    {
+        if( forget( ref ) )
+        {
+            unget( ref );
+        }
+    }
+
+    /**
+     * @return true if ref was held
+     */
+    private synchronized boolean forget( ServiceReference ref )
+    {
+        Held held = m_held.remove( ref );
+        if( held != null )
+        {
+            held.m_gone = true;
+            m_dirty.remove( held );
+            unindex( m_byBundle, held.m_bundleId, held );
+            if( held.m_last != null )
+            {
+                for( Edge edge : held.m_last.m_dependencies )
+                {
+                    unindex( m_dependents, key( edge ), held );
+                }
+            }
+            if( held.m_last != null )
+            {
+                // only components that were ever reported can be reported as removed.
+                m_removed.addLast( new Removed( held.m_last, m_changes.incrementAndGet() ) );
+                if( m_removed.size() > MAX_REMOVED )
+                {
+                    m_forgotten = m_removed.removeFirst().m_version;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void unget( ServiceReference ref )
+    {
+        try
+        {
+            m_context.ungetService( ref );
+        } catch( RuntimeException e )
+        {
+            LOG.debug( "Cannot unget component declaration " + ref, e );
+        }
+    }
+
+    private static boolean isDeclaration( ServiceReference ref )
+    {
+        Object classes = ref.getProperty( Constants.OBJECTCLASS );
+        if( classes instanceof String[] )
+        {
+            for( String name : (String[]) classes )
+            {
+                if( TYPE.equals( name ) )
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static long serviceId( ServiceReference ref )
+    {
+        Object id = ref.getProperty( Constants.SERVICE_ID );
+        return id instanceof Long ? (Long) id : 0;
+    }
+
+    private static class Held
+    {
+
+        private final long m_bundleId;
+        private final String m_bundleName;
+        private final long m_serviceId;
+        private final ComponentDeclaration m_declaration;
+        private Node m_last;
+        private long m_changed;
+        // unregistered or closed: late reads are dropped.
+        private boolean m_gone;
+
+        Held( long bundleId, String bundleName, long serviceId, ComponentDeclaration declaration )
+        {
+            m_bundleId = bundleId;
+            m_bundleName = bundleName;
+            m_serviceId = serviceId;
+            m_declaration = declaration;
+        }
+    }
+
+    private static class Removed
+    {
+
+        private final Node m_node;
+        private final long m_version;
+
+        Removed( Node node, long version )
+        {
+            m_node = node;
+            m_version = version;
+        }
+    }
+
+    /**
+     * Result of {@link ComponentGraph#getChanges(long)}.
+     */
+    public static final class Changes
+    {
+
+        private final long m_version;
+        private final boolean m_complete;
+        private final List<Node> m_changed;
+        private final List<Node> m_removed;
+
+        Changes( long version, boolean complete, List<Node> changed, List<Node> removed )
+        {
+            m_version = version;
+            m_complete = complete;
+            m_changed = Collections.unmodifiableList( changed );
+            m_removed = Collections.unmodifiableList( removed );
+        }
+
+        /**
+         * @return version of the graph the changes lead to, to pass as since next time
+         */
+        public long getVersion()
+        {
+            return m_version;
+        }
+
+        /**
+         * @return true if {@link #getChanged()} holds all components instead of a difference
+         */
+        public boolean isComplete()
+        {
+            return m_complete;
+        }
+
+        /**
+         * @return changed components in their current state, ordered by bundle id
+         */
+        public List<Node> getChanged()
+        {
+            return m_changed;
+        }
+
+        /**
+         * @return components that left, in their last reported state
+         */
+        public List<Node> getRemoved()
+        {
+            return m_removed;
+        }
+    }
+
+    private static class Snapshot
+    {
+
+        private final long m_version;
+        private final List<Node> m_all;
+        private final List<Node> m_unavailable;
+        private final Map<Long, List<Node>> m_byBundle;
+        // racy but idempotent: two threads may both analyze the same snapshot.
+        private volatile RootCauseAnalysis m_rootCauses;
+
+        Snapshot( long version, Node[] nodes )
+        {
+            m_version = version;
+            m_all = Collections.unmodifiableList( Arrays.asList( nodes ) );
+            List<Node> unavailable = new ArrayList<Node>();
+            Map<Long, List<Node>> byBundle = new HashMap<Long, List<Node>>();
+            int from = 0;
+            for( int i = 0; i < nodes.length; i++ )
+            {
+                if( nodes[ i ].getState() != ComponentDeclaration.STATE_REGISTERED )
+                {
+                    unavailable.add( nodes[ i ] );
+                }
+                // nodes are ordered by bundle id, so each bundle is one range.
+                if( i + 1 == nodes.length || nodes[ i + 1 ].m_bundleId != nodes[ i ].m_bundleId )
+                {
+                    byBundle.put( nodes[ i ].m_bundleId, m_all.subList( from, i + 1 ) );
+                    from = i + 1;
+                }
+            }
+            m_unavailable = Collections.unmodifiableList( unavailable );
+            m_byBundle = byBundle;
+        }
+    }
+
+    /**
+     * State of one component at the time the graph was read. Immutable.
+     */
+    public static final class Node
+    {
+
+        private final long m_bundleId;
+        private final String m_bundleName;
+        private final long m_serviceId;
+        private final String m_name;
+        private final int m_state;
+        private final Edge[] m_dependencies;
+        // version in which the state was first seen, set before the node is published.
+        private long m_changed;
+
+        Node( long bundleId, String bundleName, long serviceId, ComponentDeclaration declaration )
+        {
+            m_bundleId = bundleId;
+            m_bundleName = bundleName;
+            m_serviceId = serviceId;
+            m_name = declaration.getName();
+            m_state = declaration.getState();
+            ComponentDependencyDeclaration[] dependencies = declaration.getComponentDependencies();
+            if( dependencies == null || dependencies.length == 0 )
+            {
+                m_dependencies = Edge.NONE;
+            }
+            else
+            {
+                m_dependencies = new Edge[dependencies.length];
+                for( int i = 0; i < dependencies.length; i++ )
+                {
+                    m_dependencies[ i ] = new Edge( dependencies[ i ].getName(), dependencies[ i ].getType(), dependencies[ i ].getState() );
+                }
+            }
+        }
+
+        public long getBundleId()
+        {
+            return m_bundleId;
+        }
+
+        public String getBundleName()
+        {
+            return m_bundleName;
+        }
+
+        public String getName()
+        {
+            return m_name;
+        }
+
+        /**
+         * @return one of the ComponentDeclaration.STATE_* constants
+         */
+        public int getState()
+        {
+            return m_state;
+        }
+
+        public String getStateName()
+        {
+            return ComponentDeclaration.STATE_NAMES[ m_state ];
+        }
+
+        public List<Edge> getDependencies()
+        {
+            return Collections.unmodifiableList( Arrays.asList( m_dependencies ) );
+        }
+
+        /**
+         * @return version of the graph in which the component got its current state, 0 for scanned nodes
+         */
+        public long getChanged()
+        {
+            return m_changed;
+        }
+
+        boolean sameState( Node other )
+        {
+            if( m_state != other.m_state || !m_name.equals( other.m_name ) || m_dependencies.length != other.m_dependencies.length )
+            {
+                return false;
+            }
+            for( int i = 0; i < m_dependencies.length; i++ )
+            {
+                Edge e1 = m_dependencies[ i ];
+                Edge e2 = other.m_dependencies[ i ];
+                if( e1.m_state != e2.m_state || !e1.m_name.equals( e2.m_name ) || !e1.m_type.equals( e2.m_type ) )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "[" + m_bundleId + "] " + m_name + " " + getStateName();
+        }
+    }
+
+    /**
+     * State of one dependency of a component at the time the graph was read. Immutable.
+     */
+    public static final class Edge
+    {
+
+        private static final Edge[] NONE = new Edge[0];
+
+        private final String m_name;
+        private final String m_type;
+        private final int m_state;
+
+        Edge( String name, String type, int state )
+        {
+            m_name = name;
+            m_type = type;
+            m_state = state;
+        }
+
+        public String getName()
+        {
+            return m_name;
+        }
+
+        public String getType()
+        {
+            return m_type;
+        }
+
+        /**
+         * @return one of the ComponentDependencyDeclaration.STATE_* constants
+         */
+        public int getState()
+        {
+            return m_state;
+        }
+
+        public String getStateName()
+        {
+            return ComponentDependencyDeclaration.STATE_NAMES[ m_state ];
+        }
+
+        /**
+         * @return true if this is a required dependency that is not available
+         */
+        public boolean isMissing()
+        {
+            return m_state == ComponentDependencyDeclaration.STATE_UNAVAILABLE_REQUIRED;
+        }
+
+        @Override
+        public String toString()
+        {
+            return m_name + " " + m_type + " " + getStateName();
+        }
+    }
+}
@@ -20,15 +20,13 @@ package com.okidokiteam.gouken.kernel;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
-import java.util.ArrayList;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Future;
 
 import com.okidokiteam.gouken.*;
 import org.apache.commons.discovery.tools.DiscoverSingleton;
@@ -37,8 +35,6 @@ import org.ops4j.pax.repository.RepositoryException;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
-import org.osgi.framework.InvalidSyntaxException;
-import org.osgi.framework.ServiceReference;
 import org.osgi.framework.launch.Framework;
 import org.osgi.framework.launch.FrameworkFactory;
 import org.slf4j.Logger;
@@ -62,16 +58,25 @@ import org.slf4j.LoggerFactory;
  * @author Toni Menzel
  * @since Mar 4, 2010
  */
-public class CoreVault<T> implements Vault<T>
+public class CoreVault<T> implements Vault<T>, VaultLifecycle
 {
 
     private static final Logger LOG = LoggerFactory.getLogger( CoreVault.class );
     private static final String META_INF_GOUKEN_KERNEL_PROPERTIES = "/META-INF/gouken/kernel.properties";
+    private static final String MA_DIGESTS = "ma.digests";
+    private static final String MA_REFERENCES = "ma";
 
     // accessed by shutdownhook and remote access
     private volatile Framework m_framework;
     private final VaultSettings m_settings;
     private Class<T> m_pushServiceType;
+    private Map<String, Object> m_config;
+    private boolean m_suspended;
+    // CRaC only holds a weak reference to its resources.
+    private Object m_checkpointResource;
+    private volatile StartupProfile m_profile;
+    private volatile PushInvocationHandler m_push;
+    private volatile ComponentGraph m_components;
 
     private long f = 1l;
 
@@ -95,16 +100,36 @@ public class CoreVault<T> implements Vault<T>
             throw new KernelWorkflowException( "Vault is already running." );
         }
 
+        StartupProfile profile = new StartupProfile();
+        m_profile = profile;
         ClassLoader parent = null;
         try
         {
+            StartupProfile.Probe probe = StartupProfile.Probe.start();
             final Map<String, Object> p = getFrameworkConfig();
+            m_config = p;
+            profile.phase( "config", probe );
+            boolean checkpoint = KernelProperties.getBoolean( p, KernelProperties.CHECKPOINT, false );
+            if( checkpoint && !CracSupport.isAvailable() )
+            {
+                throw new KernelException(
+                    "Checkpoint requested (" + KernelProperties.CHECKPOINT + ") but org.crac is not on the classpath.",
+                    new ClassNotFoundException( "org.crac.Core" )
+                );
+            }
             parent = Thread.currentThread().getContextClassLoader();
 
             Thread.currentThread().setContextClassLoader( null );
-            loadAndStartFramework( p );
+            loadAndStartFramework( p, profile );
             Thread.currentThread().setContextClassLoader( parent );
-            installMA( agent );
+            installMA( agent, profile );
+            m_components = new ComponentGraph( m_framework.getBundleContext() );
+            profile.finish();
+
+            if( checkpoint )
+            {
+                checkpoint();
+            }
 
         } catch( Exception e )
         {
@@ -125,12 +150,103 @@ public class CoreVault<T> implements Vault<T>
         {
             return (T) new Object();
         }
+        if( m_pushServiceType == null )
+        {
+            return null;
+        }
         return createProxyService();
     }
 
-    private void installMA( VaultAgent agent )
+    /**
+     * @return timings of the last start (or restore) of this vault, null if it has never been started.
+     */
+    public StartupProfile getStartupProfile()
+    {
+        return m_profile;
+    }
+
+    /**
+     * @return dependency manager components of the management agent, kept up to date by framework events.
+     *         Null if the vault is not running.
+     */
+    public ComponentGraph getComponentGraph()
+    {
+        return m_components;
+    }
+
+    /**
+     * Writes a dependency manager component report of the management agent (see {@link MAReport} for args).
+     * Reports are answered from {@link #getComponentGraph()}, so they do not scan the service registry each time.
+     *
+     * @throws IllegalStateException if the vault is not running.
+     */
+    public void report( String[] args, PrintStream out, PrintStream err )
+    {
+        ComponentGraph components = m_components;
+        if( components == null )
+        {
+            throw new IllegalStateException( "Vault is not running." );
+        }
+        new MAReport().collect( components, args, out, err );
+    }
+
+    /**
+     * @return per method metrics of the calls made through the push proxy. Null if the vault is not running, has no
+     *         push service type or metrics are disabled ({@link KernelProperties#PUSH_METRICS}).
+     */
+    public PushMetrics getPushMetrics()
+    {
+        PushInvocationHandler push = m_push;
+        return push == null ? null : push.getMetrics();
+    }
+
+    /**
+     * Asynchronous variant of calling the push proxy. The call is queued and run (in submission order) as soon as the
+     * push service is registered inside the vault, so it survives management agent restarts and updates.
+     *
+     * @param call work to do against the push service
+     *
+     * @return future result of call. Cancelled if the vault is stopped before the call ran.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if too many calls are pending
+     *                                                         (see {@link KernelProperties#PUSH_QUEUE}).
+     * @throws IllegalStateException                           if the vault is not running or has no push service type.
+     */
+    public <R> Future<R> submit( PushCall<T, R> call )
+    {
+        PushInvocationHandler push = m_push;
+        if( push == null )
+        {
+            throw new IllegalStateException( "Vault is not running or has no push service type." );
+        }
+        return push.submit( call );
+    }
+
+    /**
+     * Runs a batch of calls against the push service. The service is looked up (and waited for) once and all calls
+     * run against that same instance in the calling thread, which spreads the per call overhead of the proxy.
+     *
+     * @param calls work to do against the push service
+     *
+     * @return one result (value or exception) per call, in order.
+     *
+     * @throws PushUnavailableException if the service did not show up within {@link KernelProperties#PUSH_TIMEOUT}.
+     * @throws IllegalStateException    if the vault is not running or has no push service type.
+     */
+    public <R> List<PushResult<R>> batch( List<? extends PushCall<T, ? extends R>> calls )
+    {
+        PushInvocationHandler push = m_push;
+        if( push == null )
+        {
+            throw new IllegalStateException( "Vault is not running or has no push service type." );
+        }
+        return push.batch( calls );
+    }
+
+    private void installMA( VaultAgent agent, StartupProfile profile )
         throws KernelException
     {
+        StartupProfile.Probe probe = StartupProfile.Probe.start();
         Artifact[] artifacts;
         try
         {
@@ -139,37 +255,101 @@ public class CoreVault<T> implements Vault<T>
         {
             throw new KernelException( "Problem getting artifacts from agent: " + agent, e );
         }
+        profile.phase( "agent.artifacts", probe );
+
+        ArtifactInstaller installer = new ArtifactInstaller(
+            KernelProperties.getInt( m_config, KernelProperties.FETCH_THREADS, KernelProperties.DEFAULT_FETCH_THREADS ),
+            new File( m_settings.getWorkingFolder(), MA_DIGESTS ),
+            KernelProperties.getBoolean( m_config, KernelProperties.WARM_START, false ),
+            KernelProperties.getBoolean( m_config, KernelProperties.INSTALL_REFERENCE, true ) ? new File( m_settings.getWorkingFolder(), MA_REFERENCES ) : null,
+            profile
+        );
+        probe = StartupProfile.Probe.start();
+        List<Bundle> bundles = installer.install( m_framework.getBundleContext(), artifacts );
+        profile.phase( "ma.install", probe );
 
-        int i = 0;
-        List<Bundle> bundles = new ArrayList<Bundle>();
+        ActivationScheduler scheduler = new ActivationScheduler(
+            KernelProperties.getInt( m_config, KernelProperties.START_THREADS, KernelProperties.DEFAULT_START_THREADS ),
+            profile
+        );
+        probe = StartupProfile.Probe.start();
+        scheduler.start( m_framework.getBundleContext(), bundles );
+        profile.phase( "ma.start", probe );
+    }
 
-        for( Artifact artifact : artifacts )
+    private void checkpoint()
+    {
+        m_checkpointResource = CracSupport.register( this );
+        if( m_checkpointResource == null )
         {
-            i++;
-            try
-            {
-                bundles.add( m_framework.getBundleContext().installBundle( "MA" + i, artifact.getContent().get() ) );
-            } catch( BundleException e )
-            {
-                throw new KernelException( "Problem installing management agent resources. Artifact: " + artifact, e );
-            } catch( IOException e )
-            {
-                throw new KernelException( "Problem installing management agent resources. Artifact: " + artifact, e );
-            } catch( RepositoryException e )
-            {
-                throw new KernelException( "Problem loading management agent resources. Artifact: " + artifact, e );
-            }
+            LOG.warn( "Checkpoint requested but the vault could not be registered as CRaC resource." );
+            return;
         }
+        LOG.info( "Management agent is active. Taking checkpoint." );
+        CracSupport.checkpointRestore();
+    }
 
-        for( Bundle b : bundles )
+    /**
+     * Stops the framework but keeps its storage, so {@link #afterRestore()} finds all bundles in their started state.
+     */
+    public synchronized void beforeCheckpoint()
+        throws KernelException
+    {
+        if( m_framework == null )
         {
-            try
-            {
-                b.start();
-            } catch( BundleException e )
+            return;
+        }
+        if( m_push != null )
+        {
+            m_push.bind( null );
+        }
+        closeComponents();
+        try
+        {
+            m_framework.stop();
+            m_framework.waitForStop( 0 );
+        } catch( BundleException e )
+        {
+            throw new KernelException( "Problem suspending the Vault", e );
+        } catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new KernelException( "Interrupted while suspending the Vault", e );
+        }
+        m_framework = null;
+        m_suspended = true;
+        LOG.info( "Vault suspended for checkpoint." );
+    }
+
+    public synchronized void afterRestore()
+        throws KernelException
+    {
+        if( !m_suspended )
+        {
+            return;
+        }
+        StartupProfile profile = new StartupProfile();
+        ClassLoader parent = Thread.currentThread().getContextClassLoader();
+        try
+        {
+            Thread.currentThread().setContextClassLoader( null );
+            loadAndStartFramework( m_config, profile );
+            m_components = new ComponentGraph( m_framework.getBundleContext() );
+            if( m_push != null )
             {
-                throw new KernelException( "One of the Management Agent Bundles could not be started. Bundle ID: " + b.getBundleId(), e );
+                m_push.bind( newPushTarget() );
             }
+            profile.finish();
+            m_profile = profile;
+            m_suspended = false;
+            LOG.info( "Vault resumed after restore." );
+        } catch( Exception e )
+        {
+            tryShutdown();
+            throw new KernelException( "Problem restoring the Vault", e );
+        } finally
+        {
+            Thread.currentThread().setContextClassLoader( parent );
         }
     }
 
@@ -179,6 +359,17 @@ public class CoreVault<T> implements Vault<T>
         try
         {
             LOG.info( "Stop hook triggered." );
+            m_suspended = false;
+            if( m_push != null )
+            {
+                m_push.close();
+                if( m_push.getMetrics() != null )
+                {
+                    m_push.getMetrics().unregister( ManagementFactory.getPlatformMBeanServer() );
+                }
+                m_push = null;
+            }
+            closeComponents();
             if( m_framework != null )
             {
                 BundleContext ctx = m_framework.getBundleContext();
@@ -233,20 +424,39 @@ public class CoreVault<T> implements Vault<T>
         }
     }
 
-    private void loadAndStartFramework( Map<String, Object> p )
+    private void loadAndStartFramework( Map<String, Object> p, StartupProfile profile )
         throws BundleException, IOException, RepositoryException, KernelException
     {
+        StartupProfile.Probe probe = StartupProfile.Probe.start();
         FrameworkFactory factory = (FrameworkFactory) DiscoverSingleton.find( FrameworkFactory.class );
+        profile.phase( "framework.discovery", probe );
+        probe = StartupProfile.Probe.start();
         m_framework = factory.newFramework( p );
+        profile.phase( "framework.create", probe );
 
         // p.put( FelixConstants.SYSTEMBUNDLE_ACTIVATORS_PROP, Arrays.asList( new Activator() ) );
         // m_framework = new Felix( p );
+        probe = StartupProfile.Probe.start();
         m_framework.init();
+        profile.phase( "framework.init", probe );
+        probe = StartupProfile.Probe.start();
         m_framework.start();
+        profile.phase( "framework.start", probe );
+    }
+
+    private void closeComponents()
+    {
+        ComponentGraph components = m_components;
+        m_components = null;
+        if( components != null )
+        {
+            components.close();
+        }
     }
 
     private void tryShutdown()
     {
+        closeComponents();
         if( m_framework != null )
         {
             try
@@ -262,73 +472,46 @@ public class CoreVault<T> implements Vault<T>
 
     private boolean isRunning()
     {
-        return ( m_framework != null );
+        return ( m_framework != null || m_suspended );
     }
 
     /**
-     * Dynamic proxy around a service that is being used from the outside.
+     * Proxy around a service that is being used from the outside.
      * Its usually being used to provide some kind of push functionality of the management agent.
      *
-     * @return proxy for t. Will delegate to underlying osgi service registry upon each call.
+     * @return proxy for t. Will delegate to the service currently registered inside the vault upon each call.
      */
     @SuppressWarnings( "unchecked" )
     private T createProxyService()
     {
-        return (T) Proxy.newProxyInstance(
-            m_framework.getClass().getClassLoader(),
-            new Class<?>[]{ m_pushServiceType },
-            new InvocationHandler()
-            {
-                /**
-                 * {@inheritDoc} Delegates the call to remote bundle context.
-                 */
-                public Object invoke( final Object proxy,
-                                      final Method method,
-                                      final Object[] params )
-                    throws Throwable
-                {
-                    try
-                    {
-                        return dynamicService(
-                            method,
-                            params
-                        );
-                    } catch( Exception e )
-                    {
-                        throw new RuntimeException( "Invocation exception", e );
-                    }
-                }
-
-                private Object dynamicService( Method method, Object[] params )
-                    throws InvalidSyntaxException, IllegalArgumentException, IllegalAccessException, InvocationTargetException
-                {
-                    // find that service and invoke the method:
-                    ServiceReference ref = null;
-                    LOG.info( "Trying to locate service " + m_pushServiceType.getName() + " for method " + method.getName() );
-                    while( ref == null )
-                    {
-
-                        BundleContext ctx = m_framework.getBundleContext();
-                        ref = ctx.getServiceReference( m_pushServiceType.getName() );
-                        if( ref != null )
-                        {
-                            Object o = ctx.getService( ref );
-                            try
-                            {
-                                return method.invoke( o, params );
-                            } finally
-                            {
-                                ctx.ungetService( ref );
-                            }
-                        }
-                    }
-
-                    return null;
-                }
+        m_push = new PushInvocationHandler( m_pushServiceType, new PushOptions( m_config ) );
+        m_push.bind( newPushTarget() );
+        if( m_push.getMetrics() != null && KernelProperties.getBoolean( m_config, KernelProperties.PUSH_JMX, true ) )
+        {
+            m_push.getMetrics().register( ManagementFactory.getPlatformMBeanServer(), m_settings.getWorkingFolder().getAbsolutePath() );
+        }
+        return (T) m_push.newProxy( m_framework.getClass().getClassLoader() );
+    }
 
+    private PushTarget newPushTarget()
+    {
+        BundleContext ctx = m_framework.getBundleContext();
+        String mode = KernelProperties.get( m_config, KernelProperties.PUSH_MODE );
+        String policy = KernelProperties.get( m_config, KernelProperties.PUSH_POLICY );
+        if( KernelProperties.PUSH_MODE_LOOKUP.equals( mode ) )
+        {
+            if( policy != null && policy.length() > 0 && !KernelProperties.PUSH_POLICY_BEST.equals( policy ) )
+            {
+                LOG.warn( "Push policy " + policy + " is ignored in push mode " + mode + ". Calls go to the best ranked service." );
             }
+            return new LookupPushTarget( ctx, m_pushServiceType.getName(), m_push.changeListener() );
+        }
+        return new TrackedPushTarget(
+            ctx,
+            m_pushServiceType.getName(),
+            m_push.changeListener(),
+            DispatchPolicy.forName( policy, KernelProperties.getInt( m_config, KernelProperties.PUSH_SHARD_ARG, 0 ) )
         );
     }
 
-
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import com.okidokiteam.gouken.VaultLifecycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bridges {@link VaultLifecycle} to the CRaC API (org.crac) if it is on the classpath.
+ * Everything is done reflectively so the kernel does not depend on a CRaC capable JDK.
+ * <p/>
+ * The CRaC context only keeps weak references to its resources. The resource returned by {@link #register}
+ * must therefore be held by the caller for as long as the vault lives.
+ *
+ * @author Toni Menzel
+ */
+class CracSupport
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger( CracSupport.class );
+
+    private static final String CORE = "org.crac.Core";
+    private static final String RESOURCE = "org.crac.Resource";
+
+    private CracSupport()
+    {
+    }
+
+    static boolean isAvailable()
+    {
+        try
+        {
+            Class.forName( CORE );
+            return true;
+        } catch( ClassNotFoundException e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @return the registered resource or null if CRaC is not available.
+     */
+    static Object register( final VaultLifecycle lifecycle )
+    {
+        try
+        {
+            ClassLoader loader = CracSupport.class.getClassLoader();
+            Class<?> resourceType = Class.forName( RESOURCE, true, loader );
+            Object resource = Proxy.newProxyInstance( loader, new Class<?>[]{ resourceType }, new InvocationHandler()
+            {
+                public Object invoke( Object proxy, Method method, Object[] args )
+                    throws Throwable
+                {
+                    if( "beforeCheckpoint".equals( method.getName() ) )
+                    {
+                        lifecycle.beforeCheckpoint();
+                        return null;
+                    }
+                    if( "afterRestore".equals( method.getName() ) )
+                    {
+                        lifecycle.afterRestore();
+                        return null;
+                    }
+                    if( "equals".equals( method.getName() ) )
+                    {
+                        return proxy == args[ 0 ];
+                    }
+                    if( "hashCode".equals( method.getName() ) )
+                    {
+                        return System.identityHashCode( proxy );
+                    }
+                    return "CRaC resource of " + lifecycle;
+                }
+            }
+            );
+            Class<?> core = Class.forName( CORE, true, loader );
+            Object context = core.getMethod( "getGlobalContext" ).invoke( null );
+            context.getClass().getMethod( "register", resourceType ).invoke( context, resource );
+            return resource;
+        } catch( ClassNotFoundException e )
+        {
+            return null;
+        } catch( Exception e )
+        {
+            LOG.warn( "Cannot register vault as CRaC resource.", e );
+            return null;
+        }
+    }
+
+    /**
+     * Takes a checkpoint of the running JVM. Returns after restore (or right away if the JVM cannot checkpoint).
+     */
+    static void checkpointRestore()
+    {
+        try
+        {
+            Class.forName( CORE, true, CracSupport.class.getClassLoader() ).getMethod( "checkpointRestore" ).invoke( null );
+        } catch( InvocationTargetException e )
+        {
+            LOG.warn( "Checkpoint has not been taken.", e.getCause() );
+        } catch( Exception e )
+        {
+            LOG.warn( "Checkpoint has not been taken.", e );
+        }
+    }
+}
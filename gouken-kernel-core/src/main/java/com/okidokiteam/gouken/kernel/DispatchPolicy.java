@@ -0,0 +1,183 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses which of several registered push services a call goes to.
+ * Candidates are ordered best first (highest service.ranking, then lowest service.id).
+ *
+ * @author Toni Menzel
+ */
+abstract class DispatchPolicy
+{
+
+    /**
+     * A registered service as seen by a policy.
+     */
+    interface Candidate
+    {
+
+        long getServiceId();
+
+        int getOutstanding();
+    }
+
+    /**
+     * @param name     one of the KernelProperties.PUSH_POLICY_* values, null or empty for the default
+     * @param shardArg index of the key argument for the sharded policy
+     */
+    static DispatchPolicy forName( String name, int shardArg )
+    {
+        if( name == null || name.length() == 0 || KernelProperties.PUSH_POLICY_BEST.equals( name ) )
+        {
+            return new Best();
+        }
+        if( KernelProperties.PUSH_POLICY_ROUND_ROBIN.equals( name ) )
+        {
+            return new RoundRobin();
+        }
+        if( KernelProperties.PUSH_POLICY_LEAST_OUTSTANDING.equals( name ) )
+        {
+            return new LeastOutstanding();
+        }
+        if( KernelProperties.PUSH_POLICY_SHARDED.equals( name ) )
+        {
+            if( shardArg < 0 )
+            {
+                throw new IllegalArgumentException( "Shard argument index must not be negative but is: " + shardArg );
+            }
+            return new Sharded( shardArg );
+        }
+        throw new IllegalArgumentException( "Unknown push dispatch policy: " + name );
+    }
+
+    /**
+     * @param candidates registered services, best first. Never empty.
+     * @param args       arguments of the call, may be null
+     *
+     * @return index of the candidate the call goes to.
+     */
+    abstract int choose( Candidate[] candidates, Object[] args );
+
+    /**
+     * @return true if candidates need to keep track of calls in flight (costs two atomic updates per call).
+     */
+    boolean tracksOutstanding()
+    {
+        return false;
+    }
+
+    /**
+     * Always the best ranked service. What a plain service lookup would give you.
+     */
+    static class Best extends DispatchPolicy
+    {
+
+        int choose( Candidate[] candidates, Object[] args )
+        {
+            return 0;
+        }
+    }
+
+    static class RoundRobin extends DispatchPolicy
+    {
+
+        private final AtomicInteger m_next = new AtomicInteger();
+
+        int choose( Candidate[] candidates, Object[] args )
+        {
+            return ( m_next.getAndIncrement() & Integer.MAX_VALUE ) % candidates.length;
+        }
+    }
+
+    /**
+     * The service with the fewest calls in flight, the better ranked one on a tie.
+     */
+    static class LeastOutstanding extends DispatchPolicy
+    {
+
+        int choose( Candidate[] candidates, Object[] args )
+        {
+            int best = 0;
+            int min = candidates[ 0 ].getOutstanding();
+            for( int i = 1; i < candidates.length && min > 0; i++ )
+            {
+                int outstanding = candidates[ i ].getOutstanding();
+                if( outstanding < min )
+                {
+                    best = i;
+                    min = outstanding;
+                }
+            }
+            return best;
+        }
+
+        boolean tracksOutstanding()
+        {
+            return true;
+        }
+    }
+
+    /**
+     * Calls with equal keys (one of the arguments) go to the same service.
+     * Uses rendezvous hashing on the service id, so when a service comes or goes only the keys owned by it move.
+     */
+    static class Sharded extends DispatchPolicy
+    {
+
+        private final int m_arg;
+
+        Sharded( int arg )
+        {
+            m_arg = arg;
+        }
+
+        int choose( Candidate[] candidates, Object[] args )
+        {
+            Object key = args != null && args.length > m_arg ? args[ m_arg ] : null;
+            long hash = key == null ? 0 : key.hashCode();
+            int best = 0;
+            long max = Long.MIN_VALUE;
+            for( int i = 0; i < candidates.length; i++ )
+            {
+                long score = mix( hash * 0x9E3779B97F4A7C15L + candidates[ i ].getServiceId() );
+                if( score > max )
+                {
+                    best = i;
+                    max = score;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Finalizer of MurmurHash3 (fmix64).
+         */
+        private static long mix( long h )
+        {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * One JSON object per line and component, for monitoring that wants to read the report without parsing text:
+ * <pre>
+ * {"bundle":7,"bundleName":"org.example","name":"org.example.Foo","state":"unregistered","changed":12,
+ *  "dependencies":[{"name":"org.example.Bar","type":"service","state":"required unavailable"}]}
+ * </pre>
+ * Removed components have state "removed". Root causes are written as
+ * {"cause":"missing","type":"service","name":"org.example.Bar","blocks":3} followed by {"criticalPath":[...]}.
+ * A report read from a graph ends with {"version":12,"complete":true},
+ * the version to ask for a diff next time.
+ *
+ * @author Toni Menzel
+ */
+class JsonReportWriter implements ReportWriter
+{
+
+    private final PrintStream m_out;
+    private final boolean m_nodeps;
+    private final StringBuilder m_line = new StringBuilder();
+
+    JsonReportWriter( PrintStream out, boolean nodeps )
+    {
+        m_out = out;
+        m_nodeps = nodeps;
+    }
+
+    public void component( ComponentGraph.Node node )
+    {
+        start( node );
+        m_line.append( ",\"state\":" );
+        string( node.getStateName() );
+        m_line.append( ",\"changed\":" ).append( node.getChanged() );
+        if( !m_nodeps )
+        {
+            m_line.append( ",\"dependencies\":[" );
+            List<ComponentGraph.Edge> dependencies = node.getDependencies();
+            for( int i = 0; i < dependencies.size(); i++ )
+            {
+                ComponentGraph.Edge dep = dependencies.get( i );
+                if( i > 0 )
+                {
+                    m_line.append( ',' );
+                }
+                m_line.append( "{\"name\":" );
+                string( dep.getName() );
+                m_line.append( ",\"type\":" );
+                string( dep.getType() );
+                m_line.append( ",\"state\":" );
+                string( dep.getStateName() );
+                m_line.append( '}' );
+            }
+            m_line.append( ']' );
+        }
+        flush();
+    }
+
+    public void removed( ComponentGraph.Node node )
+    {
+        start( node );
+        m_line.append( ",\"state\":\"removed\"" );
+        flush();
+    }
+
+    public void cause( RootCauseAnalysis.Cause cause )
+    {
+        m_line.append( "{\"cause\":" );
+        string( cause.getKind() );
+        m_line.append( ",\"type\":" );
+        string( cause.getType() );
+        m_line.append( ",\"name\":" );
+        string( cause.getName() );
+        m_line.append( ",\"blocks\":" ).append( cause.getBlocked() );
+        flush();
+    }
+
+    public void criticalPath( List<String> path )
+    {
+        m_line.append( "{\"criticalPath\":[" );
+        for( int i = 0; i < path.size(); i++ )
+        {
+            if( i > 0 )
+            {
+                m_line.append( ',' );
+            }
+            string( path.get( i ) );
+        }
+        m_line.append( ']' );
+        flush();
+    }
+
+    public void end( long version, boolean complete )
+    {
+        if( version >= 0 )
+        {
+            m_line.append( "{\"version\":" ).append( version ).append( ",\"complete\":" ).append( complete );
+            flush();
+        }
+    }
+
+    private void start( ComponentGraph.Node node )
+    {
+        m_line.append( "{\"bundle\":" ).append( node.getBundleId() ).append( ",\"bundleName\":" );
+        string( node.getBundleName() );
+        m_line.append( ",\"name\":" );
+        string( node.getName() );
+    }
+
+    private void flush()
+    {
+        m_line.append( '}' );
+        m_out.println( m_line );
+        m_line.setLength( 0 );
+    }
+
+    private void string( String value )
+    {
+        if( value == null )
+        {
+            m_line.append( "null" );
+            return;
+        }
+        m_line.append( '"' );
+        for( int i = 0; i < value.length(); i++ )
+        {
+            char c = value.charAt( i );
+            switch( c )
+            {
+                case '"':
+                    m_line.append( "\\\"" );
+                    break;
+                case '\\':
+                    m_line.append( "\\\\" );
+                    break;
+                case '\n':
+                    m_line.append( "\\n" );
+                    break;
+                case '\r':
+                    m_line.append( "\\r" );
+                    break;
+                case '\t':
+                    m_line.append( "\\t" );
+                    break;
+                default:
+                    if( c < 0x20 )
+                    {
+                        m_line.append( String.format( "\\u%04x", (int) c ) );
+                    }
+                    else
+                    {
+                        m_line.append( c );
+                    }
+            }
+        }
+        m_line.append( '"' );
+    }
+}
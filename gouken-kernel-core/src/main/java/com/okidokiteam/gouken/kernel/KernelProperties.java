@@ -0,0 +1,258 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tuning knobs of the core vault.
+ * Keys can be set in /META-INF/gouken/kernel.properties (they end up in the framework config) or as system properties.
+ *
+ * @author Toni Menzel
+ */
+public final class KernelProperties
+{
+
+    /**
+     * Number of threads used to fetch management agent artifacts concurrently. Defaults to 4.
+     */
+    public static final String FETCH_THREADS = "gouken.kernel.fetch.threads";
+
+    /**
+     * Number of threads used to start independent management agent bundles in parallel. Defaults to 4, 1 starts them in list order.
+     */
+    public static final String START_THREADS = "gouken.kernel.start.threads";
+
+    /**
+     * If true, the framework storage of a previous run is reused and reconciled with the agent's artifacts by
+     * symbolic name, version and content digest: only the difference is installed, updated or uninstalled, followed
+     * by a single package refresh. Defaults to false.
+     */
+    public static final String WARM_START = "gouken.kernel.warmstart";
+
+    /**
+     * If true, artifacts that are files on local disk (FileArtifact) are installed by reference (reference:file:...)
+     * to a file in the working folder, so the framework does not copy them into its storage. Artifacts from the gouken
+     * artifact cache are hard linked there, so eviction from the cache does not affect installed bundles; other files
+     * are copied there once, so changes to the originals do not either. Defaults to true.
+     */
+    public static final String INSTALL_REFERENCE = "gouken.kernel.install.reference";
+
+    /**
+     * If true, the JVM is checkpointed (CRaC) right after the management agent has been started.
+     * The vault suspends itself before the checkpoint and resumes from its framework storage after restore.
+     * Needs org.crac on the classpath, the vault does not start without it. Defaults to false.
+     */
+    public static final String CHECKPOINT = "gouken.kernel.checkpoint";
+
+    /**
+     * How the push proxy finds the service it calls.
+     * {@value #PUSH_MODE_TRACKED} (default) keeps the best service in a field maintained by service events,
+     * {@value #PUSH_MODE_LOOKUP} looks it up in the registry on every call.
+     */
+    public static final String PUSH_MODE = "gouken.kernel.push.mode";
+    public static final String PUSH_MODE_TRACKED = "tracked";
+    public static final String PUSH_MODE_LOOKUP = "lookup";
+
+    /**
+     * Which service a push call goes to when several services of the push type are registered.
+     * {@value #PUSH_POLICY_BEST} (default) uses the best ranked one,
+     * {@value #PUSH_POLICY_ROUND_ROBIN} rotates over all of them,
+     * {@value #PUSH_POLICY_LEAST_OUTSTANDING} picks the one with the fewest calls in flight,
+     * {@value #PUSH_POLICY_SHARDED} sends calls with the same key argument (see {@link #PUSH_SHARD_ARG}) to the same service.
+     * Only applies to the {@value #PUSH_MODE_TRACKED} push mode.
+     */
+    public static final String PUSH_POLICY = "gouken.kernel.push.policy";
+    public static final String PUSH_POLICY_BEST = "best";
+    public static final String PUSH_POLICY_ROUND_ROBIN = "round-robin";
+    public static final String PUSH_POLICY_LEAST_OUTSTANDING = "least-outstanding";
+    public static final String PUSH_POLICY_SHARDED = "sharded";
+
+    /**
+     * Index of the argument whose value is the shard key of the {@value #PUSH_POLICY_SHARDED} policy. Defaults to 0.
+     */
+    public static final String PUSH_SHARD_ARG = "gouken.kernel.push.shard.arg";
+
+    /**
+     * Push service methods to treat as idempotent in addition to those annotated with
+     * {@link com.okidokiteam.gouken.Idempotent}. Comma separated method names, each optionally followed by
+     * =ttlMillis, e.g. listDeploymentPackages=500,getDeploymentPackage.
+     * Concurrent equal calls of these methods share one invocation, with a TTL results are reused for that long.
+     */
+    public static final String PUSH_IDEMPOTENT = "gouken.kernel.push.idempotent";
+
+    /**
+     * Maximum number of results of idempotent methods kept at a time. Defaults to 1024.
+     */
+    public static final String PUSH_IDEMPOTENT_CACHE = "gouken.kernel.push.idempotent.cache";
+
+    /**
+     * Maximum number of concurrent calls per push service method. Comma separated name=limit entries,
+     * the name {@value #ALL_METHODS} sets the limit of all methods not listed, e.g. *=16,listDeploymentPackages=2.
+     * Calls beyond the limit fail right away with {@link com.okidokiteam.gouken.PushRejectedException}. No limit by default.
+     */
+    public static final String PUSH_LIMITS = "gouken.kernel.push.limits";
+
+    /**
+     * Deadline in milliseconds per push service method. Comma separated name=millis entries, {@value #ALL_METHODS} for all methods not listed.
+     * The deadline starts when the proxy is called, so it also bounds the wait for the service ({@link #PUSH_TIMEOUT}).
+     * Calls of methods with a deadline run on a separate thread, the caller gets a
+     * {@link com.okidokiteam.gouken.PushTimeoutException} once the deadline passed. Methods with a deadline but
+     * no {@link #PUSH_LIMITS} entry are limited to 16 concurrent calls. No deadline by default.
+     */
+    public static final String PUSH_DEADLINES = "gouken.kernel.push.deadlines";
+
+    /**
+     * Entry of {@link #PUSH_LIMITS} and {@link #PUSH_DEADLINES} that applies to all methods not listed by name.
+     */
+    public static final String ALL_METHODS = "*";
+
+    /**
+     * How the push proxy calls the service method.
+     * {@value #PUSH_INVOKER_GENERATED} (default) generates a class calling the methods directly,
+     * {@value #PUSH_INVOKER_REFLECTIVE} uses java.lang.reflect.Method.invoke.
+     */
+    public static final String PUSH_INVOKER = "gouken.kernel.push.invoker";
+    public static final String PUSH_INVOKER_GENERATED = "generated";
+    public static final String PUSH_INVOKER_REFLECTIVE = "reflective";
+
+    /**
+     * Milliseconds a push call waits for the service to show up inside the vault before it fails with
+     * {@link com.okidokiteam.gouken.PushUnavailableException}. Defaults to 0 which waits until the vault is stopped.
+     */
+    public static final String PUSH_TIMEOUT = "gouken.kernel.push.timeout";
+
+    /**
+     * Number of asynchronous push calls that may be pending (waiting for the service or for their turn). Defaults to 1024.
+     */
+    public static final String PUSH_QUEUE = "gouken.kernel.push.queue";
+
+    /**
+     * What happens to an asynchronous push call that does not fit into the queue.
+     * {@value #PUSH_OVERFLOW_REJECT} (default) refuses it with a RejectedExecutionException,
+     * {@value #PUSH_OVERFLOW_BLOCK} blocks the caller until there is room,
+     * {@value #PUSH_OVERFLOW_DISCARD_OLDEST} cancels the oldest pending call to make room.
+     */
+    public static final String PUSH_OVERFLOW = "gouken.kernel.push.overflow";
+    public static final String PUSH_OVERFLOW_REJECT = "reject";
+    public static final String PUSH_OVERFLOW_BLOCK = "block";
+    public static final String PUSH_OVERFLOW_DISCARD_OLDEST = "discard-oldest";
+
+    /**
+     * If true (default), calls through the push proxy are counted and timed per method (see {@link PushMetrics}).
+     */
+    public static final String PUSH_METRICS = "gouken.kernel.push.metrics";
+
+    /**
+     * Every how many calls of a method the latency is measured. All calls are counted, only the sampled ones are timed
+     * (reading the clock is the dominant cost of metrics). Defaults to 16, 1 times every call.
+     */
+    public static final String PUSH_METRICS_SAMPLE = "gouken.kernel.push.metrics.sample";
+
+    /**
+     * If true (default), push metrics are registered as MBeans with the platform MBean server.
+     */
+    public static final String PUSH_JMX = "gouken.kernel.push.jmx";
+
+    static final int DEFAULT_FETCH_THREADS = 4;
+    static final int DEFAULT_START_THREADS = 4;
+    static final int DEFAULT_PUSH_QUEUE = 1024;
+    static final int DEFAULT_PUSH_METRICS_SAMPLE = 16;
+    static final int DEFAULT_PUSH_IDEMPOTENT_CACHE = 1024;
+    static final int DEFAULT_PUSH_DEADLINE_LIMIT = 16;
+
+    private KernelProperties()
+    {
+    }
+
+    static String get( Map<String, Object> config, String key )
+    {
+        Object value = config.get( key );
+        if( value != null )
+        {
+            return value.toString().trim();
+        }
+        return System.getProperty( key );
+    }
+
+    static boolean getBoolean( Map<String, Object> config, String key, boolean defaultValue )
+    {
+        String value = get( config, key );
+        if( value == null || value.length() == 0 )
+        {
+            return defaultValue;
+        }
+        return Boolean.valueOf( value );
+    }
+
+    /**
+     * Reads a list of per method values: comma (or whitespace) separated method names, each optionally followed by
+     * =value.
+     *
+     * @param bareValue value of names without =value
+     *
+     * @return values by method name. Empty if key is not set.
+     */
+    static Map<String, Long> getMethodValues( Map<String, Object> config, String key, long bareValue )
+    {
+        Map<String, Long> methods = new HashMap<String, Long>();
+        String value = get( config, key );
+        if( value == null )
+        {
+            return methods;
+        }
+        for( String entry : value.split( "[,\\s]+" ) )
+        {
+            if( entry.length() == 0 )
+            {
+                continue;
+            }
+            int eq = entry.indexOf( '=' );
+            if( eq < 0 )
+            {
+                methods.put( entry, bareValue );
+                continue;
+            }
+            try
+            {
+                methods.put( entry.substring( 0, eq ).trim(), Long.parseLong( entry.substring( eq + 1 ).trim() ) );
+            } catch( NumberFormatException e )
+            {
+                throw new IllegalArgumentException( "Property " + key + " has an invalid number in entry: " + entry );
+            }
+        }
+        return methods;
+    }
+
+    static int getInt( Map<String, Object> config, String key, int defaultValue )
+    {
+        String value = get( config, key );
+        if( value == null || value.length() == 0 )
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Integer.parseInt( value );
+        } catch( NumberFormatException e )
+        {
+            throw new IllegalArgumentException( "Property " + key + " must be a number but is: " + value );
+        }
+    }
+}
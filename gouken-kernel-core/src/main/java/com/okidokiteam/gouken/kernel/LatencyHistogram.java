@@ -0,0 +1,137 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram with log-linear buckets (in the spirit of HdrHistogram).
+ * Every power of two range is split into 32 buckets, so recorded values keep about two significant digits (3% error)
+ * over the whole range of a long. Recording is one array increment plus a few atomic updates, no allocation.
+ *
+ * @author Toni Menzel
+ */
+final class LatencyHistogram
+{
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = ( 64 - SUB_BITS ) * SUB;
+
+    private final AtomicLongArray m_counts = new AtomicLongArray( BUCKETS );
+    private final AtomicLong m_count = new AtomicLong();
+    private final AtomicLong m_total = new AtomicLong();
+    private final AtomicLong m_max = new AtomicLong();
+
+    void record( long value )
+    {
+        if( value < 0 )
+        {
+            value = 0;
+        }
+        m_counts.incrementAndGet( index( value ) );
+        m_count.incrementAndGet();
+        m_total.addAndGet( value );
+        long max = m_max.get();
+        while( value > max && !m_max.compareAndSet( max, value ) )
+        {
+            max = m_max.get();
+        }
+    }
+
+    long getCount()
+    {
+        return m_count.get();
+    }
+
+    long getMax()
+    {
+        return m_max.get();
+    }
+
+    double getMean()
+    {
+        long count = m_count.get();
+        return count == 0 ? 0 : (double) m_total.get() / count;
+    }
+
+    /**
+     * @param percentile 0..100
+     *
+     * @return highest value (within bucket precision) below which percentile of the recorded values fall.
+     *         0 if nothing has been recorded.
+     */
+    long getValueAtPercentile( double percentile )
+    {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for( int i = 0; i < BUCKETS; i++ )
+        {
+            counts[ i ] = m_counts.get( i );
+            total += counts[ i ];
+        }
+        if( total == 0 )
+        {
+            return 0;
+        }
+        long rank = Math.max( 1, (long) Math.ceil( Math.min( percentile, 100.0 ) / 100.0 * total ) );
+        long seen = 0;
+        for( int i = 0; i < BUCKETS; i++ )
+        {
+            seen += counts[ i ];
+            if( seen >= rank )
+            {
+                return Math.min( highestEquivalentValue( i ), m_max.get() );
+            }
+        }
+        return m_max.get();
+    }
+
+    void reset()
+    {
+        for( int i = 0; i < BUCKETS; i++ )
+        {
+            m_counts.set( i, 0 );
+        }
+        m_count.set( 0 );
+        m_total.set( 0 );
+        m_max.set( 0 );
+    }
+
+    static int index( long value )
+    {
+        if( value < 2 * SUB )
+        {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros( value ) - SUB_BITS;
+        return ( shift + 1 ) * SUB + (int) ( ( value >>> shift ) - SUB );
+    }
+
+    static long highestEquivalentValue( int index )
+    {
+        if( index < 2 * SUB )
+        {
+            return index;
+        }
+        int shift = index / SUB - 1;
+        long sub = index % SUB + SUB;
+        return ( ( sub + 1 ) << shift ) - 1;
+    }
+}
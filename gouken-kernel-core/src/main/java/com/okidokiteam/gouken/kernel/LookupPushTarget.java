@@ -0,0 +1,107 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Looks the service up in the registry on every call and ungets it afterwards.
+ * Always sees the current registry state, but pays a lookup plus a use count change per call.
+ * Service events are only listened to in order to tell the push handler about changes (e.g. to wake up waiting callers).
+ *
+ * @author Toni Menzel
+ */
+class LookupPushTarget implements PushTarget, ServiceListener
+{
+
+    private final BundleContext m_context;
+    private final String m_type;
+    private final Runnable m_changeListener;
+
+    /**
+     * @param context              context to look services up in
+     * @param type                 service type (objectClass)
+     * @param changeListener run whenever a service of type is registered, modified or unregistered. May be null.
+     */
+    LookupPushTarget( BundleContext context, String type, Runnable changeListener )
+    {
+        m_context = context;
+        m_type = type;
+        m_changeListener = changeListener;
+        if( changeListener != null )
+        {
+            try
+            {
+                m_context.addServiceListener( this, "(" + Constants.OBJECTCLASS + "=" + type + ")" );
+            } catch( InvalidSyntaxException e )
+            {
+                throw new IllegalArgumentException( "Cannot listen to services of type " + type, e );
+            }
+        }
+    }
+
+    public Lease acquire( Object[] args )
+    {
+        final ServiceReference ref = m_context.getServiceReference( m_type );
+        if( ref == null )
+        {
+            return null;
+        }
+        final Object service = m_context.getService( ref );
+        if( service == null )
+        {
+            return null;
+        }
+        return new Lease()
+        {
+            public Object getService()
+            {
+                return service;
+            }
+
+            public void release()
+            {
+                m_context.ungetService( ref );
+            }
+        };
+    }
+
+    public void serviceChanged( ServiceEvent event )
+    {
+        m_changeListener.run();
+    }
+
+    public void close()
+    {
+        if( m_changeListener != null )
+        {
+            try
+            {
+                m_context.removeServiceListener( this );
+            } catch( IllegalStateException e )
+            {
+                // context is not valid anymore.
+            }
+        }
+    }
+}
@@ -18,168 +18,137 @@
 package com.okidokiteam.gouken.kernel;
 
 import java.io.PrintStream;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.StringTokenizer;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.felix.dm.ComponentDeclaration;
-import org.apache.felix.dm.ComponentDependencyDeclaration;
-import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.InvalidSyntaxException;
-import org.osgi.framework.ServiceReference;
 
+/**
+ * Dependency manager component diagnostics, the way the dm shell command shows them.
+ * Arguments as in {@link #getUsage()}:
+ * <ul>
+ * <li>nodeps: leave out dependencies</li>
+ * <li>notavail: only components that are not registered</li>
+ * <li>compact: shortened names and states</li>
+ * <li>json: one JSON object per line (see {@link JsonReportWriter}) instead of text</li>
+ * <li>since=&lt;version&gt;: only components that changed since that version of a {@link ComponentGraph}</li>
+ * <li>causes: instead of the components, a summary of why they are not registered (see {@link RootCauseAnalysis})</li>
+ * <li>&lt;bundleid&gt;: only components of these bundles</li>
+ * </ul>
+ * The report is written while components are read.
+ */
 public class MAReport
 {
-    private static final BundleIdSorter SORTER = new BundleIdSorter();
-
 
+    /**
+     * Reports the components of a framework by reading all of them once. Use {@link #collect(ComponentGraph, PrintStream, PrintStream)}
+     * when reporting repeatedly.
+     */
     public void collect( BundleContext m_context, PrintStream out, PrintStream err )
     {
-        boolean nodeps = false;
-        boolean notavail = false;
-        boolean compact = false;
+        collect( m_context, new String[0], out, err );
+    }
 
-        ServiceReference[] references = null;
-        try
+    /**
+     * Reports the components held by graph. Nothing is read from the service registry if the graph did not change.
+     */
+    public void collect( ComponentGraph graph, PrintStream out, PrintStream err )
+    {
+        collect( graph, new String[0], out, err );
+    }
+
+    /**
+     * Reports the components of a framework by reading them once. With bundle ids, only the services of those bundles
+     * are read.
+     */
+    public void collect( BundleContext m_context, String[] args, PrintStream out, PrintStream err )
+    {
+        Options options = Options.parse( args, err );
+        if (options == null)
         {
-            references = m_context.getServiceReferences( ComponentDeclaration.class.getName(), null );
-        } catch (InvalidSyntaxException e)
+            err.println( getUsage() );
+            return;
+        }
+        if (options.since >= 0)
         {
-            e.printStackTrace();
+            err.println( "since needs a component graph, reporting all components." );
         }
-        // show their state
-        if (references != null)
+        ReportWriter writer = options.writer( out );
+        try
         {
-            Arrays.sort( references, SORTER );
-            long lastBundleId = -1;
-            for (int i = 0; i < references.length; i++)
+            if (options.causes)
+            {
+                // causes may sit in any bundle, so all components are read.
+                causes( RootCauseAnalysis.analyze( ComponentGraph.scan( m_context ) ), writer );
+            } else if (options.bundles.isEmpty())
+            {
+                write( ComponentGraph.scan( m_context ), options, writer );
+            } else
             {
-                ServiceReference ref = references[i];
-                ComponentDeclaration sc = (ComponentDeclaration) m_context.getService( ref );
-                if (sc != null)
+                for (Long bundleId : options.bundles)
                 {
-                    String name = sc.getName();
-                    int state = sc.getState();
-                    Bundle bundle = ref.getBundle();
-                    long bundleId = bundle.getBundleId();
-
-                    if (!notavail || ( notavail && sc.getState() == ComponentDeclaration.STATE_UNREGISTERED ))
-                    {
-                        if (lastBundleId != bundleId)
-                        {
-                            lastBundleId = bundleId;
-                            if (compact)
-                            {
-                                out.println( "[" + bundleId + "] " + compactName( bundle.getSymbolicName() ) );
-                            } else
-                            {
-                                out.println( "[" + bundleId + "] " + bundle.getSymbolicName() );
-                            }
-                        }
-                        if (compact)
-                        {
-                            out.print( " " + compactName( name ) + " " + compactState( ComponentDeclaration.STATE_NAMES[state] ) );
-                        } else
-                        {
-                            out.println( "  " + name + " " + ComponentDeclaration.STATE_NAMES[state] );
-                        }
-                        if (!nodeps)
-                        {
-                            ComponentDependencyDeclaration[] dependencies = sc.getComponentDependencies();
-                            if (dependencies != null && dependencies.length > 0)
-                            {
-                                if (compact)
-                                {
-                                    out.print( '(' );
-                                }
-                                for (int j = 0; j < dependencies.length; j++)
-                                {
-                                    ComponentDependencyDeclaration dep = dependencies[j];
-                                    String depName = dep.getName();
-                                    String depType = dep.getType();
-                                    int depState = dep.getState();
-                                    if (compact)
-                                    {
-                                        if (j > 0)
-                                        {
-                                            out.print( ' ' );
-                                        }
-                                        out.print( compactName( depName ) + " " + compactState( depType ) + " " + compactState( ComponentDependencyDeclaration.STATE_NAMES[depState] ) );
-                                    } else
-                                    {
-                                        out.println( "    " + depName + " " + depType + " " + ComponentDependencyDeclaration.STATE_NAMES[depState] );
-                                    }
-                                }
-                                if (compact)
-                                {
-                                    out.print( ')' );
-                                }
-                            }
-                        }
-                        if (compact)
-                        {
-                            out.println();
-                        }
-
-                    }
-                    m_context.ungetService( ref );
+                    write( ComponentGraph.scan( m_context, bundleId ), options, writer );
                 }
             }
+        } catch (IllegalStateException e)
+        {
+            e.printStackTrace( err );
         }
-
+        writer.end( -1, true );
     }
 
     /**
-     * Compact names that look like state strings. State strings consist of
-     * one or more words. Each word will be shortened to the first letter,
-     * all letters concatenated and uppercased.
+     * Reports the components held by graph, or with since=&lt;version&gt; only those that changed since.
      */
-    private String compactState( String input )
+    public void collect( ComponentGraph graph, String[] args, PrintStream out, PrintStream err )
+    {
+        Options options = Options.parse( args, err );
+        if (options == null)
+        {
+            err.println( getUsage() );
+            return;
+        }
+        ReportWriter writer = options.writer( out );
+        if (options.causes)
+        {
+            causes( graph.getRootCauses(), writer );
+            writer.end( -1, true );
+            return;
+        }
+        ComponentGraph.Changes changes = graph.getChanges( options.since );
+        write( changes.getChanged(), options, writer );
+        for (ComponentGraph.Node sc : changes.getRemoved())
+        {
+            if (options.accepts( sc.getBundleId() ))
+            {
+                writer.removed( sc );
+            }
+        }
+        writer.end( changes.getVersion(), changes.isComplete() );
+    }
+
+    private void causes( RootCauseAnalysis analysis, ReportWriter writer )
     {
-        StringBuffer output = new StringBuffer();
-        StringTokenizer st = new StringTokenizer( input );
-        while (st.hasMoreTokens())
+        for (RootCauseAnalysis.Cause cause : analysis.getCauses())
         {
-            output.append( st.nextToken().toUpperCase().charAt( 0 ) );
+            writer.cause( cause );
         }
-        return output.toString();
+        writer.criticalPath( analysis.getCriticalPath() );
     }
 
-    /**
-     * Compacts names that look like fully qualified class names. All packages
-     * will be shortened to the first letter, except for the last one. So
-     * something like "org.apache.felix.MyClass" will become "o.a.f.MyClass".
-     */
-    private String compactName( String input )
+    private void write( List<ComponentGraph.Node> nodes, Options options, ReportWriter writer )
     {
-        StringBuffer output = new StringBuffer();
-        int lastIndex = 0;
-        for (int i = 0; i < input.length(); i++)
+        for (ComponentGraph.Node sc : nodes)
         {
-            char c = input.charAt( i );
-            switch (c) {
-            case '.':
-                output.append( input.charAt( lastIndex ) );
-                output.append( '.' );
-                lastIndex = i + 1;
-                break;
-            case ' ':
-            case ',':
-                if (lastIndex < i)
+            if (!options.notavail || sc.getState() == ComponentDeclaration.STATE_UNREGISTERED)
+            {
+                if (options.accepts( sc.getBundleId() ))
                 {
-                    output.append( input.substring( lastIndex, i ) );
+                    writer.component( sc );
                 }
-                output.append( c );
-                lastIndex = i + 1;
-                break;
             }
         }
-        if (lastIndex < input.length())
-        {
-            output.append( input.substring( lastIndex ) );
-        }
-        return output.toString();
     }
 
     public String getName()
@@ -194,18 +163,76 @@ public class MAReport
 
     public String getUsage()
     {
-        return "dm [nodeps] [notavail] [compact] [<bundleid> ...]";
+        return "dm [nodeps] [notavail] [compact] [json] [causes] [since=<version>] [<bundleid> ...]";
     }
-}
 
-final class BundleIdSorter implements Comparator
-{
-    public int compare( Object o1, Object o2 )
+    private static class Options
     {
-        ServiceReference r1 = (ServiceReference) o1;
-        ServiceReference r2 = (ServiceReference) o2;
-        long id1 = r1.getBundle().getBundleId();
-        long id2 = r2.getBundle().getBundleId();
-        return id1 > id2 ? 1 : -1;
+
+        private boolean nodeps;
+        private boolean notavail;
+        private boolean compact;
+        private boolean json;
+        private boolean causes;
+        private long since = -1;
+        private final List<Long> bundles = new ArrayList<Long>();
+
+        /**
+         * @return null if args are invalid (reported to err)
+         */
+        static Options parse( String[] args, PrintStream err )
+        {
+            Options options = new Options();
+            for (String arg : args)
+            {
+                if ("nodeps".equals( arg ))
+                {
+                    options.nodeps = true;
+                } else if ("notavail".equals( arg ))
+                {
+                    options.notavail = true;
+                } else if ("compact".equals( arg ))
+                {
+                    options.compact = true;
+                } else if ("json".equals( arg ))
+                {
+                    options.json = true;
+                } else if ("causes".equals( arg ))
+                {
+                    options.causes = true;
+                } else
+                {
+                    try
+                    {
+                        if (arg.startsWith( "since=" ))
+                        {
+                            options.since = Long.parseLong( arg.substring( "since=".length() ) );
+                        } else
+                        {
+                            options.bundles.add( Long.parseLong( arg ) );
+                        }
+                    } catch (NumberFormatException e)
+                    {
+                        err.println( "Invalid argument: " + arg );
+                        return null;
+                    }
+                }
+            }
+            return options;
+        }
+
+        boolean accepts( long bundleId )
+        {
+            return bundles.isEmpty() || bundles.contains( bundleId );
+        }
+
+        ReportWriter writer( PrintStream out )
+        {
+            if (json)
+            {
+                return new JsonReportWriter( out, nodeps );
+            }
+            return new TextReportWriter( out, nodeps, compact );
+        }
     }
 }
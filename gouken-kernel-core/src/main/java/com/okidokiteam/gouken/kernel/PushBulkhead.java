@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrency limit and deadline of one push service method (see {@link KernelProperties#PUSH_LIMITS} and
+ * {@link KernelProperties#PUSH_DEADLINES}). A permit is held for as long as the call really runs,
+ * also when its caller already gave up because the deadline passed.
+ *
+ * @author Toni Menzel
+ */
+class PushBulkhead
+{
+
+    private final int m_limit;
+    private final Semaphore m_permits;
+    private final long m_deadlineNanos;
+
+    PushBulkhead( int limit, long deadlineMillis )
+    {
+        m_limit = limit;
+        m_permits = limit > 0 ? new Semaphore( limit ) : null;
+        m_deadlineNanos = deadlineMillis > 0 ? TimeUnit.MILLISECONDS.toNanos( deadlineMillis ) : 0;
+    }
+
+    /**
+     * @param methods   method table of the push handler
+     * @param limits    concurrency limits by method name, {@link KernelProperties#ALL_METHODS} for the rest
+     * @param deadlines deadlines in milliseconds by method name, {@link KernelProperties#ALL_METHODS} for the rest
+     *
+     * @return bulkheads indexed like methods (null entries for methods without limit and deadline),
+     *         null if no method has any.
+     */
+    static PushBulkhead[] create( Method[] methods, Map<String, Long> limits, Map<String, Long> deadlines )
+    {
+        PushBulkhead[] bulkheads = new PushBulkhead[methods.length];
+        boolean any = false;
+        for( int i = 0; i < methods.length; i++ )
+        {
+            if( methods[ i ].getDeclaringClass() == Object.class )
+            {
+                continue;
+            }
+            long limit = lookup( limits, methods[ i ].getName() );
+            long deadline = lookup( deadlines, methods[ i ].getName() );
+            if( deadline > 0 && limit <= 0 )
+            {
+                // calls past their deadline keep a thread, so they must not pile up without bound.
+                limit = KernelProperties.DEFAULT_PUSH_DEADLINE_LIMIT;
+            }
+            if( limit > 0 || deadline > 0 )
+            {
+                bulkheads[ i ] = new PushBulkhead( (int) Math.min( limit, Integer.MAX_VALUE ), deadline );
+                any = true;
+            }
+        }
+        return any ? bulkheads : null;
+    }
+
+    /**
+     * @param bulkheads as created by {@link #create}, may be null
+     *
+     * @return number of calls of methods with a deadline that may run at the same time.
+     */
+    static int deadlineThreads( PushBulkhead[] bulkheads )
+    {
+        long threads = 0;
+        if( bulkheads != null )
+        {
+            for( PushBulkhead bulkhead : bulkheads )
+            {
+                if( bulkhead != null && bulkhead.m_deadlineNanos > 0 )
+                {
+                    threads += bulkhead.m_limit;
+                }
+            }
+        }
+        return (int) Math.max( 1, Math.min( threads, Integer.MAX_VALUE ) );
+    }
+
+    private static long lookup( Map<String, Long> values, String method )
+    {
+        Long value = values.get( method );
+        if( value == null )
+        {
+            value = values.get( KernelProperties.ALL_METHODS );
+        }
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * @return true if the call may go ahead. It must {@link #exit()} once it is done.
+     */
+    boolean tryEnter()
+    {
+        return m_permits == null || m_permits.tryAcquire();
+    }
+
+    void exit()
+    {
+        if( m_permits != null )
+        {
+            m_permits.release();
+        }
+    }
+
+    int getLimit()
+    {
+        return m_limit;
+    }
+
+    /**
+     * @return deadline of calls in nanoseconds, 0 if calls have none.
+     */
+    long getDeadlineNanos()
+    {
+        return m_deadlineNanos;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+/**
+ * Receives the calls made on a generated push proxy (see {@link PushInvokers#proxy}).
+ * Methods are addressed by their index in the method table of the push service type.
+ * <p/>
+ * Public only because generated proxies are defined in a class loader of their own and must be able to call it.
+ *
+ * @author Toni Menzel
+ */
+public interface PushDispatcher
+{
+
+    /**
+     * @param index index of the called method
+     * @param args  call arguments, null for methods without parameters
+     *
+     * @return result of the call, boxed. Ignored for void methods.
+     *
+     * @throws Throwable whatever the call throws, unwrapped.
+     */
+    Object dispatch( int index, Object[] args )
+        throws Throwable;
+}
@@ -0,0 +1,757 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.okidokiteam.gouken.PushCall;
+import com.okidokiteam.gouken.PushRejectedException;
+import com.okidokiteam.gouken.PushResult;
+import com.okidokiteam.gouken.PushTimeoutException;
+import com.okidokiteam.gouken.PushUnavailableException;
+
+/**
+ * Backs the push proxy handed out by {@link CoreVault#start}.
+ * Dispatches each call to the service currently supplied by the bound {@link PushTarget}.
+ * <p/>
+ * The target is swapped when the framework underneath changes (e.g. restore after a checkpoint),
+ * so the proxy handle stays valid for the whole life of the vault.
+ * <p/>
+ * The proxy itself is generated for the push service type when possible (see {@link #newProxy}) and calls
+ * {@link #dispatch(int, Object[])}, otherwise it is a {@link Proxy} calling {@link #invoke}.
+ * Calls are made through a {@link PushInvoker} created once for the push service type.
+ * Exceptions thrown by the service reach the caller unchanged.
+ * <p/>
+ * While no service is available, callers wait on a condition that is signalled by the target (see
+ * {@link #changeListener()}) or by binding a new target. Synchronous calls give up after the configured timeout,
+ * asynchronous calls ({@link #submit(PushCall)}) sit in a bounded queue and are run one after another by a single
+ * thread once the service is there.
+ * <p/>
+ * Idempotent methods go through a {@link PushMemo} which shares concurrent equal calls and may reuse results.
+ * Methods with a {@link PushBulkhead} are limited in concurrency and/or run against a deadline on a push call thread.
+ *
+ * @author Toni Menzel
+ */
+class PushInvocationHandler implements InvocationHandler, PushDispatcher
+{
+
+    private final Class<?> m_type;
+    private final Method[] m_methods;
+    private final Map<Method, Integer> m_index;
+    private final boolean m_generate;
+    private final PushInvoker m_invoker;
+    private final PushMetrics m_metrics;
+    private final PushMemo m_memo;
+    private final PushBulkhead[] m_bulkheads;
+    private final int m_deadlineThreads;
+    private final long m_timeoutNanos;
+    private final int m_queueCapacity;
+    private final String m_overflow;
+
+    private final ReentrantLock m_lock = new ReentrantLock();
+    private final Condition m_available = m_lock.newCondition();
+    private final Runnable m_changeListener = new Runnable()
+    {
+        public void run()
+        {
+            changed();
+        }
+    };
+
+    private volatile PushTarget m_target;
+    private volatile boolean m_closed;
+    private ThreadPoolExecutor m_async;
+    private ThreadPoolExecutor m_calls;
+
+    /**
+     * @param type    push service type
+     * @param options invoker, waiting, queueing and metrics settings
+     */
+    PushInvocationHandler( Class<?> type, PushOptions options )
+    {
+        m_type = type;
+        m_timeoutNanos = options.m_timeoutNanos;
+        m_queueCapacity = options.m_queueCapacity;
+        m_overflow = options.m_overflow;
+        m_generate = options.m_generate;
+        Method[] methods = PushInvokers.methods( type );
+        m_methods = methods;
+        m_index = new HashMap<Method, Integer>();
+        for( int i = 0; i < methods.length; i++ )
+        {
+            m_index.put( methods[ i ], i );
+        }
+        m_invoker = PushInvokers.create( type, methods, options.m_generate );
+        m_metrics = options.m_metrics ? new PushMetrics( methods, options.m_metricsSample ) : null;
+        m_memo = PushMemo.create( methods, options.m_idempotent, options.m_idempotentCache );
+        m_bulkheads = PushBulkhead.create( methods, options.m_limits, options.m_deadlines );
+        m_deadlineThreads = PushBulkhead.deadlineThreads( m_bulkheads );
+    }
+
+    /**
+     * @param loader class loader of the {@link Proxy} used if no proxy class can be generated
+     *
+     * @return new push proxy implementing the push service type, backed by this handler.
+     */
+    Object newProxy( ClassLoader loader )
+    {
+        if( m_generate )
+        {
+            Object proxy = PushInvokers.proxy( m_type, m_methods, this );
+            if( proxy != null )
+            {
+                return proxy;
+            }
+        }
+        return Proxy.newProxyInstance( loader, new Class<?>[]{ m_type }, this );
+    }
+
+    /**
+     * @return metrics of calls through the proxy, null if metrics are disabled.
+     */
+    PushMetrics getMetrics()
+    {
+        return m_metrics;
+    }
+
+    /**
+     * Targets run this whenever the services behind them changed (a service may have become available or gone).
+     */
+    Runnable changeListener()
+    {
+        return m_changeListener;
+    }
+
+    /**
+     * Dispatches future calls to target. A previously bound target is closed.
+     *
+     * @param target new target. Null suspends dispatching until another target is bound.
+     */
+    synchronized void bind( PushTarget target )
+    {
+        PushTarget old = m_target;
+        m_target = target;
+        if( old != null )
+        {
+            old.close();
+        }
+        changed();
+    }
+
+    /**
+     * Calls made after close fail. Pending asynchronous calls are cancelled.
+     */
+    synchronized void close()
+    {
+        // drain the queue first so waking up the push thread cannot start another pending call.
+        if( m_async != null )
+        {
+            List<Runnable> pending = m_async.shutdownNow();
+            for( Runnable r : pending )
+            {
+                cancel( r );
+            }
+            m_async = null;
+        }
+        if( m_calls != null )
+        {
+            // interrupts calls that are past their deadline but still running.
+            m_calls.shutdownNow();
+            m_calls = null;
+        }
+        m_closed = true;
+        bind( null );
+    }
+
+    /**
+     * {@inheritDoc} Delegates the call to the service inside the vault.
+     */
+    public Object invoke( final Object proxy,
+                          final Method method,
+                          final Object[] params )
+        throws Throwable
+    {
+        Integer index = m_index.get( method );
+        if( index == null )
+        {
+            // not part of the type's method table, should not happen with proxies created for m_type
+            return dispatch( null, null, method, params );
+        }
+        return dispatch( index, params );
+    }
+
+    /**
+     * {@inheritDoc} Entry point of the generated proxy, index is the position in the method table of the push
+     * service type.
+     */
+    public Object dispatch( final int index, final Object[] params )
+        throws Throwable
+    {
+        final Method method = m_methods[ index ];
+        final PushMethodMetrics metrics = m_metrics == null ? null : m_metrics.get( index );
+        if( m_memo != null && m_memo.isIdempotent( index ) )
+        {
+            return m_memo.call( index, params, new Callable<Object>()
+            {
+                public Object call()
+                    throws Exception
+                {
+                    try
+                    {
+                        return dispatch( index, metrics, method, params );
+                    } catch( Exception e )
+                    {
+                        throw e;
+                    } catch( Error e )
+                    {
+                        throw e;
+                    } catch( Throwable t )
+                    {
+                        throw new UndeclaredThrowableException( t );
+                    }
+                }
+            }, metrics
+            );
+        }
+        return dispatch( index, metrics, method, params );
+    }
+
+    private Object dispatch( Integer index, PushMethodMetrics metrics, Method method, Object[] params )
+        throws Throwable
+    {
+        PushBulkhead bulkhead = m_bulkheads == null || index == null ? null : m_bulkheads[ index ];
+        long deadlineNanos = bulkhead == null ? 0 : bulkhead.getDeadlineNanos();
+        // the deadline counts from here, waiting for the service uses it up as well.
+        long entered = deadlineNanos > 0 ? System.nanoTime() : 0;
+        if( bulkhead != null && !bulkhead.tryEnter() )
+        {
+            if( metrics != null )
+            {
+                metrics.rejected();
+            }
+            throw new PushRejectedException(
+                m_type.getName() + "." + method.getName() + " already has " + bulkhead.getLimit() + " calls in flight."
+            );
+        }
+        // once the call is handed over to a push call thread, that thread releases lease and permit.
+        boolean handedOver = false;
+        try
+        {
+            PushTarget target = m_target;
+            PushTarget.Lease lease = target == null ? null : target.acquire( params );
+            long waited = 0;
+            if( lease == null )
+            {
+                // the clock is only read when there is something to wait for.
+                long start = System.nanoTime();
+                long timeout = m_timeoutNanos;
+                boolean untilDeadline = false;
+                if( deadlineNanos > 0 )
+                {
+                    long left = Math.max( 1, deadlineNanos - ( start - entered ) );
+                    untilDeadline = timeout == 0 || left < timeout;
+                    timeout = untilDeadline ? left : timeout;
+                }
+                try
+                {
+                    lease = await( method.getName(), params, timeout );
+                } catch( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    if( metrics != null )
+                    {
+                        metrics.unavailable( System.nanoTime() - start );
+                    }
+                    throw new PushUnavailableException( "Interrupted while waiting for " + m_type.getName() + "." + method.getName(), e );
+                } catch( RuntimeException e )
+                {
+                    if( metrics != null )
+                    {
+                        metrics.unavailable( System.nanoTime() - start );
+                    }
+                    if( untilDeadline && e instanceof PushUnavailableException )
+                    {
+                        if( metrics != null )
+                        {
+                            metrics.timedOut();
+                        }
+                        throw timeout( method, deadlineNanos );
+                    }
+                    throw e;
+                }
+                waited = System.nanoTime() - start;
+            }
+            boolean timed = metrics != null && metrics.begin();
+            long start = timed ? System.nanoTime() : 0;
+            boolean failed = true;
+            try
+            {
+                Object result;
+                if( deadlineNanos > 0 )
+                {
+                    long remaining = deadlineNanos - ( System.nanoTime() - entered );
+                    if( remaining <= 0 )
+                    {
+                        if( metrics != null )
+                        {
+                            metrics.timedOut();
+                        }
+                        throw timeout( method, deadlineNanos );
+                    }
+                    handedOver = true;
+                    result = callWithDeadline( bulkhead, remaining, index, method, lease, params, metrics );
+                }
+                else
+                {
+                    result = call( index, method, lease.getService(), params );
+                }
+                failed = false;
+                return result;
+            } finally
+            {
+                if( !handedOver )
+                {
+                    lease.release();
+                }
+                if( metrics != null )
+                {
+                    metrics.end( waited, timed ? System.nanoTime() - start : -1, failed );
+                }
+            }
+        } finally
+        {
+            if( bulkhead != null && !handedOver )
+            {
+                bulkhead.exit();
+            }
+        }
+    }
+
+    /**
+     * Runs the call on a push call thread and waits for it until the deadline of bulkhead passed.
+     * The call thread releases lease and permit when the call is really done.
+     *
+     * @param remainingNanos time left until the deadline of the call
+     */
+    private Object callWithDeadline( final PushBulkhead bulkhead,
+                                     long remainingNanos,
+                                     final Integer index,
+                                     final Method method,
+                                     final PushTarget.Lease lease,
+                                     final Object[] params,
+                                     PushMethodMetrics metrics )
+        throws Throwable
+    {
+        Future<Object> future;
+        try
+        {
+            future = calls().submit( new Callable<Object>()
+            {
+                public Object call()
+                    throws Exception
+                {
+                    try
+                    {
+                        return PushInvocationHandler.this.call( index, method, lease.getService(), params );
+                    } catch( Exception e )
+                    {
+                        throw e;
+                    } catch( Error e )
+                    {
+                        throw e;
+                    } catch( Throwable t )
+                    {
+                        throw new UndeclaredThrowableException( t );
+                    } finally
+                    {
+                        lease.release();
+                        bulkhead.exit();
+                    }
+                }
+            }
+            );
+        } catch( RuntimeException e )
+        {
+            lease.release();
+            bulkhead.exit();
+            throw e;
+        }
+        try
+        {
+            return future.get( remainingNanos, TimeUnit.NANOSECONDS );
+        } catch( ExecutionException e )
+        {
+            throw e.getCause();
+        } catch( TimeoutException e )
+        {
+            future.cancel( true );
+            if( metrics != null )
+            {
+                metrics.timedOut();
+            }
+            throw timeout( method, bulkhead.getDeadlineNanos() );
+        } catch( InterruptedException e )
+        {
+            future.cancel( true );
+            Thread.currentThread().interrupt();
+            throw new PushUnavailableException( "Interrupted while waiting for " + m_type.getName() + "." + method.getName(), e );
+        }
+    }
+
+    private PushTimeoutException timeout( Method method, long deadlineNanos )
+    {
+        return new PushTimeoutException(
+            m_type.getName() + "." + method.getName() + " did not complete within "
+            + TimeUnit.NANOSECONDS.toMillis( deadlineNanos ) + " ms."
+        );
+    }
+
+    /**
+     * Every call on this pool holds a permit of its method's bulkhead until it returned, so it never needs more
+     * threads than the limits of all methods with a deadline add up to.
+     */
+    private synchronized ThreadPoolExecutor calls()
+    {
+        if( m_closed )
+        {
+            throw new IllegalStateException( "Vault has been stopped. Cannot call " + m_type.getName() );
+        }
+        if( m_calls == null )
+        {
+            // a permit is released just before its thread is idle again, the queue covers that gap.
+            m_calls = new ThreadPoolExecutor(
+                m_deadlineThreads, m_deadlineThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new PushThreadFactory( "gouken-push-call" )
+            );
+        }
+        return m_calls;
+    }
+
+    /**
+     * Runs calls one after another against a single lease on the push service, in the calling thread.
+     * The service is acquired (and waited for) once for the whole batch.
+     *
+     * @param calls work to do
+     *
+     * @return one result per call, in order. A call that throws does not stop the ones after it.
+     *
+     * @throws PushUnavailableException if no service showed up in time. No call has run then.
+     * @throws IllegalStateException    if the handler has been closed.
+     */
+    <R> List<PushResult<R>> batch( List<? extends PushCall<?, ? extends R>> calls )
+    {
+        List<PushResult<R>> results = new ArrayList<PushResult<R>>( calls.size() );
+        if( calls.isEmpty() )
+        {
+            return results;
+        }
+        PushTarget.Lease lease;
+        try
+        {
+            lease = acquire( "batch", null, m_timeoutNanos );
+        } catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new PushUnavailableException( "Interrupted while waiting for " + m_type.getName() + " to run a batch", e );
+        }
+        try
+        {
+            Object service = lease.getService();
+            for( PushCall<?, ? extends R> call : calls )
+            {
+                @SuppressWarnings( "unchecked" )
+                PushCall<Object, ? extends R> c = (PushCall<Object, ? extends R>) call;
+                try
+                {
+                    results.add( PushResult.<R>success( c.call( service ) ) );
+                } catch( Exception e )
+                {
+                    results.add( PushResult.<R>failure( e ) );
+                }
+            }
+        } finally
+        {
+            lease.release();
+        }
+        return results;
+    }
+
+    /**
+     * Runs call against the push service on the push thread. Waits for the service if there is none yet.
+     *
+     * @param call work to do
+     *
+     * @return future result of call.
+     *
+     * @throws RejectedExecutionException if the queue is full and the overflow policy refuses the call.
+     * @throws IllegalStateException      if the handler has been closed.
+     */
+    <R> Future<R> submit( PushCall<?, R> call )
+    {
+        @SuppressWarnings( "unchecked" )
+        final PushCall<Object, R> c = (PushCall<Object, R>) call;
+        return async().submit( new Callable<R>()
+        {
+            public R call()
+                throws Exception
+            {
+                PushTarget.Lease lease = acquire( "submit", null, 0 );
+                try
+                {
+                    return c.call( lease.getService() );
+                } finally
+                {
+                    lease.release();
+                }
+            }
+        }
+        );
+    }
+
+    private synchronized ThreadPoolExecutor async()
+    {
+        if( m_closed )
+        {
+            throw new IllegalStateException( "Vault has been stopped. Cannot submit calls to " + m_type.getName() );
+        }
+        if( m_async == null )
+        {
+            m_async = new ThreadPoolExecutor(
+                1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>( m_queueCapacity ),
+                new PushThreadFactory( "gouken-push" ),
+                overflowPolicy( m_overflow )
+            );
+        }
+        return m_async;
+    }
+
+    /**
+     * @param what         name of the call, for error messages
+     * @param args         arguments of the call, may be null
+     * @param timeoutNanos 0 waits until a service is available or the handler is closed.
+     *
+     * @return lease on the current service. Never null.
+     */
+    private PushTarget.Lease acquire( String what, Object[] args, long timeoutNanos )
+        throws InterruptedException
+    {
+        PushTarget target = m_target;
+        PushTarget.Lease lease = target == null ? null : target.acquire( args );
+        if( lease != null )
+        {
+            return lease;
+        }
+        return await( what, args, timeoutNanos );
+    }
+
+    /**
+     * Slow path of {@link #acquire}: waits for the availability signal.
+     */
+    private PushTarget.Lease await( String what, Object[] args, long timeoutNanos )
+        throws InterruptedException
+    {
+        PushTarget target;
+        PushTarget.Lease lease;
+        long remaining = timeoutNanos;
+        m_lock.lockInterruptibly();
+        try
+        {
+            while( true )
+            {
+                if( m_closed )
+                {
+                    throw new IllegalStateException( "Vault has been stopped. Cannot call " + m_type.getName() + "." + what );
+                }
+                target = m_target;
+                lease = target == null ? null : target.acquire( args );
+                if( lease != null )
+                {
+                    return lease;
+                }
+                if( timeoutNanos == 0 )
+                {
+                    m_available.await();
+                }
+                else
+                {
+                    if( remaining <= 0 )
+                    {
+                        throw new PushUnavailableException(
+                            "No " + m_type.getName() + " service available after " + TimeUnit.NANOSECONDS.toMillis( timeoutNanos )
+                            + " ms. Cannot call " + what
+                        );
+                    }
+                    remaining = m_available.awaitNanos( remaining );
+                }
+            }
+        } finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    private void changed()
+    {
+        if( m_memo != null )
+        {
+            m_memo.invalidate();
+        }
+        signalAvailable();
+    }
+
+    private void signalAvailable()
+    {
+        m_lock.lock();
+        try
+        {
+            m_available.signalAll();
+        } finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    private Object call( Integer index, Method method, Object service, Object[] params )
+        throws Throwable
+    {
+        if( index != null )
+        {
+            return m_invoker.invoke( index, service, params );
+        }
+        // not part of the type's method table, should not happen with proxies created for m_type
+        try
+        {
+            return method.invoke( service, params );
+        } catch( InvocationTargetException e )
+        {
+            throw e.getCause();
+        }
+    }
+
+    private static void cancel( Runnable r )
+    {
+        if( r instanceof Future )
+        {
+            ( (Future<?>) r ).cancel( false );
+        }
+    }
+
+    private static RejectedExecutionHandler overflowPolicy( String overflow )
+    {
+        if( KernelProperties.PUSH_OVERFLOW_REJECT.equals( overflow ) )
+        {
+            return new ThreadPoolExecutor.AbortPolicy();
+        }
+        if( KernelProperties.PUSH_OVERFLOW_BLOCK.equals( overflow ) )
+        {
+            return new BlockPolicy();
+        }
+        if( KernelProperties.PUSH_OVERFLOW_DISCARD_OLDEST.equals( overflow ) )
+        {
+            return new DiscardOldestPolicy();
+        }
+        throw new IllegalArgumentException( "Unknown push overflow policy: " + overflow );
+    }
+
+    /**
+     * Waits for room in the queue.
+     */
+    private static class BlockPolicy implements RejectedExecutionHandler
+    {
+
+        public void rejectedExecution( Runnable r, ThreadPoolExecutor executor )
+        {
+            if( executor.isShutdown() )
+            {
+                throw new RejectedExecutionException( "Push queue has been shut down." );
+            }
+            try
+            {
+                executor.getQueue().put( r );
+            } catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException( "Interrupted while waiting for room in the push queue." );
+            }
+            if( executor.isShutdown() && executor.getQueue().remove( r ) )
+            {
+                cancel( r );
+            }
+        }
+    }
+
+    /**
+     * Like {@link ThreadPoolExecutor.DiscardOldestPolicy} but cancels the discarded call so its caller learns about it.
+     */
+    private static class DiscardOldestPolicy implements RejectedExecutionHandler
+    {
+
+        public void rejectedExecution( Runnable r, ThreadPoolExecutor executor )
+        {
+            if( executor.isShutdown() )
+            {
+                throw new RejectedExecutionException( "Push queue has been shut down." );
+            }
+            cancel( executor.getQueue().poll() );
+            executor.execute( r );
+        }
+    }
+
+    private static class PushThreadFactory implements ThreadFactory
+    {
+
+        private final String m_name;
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        PushThreadFactory( String name )
+        {
+            m_name = name;
+        }
+
+        public Thread newThread( Runnable r )
+        {
+            Thread t = new Thread( r, m_name + "-" + m_count.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+/**
+ * Calls one of the methods of a push service type on a service instance.
+ * Methods are addressed by their index in the table the invoker was created for (see {@link PushInvokers}).
+ * <p/>
+ * Public only because generated invokers are defined in a class loader of their own and must be able to implement it.
+ *
+ * @author Toni Menzel
+ */
+public interface PushInvoker
+{
+
+    /**
+     * @param index  index of the method to call
+     * @param target service instance
+     * @param args   call arguments, may be null for methods without parameters
+     *
+     * @return result of the call, boxed. Null for void methods.
+     *
+     * @throws Throwable whatever the called method throws, unwrapped.
+     */
+    Object invoke( int index, Object target, Object[] args )
+        throws Throwable;
+}
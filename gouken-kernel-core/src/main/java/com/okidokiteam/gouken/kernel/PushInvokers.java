@@ -0,0 +1,499 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates {@link PushInvoker}s and push proxies for a push service type.
+ * <p/>
+ * The generated invoker is a class (built once per vault start) whose invoke method switches over the method index
+ * and calls the service method with invokeinterface instead of {@link Method#invoke}.
+ * The generated proxy implements the push service type itself. Each method passes its constant index and its boxed
+ * arguments to a {@link PushDispatcher}, which saves the {@link java.lang.reflect.Proxy} indirection and the lookup
+ * of the index by {@link Method}. Arguments stay boxed because memoization, sharding and metrics work on them.
+ * <p/>
+ * The reflective flavour uses {@link Method#invoke} and {@link java.lang.reflect.Proxy}. It is used when the type
+ * cannot be called from generated code (non public types in a signature) or when asked for explicitly.
+ *
+ * @author Toni Menzel
+ */
+final class PushInvokers
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger( PushInvokers.class );
+
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    private static final String INVOKER = Type.getInternalName( PushInvoker.class );
+    private static final String DISPATCHER = Type.getInternalName( PushDispatcher.class );
+    private static final String OBJECT = Type.getInternalName( Object.class );
+
+    private PushInvokers()
+    {
+    }
+
+    /**
+     * Method table of a push service type: all its public methods followed by the methods of {@link Object} a proxy
+     * dispatches to its handler (equals, hashCode, toString).
+     */
+    static Method[] methods( Class<?> type )
+    {
+        List<Method> methods = new ArrayList<Method>( Arrays.asList( type.getMethods() ) );
+        try
+        {
+            methods.add( Object.class.getMethod( "equals", Object.class ) );
+            methods.add( Object.class.getMethod( "hashCode" ) );
+            methods.add( Object.class.getMethod( "toString" ) );
+        } catch( NoSuchMethodException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        return methods.toArray( new Method[methods.size()] );
+    }
+
+    /**
+     * @param type     push service type
+     * @param methods  method table, see {@link #methods(Class)}
+     * @param generate try to generate an invoker. Falls back to reflection if that is not possible.
+     *
+     * @return invoker for the given methods.
+     */
+    static PushInvoker create( Class<?> type, Method[] methods, boolean generate )
+    {
+        if( generate )
+        {
+            if( isCallable( methods ) )
+            {
+                try
+                {
+                    return generate( type, methods );
+                } catch( Exception e )
+                {
+                    LOG.warn( "Cannot generate push invoker for " + type.getName() + ". Using reflection.", e );
+                }
+            }
+            else
+            {
+                LOG.info( "Push service type " + type.getName() + " uses non public types. Using reflection." );
+            }
+        }
+        return reflective( methods );
+    }
+
+    /**
+     * @param type       push service type
+     * @param methods    method table, see {@link #methods(Class)}
+     * @param dispatcher receives the calls made on the proxy
+     *
+     * @return generated proxy implementing type or null if none can be generated.
+     */
+    static Object proxy( Class<?> type, Method[] methods, PushDispatcher dispatcher )
+    {
+        if( !isCallable( methods ) )
+        {
+            LOG.info( "Push service type " + type.getName() + " uses non public types. Using a reflective proxy." );
+            return null;
+        }
+        try
+        {
+            String name = "com.okidokiteam.gouken.kernel.generated.PushProxy" + COUNTER.incrementAndGet();
+            Class<?> c = new InvokerClassLoader( loader( type ) ).define( name, proxyBytes( name.replace( '.', '/' ), type, methods ) );
+            return c.getConstructor( PushDispatcher.class ).newInstance( dispatcher );
+        } catch( Exception e )
+        {
+            LOG.warn( "Cannot generate push proxy for " + type.getName() + ". Using a reflective proxy.", e );
+            return null;
+        } catch( LinkageError e )
+        {
+            LOG.warn( "Cannot generate push proxy for " + type.getName() + ". Using a reflective proxy.", e );
+            return null;
+        }
+    }
+
+    static PushInvoker reflective( Method[] methods )
+    {
+        for( Method m : methods )
+        {
+            try
+            {
+                m.setAccessible( true );
+            } catch( SecurityException e )
+            {
+                // access checks stay on, calls still work
+            }
+        }
+        return new ReflectiveInvoker( methods );
+    }
+
+    static PushInvoker generate( Class<?> type, Method[] methods )
+        throws Exception
+    {
+        String name = "com.okidokiteam.gouken.kernel.generated.PushInvoker" + COUNTER.incrementAndGet();
+        Class<?> c = new InvokerClassLoader( loader( type ) ).define( name, bytes( name.replace( '.', '/' ), methods ) );
+        return (PushInvoker) c.newInstance();
+    }
+
+    private static ClassLoader loader( Class<?> type )
+    {
+        return type.getClassLoader() != null ? type.getClassLoader() : PushInvoker.class.getClassLoader();
+    }
+
+    private static byte[] bytes( String name, Method[] methods )
+    {
+        ClassWriter cw = new ClassWriter( ClassWriter.COMPUTE_MAXS );
+        cw.visit( Opcodes.V1_5, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, name, null, OBJECT,
+                  new String[]{ INVOKER }
+        );
+
+        MethodVisitor init = cw.visitMethod( Opcodes.ACC_PUBLIC, "<init>", "()V", null, null );
+        init.visitCode();
+        init.visitVarInsn( Opcodes.ALOAD, 0 );
+        init.visitMethodInsn( Opcodes.INVOKESPECIAL, OBJECT, "<init>", "()V" );
+        init.visitInsn( Opcodes.RETURN );
+        init.visitMaxs( 0, 0 );
+        init.visitEnd();
+
+        MethodVisitor mv = cw.visitMethod( Opcodes.ACC_PUBLIC, "invoke",
+                                           "(ILjava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;", null,
+                                           new String[]{ "java/lang/Throwable" }
+        );
+        mv.visitCode();
+        Label unknown = new Label();
+        Label[] cases = new Label[methods.length];
+        for( int i = 0; i < cases.length; i++ )
+        {
+            cases[ i ] = new Label();
+        }
+        mv.visitVarInsn( Opcodes.ILOAD, 1 );
+        mv.visitTableSwitchInsn( 0, methods.length - 1, unknown, cases );
+        for( int i = 0; i < methods.length; i++ )
+        {
+            Method m = methods[ i ];
+            String owner = Type.getInternalName( m.getDeclaringClass() );
+            mv.visitLabel( cases[ i ] );
+            mv.visitVarInsn( Opcodes.ALOAD, 2 );
+            mv.visitTypeInsn( Opcodes.CHECKCAST, owner );
+            Class<?>[] params = m.getParameterTypes();
+            for( int p = 0; p < params.length; p++ )
+            {
+                mv.visitVarInsn( Opcodes.ALOAD, 3 );
+                push( mv, p );
+                mv.visitInsn( Opcodes.AALOAD );
+                unbox( mv, params[ p ] );
+            }
+            if( m.getDeclaringClass().isInterface() )
+            {
+                mv.visitMethodInsn( Opcodes.INVOKEINTERFACE, owner, m.getName(), Type.getMethodDescriptor( m ) );
+            }
+            else
+            {
+                mv.visitMethodInsn( Opcodes.INVOKEVIRTUAL, owner, m.getName(), Type.getMethodDescriptor( m ) );
+            }
+            box( mv, m.getReturnType() );
+            mv.visitInsn( Opcodes.ARETURN );
+        }
+        mv.visitLabel( unknown );
+        mv.visitTypeInsn( Opcodes.NEW, "java/lang/IllegalArgumentException" );
+        mv.visitInsn( Opcodes.DUP );
+        mv.visitLdcInsn( "Unknown method index" );
+        mv.visitMethodInsn( Opcodes.INVOKESPECIAL, "java/lang/IllegalArgumentException", "<init>",
+                            "(Ljava/lang/String;)V"
+        );
+        mv.visitInsn( Opcodes.ATHROW );
+        mv.visitMaxs( 0, 0 );
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /**
+     * Proxy class with a constructor taking the {@link PushDispatcher}. Methods that appear more than once in the
+     * table with the same signature (e.g. inherited from two interfaces) dispatch with the index of the first.
+     */
+    private static byte[] proxyBytes( String name, Class<?> type, Method[] methods )
+    {
+        ClassWriter cw = new ClassWriter( ClassWriter.COMPUTE_MAXS );
+        cw.visit( Opcodes.V1_5, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, name, null, OBJECT,
+                  new String[]{ Type.getInternalName( type ) }
+        );
+        cw.visitField( Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, "m_dispatcher", "L" + DISPATCHER + ";", null, null ).visitEnd();
+
+        MethodVisitor init = cw.visitMethod( Opcodes.ACC_PUBLIC, "<init>", "(L" + DISPATCHER + ";)V", null, null );
+        init.visitCode();
+        init.visitVarInsn( Opcodes.ALOAD, 0 );
+        init.visitMethodInsn( Opcodes.INVOKESPECIAL, OBJECT, "<init>", "()V" );
+        init.visitVarInsn( Opcodes.ALOAD, 0 );
+        init.visitVarInsn( Opcodes.ALOAD, 1 );
+        init.visitFieldInsn( Opcodes.PUTFIELD, name, "m_dispatcher", "L" + DISPATCHER + ";" );
+        init.visitInsn( Opcodes.RETURN );
+        init.visitMaxs( 0, 0 );
+        init.visitEnd();
+
+        Set<String> signatures = new HashSet<String>();
+        for( int i = 0; i < methods.length; i++ )
+        {
+            Method m = methods[ i ];
+            String descriptor = Type.getMethodDescriptor( m );
+            if( !signatures.add( m.getName() + descriptor ) )
+            {
+                continue;
+            }
+            Class<?>[] exceptions = m.getExceptionTypes();
+            String[] thrown = new String[exceptions.length];
+            for( int e = 0; e < exceptions.length; e++ )
+            {
+                thrown[ e ] = Type.getInternalName( exceptions[ e ] );
+            }
+            MethodVisitor mv = cw.visitMethod( Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL, m.getName(), descriptor, null, thrown );
+            mv.visitCode();
+            mv.visitVarInsn( Opcodes.ALOAD, 0 );
+            mv.visitFieldInsn( Opcodes.GETFIELD, name, "m_dispatcher", "L" + DISPATCHER + ";" );
+            push( mv, i );
+            Class<?>[] params = m.getParameterTypes();
+            if( params.length == 0 )
+            {
+                // like java.lang.reflect.Proxy
+                mv.visitInsn( Opcodes.ACONST_NULL );
+            }
+            else
+            {
+                push( mv, params.length );
+                mv.visitTypeInsn( Opcodes.ANEWARRAY, OBJECT );
+                int slot = 1;
+                for( int p = 0; p < params.length; p++ )
+                {
+                    Type t = Type.getType( params[ p ] );
+                    mv.visitInsn( Opcodes.DUP );
+                    push( mv, p );
+                    mv.visitVarInsn( t.getOpcode( Opcodes.ILOAD ), slot );
+                    box( mv, params[ p ] );
+                    mv.visitInsn( Opcodes.AASTORE );
+                    slot += t.getSize();
+                }
+            }
+            mv.visitMethodInsn( Opcodes.INVOKEINTERFACE, DISPATCHER, "dispatch", "(I[Ljava/lang/Object;)Ljava/lang/Object;" );
+            Class<?> returnType = m.getReturnType();
+            if( returnType == Void.TYPE )
+            {
+                mv.visitInsn( Opcodes.POP );
+                mv.visitInsn( Opcodes.RETURN );
+            }
+            else
+            {
+                unbox( mv, returnType );
+                mv.visitInsn( Type.getType( returnType ).getOpcode( Opcodes.IRETURN ) );
+            }
+            mv.visitMaxs( 0, 0 );
+            mv.visitEnd();
+        }
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void push( MethodVisitor mv, int value )
+    {
+        if( value <= 5 )
+        {
+            mv.visitInsn( Opcodes.ICONST_0 + value );
+        }
+        else if( value <= Byte.MAX_VALUE )
+        {
+            mv.visitIntInsn( Opcodes.BIPUSH, value );
+        }
+        else
+        {
+            mv.visitIntInsn( Opcodes.SIPUSH, value );
+        }
+    }
+
+    private static void unbox( MethodVisitor mv, Class<?> type )
+    {
+        if( !type.isPrimitive() )
+        {
+            mv.visitTypeInsn( Opcodes.CHECKCAST, Type.getInternalName( type ) );
+            return;
+        }
+        String wrapper = Type.getInternalName( wrapper( type ) );
+        mv.visitTypeInsn( Opcodes.CHECKCAST, wrapper );
+        mv.visitMethodInsn( Opcodes.INVOKEVIRTUAL, wrapper, type.getName() + "Value", "()" + Type.getDescriptor( type ) );
+    }
+
+    private static void box( MethodVisitor mv, Class<?> type )
+    {
+        if( type == Void.TYPE )
+        {
+            mv.visitInsn( Opcodes.ACONST_NULL );
+        }
+        else if( type.isPrimitive() )
+        {
+            String wrapper = Type.getInternalName( wrapper( type ) );
+            mv.visitMethodInsn( Opcodes.INVOKESTATIC, wrapper, "valueOf",
+                                "(" + Type.getDescriptor( type ) + ")L" + wrapper + ";"
+            );
+        }
+    }
+
+    private static Class<?> wrapper( Class<?> primitive )
+    {
+        if( primitive == Integer.TYPE )
+        {
+            return Integer.class;
+        }
+        if( primitive == Long.TYPE )
+        {
+            return Long.class;
+        }
+        if( primitive == Boolean.TYPE )
+        {
+            return Boolean.class;
+        }
+        if( primitive == Double.TYPE )
+        {
+            return Double.class;
+        }
+        if( primitive == Float.TYPE )
+        {
+            return Float.class;
+        }
+        if( primitive == Short.TYPE )
+        {
+            return Short.class;
+        }
+        if( primitive == Byte.TYPE )
+        {
+            return Byte.class;
+        }
+        if( primitive == Character.TYPE )
+        {
+            return Character.class;
+        }
+        throw new IllegalArgumentException( "Not a primitive type: " + primitive );
+    }
+
+    /**
+     * Generated code lives in another runtime package, so every type it names must be public.
+     */
+    private static boolean isCallable( Method[] methods )
+    {
+        for( Method m : methods )
+        {
+            if( !isPublic( m.getDeclaringClass() ) || !isPublic( m.getReturnType() ) )
+            {
+                return false;
+            }
+            for( Class<?> p : m.getParameterTypes() )
+            {
+                if( !isPublic( p ) )
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPublic( Class<?> type )
+    {
+        while( type.isArray() )
+        {
+            type = type.getComponentType();
+        }
+        for( Class<?> c = type; c != null && !c.isPrimitive(); c = c.getDeclaringClass() )
+        {
+            if( !Modifier.isPublic( c.getModifiers() ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class ReflectiveInvoker implements PushInvoker
+    {
+
+        private final Method[] m_methods;
+
+        ReflectiveInvoker( Method[] methods )
+        {
+            m_methods = methods;
+        }
+
+        public Object invoke( int index, Object target, Object[] args )
+            throws Throwable
+        {
+            try
+            {
+                return m_methods[ index ].invoke( target, args );
+            } catch( InvocationTargetException e )
+            {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Sees the push service type through its parent and the {@link PushInvoker} and {@link PushDispatcher}
+     * interfaces of the kernel.
+     */
+    private static class InvokerClassLoader extends ClassLoader
+    {
+
+        InvokerClassLoader( ClassLoader parent )
+        {
+            super( parent );
+        }
+
+        @Override
+        protected Class<?> loadClass( String name, boolean resolve )
+            throws ClassNotFoundException
+        {
+            if( PushInvoker.class.getName().equals( name ) )
+            {
+                return PushInvoker.class;
+            }
+            if( PushDispatcher.class.getName().equals( name ) )
+            {
+                return PushDispatcher.class;
+            }
+            return super.loadClass( name, resolve );
+        }
+
+        Class<?> define( String name, byte[] bytes )
+        {
+            return defineClass( name, bytes, 0, bytes.length );
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.okidokiteam.gouken.Idempotent;
+import com.okidokiteam.gouken.PushUnavailableException;
+
+/**
+ * Single flight and time bound memoization for idempotent push methods.
+ * <p/>
+ * Concurrent calls of an idempotent method with equal arguments share one invocation: the first caller runs it,
+ * the others wait for its outcome (value or exception). If the method has a TTL, successful results are also
+ * reused by later calls until the TTL passes. {@link #invalidate()} (called whenever the services behind the proxy
+ * change) drops all cached results, calls in flight at that moment are not cached.
+ * <p/>
+ * Methods are idempotent if they carry {@link Idempotent} or are listed in {@link KernelProperties#PUSH_IDEMPOTENT}.
+ *
+ * @author Toni Menzel
+ */
+class PushMemo
+{
+
+    private static final long NOT_IDEMPOTENT = -1;
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private final long[] m_ttlNanos;
+    private final int m_maxEntries;
+    private final ConcurrentMap<Key, FutureTask<Object>> m_inFlight = new ConcurrentHashMap<Key, FutureTask<Object>>();
+    private final ConcurrentMap<Key, Cached> m_cache = new ConcurrentHashMap<Key, Cached>();
+    private final AtomicLong m_generation = new AtomicLong();
+
+    private PushMemo( long[] ttlNanos, int maxEntries )
+    {
+        m_ttlNanos = ttlNanos;
+        m_maxEntries = maxEntries;
+    }
+
+    /**
+     * @param methods    method table of the push handler
+     * @param configured method names from {@link KernelProperties#PUSH_IDEMPOTENT} with their TTL in milliseconds
+     * @param maxEntries maximum number of cached results
+     *
+     * @return memo for the idempotent methods or null if there are none.
+     */
+    static PushMemo create( Method[] methods, Map<String, Long> configured, int maxEntries )
+    {
+        long[] ttl = new long[methods.length];
+        boolean any = false;
+        for( int i = 0; i < methods.length; i++ )
+        {
+            ttl[ i ] = NOT_IDEMPOTENT;
+            Idempotent annotation = methods[ i ].getAnnotation( Idempotent.class );
+            if( annotation != null )
+            {
+                ttl[ i ] = TimeUnit.MILLISECONDS.toNanos( annotation.ttlMillis() );
+            }
+            Long millis = configured.get( methods[ i ].getName() );
+            if( millis != null && methods[ i ].getDeclaringClass() != Object.class )
+            {
+                ttl[ i ] = TimeUnit.MILLISECONDS.toNanos( millis );
+            }
+            any |= ttl[ i ] != NOT_IDEMPOTENT;
+        }
+        return any ? new PushMemo( ttl, maxEntries ) : null;
+    }
+
+    boolean isIdempotent( int index )
+    {
+        return m_ttlNanos[ index ] != NOT_IDEMPOTENT;
+    }
+
+    /**
+     * @param index      method index
+     * @param args       call arguments, may be null
+     * @param invocation the actual call, run by at most one of the concurrent callers
+     * @param metrics    counts coalesced calls and cache hits, may be null
+     *
+     * @return result of this or of an equal call.
+     *
+     * @throws Throwable whatever the (shared) invocation threw.
+     */
+    Object call( int index, Object[] args, Callable<Object> invocation, PushMethodMetrics metrics )
+        throws Throwable
+    {
+        Key key = new Key( index, args );
+        long ttl = m_ttlNanos[ index ];
+        if( ttl > 0 )
+        {
+            Cached cached = m_cache.get( key );
+            if( cached != null )
+            {
+                if( cached.m_expires - System.nanoTime() > 0 )
+                {
+                    if( metrics != null )
+                    {
+                        metrics.cacheHit();
+                    }
+                    return cached.m_value;
+                }
+                m_cache.remove( key, cached );
+            }
+        }
+
+        FutureTask<Object> task = new FutureTask<Object>( invocation );
+        FutureTask<Object> running = m_inFlight.putIfAbsent( key, task );
+        if( running == null )
+        {
+            long generation = m_generation.get();
+            try
+            {
+                task.run();
+            } finally
+            {
+                m_inFlight.remove( key, task );
+            }
+            Object value = outcome( task );
+            if( ttl > 0 )
+            {
+                cache( key, value, ttl, generation );
+            }
+            return value;
+        }
+        if( metrics != null )
+        {
+            metrics.coalesced();
+        }
+        return outcome( running );
+    }
+
+    /**
+     * Drops cached results. Calls in flight finish but their results are not cached and not shared with later calls.
+     */
+    void invalidate()
+    {
+        m_generation.incrementAndGet();
+        m_inFlight.clear();
+        m_cache.clear();
+    }
+
+    private void cache( Key key, Object value, long ttl, long generation )
+    {
+        if( m_cache.size() >= m_maxEntries )
+        {
+            purge();
+            if( m_cache.size() >= m_maxEntries )
+            {
+                return;
+            }
+        }
+        m_cache.put( key, new Cached( value, System.nanoTime() + ttl ) );
+        if( m_generation.get() != generation )
+        {
+            // services changed while the call was running, the result may already be stale.
+            m_cache.remove( key );
+        }
+    }
+
+    private void purge()
+    {
+        long now = System.nanoTime();
+        for( Iterator<Cached> it = m_cache.values().iterator(); it.hasNext(); )
+        {
+            if( it.next().m_expires - now <= 0 )
+            {
+                it.remove();
+            }
+        }
+    }
+
+    private static Object outcome( FutureTask<Object> task )
+        throws Throwable
+    {
+        try
+        {
+            return task.get();
+        } catch( ExecutionException e )
+        {
+            throw e.getCause();
+        } catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new PushUnavailableException( "Interrupted while waiting for a shared call.", e );
+        }
+    }
+
+    private static final class Key
+    {
+
+        private final int m_index;
+        private final Object[] m_args;
+        private final int m_hash;
+
+        Key( int index, Object[] args )
+        {
+            m_index = index;
+            m_args = args == null ? NO_ARGS : args;
+            m_hash = 31 * index + Arrays.deepHashCode( m_args );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return m_hash;
+        }
+
+        @Override
+        public boolean equals( Object o )
+        {
+            if( this == o )
+            {
+                return true;
+            }
+            if( !( o instanceof Key ) )
+            {
+                return false;
+            }
+            Key other = (Key) o;
+            return m_hash == other.m_hash && m_index == other.m_index && Arrays.deepEquals( m_args, other.m_args );
+        }
+    }
+
+    private static final class Cached
+    {
+
+        private final Object m_value;
+        private final long m_expires;
+
+        Cached( Object value, long expires )
+        {
+            m_value = value;
+            m_expires = expires;
+        }
+    }
+}
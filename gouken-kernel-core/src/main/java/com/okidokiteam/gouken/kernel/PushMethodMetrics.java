@@ -0,0 +1,234 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histogram of one method of the push service type.
+ * <p/>
+ * Calls counts every call through the push proxy that reached the service, errors the ones that threw (including calls that gave up waiting
+ * for the service). Latency is the time spent inside the service, measured for every n-th call only (see
+ * {@link KernelProperties#PUSH_METRICS_SAMPLE}). Waiting for the service is accounted separately, for every call.
+ * Calls of idempotent methods that were answered by another call are counted as coalesced or cache hits instead,
+ * calls refused by the concurrency limit as rejected.
+ *
+ * @author Toni Menzel
+ */
+public final class PushMethodMetrics implements PushMethodMetricsMBean
+{
+
+    private final String m_method;
+    private final int m_sample;
+    private final AtomicLong m_calls = new AtomicLong();
+    private final AtomicLong m_errors = new AtomicLong();
+    private final AtomicLong m_waitNanos = new AtomicLong();
+    private final AtomicLong m_coalesced = new AtomicLong();
+    private final AtomicLong m_cacheHits = new AtomicLong();
+    private final AtomicLong m_rejected = new AtomicLong();
+    private final AtomicLong m_timeouts = new AtomicLong();
+    private final LatencyHistogram m_latency = new LatencyHistogram();
+
+    PushMethodMetrics( String method, int sample )
+    {
+        m_method = method;
+        m_sample = sample;
+    }
+
+    /**
+     * Counts a call.
+     *
+     * @return true if the latency of this call should be measured.
+     */
+    boolean begin()
+    {
+        long calls = m_calls.incrementAndGet();
+        return m_sample == 1 || calls % m_sample == 0;
+    }
+
+    /**
+     * @param waitNanos    time the call waited for the service
+     * @param latencyNanos time spent in the service or -1 if not measured
+     * @param failed       true if the call threw
+     */
+    void end( long waitNanos, long latencyNanos, boolean failed )
+    {
+        if( failed )
+        {
+            m_errors.incrementAndGet();
+        }
+        if( waitNanos > 0 )
+        {
+            m_waitNanos.addAndGet( waitNanos );
+        }
+        if( latencyNanos >= 0 )
+        {
+            m_latency.record( latencyNanos );
+        }
+    }
+
+    /**
+     * Counts a call that gave up waiting for the service.
+     */
+    void unavailable( long waitNanos )
+    {
+        m_calls.incrementAndGet();
+        m_errors.incrementAndGet();
+        m_waitNanos.addAndGet( waitNanos );
+    }
+
+    /**
+     * Counts a call of an idempotent method that shared the invocation of an equal call in flight.
+     */
+    void coalesced()
+    {
+        m_coalesced.incrementAndGet();
+    }
+
+    /**
+     * Counts a call of an idempotent method answered from the result of an earlier call.
+     */
+    void cacheHit()
+    {
+        m_cacheHits.incrementAndGet();
+    }
+
+    /**
+     * Counts a call refused by the concurrency limit of the method.
+     */
+    void rejected()
+    {
+        m_rejected.incrementAndGet();
+    }
+
+    /**
+     * Counts a call whose caller gave up at the deadline of the method. It is also counted as an error.
+     */
+    void timedOut()
+    {
+        m_timeouts.incrementAndGet();
+    }
+
+    /**
+     * @return method name and parameter types, e.g. echo(int)
+     */
+    public String getMethod()
+    {
+        return m_method;
+    }
+
+    public long getCalls()
+    {
+        return m_calls.get();
+    }
+
+    public long getErrors()
+    {
+        return m_errors.get();
+    }
+
+    public long getCoalesced()
+    {
+        return m_coalesced.get();
+    }
+
+    public long getCacheHits()
+    {
+        return m_cacheHits.get();
+    }
+
+    public long getRejected()
+    {
+        return m_rejected.get();
+    }
+
+    public long getTimeouts()
+    {
+        return m_timeouts.get();
+    }
+
+    public long getWaitNanos()
+    {
+        return m_waitNanos.get();
+    }
+
+    /**
+     * @param percentile 0..100
+     *
+     * @return latency in nanoseconds below which percentile of the (sampled) calls completed.
+     */
+    public long getLatencyNanos( double percentile )
+    {
+        return m_latency.getValueAtPercentile( percentile );
+    }
+
+    public double getWaitTimeMillis()
+    {
+        return m_waitNanos.get() / 1e6;
+    }
+
+    public double getLatencyMeanMicros()
+    {
+        return m_latency.getMean() / 1e3;
+    }
+
+    public double getLatencyP50Micros()
+    {
+        return getLatencyNanos( 50 ) / 1e3;
+    }
+
+    public double getLatencyP90Micros()
+    {
+        return getLatencyNanos( 90 ) / 1e3;
+    }
+
+    public double getLatencyP99Micros()
+    {
+        return getLatencyNanos( 99 ) / 1e3;
+    }
+
+    public double getLatencyP999Micros()
+    {
+        return getLatencyNanos( 99.9 ) / 1e3;
+    }
+
+    public double getLatencyMaxMicros()
+    {
+        return m_latency.getMax() / 1e3;
+    }
+
+    public void reset()
+    {
+        m_calls.set( 0 );
+        m_errors.set( 0 );
+        m_waitNanos.set( 0 );
+        m_coalesced.set( 0 );
+        m_cacheHits.set( 0 );
+        m_rejected.set( 0 );
+        m_timeouts.set( 0 );
+        m_latency.reset();
+    }
+
+    @Override
+    public String toString()
+    {
+        return m_method + " calls=" + getCalls() + " errors=" + getErrors()
+               + " wait=" + String.format( "%.3f", getWaitTimeMillis() ) + "ms"
+               + " p50=" + getLatencyNanos( 50 ) + "ns p99=" + getLatencyNanos( 99 ) + "ns max=" + m_latency.getMax() + "ns";
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+/**
+ * JMX view of the metrics of one push service method.
+ *
+ * @author Toni Menzel
+ */
+public interface PushMethodMetricsMBean
+{
+
+    String getMethod();
+
+    long getCalls();
+
+    long getErrors();
+
+    long getCoalesced();
+
+    long getCacheHits();
+
+    long getRejected();
+
+    long getTimeouts();
+
+    double getWaitTimeMillis();
+
+    double getLatencyMeanMicros();
+
+    double getLatencyP50Micros();
+
+    double getLatencyP90Micros();
+
+    double getLatencyP99Micros();
+
+    double getLatencyP999Micros();
+
+    double getLatencyMaxMicros();
+
+    void reset();
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Metrics of the calls made through the push proxy of a vault, one {@link PushMethodMetrics} per method of the push
+ * service type. Methods inherited from Object (equals, hashCode, toString) are not measured.
+ *
+ * @author Toni Menzel
+ */
+public final class PushMetrics
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger( PushMetrics.class );
+
+    /**
+     * JMX domain the method metrics are registered under.
+     */
+    public static final String JMX_DOMAIN = "com.okidokiteam.gouken";
+
+    private final PushMethodMetrics[] m_byIndex;
+    private final List<PushMethodMetrics> m_methods;
+    private final List<ObjectName> m_registered = new ArrayList<ObjectName>();
+
+    /**
+     * @param methods method table of the push handler. Metrics are indexed the same way.
+     * @param sample  every how many calls a method's latency is measured
+     */
+    PushMetrics( Method[] methods, int sample )
+    {
+        m_byIndex = new PushMethodMetrics[methods.length];
+        List<PushMethodMetrics> list = new ArrayList<PushMethodMetrics>();
+        for( int i = 0; i < methods.length; i++ )
+        {
+            if( methods[ i ].getDeclaringClass() != Object.class )
+            {
+                m_byIndex[ i ] = new PushMethodMetrics( label( methods[ i ] ), sample );
+                list.add( m_byIndex[ i ] );
+            }
+        }
+        m_methods = Collections.unmodifiableList( list );
+    }
+
+    /**
+     * @return metrics of method index or null if that method is not measured.
+     */
+    PushMethodMetrics get( int index )
+    {
+        return m_byIndex[ index ];
+    }
+
+    public List<PushMethodMetrics> getMethods()
+    {
+        return m_methods;
+    }
+
+    /**
+     * @param method method name and parameter types as in {@link PushMethodMetrics#getMethod()}, e.g. echo(int).
+     *
+     * @return metrics of that method or null if there is no such method.
+     */
+    public PushMethodMetrics getMethod( String method )
+    {
+        for( PushMethodMetrics m : m_methods )
+        {
+            if( m.getMethod().equals( method ) )
+            {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Registers one MBean per method as {@value #JMX_DOMAIN}:type=PushMetrics,vault=[vault],method=[method].
+     * Failures are logged, metrics keep working without JMX.
+     */
+    synchronized void register( MBeanServer server, String vault )
+    {
+        for( PushMethodMetrics m : m_methods )
+        {
+            try
+            {
+                ObjectName name = new ObjectName(
+                    JMX_DOMAIN + ":type=PushMetrics,vault=" + ObjectName.quote( vault ) + ",method=" + ObjectName.quote( m.getMethod() )
+                );
+                server.registerMBean( m, name );
+                m_registered.add( name );
+            } catch( JMException e )
+            {
+                LOG.warn( "Cannot register push metrics of " + m.getMethod() + " with JMX.", e );
+            }
+        }
+    }
+
+    synchronized void unregister( MBeanServer server )
+    {
+        for( ObjectName name : m_registered )
+        {
+            try
+            {
+                server.unregisterMBean( name );
+            } catch( JMException e )
+            {
+                LOG.debug( "Cannot unregister " + name, e );
+            }
+        }
+        m_registered.clear();
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder( "Push metrics:" );
+        for( PushMethodMetrics m : m_methods )
+        {
+            sb.append( "\n  " ).append( m );
+        }
+        return sb.toString();
+    }
+
+    static String label( Method method )
+    {
+        StringBuilder sb = new StringBuilder( method.getName() ).append( '(' );
+        Class<?>[] params = method.getParameterTypes();
+        for( int i = 0; i < params.length; i++ )
+        {
+            if( i > 0 )
+            {
+                sb.append( ',' );
+            }
+            sb.append( params[ i ].getSimpleName() );
+        }
+        return sb.append( ')' ).toString();
+    }
+}
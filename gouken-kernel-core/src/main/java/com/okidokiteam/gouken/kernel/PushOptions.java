@@ -0,0 +1,64 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings of the push proxy, read from the {@link KernelProperties}.
+ *
+ * @author Toni Menzel
+ */
+class PushOptions
+{
+
+    final boolean m_generate;
+    final long m_timeoutNanos;
+    final int m_queueCapacity;
+    final String m_overflow;
+    final boolean m_metrics;
+    final int m_metricsSample;
+    final Map<String, Long> m_idempotent;
+    final int m_idempotentCache;
+    final Map<String, Long> m_limits;
+    final Map<String, Long> m_deadlines;
+
+    PushOptions( Map<String, Object> config )
+    {
+        m_generate = !KernelProperties.PUSH_INVOKER_REFLECTIVE.equals( KernelProperties.get( config, KernelProperties.PUSH_INVOKER ) );
+        m_timeoutNanos = TimeUnit.MILLISECONDS.toNanos( KernelProperties.getInt( config, KernelProperties.PUSH_TIMEOUT, 0 ) );
+        m_queueCapacity = KernelProperties.getInt( config, KernelProperties.PUSH_QUEUE, KernelProperties.DEFAULT_PUSH_QUEUE );
+        String overflow = KernelProperties.get( config, KernelProperties.PUSH_OVERFLOW );
+        m_overflow = overflow == null || overflow.length() == 0 ? KernelProperties.PUSH_OVERFLOW_REJECT : overflow;
+        m_metrics = KernelProperties.getBoolean( config, KernelProperties.PUSH_METRICS, true );
+        m_metricsSample = KernelProperties.getInt( config, KernelProperties.PUSH_METRICS_SAMPLE, KernelProperties.DEFAULT_PUSH_METRICS_SAMPLE );
+        m_idempotent = KernelProperties.getMethodValues( config, KernelProperties.PUSH_IDEMPOTENT, 0 );
+        m_limits = KernelProperties.getMethodValues( config, KernelProperties.PUSH_LIMITS, 0 );
+        m_deadlines = KernelProperties.getMethodValues( config, KernelProperties.PUSH_DEADLINES, 0 );
+        m_idempotentCache = KernelProperties.getInt( config, KernelProperties.PUSH_IDEMPOTENT_CACHE, KernelProperties.DEFAULT_PUSH_IDEMPOTENT_CACHE );
+        if( m_queueCapacity < 1 )
+        {
+            throw new IllegalArgumentException( "Property " + KernelProperties.PUSH_QUEUE + " must be at least 1 but is: " + m_queueCapacity );
+        }
+        if( m_metricsSample < 1 )
+        {
+            throw new IllegalArgumentException( "Property " + KernelProperties.PUSH_METRICS_SAMPLE + " must be at least 1 but is: " + m_metricsSample );
+        }
+    }
+}
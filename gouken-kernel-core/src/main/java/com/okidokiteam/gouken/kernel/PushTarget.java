@@ -0,0 +1,51 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+/**
+ * Supplies the vault side service instance push calls are dispatched to.
+ *
+ * @author Toni Menzel
+ */
+interface PushTarget
+{
+
+    /**
+     * @param args arguments of the call the service is needed for (may be used to choose among several services).
+     *             May be null.
+     *
+     * @return lease on the current service or null if no service is available right now.
+     */
+    Lease acquire( Object[] args );
+
+    /**
+     * Releases all services held by this target. It must not be used afterwards.
+     */
+    void close();
+
+    /**
+     * A service in use by one call. Must be released once the call returned.
+     */
+    interface Lease
+    {
+
+        Object getService();
+
+        void release();
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.util.List;
+
+/**
+ * Writes an {@link MAReport} one component at a time, so a report never has to be held in memory as a whole.
+ *
+ * @author Toni Menzel
+ */
+interface ReportWriter
+{
+
+    void component( ComponentGraph.Node node );
+
+    /**
+     * A component that left since the version a diff was asked for.
+     */
+    void removed( ComponentGraph.Node node );
+
+    /**
+     * Something that keeps components from being registered, most blocking first.
+     */
+    void cause( RootCauseAnalysis.Cause cause );
+
+    /**
+     * @param path root cause first, then the chain of components it blocks
+     */
+    void criticalPath( List<String> path );
+
+    /**
+     * @param version  version of the graph reported, negative if the report was not read from a graph
+     * @param complete true if all components were reported, false for a diff
+     */
+    void end( long version, boolean complete );
+}
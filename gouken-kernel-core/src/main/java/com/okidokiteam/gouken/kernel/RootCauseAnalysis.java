@@ -0,0 +1,575 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.felix.dm.ComponentDeclaration;
+
+/**
+ * Finds out why dependency manager components are not registered.
+ * <p/>
+ * Every unregistered component is a node. A missing required dependency either names a service that an
+ * unregistered component would provide (an edge from that provider to the component) or something no component
+ * provides, which is a root cause. Components that are not registered although nothing they need is missing
+ * (e.g. they depend on themselves) are root causes as well, and so are dependency cycles nothing else blocks.
+ * <p/>
+ * Strongly connected components are collapsed (Tarjan), then the root causes are pushed along the edges in
+ * topological order as bit sets. This takes O((V + E) * R / 64) for V components, E missing dependencies and R root causes,
+ * which is linear for any realistic number of root causes. The longest chain of blocked components from a root cause
+ * is the critical path.
+ *
+ * @author Toni Menzel
+ */
+public final class RootCauseAnalysis
+{
+
+    private static final Comparator<Cause> MOST_BLOCKED_FIRST = new Comparator<Cause>()
+    {
+        public int compare( Cause c1, Cause c2 )
+        {
+            if( c1.m_blocked != c2.m_blocked )
+            {
+                return c1.m_blocked > c2.m_blocked ? -1 : 1;
+            }
+            return c1.m_name.compareTo( c2.m_name );
+        }
+    };
+
+    private final List<Cause> m_causes;
+    private final List<String> m_criticalPath;
+
+    private RootCauseAnalysis( List<Cause> causes, List<String> criticalPath )
+    {
+        m_causes = Collections.unmodifiableList( causes );
+        m_criticalPath = Collections.unmodifiableList( criticalPath );
+    }
+
+    /**
+     * @param components all components, registered ones are used to tell what is provided
+     *
+     * @return root causes of all unregistered components
+     */
+    public static RootCauseAnalysis analyze( List<ComponentGraph.Node> components )
+    {
+        // nodes are the unregistered components.
+        List<ComponentGraph.Node> nodes = new ArrayList<ComponentGraph.Node>();
+        Map<String, List<Integer>> providers = new HashMap<String, List<Integer>>();
+        for( ComponentGraph.Node component : components )
+        {
+            if( component.getState() != ComponentDeclaration.STATE_REGISTERED )
+            {
+                for( String service : providedServices( component.getName() ) )
+                {
+                    List<Integer> list = providers.get( service );
+                    if( list == null )
+                    {
+                        list = new ArrayList<Integer>( 1 );
+                        providers.put( service, list );
+                    }
+                    list.add( nodes.size() );
+                }
+                nodes.add( component );
+            }
+        }
+        int n = nodes.size();
+        if( n == 0 )
+        {
+            return new RootCauseAnalysis( Collections.<Cause>emptyList(), Collections.<String>emptyList() );
+        }
+
+        // edges from blocking to blocked node, and from missing dependencies to the nodes that need them.
+        IntLists edges = new IntLists( n );
+        Map<String, Integer> missing = new LinkedHashMap<String, Integer>();
+        List<Cause> causes = new ArrayList<Cause>();
+        List<Integer> missingTargets = new ArrayList<Integer>();
+        for( int c = 0; c < n; c++ )
+        {
+            for( ComponentGraph.Edge dependency : nodes.get( c ).getDependencies() )
+            {
+                if( !dependency.isMissing() )
+                {
+                    continue;
+                }
+                List<Integer> blocking = "service".equals( dependency.getType() )
+                                         ? providers.get( requiredService( dependency.getName() ) )
+                                         : null;
+                if( blocking != null )
+                {
+                    for( int p : blocking )
+                    {
+                        if( p != c )
+                        {
+                            edges.add( p, c );
+                        }
+                    }
+                }
+                else
+                {
+                    Integer cause = missing.get( dependency.getName() );
+                    if( cause == null )
+                    {
+                        cause = causes.size();
+                        missing.put( dependency.getName(), cause );
+                        causes.add( new Cause( Cause.MISSING, dependency.getType(), dependency.getName() ) );
+                    }
+                    // pairs of cause and blocked node.
+                    missingTargets.add( cause );
+                    missingTargets.add( c );
+                }
+            }
+        }
+
+        int[] scc = new int[n];
+        int sccCount = tarjan( edges, scc );
+        int[] sccSize = new int[sccCount];
+        int[] sccFirst = new int[sccCount];
+        Arrays.fill( sccFirst, -1 );
+        for( int c = 0; c < n; c++ )
+        {
+            sccSize[ scc[ c ] ]++;
+            if( sccFirst[ scc[ c ] ] < 0 )
+            {
+                sccFirst[ scc[ c ] ] = c;
+            }
+        }
+        boolean[] hasIncoming = new boolean[sccCount];
+        for( int i = 0; i < missingTargets.size(); i += 2 )
+        {
+            hasIncoming[ scc[ missingTargets.get( i + 1 ) ] ] = true;
+        }
+        for( int p = 0; p < n; p++ )
+        {
+            for( int i = 0; i < edges.size( p ); i++ )
+            {
+                if( scc[ edges.get( p, i ) ] != scc[ p ] )
+                {
+                    hasIncoming[ scc[ edges.get( p, i ) ] ] = true;
+                }
+            }
+        }
+
+        List<List<Integer>> members = members( scc, sccCount );
+
+        // root causes: missing dependencies, then components and cycles nothing else blocks.
+        int[] causeScc = new int[causes.size() + sccCount];
+        Arrays.fill( causeScc, -1 );
+        for( int s = 0; s < sccCount; s++ )
+        {
+            if( hasIncoming[ s ] )
+            {
+                continue;
+            }
+            String name;
+            if( sccSize[ s ] == 1 )
+            {
+                name = nodes.get( sccFirst[ s ] ).getName();
+            }
+            else
+            {
+                StringBuilder sb = new StringBuilder();
+                for( int c : members.get( s ) )
+                {
+                    sb.append( sb.length() == 0 ? "" : " <-> " ).append( nodes.get( c ).getName() );
+                }
+                name = sb.toString();
+            }
+            causeScc[ causes.size() ] = s;
+            causes.add( new Cause( sccSize[ s ] == 1 ? Cause.UNREGISTERED : Cause.CYCLE, null, name ) );
+        }
+
+        int words = ( causes.size() + 63 ) / 64;
+        long[] masks = new long[sccCount * words];
+        // longest chain of blocked components reaching each scc, and where it came from.
+        int[] depth = new int[sccCount];
+        int[] from = new int[sccCount];
+        int[] fromCause = new int[sccCount];
+        Arrays.fill( from, -1 );
+        Arrays.fill( fromCause, -1 );
+        for( int r = 0; r < causes.size(); r++ )
+        {
+            if( causeScc[ r ] >= 0 )
+            {
+                set( masks, causeScc[ r ], words, r );
+                depth[ causeScc[ r ] ] = sccSize[ causeScc[ r ] ];
+                fromCause[ causeScc[ r ] ] = r;
+            }
+        }
+        for( int i = 0; i < missingTargets.size(); i += 2 )
+        {
+            int r = missingTargets.get( i );
+            int s = scc[ missingTargets.get( i + 1 ) ];
+            set( masks, s, words, r );
+            if( depth[ s ] < sccSize[ s ] )
+            {
+                depth[ s ] = sccSize[ s ];
+                fromCause[ s ] = r;
+            }
+        }
+
+        // tarjan numbers sccs in reverse topological order, so the highest number has no predecessors left.
+        for( int s = sccCount - 1; s >= 0; s-- )
+        {
+            for( int p : members.get( s ) )
+            {
+                for( int i = 0; i < edges.size( p ); i++ )
+                {
+                    int t = scc[ edges.get( p, i ) ];
+                    if( t == s )
+                    {
+                        continue;
+                    }
+                    for( int w = 0; w < words; w++ )
+                    {
+                        masks[ t * words + w ] |= masks[ s * words + w ];
+                    }
+                    if( depth[ s ] + sccSize[ t ] > depth[ t ] )
+                    {
+                        depth[ t ] = depth[ s ] + sccSize[ t ];
+                        from[ t ] = s;
+                        fromCause[ t ] = -1;
+                    }
+                }
+            }
+        }
+
+        for( int s = 0; s < sccCount; s++ )
+        {
+            for( int w = 0; w < words; w++ )
+            {
+                long bits = masks[ s * words + w ];
+                while( bits != 0 )
+                {
+                    int r = w * 64 + Long.numberOfTrailingZeros( bits );
+                    bits &= bits - 1;
+                    if( causeScc[ r ] != s )
+                    {
+                        causes.get( r ).m_blocked += sccSize[ s ];
+                    }
+                }
+            }
+        }
+
+        List<String> path = criticalPath( nodes, scc, members, causes, depth, from, fromCause );
+        Collections.sort( causes, MOST_BLOCKED_FIRST );
+        return new RootCauseAnalysis( causes, path );
+    }
+
+    /**
+     * @return root causes, the ones blocking the most components first
+     */
+    public List<Cause> getCauses()
+    {
+        return m_causes;
+    }
+
+    /**
+     * @return the longest chain of blocked components, starting with its root cause. Empty if nothing is blocked.
+     */
+    public List<String> getCriticalPath()
+    {
+        return m_criticalPath;
+    }
+
+    private static List<String> criticalPath( List<ComponentGraph.Node> nodes, int[] scc, List<List<Integer>> members,
+                                              List<Cause> causes, int[] depth, int[] from, int[] fromCause )
+    {
+        int deepest = -1;
+        for( int s = 0; s < depth.length; s++ )
+        {
+            if( deepest < 0 || depth[ s ] > depth[ deepest ] )
+            {
+                deepest = s;
+            }
+        }
+        List<String> path = new ArrayList<String>();
+        int s = deepest;
+        while( s >= 0 )
+        {
+            List<Integer> scc0 = members.get( s );
+            if( fromCause[ s ] >= 0 && causes.get( fromCause[ s ] ).m_kind == Cause.MISSING )
+            {
+                for( int i = scc0.size() - 1; i >= 0; i-- )
+                {
+                    path.add( nodes.get( scc0.get( i ) ).getName() );
+                }
+                path.add( causes.get( fromCause[ s ] ).m_name );
+                break;
+            }
+            for( int i = scc0.size() - 1; i >= 0; i-- )
+            {
+                path.add( nodes.get( scc0.get( i ) ).getName() );
+            }
+            s = from[ s ];
+        }
+        Collections.reverse( path );
+        return path;
+    }
+
+    private static void set( long[] masks, int s, int words, int bit )
+    {
+        masks[ s * words + ( bit >>> 6 ) ] |= 1L << ( bit & 63 );
+    }
+
+    private static List<List<Integer>> members( int[] scc, int sccCount )
+    {
+        List<List<Integer>> members = new ArrayList<List<Integer>>( sccCount );
+        for( int s = 0; s < sccCount; s++ )
+        {
+            members.add( new ArrayList<Integer>( 1 ) );
+        }
+        for( int c = 0; c < scc.length; c++ )
+        {
+            members.get( scc[ c ] ).add( c );
+        }
+        return members;
+    }
+
+    /**
+     * Iterative Tarjan, so deep chains cannot overflow the stack.
+     *
+     * @return number of strongly connected components. They are numbered in reverse topological order.
+     */
+    private static int tarjan( IntLists edges, int[] scc )
+    {
+        int n = scc.length;
+        int[] index = new int[n];
+        int[] low = new int[n];
+        int[] next = new int[n];
+        boolean[] onStack = new boolean[n];
+        int[] stack = new int[n];
+        int[] work = new int[n];
+        Arrays.fill( index, -1 );
+        int counter = 0;
+        int sp = 0;
+        int count = 0;
+        for( int start = 0; start < n; start++ )
+        {
+            if( index[ start ] >= 0 )
+            {
+                continue;
+            }
+            int wp = 0;
+            work[ wp++ ] = start;
+            index[ start ] = low[ start ] = counter++;
+            stack[ sp++ ] = start;
+            onStack[ start ] = true;
+            while( wp > 0 )
+            {
+                int v = work[ wp - 1 ];
+                if( next[ v ] < edges.size( v ) )
+                {
+                    int w = edges.get( v, next[ v ]++ );
+                    if( index[ w ] < 0 )
+                    {
+                        index[ w ] = low[ w ] = counter++;
+                        stack[ sp++ ] = w;
+                        onStack[ w ] = true;
+                        work[ wp++ ] = w;
+                    }
+                    else if( onStack[ w ] )
+                    {
+                        low[ v ] = Math.min( low[ v ], index[ w ] );
+                    }
+                    continue;
+                }
+                wp--;
+                if( wp > 0 )
+                {
+                    int parent = work[ wp - 1 ];
+                    low[ parent ] = Math.min( low[ parent ], low[ v ] );
+                }
+                if( low[ v ] == index[ v ] )
+                {
+                    int w;
+                    do
+                    {
+                        w = stack[ --sp ];
+                        onStack[ w ] = false;
+                        scc[ w ] = count;
+                    }
+                    while( w != v );
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Services a component provides, from its dependency manager name: "a.Foo,b.Bar(key=value)".
+     */
+    static List<String> providedServices( String componentName )
+    {
+        String names = componentName;
+        int props = names.indexOf( '(' );
+        if( props >= 0 )
+        {
+            names = names.substring( 0, props );
+        }
+        List<String> services = new ArrayList<String>();
+        for( String name : names.split( "," ) )
+        {
+            name = name.trim();
+            if( name.length() > 0 )
+            {
+                services.add( name );
+            }
+        }
+        return services;
+    }
+
+    /**
+     * Service a dependency needs, from its dependency manager name: "a.Foo (filter)" or "a.Foo{service.id=1}".
+     */
+    static String requiredService( String dependencyName )
+    {
+        int end = dependencyName.length();
+        for( int i = 0; i < dependencyName.length(); i++ )
+        {
+            char c = dependencyName.charAt( i );
+            if( c == ' ' || c == '(' || c == '{' )
+            {
+                end = i;
+                break;
+            }
+        }
+        return dependencyName.substring( 0, end );
+    }
+
+    /**
+     * Something that keeps components from being registered.
+     */
+    public static final class Cause
+    {
+
+        /**
+         * A required dependency nothing provides.
+         */
+        public static final String MISSING = "missing";
+        /**
+         * A component that is not registered although nothing it needs is missing.
+         */
+        public static final String UNREGISTERED = "unregistered";
+        /**
+         * Components that need each other.
+         */
+        public static final String CYCLE = "cycle";
+
+        private final String m_kind;
+        private final String m_type;
+        private final String m_name;
+        private int m_blocked;
+
+        Cause( String kind, String type, String name )
+        {
+            m_kind = kind;
+            m_type = type;
+            m_name = name;
+        }
+
+        /**
+         * @return {@link #MISSING}, {@link #UNREGISTERED} or {@link #CYCLE}
+         */
+        public String getKind()
+        {
+            return m_kind;
+        }
+
+        /**
+         * @return dependency type (e.g. service, configuration) of missing dependencies, null otherwise
+         */
+        public String getType()
+        {
+            return m_type;
+        }
+
+        /**
+         * @return name of the missing dependency or the blocking component(s)
+         */
+        public String getName()
+        {
+            return m_name;
+        }
+
+        /**
+         * @return number of components this keeps from being registered, not counting blocking components themselves
+         */
+        public int getBlocked()
+        {
+            return m_blocked;
+        }
+
+        @Override
+        public String toString()
+        {
+            String what = m_type == null ? m_kind + " " + m_name : m_kind + " " + m_type + " " + m_name;
+            return what + " blocks " + m_blocked + ( m_blocked == 1 ? " component" : " components" );
+        }
+    }
+
+    /**
+     * Growable int lists, one per node, without boxing.
+     */
+    private static class IntLists
+    {
+
+        private final int[][] m_values;
+        private final int[] m_sizes;
+
+        IntLists( int lists )
+        {
+            m_values = new int[lists][];
+            m_sizes = new int[lists];
+        }
+
+        void add( int list, int value )
+        {
+            int[] values = m_values[ list ];
+            if( values == null )
+            {
+                values = new int[2];
+            }
+            else if( m_sizes[ list ] == values.length )
+            {
+                int[] grown = new int[values.length * 2];
+                System.arraycopy( values, 0, grown, 0, values.length );
+                values = grown;
+            }
+            values[ m_sizes[ list ]++ ] = value;
+            m_values[ list ] = values;
+        }
+
+        int size( int list )
+        {
+            return m_sizes[ list ];
+        }
+
+        int get( int list, int i )
+        {
+            return m_values[ list ][ i ];
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * Where a vault start spent its time.
+ * Holds nanosecond timings per startup phase, per management agent artifact and per started bundle.
+ * Phases also carry the bytes allocated by the starting thread, if the JVM can tell (-1 otherwise).
+ * <p/>
+ * Get it from {@link CoreVault#getStartupProfile()} after start returned. Use {@link #toJson()} to export it.
+ *
+ * @author Toni Menzel
+ */
+public class StartupProfile
+{
+
+    private static final Allocations ALLOCATIONS = new Allocations();
+
+    private final long m_begin;
+    private long m_totalNanos = -1;
+    private final List<Phase> m_phases = new ArrayList<Phase>();
+    private final List<ArtifactTiming> m_artifacts = new ArrayList<ArtifactTiming>();
+    private final List<BundleTiming> m_bundles = new ArrayList<BundleTiming>();
+
+    StartupProfile()
+    {
+        m_begin = System.nanoTime();
+    }
+
+    synchronized void phase( String name, Probe probe )
+    {
+        m_phases.add( new Phase( name, probe.elapsedNanos(), probe.allocatedBytes() ) );
+    }
+
+    synchronized void artifact( String location, String artifact, String action, long fetchNanos, long installNanos, long size )
+    {
+        m_artifacts.add( new ArtifactTiming( location, artifact, action, fetchNanos, installNanos, size ) );
+    }
+
+    synchronized void bundle( Bundle bundle, long startNanos )
+    {
+        m_bundles.add( new BundleTiming( bundle.getBundleId(), bundle.getSymbolicName(), startNanos ) );
+    }
+
+    synchronized void finish()
+    {
+        m_totalNanos = System.nanoTime() - m_begin;
+    }
+
+    /**
+     * @return wall clock time of the whole start or -1 if it has not finished (successfully).
+     */
+    public synchronized long getTotalNanos()
+    {
+        return m_totalNanos;
+    }
+
+    public synchronized List<Phase> getPhases()
+    {
+        return Collections.unmodifiableList( new ArrayList<Phase>( m_phases ) );
+    }
+
+    public synchronized List<ArtifactTiming> getArtifacts()
+    {
+        return Collections.unmodifiableList( new ArrayList<ArtifactTiming>( m_artifacts ) );
+    }
+
+    public synchronized List<BundleTiming> getBundles()
+    {
+        return Collections.unmodifiableList( new ArrayList<BundleTiming>( m_bundles ) );
+    }
+
+    public synchronized String toJson()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append( "{\"totalNanos\":" ).append( m_totalNanos );
+        sb.append( ",\"phases\":[" );
+        for( int i = 0; i < m_phases.size(); i++ )
+        {
+            Phase p = m_phases.get( i );
+            sb.append( i > 0 ? "," : "" ).append( "{\"name\":" );
+            string( sb, p.getName() );
+            sb.append( ",\"nanos\":" ).append( p.getNanos() );
+            sb.append( ",\"allocatedBytes\":" ).append( p.getAllocatedBytes() ).append( '}' );
+        }
+        sb.append( "],\"artifacts\":[" );
+        for( int i = 0; i < m_artifacts.size(); i++ )
+        {
+            ArtifactTiming a = m_artifacts.get( i );
+            sb.append( i > 0 ? "," : "" ).append( "{\"location\":" );
+            string( sb, a.getLocation() );
+            sb.append( ",\"artifact\":" );
+            string( sb, a.getArtifact() );
+            sb.append( ",\"action\":" );
+            string( sb, a.getAction() );
+            sb.append( ",\"fetchNanos\":" ).append( a.getFetchNanos() );
+            sb.append( ",\"installNanos\":" ).append( a.getInstallNanos() );
+            sb.append( ",\"size\":" ).append( a.getSize() ).append( '}' );
+        }
+        sb.append( "],\"bundles\":[" );
+        for( int i = 0; i < m_bundles.size(); i++ )
+        {
+            BundleTiming b = m_bundles.get( i );
+            sb.append( i > 0 ? "," : "" ).append( "{\"id\":" ).append( b.getBundleId() );
+            sb.append( ",\"symbolicName\":" );
+            string( sb, b.getSymbolicName() );
+            sb.append( ",\"startNanos\":" ).append( b.getStartNanos() ).append( '}' );
+        }
+        sb.append( "]}" );
+        return sb.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return toJson();
+    }
+
+    static void string( StringBuilder sb, String s )
+    {
+        if( s == null )
+        {
+            sb.append( "null" );
+            return;
+        }
+        sb.append( '"' );
+        for( int i = 0; i < s.length(); i++ )
+        {
+            char c = s.charAt( i );
+            switch( c )
+            {
+                case '"':
+                    sb.append( "\\\"" );
+                    break;
+                case '\\':
+                    sb.append( "\\\\" );
+                    break;
+                case '\n':
+                    sb.append( "\\n" );
+                    break;
+                case '\r':
+                    sb.append( "\\r" );
+                    break;
+                case '\t':
+                    sb.append( "\\t" );
+                    break;
+                default:
+                    if( c < 0x20 )
+                    {
+                        sb.append( String.format( "\\u%04x", (int) c ) );
+                    }
+                    else
+                    {
+                        sb.append( c );
+                    }
+            }
+        }
+        sb.append( '"' );
+    }
+
+    /**
+     * Measures elapsed time and allocation on the thread that created it.
+     */
+    static final class Probe
+    {
+
+        private final long m_nanos;
+        private final long m_allocated;
+
+        private Probe()
+        {
+            m_allocated = ALLOCATIONS.current();
+            m_nanos = System.nanoTime();
+        }
+
+        static Probe start()
+        {
+            return new Probe();
+        }
+
+        long elapsedNanos()
+        {
+            return System.nanoTime() - m_nanos;
+        }
+
+        long allocatedBytes()
+        {
+            long now = ALLOCATIONS.current();
+            return now < 0 || m_allocated < 0 ? -1 : now - m_allocated;
+        }
+    }
+
+    /**
+     * Per thread allocation counter of HotSpot (com.sun.management.ThreadMXBean), looked up reflectively.
+     */
+    private static final class Allocations
+    {
+
+        private final ThreadMXBean m_bean;
+        private final Method m_allocatedBytes;
+
+        Allocations()
+        {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            Method method = null;
+            try
+            {
+                Class<?> type = Class.forName( "com.sun.management.ThreadMXBean" );
+                if( type.isInstance( bean )
+                    && (Boolean) type.getMethod( "isThreadAllocatedMemorySupported" ).invoke( bean )
+                    && (Boolean) type.getMethod( "isThreadAllocatedMemoryEnabled" ).invoke( bean ) )
+                {
+                    method = type.getMethod( "getThreadAllocatedBytes", long.class );
+                }
+            } catch( Exception e )
+            {
+                // not a HotSpot JVM.
+            }
+            m_bean = bean;
+            m_allocatedBytes = method;
+        }
+
+        long current()
+        {
+            if( m_allocatedBytes == null )
+            {
+                return -1;
+            }
+            try
+            {
+                return (Long) m_allocatedBytes.invoke( m_bean, Thread.currentThread().getId() );
+            } catch( Exception e )
+            {
+                return -1;
+            }
+        }
+    }
+
+    public static class Phase
+    {
+
+        private final String m_name;
+        private final long m_nanos;
+        private final long m_allocatedBytes;
+
+        Phase( String name, long nanos, long allocatedBytes )
+        {
+            m_name = name;
+            m_nanos = nanos;
+            m_allocatedBytes = allocatedBytes;
+        }
+
+        public String getName()
+        {
+            return m_name;
+        }
+
+        public long getNanos()
+        {
+            return m_nanos;
+        }
+
+        /**
+         * @return bytes allocated by the starting thread during this phase or -1 if unknown.
+         */
+        public long getAllocatedBytes()
+        {
+            return m_allocatedBytes;
+        }
+    }
+
+    public static class ArtifactTiming
+    {
+
+        private final String m_location;
+        private final String m_artifact;
+        private final String m_action;
+        private final long m_fetchNanos;
+        private final long m_installNanos;
+        private final long m_size;
+
+        ArtifactTiming( String location, String artifact, String action, long fetchNanos, long installNanos, long size )
+        {
+            m_location = location;
+            m_artifact = artifact;
+            m_action = action;
+            m_fetchNanos = fetchNanos;
+            m_installNanos = installNanos;
+            m_size = size;
+        }
+
+        public String getLocation()
+        {
+            return m_location;
+        }
+
+        public String getArtifact()
+        {
+            return m_artifact;
+        }
+
+        /**
+         * @return installed, updated or reused.
+         */
+        public String getAction()
+        {
+            return m_action;
+        }
+
+        public long getFetchNanos()
+        {
+            return m_fetchNanos;
+        }
+
+        public long getInstallNanos()
+        {
+            return m_installNanos;
+        }
+
+        public long getSize()
+        {
+            return m_size;
+        }
+    }
+
+    public static class BundleTiming
+    {
+
+        private final long m_bundleId;
+        private final String m_symbolicName;
+        private final long m_startNanos;
+
+        BundleTiming( long bundleId, String symbolicName, long startNanos )
+        {
+            m_bundleId = bundleId;
+            m_symbolicName = symbolicName;
+            m_startNanos = startNanos;
+        }
+
+        public long getBundleId()
+        {
+            return m_bundleId;
+        }
+
+        public String getSymbolicName()
+        {
+            return m_symbolicName;
+        }
+
+        public long getStartNanos()
+        {
+            return m_startNanos;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * The classic text format of the dm shell command, optionally compacted.
+ *
+ * @author Toni Menzel
+ */
+class TextReportWriter implements ReportWriter
+{
+
+    private final PrintStream m_out;
+    private final boolean m_nodeps;
+    private final boolean m_compact;
+    private long m_lastBundleId = -1;
+
+    TextReportWriter( PrintStream out, boolean nodeps, boolean compact )
+    {
+        m_out = out;
+        m_nodeps = nodeps;
+        m_compact = compact;
+    }
+
+    public void component( ComponentGraph.Node sc )
+    {
+        bundle( sc );
+        if (m_compact)
+        {
+            m_out.print( " " + compactName( sc.getName() ) + " " + compactState( sc.getStateName() ) );
+        } else
+        {
+            m_out.println( "  " + sc.getName() + " " + sc.getStateName() );
+        }
+        if (!m_nodeps)
+        {
+            List<ComponentGraph.Edge> dependencies = sc.getDependencies();
+            if (dependencies.size() > 0)
+            {
+                if (m_compact)
+                {
+                    m_out.print( '(' );
+                }
+                for (int j = 0; j < dependencies.size(); j++)
+                {
+                    ComponentGraph.Edge dep = dependencies.get( j );
+                    if (m_compact)
+                    {
+                        if (j > 0)
+                        {
+                            m_out.print( ' ' );
+                        }
+                        m_out.print( compactName( dep.getName() ) + " " + compactState( dep.getType() ) + " " + compactState( dep.getStateName() ) );
+                    } else
+                    {
+                        m_out.println( "    " + dep.getName() + " " + dep.getType() + " " + dep.getStateName() );
+                    }
+                }
+                if (m_compact)
+                {
+                    m_out.print( ')' );
+                }
+            }
+        }
+        if (m_compact)
+        {
+            m_out.println();
+        }
+    }
+
+    public void removed( ComponentGraph.Node sc )
+    {
+        bundle( sc );
+        if (m_compact)
+        {
+            m_out.println( " " + compactName( sc.getName() ) + " R" );
+        } else
+        {
+            m_out.println( "  " + sc.getName() + " removed" );
+        }
+    }
+
+    public void cause( RootCauseAnalysis.Cause cause )
+    {
+        m_out.println( cause );
+    }
+
+    public void criticalPath( List<String> path )
+    {
+        if (!path.isEmpty())
+        {
+            StringBuilder sb = new StringBuilder( "critical path: " );
+            for (int i = 0; i < path.size(); i++)
+            {
+                if (i > 0)
+                {
+                    sb.append( " -> " );
+                }
+                sb.append( m_compact ? compactName( path.get( i ) ) : path.get( i ) );
+            }
+            m_out.println( sb );
+        }
+    }
+
+    public void end( long version, boolean complete )
+    {
+        if (version >= 0)
+        {
+            m_out.println( "version " + version );
+        }
+    }
+
+    private void bundle( ComponentGraph.Node sc )
+    {
+        long bundleId = sc.getBundleId();
+        if (m_lastBundleId != bundleId)
+        {
+            m_lastBundleId = bundleId;
+            if (m_compact)
+            {
+                m_out.println( "[" + bundleId + "] " + compactName( sc.getBundleName() ) );
+            } else
+            {
+                m_out.println( "[" + bundleId + "] " + sc.getBundleName() );
+            }
+        }
+    }
+
+    /**
+     * Compact names that look like state strings. State strings consist of
+     * one or more words. Each word will be shortened to the first letter,
+     * all letters concatenated and uppercased.
+     */
+    private String compactState( String input )
+    {
+        StringBuffer output = new StringBuffer();
+        StringTokenizer st = new StringTokenizer( input );
+        while (st.hasMoreTokens())
+        {
+            output.append( st.nextToken().toUpperCase().charAt( 0 ) );
+        }
+        return output.toString();
+    }
+
+    /**
+     * Compacts names that look like fully qualified class names. All packages
+     * will be shortened to the first letter, except for the last one. So
+     * something like "org.apache.felix.MyClass" will become "o.a.f.MyClass".
+     */
+    private String compactName( String input )
+    {
+        StringBuffer output = new StringBuffer();
+        int lastIndex = 0;
+        for (int i = 0; i < input.length(); i++)
+        {
+            char c = input.charAt( i );
+            switch (c) {
+            case '.':
+                output.append( input.charAt( lastIndex ) );
+                output.append( '.' );
+                lastIndex = i + 1;
+                break;
+            case ' ':
+            case ',':
+                if (lastIndex < i)
+                {
+                    output.append( input.substring( lastIndex, i ) );
+                }
+                output.append( c );
+                lastIndex = i + 1;
+                break;
+            }
+        }
+        if (lastIndex < input.length())
+        {
+            output.append( input.substring( lastIndex ) );
+        }
+        return output.toString();
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2010 Toni Menzel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Keeps the registered services of the push type in a volatile array that is maintained by service events.
+ * A call in steady state is a field read plus the choice of the {@link DispatchPolicy}.
+ * With the default (best ranked) policy only the best service is held, so no other service is used needlessly.
+ * <p/>
+ * Registration, unregistration and ranking changes (MODIFIED) rebuild the array, best service first
+ * (highest service.ranking, then lowest service.id) just like {@link BundleContext#getServiceReference(String)} orders them.
+ *
+ * @author Toni Menzel
+ */
+class TrackedPushTarget implements PushTarget, ServiceListener
+{
+
+    private static final TrackedLease[] NONE = new TrackedLease[0];
+
+    private final BundleContext m_context;
+    private final String m_type;
+    private final Runnable m_changeListener;
+    private final DispatchPolicy m_policy;
+    private final boolean m_best;
+    private final boolean m_countOutstanding;
+    private volatile TrackedLease[] m_services = NONE;
+    private boolean m_closed;
+
+    /**
+     * @param context              context to track services in
+     * @param type                 service type (objectClass) to track
+     * @param changeListener run after every change of the tracked services. May be null.
+     */
+    TrackedPushTarget( BundleContext context, String type, Runnable changeListener )
+    {
+        this( context, type, changeListener, new DispatchPolicy.Best() );
+    }
+
+    /**
+     * @param context              context to track services in
+     * @param type                 service type (objectClass) to track
+     * @param changeListener run after every change of the tracked services. May be null.
+     * @param policy               chooses among several registered services
+     */
+    TrackedPushTarget( BundleContext context, String type, Runnable changeListener, DispatchPolicy policy )
+    {
+        m_context = context;
+        m_type = type;
+        m_changeListener = changeListener;
+        m_policy = policy;
+        m_best = policy instanceof DispatchPolicy.Best;
+        m_countOutstanding = policy.tracksOutstanding();
+        try
+        {
+            m_context.addServiceListener( this, "(" + Constants.OBJECTCLASS + "=" + type + ")" );
+        } catch( InvalidSyntaxException e )
+        {
+            throw new IllegalArgumentException( "Cannot track services of type " + type, e );
+        }
+        select( null );
+    }
+
+    public Lease acquire( Object[] args )
+    {
+        TrackedLease[] services = m_services;
+        if( services.length == 0 )
+        {
+            return null;
+        }
+        if( m_best || services.length == 1 )
+        {
+            return services[ 0 ].acquire();
+        }
+        return services[ m_policy.choose( services, args ) ].acquire();
+    }
+
+    public void serviceChanged( ServiceEvent event )
+    {
+        select( event.getType() == ServiceEvent.UNREGISTERING ? event.getServiceReference() : null );
+        if( m_changeListener != null )
+        {
+            m_changeListener.run();
+        }
+    }
+
+    public synchronized void close()
+    {
+        m_closed = true;
+        try
+        {
+            m_context.removeServiceListener( this );
+        } catch( IllegalStateException e )
+        {
+            // context is not valid anymore.
+        }
+        TrackedLease[] services = m_services;
+        m_services = NONE;
+        for( TrackedLease lease : services )
+        {
+            ungetQuietly( lease.m_ref );
+        }
+    }
+
+    /**
+     * @param leaving service that is being unregistered and must not be selected again. May be null.
+     */
+    private synchronized void select( ServiceReference leaving )
+    {
+        if( m_closed )
+        {
+            return;
+        }
+        ServiceReference[] refs = registered( leaving );
+        TrackedLease[] current = m_services;
+        if( sameOrder( current, refs ) )
+        {
+            return;
+        }
+
+        Map<ServiceReference, TrackedLease> kept = new HashMap<ServiceReference, TrackedLease>();
+        for( TrackedLease lease : current )
+        {
+            kept.put( lease.m_ref, lease );
+        }
+        List<TrackedLease> next = new ArrayList<TrackedLease>( refs.length );
+        for( ServiceReference ref : refs )
+        {
+            TrackedLease lease = kept.remove( ref );
+            if( lease == null )
+            {
+                Object service = m_context.getService( ref );
+                if( service == null )
+                {
+                    continue;
+                }
+                lease = new TrackedLease( ref, service, m_countOutstanding );
+            }
+            next.add( lease );
+        }
+        m_services = next.toArray( new TrackedLease[next.size()] );
+        for( TrackedLease gone : kept.values() )
+        {
+            ungetQuietly( gone.m_ref );
+        }
+    }
+
+    /**
+     * @return registered services except leaving, best first.
+     */
+    private ServiceReference[] registered( ServiceReference leaving )
+    {
+        ServiceReference[] refs;
+        try
+        {
+            refs = m_context.getServiceReferences( m_type, null );
+        } catch( InvalidSyntaxException e )
+        {
+            throw new IllegalStateException( e );
+        } catch( IllegalStateException e )
+        {
+            // framework is going down.
+            return new ServiceReference[0];
+        }
+        if( refs == null )
+        {
+            return new ServiceReference[0];
+        }
+        List<ServiceReference> list = new ArrayList<ServiceReference>( refs.length );
+        for( ServiceReference ref : refs )
+        {
+            if( !ref.equals( leaving ) )
+            {
+                list.add( ref );
+            }
+        }
+        ServiceReference[] sorted = list.toArray( new ServiceReference[list.size()] );
+        Arrays.sort( sorted, new Comparator<ServiceReference>()
+        {
+            public int compare( ServiceReference a, ServiceReference b )
+            {
+                return b.compareTo( a );
+            }
+        }
+        );
+        if( m_best && sorted.length > 1 )
+        {
+            return new ServiceReference[]{ sorted[ 0 ] };
+        }
+        return sorted;
+    }
+
+    private static boolean sameOrder( TrackedLease[] current, ServiceReference[] refs )
+    {
+        if( current.length != refs.length )
+        {
+            return false;
+        }
+        for( int i = 0; i < refs.length; i++ )
+        {
+            if( !current[ i ].m_ref.equals( refs[ i ] ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void ungetQuietly( ServiceReference ref )
+    {
+        try
+        {
+            m_context.ungetService( ref );
+        } catch( IllegalStateException e )
+        {
+            // context is not valid anymore.
+        }
+    }
+
+    private static class TrackedLease implements Lease, DispatchPolicy.Candidate
+    {
+
+        private final ServiceReference m_ref;
+        private final Object m_service;
+        private final long m_serviceId;
+        private final AtomicInteger m_outstanding;
+
+        TrackedLease( ServiceReference ref, Object service, boolean countOutstanding )
+        {
+            m_ref = ref;
+            m_service = service;
+            Object id = ref.getProperty( Constants.SERVICE_ID );
+            m_serviceId = id instanceof Number ? ( (Number) id ).longValue() : 0;
+            m_outstanding = countOutstanding ? new AtomicInteger() : null;
+        }
+
+        TrackedLease acquire()
+        {
+            if( m_outstanding != null )
+            {
+                m_outstanding.incrementAndGet();
+            }
+            return this;
+        }
+
+        public Object getService()
+        {
+            return m_service;
+        }
+
+        public void release()
+        {
+            // the service stays in use until the target drops it, only the calls in flight are counted.
+            if( m_outstanding != null )
+            {
+                m_outstanding.decrementAndGet();
+            }
+        }
+
+        public long getServiceId()
+        {
+            return m_serviceId;
+        }
+
+        public int getOutstanding()
+        {
+            return m_outstanding == null ? 0 : m_outstanding.get();
+        }
+    }
+}
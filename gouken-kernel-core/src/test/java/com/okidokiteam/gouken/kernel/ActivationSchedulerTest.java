@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import static org.hamcrest.core.Is.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.okidokiteam.gouken.KernelException;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+/**
+ *
+ */
+public class ActivationSchedulerTest
+{
+
+    @Test
+    public void testExporterStartsBeforeImporter()
+        throws Exception
+    {
+        Bundle api = bundle( 1 );
+        Bundle impl = bundle( 2 );
+        Bundle other = bundle( 3 );
+
+        PackageAdmin packageAdmin = mock( PackageAdmin.class );
+        ExportedPackage export = mock( ExportedPackage.class );
+        when( export.getImportingBundles() ).thenReturn( new Bundle[]{ impl } );
+        when( packageAdmin.getExportedPackages( api ) ).thenReturn( new ExportedPackage[]{ export } );
+
+        // impl is listed first but must still start after api.
+        new ActivationScheduler( 4, new StartupProfile() ).start( context( packageAdmin ), Arrays.asList( impl, api, other ) );
+
+        InOrder order = inOrder( api, impl );
+        order.verify( api ).start();
+        order.verify( impl ).start();
+        verify( other ).start();
+        verify( packageAdmin ).resolveBundles( any( Bundle[].class ) );
+    }
+
+    @Test
+    public void testFailureReportsBundleId()
+        throws Exception
+    {
+        Bundle b1 = bundle( 1 );
+        Bundle b2 = bundle( 42 );
+        doThrow( new BundleException( "boom" ) ).when( b2 ).start();
+
+        try
+        {
+            new ActivationScheduler( 4, new StartupProfile() ).start( context( mock( PackageAdmin.class ) ), Arrays.asList( b1, b2 ) );
+            fail( "Expected KernelException" );
+        } catch( KernelException e )
+        {
+            assertTrue( e.getMessage().endsWith( "Bundle ID: 42" ) );
+        }
+    }
+
+    @Test
+    public void testCycleDoesNotSerializeUnrelatedBundles()
+        throws Exception
+    {
+        Bundle a = bundle( 1 );
+        Bundle b = bundle( 2 );
+        Bundle c = bundle( 3 );
+        Bundle d = bundle( 4 );
+
+        // a and b import from each other, d imports from b, c is independent.
+        PackageAdmin packageAdmin = mock( PackageAdmin.class );
+        ExportedPackage fromA = mock( ExportedPackage.class );
+        ExportedPackage fromB = mock( ExportedPackage.class );
+        when( fromA.getImportingBundles() ).thenReturn( new Bundle[]{ b } );
+        when( fromB.getImportingBundles() ).thenReturn( new Bundle[]{ a, d } );
+        when( packageAdmin.getExportedPackages( a ) ).thenReturn( new ExportedPackage[]{ fromA } );
+        when( packageAdmin.getExportedPackages( b ) ).thenReturn( new ExportedPackage[]{ fromB } );
+
+        Map<Bundle, Set<Bundle>> graph = new ActivationScheduler( 4, new StartupProfile() ).dependencies( packageAdmin, Arrays.asList( d, c, b, a ) );
+        List<List<Bundle>> components = ActivationScheduler.components( graph );
+        assertThat( components.size(), is( 3 ) );
+        assertThat( components.get( 0 ), is( Arrays.asList( d ) ) );
+        assertThat( components.get( 1 ), is( Arrays.asList( c ) ) );
+        assertThat( components.get( 2 ), is( Arrays.asList( b, a ) ) );
+
+        new ActivationScheduler( 4, new StartupProfile() ).start( context( packageAdmin ), Arrays.asList( d, c, b, a ) );
+
+        // the cycle starts in list order, d still waits for it.
+        InOrder order = inOrder( a, b, d );
+        order.verify( b ).start();
+        order.verify( a ).start();
+        order.verify( d ).start();
+        verify( c ).start();
+    }
+
+    @Test
+    public void testRuntimeExceptionInSerialStartReportsBundleId()
+        throws Exception
+    {
+        Bundle b1 = bundle( 1 );
+        Bundle b2 = bundle( 42 );
+        doThrow( new IllegalStateException( "boom" ) ).when( b2 ).start();
+
+        try
+        {
+            // a single thread starts serially.
+            new ActivationScheduler( 1, new StartupProfile() ).start( context( mock( PackageAdmin.class ) ), Arrays.asList( b1, b2 ) );
+            fail( "Expected KernelException" );
+        } catch( KernelException e )
+        {
+            assertTrue( e.getMessage().endsWith( "Bundle ID: 42" ) );
+            assertTrue( e.getCause() instanceof IllegalStateException );
+        }
+    }
+
+    private BundleContext context( PackageAdmin packageAdmin )
+    {
+        BundleContext context = mock( BundleContext.class );
+        ServiceReference ref = mock( ServiceReference.class );
+        when( context.getServiceReference( PackageAdmin.class.getName() ) ).thenReturn( ref );
+        when( context.getService( ref ) ).thenReturn( packageAdmin );
+        return context;
+    }
+
+    private Bundle bundle( long id )
+    {
+        Bundle b = mock( Bundle.class );
+        when( b.getBundleId() ).thenReturn( id );
+        return b;
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import static org.hamcrest.core.Is.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Properties;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import com.okidokiteam.gouken.FileArtifact;
+import com.okidokiteam.gouken.KernelException;
+import com.okidokiteam.gouken.cache.ArtifactCache;
+import com.okidokiteam.gouken.cache.CachedArtifact;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.ops4j.base.io.InputStreamSource;
+import org.ops4j.pax.repository.Artifact;
+import org.ops4j.pax.repository.RepositoryException;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+/**
+ *
+ */
+public class ArtifactInstallerTest
+{
+
+    private static final byte[] CONTENT = new byte[]{ 1, 2, 3 };
+
+    @Test
+    public void testInstallsInArtifactOrder()
+        throws Exception
+    {
+        BundleContext context = mock( BundleContext.class );
+        Bundle b1 = mock( Bundle.class );
+        Bundle b2 = mock( Bundle.class );
+        Bundle b3 = mock( Bundle.class );
+        when( context.installBundle( eq( "MA1" ), any( InputStream.class ) ) ).thenReturn( b1 );
+        when( context.installBundle( eq( "MA2" ), any( InputStream.class ) ) ).thenReturn( b2 );
+        when( context.installBundle( eq( "MA3" ), any( InputStream.class ) ) ).thenReturn( b3 );
+
+        StartupProfile profile = new StartupProfile();
+        List<Bundle> bundles = new ArtifactInstaller( 2, null, false, profile ).install( context, new Artifact[]{ artifact(), artifact(), artifact() } );
+
+        assertThat( bundles.size(), is( 3 ) );
+        assertThat( profile.getArtifacts().size(), is( 3 ) );
+        assertThat( profile.getArtifacts().get( 1 ).getLocation(), is( "MA2" ) );
+        assertThat( profile.getArtifacts().get( 1 ).getSize(), is( (long) CONTENT.length ) );
+        assertThat( bundles.get( 0 ), is( b1 ) );
+        assertThat( bundles.get( 2 ), is( b3 ) );
+        InOrder order = inOrder( context );
+        order.verify( context ).installBundle( eq( "MA1" ), any( InputStream.class ) );
+        order.verify( context ).installBundle( eq( "MA2" ), any( InputStream.class ) );
+        order.verify( context ).installBundle( eq( "MA3" ), any( InputStream.class ) );
+    }
+
+    @Test
+    public void testRollbackOnFailingFetch()
+        throws Exception
+    {
+        BundleContext context = mock( BundleContext.class );
+        Bundle b1 = mock( Bundle.class );
+        when( context.installBundle( eq( "MA1" ), any( InputStream.class ) ) ).thenReturn( b1 );
+
+        Artifact broken = mock( Artifact.class );
+        when( broken.getContent() ).thenThrow( new RepositoryException( "not found" ) );
+
+        try
+        {
+            new ArtifactInstaller( 4 ).install( context, new Artifact[]{ artifact(), broken } );
+            fail( "Expected KernelException" );
+        } catch( KernelException e )
+        {
+            assertTrue( e.getCause() instanceof RepositoryException );
+        }
+        verify( b1 ).uninstall();
+        verify( context, never() ).installBundle( eq( "MA2" ), any( InputStream.class ) );
+    }
+
+    @Test
+    public void testWarmStartReusesUnchangedBundles()
+        throws Exception
+    {
+        File state = File.createTempFile( "gouken", ".digests" );
+        state.deleteOnExit();
+        FileWriter writer = new FileWriter( state );
+        writer.write( "MA1=" + ArtifactInstaller.Content.hex( ArtifactInstaller.Content.newDigest().digest( CONTENT ) ) + "\n" );
+        writer.write( "MA2=outdated\n" );
+        writer.close();
+
+        Bundle b1 = mock( Bundle.class );
+        when( b1.getLocation() ).thenReturn( "MA1" );
+        Bundle b2 = mock( Bundle.class );
+        when( b2.getLocation() ).thenReturn( "MA2" );
+        Bundle b3 = mock( Bundle.class );
+        when( b3.getLocation() ).thenReturn( "MA3" );
+        BundleContext context = mock( BundleContext.class );
+        when( context.getBundles() ).thenReturn( new Bundle[]{ b1, b2, b3 } );
+
+        List<Bundle> bundles = new ArtifactInstaller( 2, state, true, new StartupProfile() ).install( context, new Artifact[]{ artifact(), artifact() } );
+
+        assertThat( bundles.size(), is( 2 ) );
+        verify( context, never() ).installBundle( anyString(), any( InputStream.class ) );
+        verify( b1, never() ).update( any( InputStream.class ) );
+        verify( b2 ).update( any( InputStream.class ) );
+        verify( b3 ).uninstall();
+    }
+
+    @Test
+    public void testInstallsCachedArtifactsByReference()
+        throws Exception
+    {
+        File references = tempDir();
+        File stale = new File( references, "stale.jar" );
+        stale.createNewFile();
+        CachedArtifact cached = new ArtifactCache( tempDir(), 1024 ).store( "a", new ByteArrayInputStream( CONTENT ) );
+        File link = new File( references, cached.getDigest() + ".jar" );
+        String location = "reference:" + link.toURI();
+        BundleContext context = mock( BundleContext.class );
+        Bundle b1 = mock( Bundle.class );
+        Bundle b2 = mock( Bundle.class );
+        when( context.getBundles() ).thenReturn( new Bundle[0] );
+        when( context.installBundle( eq( location ), (InputStream) isNull() ) ).thenReturn( b1 );
+        when( context.installBundle( eq( "MA1" ), any( InputStream.class ) ) ).thenReturn( b2 );
+
+        File state = File.createTempFile( "gouken", ".digests" );
+        state.delete();
+        List<Bundle> bundles = new ArtifactInstaller( 2, state, true, references, new StartupProfile() ).install( context, new Artifact[]{ cached, artifact() } );
+
+        assertThat( bundles.get( 0 ), is( b1 ) );
+        assertThat( bundles.get( 1 ), is( b2 ) );
+        assertThat( link.length(), is( (long) CONTENT.length ) );
+        assertFalse( stale.exists() );
+
+        // the next warm start finds the referenced bundle again.
+        when( b1.getLocation() ).thenReturn( location );
+        when( b2.getLocation() ).thenReturn( "MA1" );
+        context = mock( BundleContext.class );
+        when( context.getBundles() ).thenReturn( new Bundle[]{ b1, b2 } );
+        bundles = new ArtifactInstaller( 2, state, true, references, new StartupProfile() ).install( context, new Artifact[]{ cached, artifact() } );
+        assertThat( bundles.get( 0 ), is( b1 ) );
+        verify( context, never() ).installBundle( anyString(), any( InputStream.class ) );
+        verify( b1, never() ).update( any( InputStream.class ) );
+        verify( b1, never() ).uninstall();
+    }
+
+    @Test
+    public void testCopiesOtherLocalFilesToReferenceFolder()
+        throws Exception
+    {
+        File references = tempDir();
+        File original = new File( tempDir(), "a.jar" );
+        write( original, CONTENT );
+        File copy = new File( references, digest( CONTENT ) + ".jar" );
+        BundleContext context = mock( BundleContext.class );
+        Bundle b1 = mock( Bundle.class );
+        Bundle b2 = mock( Bundle.class );
+        when( context.getBundles() ).thenReturn( new Bundle[0] );
+        when( context.installBundle( eq( "reference:" + copy.toURI() ), (InputStream) isNull() ) ).thenReturn( b1 );
+        when( context.installBundle( eq( "MA1" ), any( InputStream.class ) ) ).thenReturn( b2 );
+
+        List<Bundle> bundles = new ArtifactInstaller( 2, null, false, references, new StartupProfile() ).install( context, new Artifact[]{ new LocalFile( original ), new NoFileArtifact( original ) } );
+
+        assertThat( bundles.get( 0 ), is( b1 ) );
+        // only FileArtifacts are installed by reference, a getFile() method alone is not enough.
+        assertThat( bundles.get( 1 ), is( b2 ) );
+        // the bundle does not change with the original.
+        write( original, new byte[]{ 4, 5, 6, 7 } );
+        assertThat( copy.length(), is( (long) CONTENT.length ) );
+    }
+
+    @Test
+    public void testFileOf()
+        throws Exception
+    {
+        File file = new File( tempDir(), "a.jar" );
+        write( file, CONTENT );
+
+        assertThat( ArtifactInstaller.Fetch.fileOf( new LocalFile( file ) ), is( file ) );
+        assertNull( ArtifactInstaller.Fetch.fileOf( new NoFileArtifact( file ) ) );
+        assertNull( ArtifactInstaller.Fetch.fileOf( artifact() ) );
+        file.delete();
+        assertNull( ArtifactInstaller.Fetch.fileOf( new LocalFile( file ) ) );
+    }
+
+    @Test
+    public void testReconcilesBySymbolicName()
+        throws Exception
+    {
+        byte[] a = bundle( "a", "1.0" );
+        byte[] b1 = bundle( "b", "1.0" );
+        byte[] b2 = bundle( "b", "2.0" );
+        byte[] c = bundle( "c", "1.0" );
+        File state = File.createTempFile( "gouken", ".digests" );
+        state.deleteOnExit();
+        FileWriter writer = new FileWriter( state );
+        writer.write( "MA1=" + digest( a ) + "\n" );
+        writer.write( "MA2=" + digest( b1 ) + "\n" );
+        writer.write( "MA3=" + digest( c ) + "\n" );
+        writer.close();
+
+        Bundle bundleA = installed( "MA1", "a", "1.0" );
+        Bundle bundleB = installed( "MA2", "b", "1.0" );
+        Bundle bundleC = installed( "MA3", "c", "1.0" );
+        Bundle bundleD = mock( Bundle.class );
+        BundleContext context = mock( BundleContext.class );
+        when( context.getBundles() ).thenReturn( new Bundle[]{ bundleA, bundleB, bundleC } );
+        when( context.installBundle( eq( "MA4" ), any( InputStream.class ) ) ).thenReturn( bundleD );
+        when( bundleD.getLocation() ).thenReturn( "MA4" );
+        ServiceReference reference = mock( ServiceReference.class );
+        final PackageAdmin admin = mock( PackageAdmin.class );
+        when( context.getServiceReference( PackageAdmin.class.getName() ) ).thenReturn( reference );
+        when( context.getService( reference ) ).thenReturn( admin );
+        final FrameworkListener[] listener = new FrameworkListener[1];
+        doAnswer( new Answer<Object>()
+        {
+            public Object answer( InvocationOnMock invocation )
+            {
+                listener[ 0 ] = (FrameworkListener) invocation.getArguments()[ 0 ];
+                return null;
+            }
+        }
+        ).when( context ).addFrameworkListener( any( FrameworkListener.class ) );
+        doAnswer( new Answer<Object>()
+        {
+            public Object answer( InvocationOnMock invocation )
+            {
+                listener[ 0 ].frameworkEvent( new FrameworkEvent( FrameworkEvent.PACKAGES_REFRESHED, mock( Bundle.class ), null ) );
+                return null;
+            }
+        }
+        ).when( admin ).refreshPackages( any( Bundle[].class ) );
+
+        // a new bundle in front, b upgraded, c dropped.
+        List<Bundle> bundles = new ArtifactInstaller( 2, state, true, new StartupProfile() ).install( context, new Artifact[]{ artifact( bundle( "d", "1.0" ) ), artifact( b2 ), artifact( a ) } );
+
+        assertThat( bundles.get( 0 ), is( bundleD ) );
+        assertThat( bundles.get( 1 ), is( bundleB ) );
+        assertThat( bundles.get( 2 ), is( bundleA ) );
+        verify( bundleA, never() ).update( any( InputStream.class ) );
+        verify( bundleB ).update( any( InputStream.class ) );
+        verify( bundleC ).uninstall();
+        verify( admin, times( 1 ) ).refreshPackages( new Bundle[]{ bundleB, bundleC } );
+        verify( context ).removeFrameworkListener( listener[ 0 ] );
+    }
+
+    @Test
+    public void testFailedWarmStartIsRepairedByNextStart()
+        throws Exception
+    {
+        byte[] a = bundle( "a", "1.0" );
+        byte[] b = bundle( "b", "1.0" );
+        File state = File.createTempFile( "gouken", ".digests" );
+        state.deleteOnExit();
+        FileWriter writer = new FileWriter( state );
+        writer.write( "MA1=outdated\n" );
+        writer.write( "MA2=" + digest( b ) + "\n" );
+        writer.close();
+
+        Bundle bundleA = installed( "MA1", "a", "1.0" );
+        Bundle bundleB = installed( "MA2", "b", "1.0" );
+        BundleContext context = mock( BundleContext.class );
+        when( context.getBundles() ).thenReturn( new Bundle[]{ bundleA, bundleB } );
+        Artifact broken = mock( Artifact.class );
+        when( broken.getContent() ).thenThrow( new RepositoryException( "offline" ) );
+
+        try
+        {
+            new ArtifactInstaller( 1, state, true, new StartupProfile() ).install( context, new Artifact[]{ artifact( a ), broken } );
+            fail( "Expected KernelException" );
+        } catch( KernelException e )
+        {
+            assertTrue( e.getCause() instanceof RepositoryException );
+        }
+        // a has been updated and is not restored, the state file says so.
+        verify( bundleA ).update( any( InputStream.class ) );
+        Properties digests = new Properties();
+        FileInputStream in = new FileInputStream( state );
+        digests.load( in );
+        in.close();
+        assertThat( digests.getProperty( "MA1" ), is( "" ) );
+        assertThat( digests.getProperty( "MA2" ), is( digest( b ) ) );
+
+        new ArtifactInstaller( 1, state, true, new StartupProfile() ).install( context, new Artifact[]{ artifact( a ), artifact( b ) } );
+
+        verify( bundleA, times( 2 ) ).update( any( InputStream.class ) );
+        verify( bundleB, never() ).update( any( InputStream.class ) );
+        verify( context, never() ).installBundle( anyString(), any( InputStream.class ) );
+    }
+
+    private static Bundle installed( String location, String symbolicName, String version )
+    {
+        Bundle b = mock( Bundle.class );
+        when( b.getLocation() ).thenReturn( location );
+        when( b.getSymbolicName() ).thenReturn( symbolicName );
+        when( b.getVersion() ).thenReturn( new Version( version ) );
+        return b;
+    }
+
+    private static byte[] bundle( String symbolicName, String version )
+        throws IOException
+    {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putValue( "Manifest-Version", "1.0" );
+        manifest.getMainAttributes().putValue( "Bundle-SymbolicName", symbolicName );
+        manifest.getMainAttributes().putValue( "Bundle-Version", version );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new JarOutputStream( out, manifest ).close();
+        return out.toByteArray();
+    }
+
+    private static void write( File file, byte[] content )
+        throws IOException
+    {
+        FileOutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( content );
+        } finally
+        {
+            out.close();
+        }
+    }
+
+    private static String digest( byte[] content )
+    {
+        return ArtifactInstaller.Content.hex( ArtifactInstaller.Content.newDigest().digest( content ) );
+    }
+
+    private static File tempDir()
+        throws IOException
+    {
+        File dir = File.createTempFile( "gouken", "" );
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private Artifact artifact()
+        throws RepositoryException
+    {
+        return artifact( CONTENT );
+    }
+
+    private Artifact artifact( final byte[] content )
+        throws RepositoryException
+    {
+        Artifact artifact = mock( Artifact.class );
+        when( artifact.getContent() ).thenReturn( new InputStreamSource()
+        {
+            public InputStream get()
+                throws IOException
+            {
+                return new ByteArrayInputStream( content );
+            }
+        }
+        );
+        return artifact;
+    }
+
+    private static class LocalFile
+        implements FileArtifact
+    {
+
+        private final File m_file;
+
+        LocalFile( File file )
+        {
+            m_file = file;
+        }
+
+        public File getFile()
+        {
+            return m_file;
+        }
+
+        public InputStreamSource getContent()
+        {
+            return content( m_file );
+        }
+    }
+
+    /**
+     * Has a public getFile(), but does not say its content is that file.
+     */
+    public static class NoFileArtifact
+        implements Artifact
+    {
+
+        private final File m_file;
+
+        NoFileArtifact( File file )
+        {
+            m_file = file;
+        }
+
+        public File getFile()
+        {
+            return m_file;
+        }
+
+        public InputStreamSource getContent()
+        {
+            return content( m_file );
+        }
+    }
+
+    private static InputStreamSource content( final File file )
+    {
+        return new InputStreamSource()
+        {
+            public InputStream get()
+                throws IOException
+            {
+                return new FileInputStream( file );
+            }
+        };
+    }
+}
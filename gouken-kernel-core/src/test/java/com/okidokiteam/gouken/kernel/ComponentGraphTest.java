@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import static org.hamcrest.core.Is.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.felix.dm.ComponentDeclaration;
+import org.apache.felix.dm.ComponentDependencyDeclaration;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+
+/**
+ *
+ */
+public class ComponentGraphTest
+{
+
+    private static final String TYPE = ComponentDeclaration.class.getName();
+
+    @Test
+    public void testAnswersFromMemoryUntilSomethingChanges()
+        throws Exception
+    {
+        BundleContext context = mock( BundleContext.class );
+        Bundle bundle = bundle( 7, "org.example.bundle" );
+        ServiceReference first = declaration( bundle, 10, TYPE );
+        ComponentDependencyDeclaration dependency = mock( ComponentDependencyDeclaration.class );
+        when( dependency.getName() ).thenReturn( "org.example.Missing" );
+        when( dependency.getType() ).thenReturn( "service" );
+        when( dependency.getState() ).thenReturn( ComponentDependencyDeclaration.STATE_UNAVAILABLE_REQUIRED );
+        ComponentDeclaration component = component( "org.example.First", ComponentDeclaration.STATE_UNREGISTERED, dependency );
+        when( context.getService( first ) ).thenReturn( component );
+        when( context.getServiceReferences( TYPE, null ) ).thenReturn( new ServiceReference[]{ first } );
+
+        ComponentGraph graph = new ComponentGraph( context );
+        assertThat( graph.getUnavailable().size(), is( 1 ) );
+        assertThat( graph.getComponents( 7 ).get( 0 ).getDependencies().get( 0 ).isMissing(), is( true ) );
+        assertThat( graph.getRootCauses().getCauses().get( 0 ).getName(), is( "org.example.Missing" ) );
+        long version = graph.getVersion();
+        graph.getComponents();
+        graph.getUnavailable();
+        // no new reads without events.
+        verify( component, times( 1 ) ).getState();
+        assertThat( graph.getVersion(), is( version ) );
+
+        // the missing service shows up: states are read again.
+        when( component.getState() ).thenReturn( ComponentDeclaration.STATE_REGISTERED );
+        when( dependency.getState() ).thenReturn( ComponentDependencyDeclaration.STATE_AVAILABLE_REQUIRED );
+        graph.serviceChanged( new ServiceEvent( ServiceEvent.REGISTERED, declaration( bundle, 11, "org.example.Missing" ) ) );
+        assertThat( graph.getUnavailable().size(), is( 0 ) );
+        assertThat( graph.getVersion() > version, is( true ) );
+
+        // a second component joins and leaves.
+        ServiceReference second = declaration( bundle( 3, "org.example.other" ), 12, TYPE );
+        ComponentDeclaration other = component( "org.example.Second", ComponentDeclaration.STATE_REGISTERED );
+        when( context.getService( second ) ).thenReturn( other );
+        graph.serviceChanged( new ServiceEvent( ServiceEvent.REGISTERED, second ) );
+        assertThat( graph.getComponents().size(), is( 2 ) );
+        assertThat( graph.getComponents().get( 0 ).getName(), is( "org.example.Second" ) );
+        assertThat( graph.getComponents( 3 ).size(), is( 1 ) );
+        graph.serviceChanged( new ServiceEvent( ServiceEvent.UNREGISTERING, second ) );
+        assertThat( graph.getComponents().size(), is( 1 ) );
+        assertThat( graph.getComponents( 3 ).size(), is( 0 ) );
+        verify( context ).ungetService( second );
+
+        graph.close();
+        verify( context ).ungetService( first );
+        verify( context ).removeServiceListener( graph );
+        // got once for the lifetime of the graph.
+        verify( context, times( 1 ) ).getService( first );
+    }
+
+    @Test
+    public void testReportFromGraphMatchesScan()
+        throws Exception
+    {
+        BundleContext context = mock( BundleContext.class );
+        ServiceReference late = declaration( bundle( 5, "org.example.late" ), 20, TYPE );
+        ServiceReference early = declaration( bundle( 2, "org.example.early" ), 21, TYPE );
+        ComponentDeclaration lateComponent = component( "org.example.Late", ComponentDeclaration.STATE_REGISTERED );
+        ComponentDeclaration earlyComponent = component( "org.example.Early", ComponentDeclaration.STATE_UNREGISTERED );
+        when( context.getService( late ) ).thenReturn( lateComponent );
+        when( context.getService( early ) ).thenReturn( earlyComponent );
+        when( context.getServiceReferences( TYPE, null ) ).thenReturn( new ServiceReference[]{ late, early } );
+
+        MAReport report = new MAReport();
+        ByteArrayOutputStream scanned = new ByteArrayOutputStream();
+        report.collect( context, new PrintStream( scanned ), System.err );
+        ComponentGraph graph = new ComponentGraph( context );
+        ByteArrayOutputStream cached = new ByteArrayOutputStream();
+        report.collect( graph, new PrintStream( cached ), System.err );
+
+        String expected = "[2] org.example.early\n  org.example.Early unregistered\n[5] org.example.late\n  org.example.Late registered\n";
+        assertThat( lines( scanned ), is( expected ) );
+        // reports from a graph end with the version to diff against.
+        assertThat( lines( cached ), is( expected + "version " + graph.getVersion() + "\n" ) );
+
+        // the bundle filter only looks at the services of that bundle.
+        Bundle bundle = early.getBundle();
+        when( context.getBundle( 2 ) ).thenReturn( bundle );
+        when( bundle.getRegisteredServices() ).thenReturn( new ServiceReference[]{ early } );
+        ByteArrayOutputStream filtered = new ByteArrayOutputStream();
+        report.collect( context, new String[]{ "nodeps", "2" }, new PrintStream( filtered ), System.err );
+        assertThat( lines( filtered ), is( "[2] org.example.early\n  org.example.Early unregistered\n" ) );
+        verify( context, times( 2 ) ).getServiceReferences( TYPE, null );
+        graph.close();
+    }
+
+    @Test
+    public void testDiffReportsOnlyChanges()
+        throws Exception
+    {
+        BundleContext context = mock( BundleContext.class );
+        Bundle bundle = bundle( 4, "org.example" );
+        ServiceReference stable = declaration( bundle, 30, TYPE );
+        ServiceReference flapping = declaration( bundle, 31, TYPE );
+        ComponentDeclaration stableComponent = component( "org.example.Stable", ComponentDeclaration.STATE_REGISTERED );
+        ComponentDeclaration flappingComponent = component( "org.example.\"Flapping\"", ComponentDeclaration.STATE_REGISTERED );
+        when( context.getService( stable ) ).thenReturn( stableComponent );
+        when( context.getService( flapping ) ).thenReturn( flappingComponent );
+        when( context.getServiceReferences( TYPE, null ) ).thenReturn( new ServiceReference[]{ stable, flapping } );
+
+        ComponentGraph graph = new ComponentGraph( context );
+        MAReport report = new MAReport();
+        long version = graph.getVersion();
+
+        when( flappingComponent.getState() ).thenReturn( ComponentDeclaration.STATE_UNREGISTERED );
+        graph.invalidate();
+        ByteArrayOutputStream diff = new ByteArrayOutputStream();
+        report.collect( graph, new String[]{ "json", "since=" + version }, new PrintStream( diff ), System.err );
+        long next = graph.getVersion();
+        assertThat( lines( diff ), is(
+            "{\"bundle\":4,\"bundleName\":\"org.example\",\"name\":\"org.example.\\\"Flapping\\\"\",\"state\":\"unregistered\",\"changed\":" + next + ",\"dependencies\":[]}\n"
+            + "{\"version\":" + next + ",\"complete\":false}\n"
+        )
+        );
+
+        graph.serviceChanged( new ServiceEvent( ServiceEvent.UNREGISTERING, stable ) );
+        ByteArrayOutputStream removed = new ByteArrayOutputStream();
+        report.collect( graph, new String[]{ "since=" + next }, new PrintStream( removed ), System.err );
+        assertThat( lines( removed ), is( "[4] org.example\n  org.example.Stable removed\nversion " + graph.getVersion() + "\n" ) );
+
+        // nothing happened since.
+        assertThat( graph.getChanges( graph.getVersion() ).getChanged().size(), is( 0 ) );
+        assertThat( graph.getChanges( -1 ).isComplete(), is( true ) );
+        graph.close();
+    }
+
+    @Test
+    public void testEventRereadsOnlyAffectedComponents()
+        throws Exception
+    {
+        BundleContext context = mock( BundleContext.class );
+        ServiceReference consumer = declaration( bundle( 1, "org.example.consumer" ), 40, TYPE );
+        ServiceReference unrelated = declaration( bundle( 2, "org.example.unrelated" ), 41, TYPE );
+        ComponentDependencyDeclaration dependency = mock( ComponentDependencyDeclaration.class );
+        when( dependency.getName() ).thenReturn( "org.example.Log (objectClass=org.example.Log)" );
+        when( dependency.getType() ).thenReturn( "service" );
+        when( dependency.getState() ).thenReturn( ComponentDependencyDeclaration.STATE_UNAVAILABLE_REQUIRED );
+        ComponentDeclaration consumerComponent = component( "org.example.Consumer", ComponentDeclaration.STATE_UNREGISTERED, dependency );
+        ComponentDeclaration unrelatedComponent = component( "org.example.Unrelated", ComponentDeclaration.STATE_REGISTERED );
+        when( context.getService( consumer ) ).thenReturn( consumerComponent );
+        when( context.getService( unrelated ) ).thenReturn( unrelatedComponent );
+        when( context.getServiceReferences( TYPE, null ) ).thenReturn( new ServiceReference[]{ consumer, unrelated } );
+
+        ComponentGraph graph = new ComponentGraph( context );
+        assertThat( graph.getUnavailable().size(), is( 1 ) );
+
+        // a log service from a third bundle only concerns the consumer.
+        when( consumerComponent.getState() ).thenReturn( ComponentDeclaration.STATE_REGISTERED );
+        graph.serviceChanged( new ServiceEvent( ServiceEvent.REGISTERED, declaration( bundle( 3, "org.example.log" ), 42, "org.example.Log" ) ) );
+        assertThat( graph.getUnavailable().size(), is( 0 ) );
+        verify( consumerComponent, times( 2 ) ).getState();
+        verify( unrelatedComponent, times( 1 ) ).getState();
+
+        // services nobody depends on do not change the graph.
+        long version = graph.getVersion();
+        graph.serviceChanged( new ServiceEvent( ServiceEvent.REGISTERED, declaration( bundle( 3, "org.example.log" ), 43, "org.example.Other" ) ) );
+        assertThat( graph.getVersion(), is( version ) );
+
+        // bundle events concern the components of that bundle.
+        Bundle unrelatedBundle = unrelated.getBundle();
+        graph.bundleChanged( new BundleEvent( BundleEvent.UPDATED, unrelatedBundle ) );
+        graph.getComponents();
+        verify( consumerComponent, times( 2 ) ).getState();
+        verify( unrelatedComponent, times( 2 ) ).getState();
+        graph.close();
+    }
+
+    @Test
+    public void testEventsWhileReadingDoNotWaitForTheGraph()
+        throws Exception
+    {
+        BundleContext context = mock( BundleContext.class );
+        Bundle bundle = bundle( 5, "org.example.busy" );
+        ServiceReference ref = declaration( bundle, 50, TYPE );
+        ComponentDeclaration component = component( "org.example.Busy", ComponentDeclaration.STATE_UNREGISTERED );
+        when( context.getService( ref ) ).thenReturn( component );
+        when( context.getServiceReferences( TYPE, null ) ).thenReturn( new ServiceReference[]{ ref } );
+        final ComponentGraph graph = new ComponentGraph( context );
+        final ServiceEvent event = new ServiceEvent( ServiceEvent.REGISTERED, declaration( bundle, 51, "org.example.Registered" ) );
+        final CountDownLatch delivered = new CountDownLatch( 1 );
+        when( component.getState() ).thenAnswer( new Answer<Integer>()
+        {
+            public Integer answer( InvocationOnMock invocation )
+                throws Throwable
+            {
+                if( delivered.getCount() > 0 )
+                {
+                    // the component registers a service while it is read, under its own lock: the framework
+                    // delivers the event on the registering thread, and the component waits for it.
+                    new Thread()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            graph.serviceChanged( event );
+                            delivered.countDown();
+                        }
+                    }.start();
+                    delivered.await( 5, TimeUnit.SECONDS );
+                }
+                return ComponentDeclaration.STATE_REGISTERED;
+            }
+        }
+        );
+
+        assertThat( graph.getUnavailable().size(), is( 0 ) );
+        assertThat( delivered.getCount(), is( 0L ) );
+        // the event marked the component again while it was read.
+        graph.getComponents();
+        verify( component, times( 2 ) ).getState();
+        graph.close();
+    }
+
+    private static String lines( ByteArrayOutputStream out )
+    {
+        return out.toString().replace( System.getProperty( "line.separator" ), "\n" );
+    }
+
+    private static Bundle bundle( long id, String name )
+    {
+        Bundle bundle = mock( Bundle.class );
+        when( bundle.getBundleId() ).thenReturn( id );
+        when( bundle.getSymbolicName() ).thenReturn( name );
+        return bundle;
+    }
+
+    private static ServiceReference declaration( Bundle bundle, long serviceId, String type )
+    {
+        ServiceReference ref = mock( ServiceReference.class );
+        when( ref.getBundle() ).thenReturn( bundle );
+        when( ref.getProperty( Constants.SERVICE_ID ) ).thenReturn( serviceId );
+        when( ref.getProperty( Constants.OBJECTCLASS ) ).thenReturn( new String[]{ type } );
+        return ref;
+    }
+
+    private static ComponentDeclaration component( String name, int state, ComponentDependencyDeclaration... dependencies )
+    {
+        ComponentDeclaration component = mock( ComponentDeclaration.class );
+        when( component.getName() ).thenReturn( name );
+        when( component.getState() ).thenReturn( state );
+        when( component.getComponentDependencies() ).thenReturn( dependencies );
+        return component;
+    }
+}
@@ -21,9 +21,12 @@ import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.*;
 import static org.hamcrest.core.Is.*;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 
 import com.okidokiteam.gouken.*;
 import org.junit.Test;
@@ -60,6 +63,25 @@ public class CoreVaultTest
         verify( agent, Mockito.only() ).getArtifacts();
     }
 
+    @Test
+    public void testComponentGraphFollowsLifecycle()
+        throws KernelWorkflowException, KernelException, IOException, RepositoryException
+    {
+        CoreVault<VaultPush> coreVault = new CoreVault<VaultPush>( getSettings(), VaultPush.class );
+        VaultAgent agent = Mockito.mock( VaultAgent.class );
+        when( agent.getArtifacts() ).thenReturn( new Artifact[ 0 ] );
+        coreVault.start( agent );
+        ComponentGraph graph = coreVault.getComponentGraph();
+        assertThat( graph != null, is( true ) );
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        coreVault.report( new String[ 0 ], new PrintStream( report ), System.err );
+        assertThat( report.toString().trim(), is( "version " + graph.getVersion() ) );
+
+        coreVault.stop();
+        assertThat( coreVault.getComponentGraph() == null, is( true ) );
+        assertThat( graph.getComponents().size(), is( 0 ) );
+    }
+
     @Test
     public void testACEBased()
         throws KernelWorkflowException, KernelException, IOException, RepositoryException
@@ -87,6 +109,43 @@ public class CoreVaultTest
         coreVault.stop();
     }
 
+    @Test
+    public void testPushRebindsAfterSuspendResume()
+        throws KernelWorkflowException, KernelException, IOException, RepositoryException
+    {
+        CoreVault<DeploymentAdmin> coreVault = new CoreVault<DeploymentAdmin>( getSettings(), DeploymentAdmin.class );
+        DeploymentAdmin push = coreVault.start( new AceVaultAgent( getResolver() ) );
+        assertThat( push.listDeploymentPackages().length, is( 0 ) );
+
+        coreVault.beforeCheckpoint();
+        coreVault.afterRestore();
+
+        // the same proxy now calls the service of the restarted framework.
+        assertThat( push.listDeploymentPackages().length, is( 0 ) );
+
+        coreVault.stop();
+    }
+
+    @Test
+    public void testCheckpointWithoutCracFailsFast()
+        throws KernelWorkflowException, IOException, RepositoryException
+    {
+        VaultAgent agent = Mockito.mock( VaultAgent.class );
+        System.setProperty( KernelProperties.CHECKPOINT, "true" );
+        try
+        {
+            getVault( VaultPush.class ).start( agent );
+            fail( "Expected KernelException" );
+        } catch( KernelException e )
+        {
+            // org.crac is not a test dependency.
+            verifyZeroInteractions( agent );
+        } finally
+        {
+            System.clearProperty( KernelProperties.CHECKPOINT );
+        }
+    }
+
     private VaultSettings getSettings()
     {
         final File f = getCleanDirectory();
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import static org.hamcrest.core.Is.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class LatencyHistogramTest
+{
+
+    @Test
+    public void testBucketsCoverTheWholeRange()
+    {
+        assertThat( LatencyHistogram.index( 0 ), is( 0 ) );
+        assertThat( LatencyHistogram.index( 63 ), is( 63 ) );
+        assertThat( LatencyHistogram.index( 64 ), is( 64 ) );
+        assertThat( LatencyHistogram.highestEquivalentValue( LatencyHistogram.index( Long.MAX_VALUE ) ), is( Long.MAX_VALUE ) );
+        for( long v = 1; v > 0 && v < Long.MAX_VALUE / 3; v = v * 3 + 1 )
+        {
+            long high = LatencyHistogram.highestEquivalentValue( LatencyHistogram.index( v ) );
+            assertTrue( "bucket of " + v + " ends at " + high, high >= v && high <= v + v / 16 );
+        }
+    }
+
+    @Test
+    public void testPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for( int i = 1; i <= 1000; i++ )
+        {
+            histogram.record( i * 1000L );
+        }
+        assertThat( histogram.getCount(), is( 1000L ) );
+        assertThat( histogram.getMax(), is( 1000000L ) );
+        assertWithin( histogram.getValueAtPercentile( 50 ), 500000L );
+        assertWithin( histogram.getValueAtPercentile( 99 ), 990000L );
+        assertThat( histogram.getValueAtPercentile( 100 ), is( 1000000L ) );
+
+        histogram.reset();
+        assertThat( histogram.getValueAtPercentile( 99 ), is( 0L ) );
+    }
+
+    private static void assertWithin( long actual, long expected )
+    {
+        assertTrue( actual + " is not close to " + expected, Math.abs( actual - expected ) <= expected / 32 );
+    }
+}
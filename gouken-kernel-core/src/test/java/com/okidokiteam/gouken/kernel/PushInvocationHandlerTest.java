@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import static org.hamcrest.core.Is.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.okidokiteam.gouken.PushCall;
+import com.okidokiteam.gouken.PushRejectedException;
+import com.okidokiteam.gouken.PushResult;
+import com.okidokiteam.gouken.PushTimeoutException;
+import com.okidokiteam.gouken.PushUnavailableException;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class PushInvocationHandlerTest
+{
+
+    @Test
+    public void testCallWaitsForService()
+        throws Exception
+    {
+        final PushInvocationHandler handler = handler( 0, 16, KernelProperties.PUSH_OVERFLOW_REJECT );
+        Thread binder = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep( 100 );
+                } catch( InterruptedException e )
+                {
+                    return;
+                }
+                handler.bind( new FixedTarget( new PushInvokersTest.CalcImpl() ) );
+            }
+        };
+        binder.start();
+        assertThat( proxy( handler ).add( 1, 2 ), is( 3 ) );
+        binder.join();
+        handler.close();
+    }
+
+    @Test
+    public void testCallTimesOut()
+        throws Exception
+    {
+        PushInvocationHandler handler = handler( 50, 16, KernelProperties.PUSH_OVERFLOW_REJECT );
+        try
+        {
+            proxy( handler ).add( 1, 2 );
+            fail( "Call should time out" );
+        } catch( PushUnavailableException e )
+        {
+            // expected
+        }
+        handler.close();
+    }
+
+    @Test
+    public void testSubmittedCallsRunOnceServiceArrives()
+        throws Exception
+    {
+        PushInvocationHandler handler = handler( 0, 16, KernelProperties.PUSH_OVERFLOW_REJECT );
+        Future<Integer> first = handler.submit( add( 1 ) );
+        Future<Integer> second = handler.submit( add( 2 ) );
+        Thread.sleep( 50 );
+        assertThat( first.isDone(), is( false ) );
+
+        handler.bind( new FixedTarget( new PushInvokersTest.CalcImpl() ) );
+        assertThat( first.get( 5, TimeUnit.SECONDS ), is( 1 ) );
+        assertThat( second.get( 5, TimeUnit.SECONDS ), is( 2 ) );
+        handler.close();
+    }
+
+    @Test
+    public void testRecordsMetricsPerMethod()
+        throws Exception
+    {
+        PushInvocationHandler handler = handler( 50, 16, KernelProperties.PUSH_OVERFLOW_REJECT );
+        PushInvokersTest.Calc calc = proxy( handler );
+        try
+        {
+            calc.add( 1, 2 );
+            fail( "Call should time out" );
+        } catch( PushUnavailableException e )
+        {
+            // expected
+        }
+        handler.bind( new FixedTarget( new PushInvokersTest.CalcImpl() ) );
+        calc.add( 1, 2 );
+        calc.add( 3, 4 );
+        try
+        {
+            calc.fail();
+            fail( "IOException expected" );
+        } catch( IOException e )
+        {
+            // expected
+        }
+        calc.toString();
+
+        PushMetrics metrics = handler.getMetrics();
+        PushMethodMetrics add = metrics.getMethod( "add(int,int)" );
+        assertThat( add.getCalls(), is( 3L ) );
+        assertThat( add.getErrors(), is( 1L ) );
+        assertThat( add.getWaitNanos() >= 50000000L, is( true ) );
+        assertThat( add.getLatencyNanos( 100 ) > 0, is( true ) );
+        assertThat( metrics.getMethod( "fail()" ).getErrors(), is( 1L ) );
+        assertThat( metrics.getMethod( "toString()" ), is( (PushMethodMetrics) null ) );
+        handler.close();
+    }
+
+    @Test
+    public void testBatchRunsAgainstOneLease()
+        throws Exception
+    {
+        PushInvocationHandler handler = handler( 0, 16, KernelProperties.PUSH_OVERFLOW_REJECT );
+        FixedTarget target = new FixedTarget( new PushInvokersTest.CalcImpl() );
+        handler.bind( target );
+
+        List<PushCall<PushInvokersTest.Calc, Integer>> calls = new ArrayList<PushCall<PushInvokersTest.Calc, Integer>>();
+        calls.add( add( 1 ) );
+        calls.add( new PushCall<PushInvokersTest.Calc, Integer>()
+        {
+            public Integer call( PushInvokersTest.Calc service )
+                throws Exception
+            {
+                service.fail();
+                return null;
+            }
+        }
+        );
+        calls.add( add( 3 ) );
+
+        List<PushResult<Integer>> results = handler.batch( calls );
+        assertThat( results.size(), is( 3 ) );
+        assertThat( results.get( 0 ).getValue(), is( 1 ) );
+        assertThat( results.get( 1 ).isFailed(), is( true ) );
+        assertThat( results.get( 1 ).getException() instanceof IOException, is( true ) );
+        assertThat( results.get( 2 ).getValue(), is( 3 ) );
+        assertThat( target.m_acquired, is( 1 ) );
+        handler.close();
+    }
+
+    @Test
+    public void testOverflowPolicies()
+        throws Exception
+    {
+        // one call is taken by the push thread, one fits into the queue.
+        PushInvocationHandler reject = handler( 0, 1, KernelProperties.PUSH_OVERFLOW_REJECT );
+        reject.submit( add( 1 ) );
+        Thread.sleep( 50 );
+        reject.submit( add( 2 ) );
+        try
+        {
+            reject.submit( add( 3 ) );
+            fail( "Call should be rejected" );
+        } catch( RejectedExecutionException e )
+        {
+            // expected
+        }
+        reject.close();
+
+        PushInvocationHandler discard = handler( 0, 1, KernelProperties.PUSH_OVERFLOW_DISCARD_OLDEST );
+        discard.submit( add( 1 ) );
+        Thread.sleep( 50 );
+        Future<Integer> oldest = discard.submit( add( 2 ) );
+        Future<Integer> newest = discard.submit( add( 3 ) );
+        assertThat( oldest.isCancelled(), is( true ) );
+        discard.bind( new FixedTarget( new PushInvokersTest.CalcImpl() ) );
+        assertThat( newest.get( 5, TimeUnit.SECONDS ), is( 3 ) );
+        discard.close();
+    }
+
+    @Test
+    public void testCloseCancelsPendingCalls()
+        throws Exception
+    {
+        PushInvocationHandler handler = handler( 0, 16, KernelProperties.PUSH_OVERFLOW_REJECT );
+        handler.submit( add( 1 ) );
+        Thread.sleep( 50 );
+        Future<Integer> pending = handler.submit( add( 2 ) );
+        handler.close();
+        try
+        {
+            pending.get( 5, TimeUnit.SECONDS );
+            fail( "Call should be cancelled" );
+        } catch( CancellationException e )
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLimitRejectsExcessCalls()
+        throws Exception
+    {
+        PushInvocationHandler handler = handler( "reset=1", null );
+        final BlockingCalc service = new BlockingCalc();
+        handler.bind( new FixedTarget( service ) );
+        final PushInvokersTest.Calc calc = proxy( handler );
+        Thread first = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                calc.reset();
+            }
+        };
+        first.start();
+        assertThat( service.m_entered.await( 5, TimeUnit.SECONDS ), is( true ) );
+        try
+        {
+            calc.reset();
+            fail( "Call should be rejected" );
+        } catch( PushRejectedException e )
+        {
+            // expected
+        }
+        // other methods are not limited.
+        assertThat( calc.add( 1, 2 ), is( 3 ) );
+        service.m_release.countDown();
+        first.join( 5000 );
+        calc.reset();
+
+        PushMethodMetrics reset = handler.getMetrics().getMethod( "reset()" );
+        assertThat( reset.getRejected(), is( 1L ) );
+        assertThat( reset.getCalls(), is( 2L ) );
+        handler.close();
+    }
+
+    @Test
+    public void testDeadlineKeepsPermitUntilCallEnds()
+        throws Exception
+    {
+        PushInvocationHandler handler = handler( "reset=1", "reset=50" );
+        BlockingCalc service = new BlockingCalc();
+        handler.bind( new FixedTarget( service ) );
+        PushInvokersTest.Calc calc = proxy( handler );
+        try
+        {
+            calc.reset();
+            fail( "Call should time out" );
+        } catch( PushTimeoutException e )
+        {
+            // expected
+        }
+        // the timed out call still runs and holds the only permit.
+        try
+        {
+            calc.reset();
+            fail( "Call should be rejected" );
+        } catch( PushRejectedException e )
+        {
+            // expected
+        }
+        service.m_release.countDown();
+        // the permit comes back shortly after the blocked call returned.
+        long until = System.currentTimeMillis() + 5000;
+        while( true )
+        {
+            try
+            {
+                calc.reset();
+                break;
+            } catch( PushRejectedException e )
+            {
+                assertThat( System.currentTimeMillis() < until, is( true ) );
+                Thread.sleep( 10 );
+            }
+        }
+        assertThat( service.m_done.get(), is( 2 ) );
+
+        PushMethodMetrics reset = handler.getMetrics().getMethod( "reset()" );
+        assertThat( reset.getTimeouts(), is( 1L ) );
+        assertThat( reset.getRejected() >= 1, is( true ) );
+        assertThat( reset.getErrors(), is( 1L ) );
+        handler.close();
+    }
+
+    @Test( timeout = 5000 )
+    public void testDeadlineCoversWaitForService()
+        throws Exception
+    {
+        // no push timeout, only the deadline bounds the wait for a service that never shows up.
+        PushInvocationHandler handler = handler( null, "add=50" );
+        long start = System.nanoTime();
+        try
+        {
+            proxy( handler ).add( 1, 2 );
+            fail( "Call should time out" );
+        } catch( PushTimeoutException e )
+        {
+            // expected
+        }
+        assertThat( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) < 1000, is( true ) );
+        PushMethodMetrics add = handler.getMetrics().getMethod( "add(int,int)" );
+        assertThat( add.getTimeouts(), is( 1L ) );
+        assertThat( add.getErrors(), is( 1L ) );
+        handler.close();
+    }
+
+    @Test
+    public void testDeadlineWithoutLimitIsBounded()
+        throws Exception
+    {
+        PushInvocationHandler handler = handler( null, "reset=10" );
+        BlockingCalc service = new BlockingCalc();
+        handler.bind( new FixedTarget( service ) );
+        PushInvokersTest.Calc calc = proxy( handler );
+        for( int i = 0; i < KernelProperties.DEFAULT_PUSH_DEADLINE_LIMIT; i++ )
+        {
+            try
+            {
+                calc.reset();
+                fail( "Call should time out" );
+            } catch( PushTimeoutException e )
+            {
+                // expected
+            }
+        }
+        // every call is still stuck in the service, no thread is started for another one.
+        try
+        {
+            calc.reset();
+            fail( "Call should be rejected" );
+        } catch( PushRejectedException e )
+        {
+            // expected
+        }
+        service.m_release.countDown();
+        handler.close();
+    }
+
+    private static PushInvocationHandler handler( String limits, String deadlines )
+    {
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put( KernelProperties.PUSH_METRICS_SAMPLE, 1 );
+        if( limits != null )
+        {
+            config.put( KernelProperties.PUSH_LIMITS, limits );
+        }
+        if( deadlines != null )
+        {
+            config.put( KernelProperties.PUSH_DEADLINES, deadlines );
+        }
+        return new PushInvocationHandler( PushInvokersTest.Calc.class, new PushOptions( config ) );
+    }
+
+    private static PushInvocationHandler handler( long timeout, int queue, String overflow )
+    {
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put( KernelProperties.PUSH_TIMEOUT, timeout );
+        config.put( KernelProperties.PUSH_QUEUE, queue );
+        config.put( KernelProperties.PUSH_OVERFLOW, overflow );
+        config.put( KernelProperties.PUSH_METRICS_SAMPLE, 1 );
+        return new PushInvocationHandler( PushInvokersTest.Calc.class, new PushOptions( config ) );
+    }
+
+    private static PushInvokersTest.Calc proxy( PushInvocationHandler handler )
+    {
+        return (PushInvokersTest.Calc) handler.newProxy( PushInvokersTest.Calc.class.getClassLoader() );
+    }
+
+    private static PushCall<PushInvokersTest.Calc, Integer> add( final int value )
+    {
+        return new PushCall<PushInvokersTest.Calc, Integer>()
+        {
+            public Integer call( PushInvokersTest.Calc service )
+            {
+                return service.add( value, 0 );
+            }
+        };
+    }
+
+    /**
+     * reset() blocks until released and ignores interrupts, like a service stuck in I/O.
+     */
+    private static class BlockingCalc extends PushInvokersTest.CalcImpl
+    {
+
+        private final CountDownLatch m_entered = new CountDownLatch( 1 );
+        private final CountDownLatch m_release = new CountDownLatch( 1 );
+        private final AtomicInteger m_done = new AtomicInteger();
+
+        @Override
+        public void reset()
+        {
+            m_entered.countDown();
+            while( true )
+            {
+                try
+                {
+                    m_release.await();
+                    break;
+                } catch( InterruptedException e )
+                {
+                    // keep waiting
+                }
+            }
+            m_done.incrementAndGet();
+        }
+    }
+
+    private static class FixedTarget implements PushTarget, PushTarget.Lease
+    {
+
+        private final Object m_service;
+        private int m_acquired;
+
+        FixedTarget( Object service )
+        {
+            m_service = service;
+        }
+
+        public Lease acquire( Object[] args )
+        {
+            m_acquired++;
+            return this;
+        }
+
+        public void close()
+        {
+        }
+
+        public Object getService()
+        {
+            return m_service;
+        }
+
+        public void release()
+        {
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import static org.hamcrest.core.Is.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class PushInvokersTest
+{
+
+    @Test
+    public void testGeneratedInvoker()
+        throws Throwable
+    {
+        Method[] methods = PushInvokers.methods( Calc.class );
+        PushInvoker invoker = PushInvokers.create( Calc.class, methods, true );
+        assertThat( invoker.getClass().getName().startsWith( "com.okidokiteam.gouken.kernel.generated." ), is( true ) );
+        verify( invoker, methods );
+    }
+
+    @Test
+    public void testReflectiveInvoker()
+        throws Throwable
+    {
+        Method[] methods = PushInvokers.methods( Calc.class );
+        verify( PushInvokers.create( Calc.class, methods, false ), methods );
+    }
+
+    @Test
+    public void testFallsBackToReflectionForNonPublicTypes()
+        throws Throwable
+    {
+        Method[] methods = PushInvokers.methods( Hidden.class );
+        PushInvoker invoker = PushInvokers.create( Hidden.class, methods, true );
+        assertThat( invoker.getClass().getName().startsWith( "com.okidokiteam.gouken.kernel.generated." ), is( false ) );
+        Hidden hidden = new Hidden()
+        {
+            public String name()
+            {
+                return "hidden";
+            }
+        };
+        assertThat( (String) invoker.invoke( index( methods, "name" ), hidden, null ), is( "hidden" ) );
+    }
+
+    @Test
+    public void testGeneratedProxy()
+        throws Throwable
+    {
+        final Method[] methods = PushInvokers.methods( Calc.class );
+        final PushInvoker invoker = PushInvokers.create( Calc.class, methods, false );
+        final CalcImpl calc = new CalcImpl();
+        final List<Integer> dispatched = new ArrayList<Integer>();
+        Calc proxy = (Calc) PushInvokers.proxy( Calc.class, methods, new PushDispatcher()
+        {
+            public Object dispatch( int index, Object[] args )
+                throws Throwable
+            {
+                dispatched.add( index );
+                return invoker.invoke( index, calc, args );
+            }
+        }
+        );
+        assertThat( proxy.getClass().getName().startsWith( "com.okidokiteam.gouken.kernel.generated." ), is( true ) );
+        assertThat( proxy.add( 40, 2 ), is( 42 ) );
+        assertThat( proxy.scale( 3L, 2.0d ), is( 6L ) );
+        assertThat( proxy.join( new String[]{ "a", "b" } ), is( "ab" ) );
+        proxy.reset();
+        assertThat( calc.m_resets, is( 1 ) );
+        assertThat( proxy.toString(), is( "calc" ) );
+        assertThat( proxy.equals( proxy ), is( false ) );
+        try
+        {
+            proxy.fail();
+            fail( "Checked exception expected" );
+        } catch( IOException e )
+        {
+            assertThat( e.getMessage(), is( "boom" ) );
+        }
+        assertThat( dispatched.get( 0 ), is( index( methods, "add" ) ) );
+        assertThat( dispatched.get( 1 ), is( index( methods, "scale" ) ) );
+        assertThat( dispatched.get( 5 ), is( index( methods, "equals" ) ) );
+    }
+
+    @Test
+    public void testNoProxyForNonPublicTypes()
+    {
+        assertNull( PushInvokers.proxy( Hidden.class, PushInvokers.methods( Hidden.class ), null ) );
+    }
+
+    private static void verify( PushInvoker invoker, Method[] methods )
+        throws Throwable
+    {
+        CalcImpl calc = new CalcImpl();
+        assertThat( (Integer) invoker.invoke( index( methods, "add" ), calc, new Object[]{ 40, 2 } ), is( 42 ) );
+        assertThat( (Long) invoker.invoke( index( methods, "scale" ), calc, new Object[]{ 3L, 2.0d } ), is( 6L ) );
+        assertThat( (String) invoker.invoke( index( methods, "join" ), calc, new Object[]{ new String[]{ "a", "b" } } ), is( "ab" ) );
+        assertThat( invoker.invoke( index( methods, "reset" ), calc, null ), is( (Object) null ) );
+        assertThat( calc.m_resets, is( 1 ) );
+        assertThat( (String) invoker.invoke( index( methods, "toString" ), calc, null ), is( "calc" ) );
+        try
+        {
+            invoker.invoke( index( methods, "fail" ), calc, null );
+            fail( "Checked exception expected" );
+        } catch( IOException e )
+        {
+            assertThat( e.getMessage(), is( "boom" ) );
+        }
+    }
+
+    private static int index( Method[] methods, String name )
+    {
+        for( int i = 0; i < methods.length; i++ )
+        {
+            if( methods[ i ].getName().equals( name ) )
+            {
+                return i;
+            }
+        }
+        throw new AssertionError( name );
+    }
+
+    public static interface Calc
+    {
+
+        int add( int a, int b );
+
+        long scale( long value, double factor );
+
+        String join( String[] parts );
+
+        void reset();
+
+        void fail()
+            throws IOException;
+    }
+
+    static interface Hidden
+    {
+
+        String name();
+    }
+
+    public static class CalcImpl implements Calc
+    {
+
+        private int m_resets;
+
+        public int add( int a, int b )
+        {
+            return a + b;
+        }
+
+        public long scale( long value, double factor )
+        {
+            return (long) ( value * factor );
+        }
+
+        public String join( String[] parts )
+        {
+            StringBuilder sb = new StringBuilder();
+            for( String part : parts )
+            {
+                sb.append( part );
+            }
+            return sb.toString();
+        }
+
+        public void reset()
+        {
+            m_resets++;
+        }
+
+        public void fail()
+            throws IOException
+        {
+            throw new IOException( "boom" );
+        }
+
+        @Override
+        public String toString()
+        {
+            return "calc";
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import static org.hamcrest.core.Is.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.okidokiteam.gouken.Idempotent;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class PushMemoTest
+{
+
+    @Test
+    public void testFindsIdempotentMethods()
+    {
+        Method[] methods = PushInvokers.methods( Queries.class );
+        PushMemo memo = PushMemo.create( methods, values( "count" ), 16 );
+        assertThat( memo.isIdempotent( index( methods, "list" ) ), is( true ) );
+        assertThat( memo.isIdempotent( index( methods, "count" ) ), is( true ) );
+        assertThat( memo.isIdempotent( index( methods, "update" ) ), is( false ) );
+        assertNull( PushMemo.create( PushInvokers.methods( PushInvokersTest.Calc.class ), values( null ), 16 ) );
+        assertThat( values( "a=10, b" ).get( "a" ), is( 10L ) );
+        assertThat( values( "a=10, b" ).get( "b" ), is( 0L ) );
+    }
+
+    @Test
+    public void testConcurrentEqualCallsShareOneInvocation()
+        throws Throwable
+    {
+        Method[] methods = PushInvokers.methods( Queries.class );
+        final PushMemo memo = PushMemo.create( methods, values( null ), 16 );
+        final int list = index( methods, "list" );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final AtomicInteger invocations = new AtomicInteger();
+        final Callable<Object> slow = new Callable<Object>()
+        {
+            public Object call()
+                throws Exception
+            {
+                invocations.incrementAndGet();
+                release.await();
+                return "result";
+            }
+        };
+        final PushMethodMetrics metrics = new PushMethodMetrics( "list(String)", 1 );
+
+        ExecutorService pool = Executors.newFixedThreadPool( 4 );
+        Future<?>[] calls = new Future<?>[4];
+        for( int i = 0; i < calls.length; i++ )
+        {
+            calls[ i ] = pool.submit( new Callable<Object>()
+            {
+                public Object call()
+                    throws Exception
+                {
+                    try
+                    {
+                        return memo.call( list, new Object[]{ "a" }, slow, metrics );
+                    } catch( Throwable t )
+                    {
+                        throw new Exception( t );
+                    }
+                }
+            }
+            );
+        }
+        while( metrics.getCoalesced() < 3 )
+        {
+            Thread.sleep( 5 );
+        }
+        release.countDown();
+        for( Future<?> call : calls )
+        {
+            assertThat( call.get( 5, TimeUnit.SECONDS ), is( (Object) "result" ) );
+        }
+        pool.shutdown();
+        assertThat( invocations.get(), is( 1 ) );
+
+        // no TTL, so the next call runs again.
+        memo.call( list, new Object[]{ "a" }, slow, metrics );
+        assertThat( invocations.get(), is( 2 ) );
+    }
+
+    @Test
+    public void testResultsAreCachedUntilInvalidated()
+        throws Throwable
+    {
+        Method[] methods = PushInvokers.methods( Queries.class );
+        PushMemo memo = PushMemo.create( methods, values( "count=60000" ), 16 );
+        int count = index( methods, "count" );
+        final AtomicInteger invocations = new AtomicInteger();
+        Callable<Object> counting = new Callable<Object>()
+        {
+            public Object call()
+            {
+                return invocations.incrementAndGet();
+            }
+        };
+        PushMethodMetrics metrics = new PushMethodMetrics( "count()", 1 );
+
+        assertThat( memo.call( count, null, counting, metrics ), is( (Object) 1 ) );
+        assertThat( memo.call( count, null, counting, metrics ), is( (Object) 1 ) );
+        assertThat( metrics.getCacheHits(), is( 1L ) );
+
+        memo.invalidate();
+        assertThat( memo.call( count, null, counting, metrics ), is( (Object) 2 ) );
+    }
+
+    @Test
+    public void testFailuresAreNotCached()
+        throws Throwable
+    {
+        Method[] methods = PushInvokers.methods( Queries.class );
+        PushMemo memo = PushMemo.create( methods, values( "count=60000" ), 16 );
+        int count = index( methods, "count" );
+        final AtomicInteger invocations = new AtomicInteger();
+        Callable<Object> failing = new Callable<Object>()
+        {
+            public Object call()
+                throws Exception
+            {
+                invocations.incrementAndGet();
+                throw new IOException( "boom" );
+            }
+        };
+        for( int i = 0; i < 2; i++ )
+        {
+            try
+            {
+                memo.call( count, null, failing, null );
+                fail( "IOException expected" );
+            } catch( IOException e )
+            {
+                assertThat( e.getMessage(), is( "boom" ) );
+            }
+        }
+        assertThat( invocations.get(), is( 2 ) );
+    }
+
+    private static Map<String, Long> values( String idempotent )
+    {
+        Map<String, Object> config = new HashMap<String, Object>();
+        if( idempotent != null )
+        {
+            config.put( KernelProperties.PUSH_IDEMPOTENT, idempotent );
+        }
+        return KernelProperties.getMethodValues( config, KernelProperties.PUSH_IDEMPOTENT, 0 );
+    }
+
+    private static int index( Method[] methods, String name )
+    {
+        for( int i = 0; i < methods.length; i++ )
+        {
+            if( methods[ i ].getName().equals( name ) )
+            {
+                return i;
+            }
+        }
+        throw new AssertionError( name );
+    }
+
+    public static interface Queries
+    {
+
+        @Idempotent
+        String list( String filter );
+
+        int count();
+
+        void update( String value );
+    }
+}
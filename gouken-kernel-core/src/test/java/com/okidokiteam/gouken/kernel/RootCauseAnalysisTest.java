@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import static org.hamcrest.core.Is.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.felix.dm.ComponentDeclaration;
+import org.apache.felix.dm.ComponentDependencyDeclaration;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+
+/**
+ *
+ */
+public class RootCauseAnalysisTest
+{
+
+    @Test
+    public void testMissingServiceBlocksChain()
+    {
+        List<ComponentGraph.Node> nodes = Arrays.asList(
+            node( "a.Api", false, missing( "x.Missing (name=x)" ) ),
+            node( "b.Api,b.Other(k=v)", false, missing( "a.Api" ) ),
+            node( "c.Impl", false, missing( "b.Other" ), available( "d.Api" ) ),
+            node( "d.Api", true ),
+            node( "e.Impl", false, missing( "x.Missing (name=x)" ), missing( "y.Missing" ) )
+        );
+        RootCauseAnalysis analysis = RootCauseAnalysis.analyze( nodes );
+        assertThat( analysis.getCauses().size(), is( 2 ) );
+        assertThat( analysis.getCauses().get( 0 ).toString(), is( "missing service x.Missing (name=x) blocks 4 components" ) );
+        assertThat( analysis.getCauses().get( 1 ).toString(), is( "missing service y.Missing blocks 1 component" ) );
+        assertThat( analysis.getCriticalPath(), is( Arrays.asList( "x.Missing (name=x)", "a.Api", "b.Api,b.Other(k=v)", "c.Impl" ) ) );
+    }
+
+    @Test
+    public void testCyclesAndStuckComponents()
+    {
+        List<ComponentGraph.Node> nodes = Arrays.asList(
+            node( "p.P", false, missing( "q.Q" ) ),
+            node( "q.Q", false, missing( "p.P" ) ),
+            node( "r.R", false, missing( "q.Q" ) ),
+            node( "s.S", false ),
+            node( "t.T", false, missing( "s.S" ) )
+        );
+        RootCauseAnalysis analysis = RootCauseAnalysis.analyze( nodes );
+        assertThat( analysis.getCauses().size(), is( 2 ) );
+        RootCauseAnalysis.Cause cycle = analysis.getCauses().get( 0 );
+        assertThat( cycle.getKind(), is( RootCauseAnalysis.Cause.CYCLE ) );
+        assertThat( cycle.getName(), is( "p.P <-> q.Q" ) );
+        assertThat( cycle.getBlocked(), is( 1 ) );
+        assertThat( analysis.getCauses().get( 1 ).toString(), is( "unregistered s.S blocks 1 component" ) );
+        assertThat( analysis.getCriticalPath(), is( Arrays.asList( "p.P", "q.Q", "r.R" ) ) );
+    }
+
+    @Test
+    public void testLongChainsAndManyCauses()
+    {
+        // a chain deeper than any call stack, plus more causes than fit in one bit set word.
+        int length = 100000;
+        List<ComponentGraph.Node> nodes = new ArrayList<ComponentGraph.Node>();
+        nodes.add( node( "chain.C0", false, missing( "chain.Missing" ) ) );
+        for( int i = 1; i < length; i++ )
+        {
+            nodes.add( node( "chain.C" + i, false, missing( "chain.C" + ( i - 1 ) ) ) );
+        }
+        for( int i = 0; i < 100; i++ )
+        {
+            nodes.add( node( "many.C" + i, false, missing( "many.Missing" + i ), missing( "chain.C" + ( length - 1 ) ) ) );
+        }
+        RootCauseAnalysis analysis = RootCauseAnalysis.analyze( nodes );
+        assertThat( analysis.getCauses().size(), is( 101 ) );
+        assertThat( analysis.getCauses().get( 0 ).getName(), is( "chain.Missing" ) );
+        assertThat( analysis.getCauses().get( 0 ).getBlocked(), is( length + 100 ) );
+        assertThat( analysis.getCauses().get( 100 ).getBlocked(), is( 1 ) );
+        assertThat( analysis.getCriticalPath().size(), is( length + 2 ) );
+    }
+
+    @Test
+    public void testNothingBlocked()
+    {
+        RootCauseAnalysis analysis = RootCauseAnalysis.analyze( Arrays.asList( node( "a.A", true, available( "b.B" ) ) ) );
+        assertThat( analysis.getCauses().size(), is( 0 ) );
+        assertThat( analysis.getCriticalPath().size(), is( 0 ) );
+    }
+
+    private static ComponentGraph.Node node( final String name, final boolean registered, final ComponentDependencyDeclaration... dependencies )
+    {
+        return new ComponentGraph.Node( 1, "org.example", 0, new ComponentDeclaration()
+        {
+            public ComponentDependencyDeclaration[] getComponentDependencies()
+            {
+                return dependencies;
+            }
+
+            public String getName()
+            {
+                return name;
+            }
+
+            public int getState()
+            {
+                return registered ? STATE_REGISTERED : STATE_UNREGISTERED;
+            }
+
+            public BundleContext getBundleContext()
+            {
+                return null;
+            }
+        }
+        );
+    }
+
+    private static ComponentDependencyDeclaration missing( String name )
+    {
+        return dependency( name, ComponentDependencyDeclaration.STATE_UNAVAILABLE_REQUIRED );
+    }
+
+    private static ComponentDependencyDeclaration available( String name )
+    {
+        return dependency( name, ComponentDependencyDeclaration.STATE_AVAILABLE_REQUIRED );
+    }
+
+    private static ComponentDependencyDeclaration dependency( final String name, final int state )
+    {
+        return new ComponentDependencyDeclaration()
+        {
+            public String getName()
+            {
+                return name;
+            }
+
+            public String getType()
+            {
+                return "service";
+            }
+
+            public int getState()
+            {
+                return state;
+            }
+        };
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2010 Okidokiteam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.okidokiteam.gouken.kernel;
+
+import static org.hamcrest.core.Is.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+
+/**
+ *
+ */
+public class TrackedPushTargetTest
+{
+
+    private static final String TYPE = "org.example.Push";
+
+    @Test
+    public void testFollowsRankingAndUnregistration()
+        throws Exception
+    {
+        BundleContext context = mock( BundleContext.class );
+        ServiceReference low = mock( ServiceReference.class );
+        ServiceReference high = mock( ServiceReference.class );
+        when( high.compareTo( low ) ).thenReturn( 1 );
+        when( low.compareTo( high ) ).thenReturn( -1 );
+        Object lowService = new Object();
+        Object highService = new Object();
+        when( context.getService( low ) ).thenReturn( lowService );
+        when( context.getService( high ) ).thenReturn( highService );
+
+        when( context.getServiceReferences( TYPE, null ) ).thenReturn( new ServiceReference[]{ low } );
+        TrackedPushTarget target = new TrackedPushTarget( context, TYPE, null );
+        assertThat( target.acquire( null ).getService(), is( lowService ) );
+
+        // a better ranked service shows up.
+        when( context.getServiceReferences( TYPE, null ) ).thenReturn( new ServiceReference[]{ low, high } );
+        target.serviceChanged( new ServiceEvent( ServiceEvent.REGISTERED, high ) );
+        assertThat( target.acquire( null ).getService(), is( highService ) );
+        verify( context ).ungetService( low );
+
+        // while unregistering, the leaving service is still in the registry but must not be selected.
+        target.serviceChanged( new ServiceEvent( ServiceEvent.UNREGISTERING, high ) );
+        assertThat( target.acquire( null ).getService(), is( lowService ) );
+        verify( context ).ungetService( high );
+
+        when( context.getServiceReferences( TYPE, null ) ).thenReturn( new ServiceReference[]{ low } );
+        target.serviceChanged( new ServiceEvent( ServiceEvent.UNREGISTERING, low ) );
+        assertNull( target.acquire( null ) );
+
+        target.close();
+        verify( context ).removeServiceListener( target );
+    }
+
+    @Test
+    public void testCloseAfterFrameworkStopped()
+        throws Exception
+    {
+        BundleContext context = mock( BundleContext.class );
+        ServiceReference ref = ref( context, 1 );
+        when( context.getServiceReferences( TYPE, null ) ).thenReturn( new ServiceReference[]{ ref } );
+        TrackedPushTarget target = new TrackedPushTarget( context, TYPE, null );
+        assertThat( target.acquire( null ).getService(), is( (Object) "service-1" ) );
+
+        doThrow( new IllegalStateException( "invalid context" ) ).when( context ).removeServiceListener( target );
+        target.close();
+        verify( context ).ungetService( ref );
+    }
+
+    @Test
+    public void testDispatchPolicies()
+        throws Exception
+    {
+        BundleContext context = mock( BundleContext.class );
+        ServiceReference one = ref( context, 1 );
+        ServiceReference two = ref( context, 2 );
+        ServiceReference three = ref( context, 3 );
+        when( context.getServiceReferences( TYPE, null ) ).thenReturn( new ServiceReference[]{ three, one, two } );
+
+        // round robin visits every service.
+        TrackedPushTarget roundRobin = new TrackedPushTarget( context, TYPE, null, DispatchPolicy.forName( KernelProperties.PUSH_POLICY_ROUND_ROBIN, 0 ) );
+        Set<Object> seen = new HashSet<Object>();
+        for( int i = 0; i < 3; i++ )
+        {
+            seen.add( roundRobin.acquire( null ).getService() );
+        }
+        assertThat( seen.size(), is( 3 ) );
+
+        // least outstanding skips services that are busy.
+        TrackedPushTarget least = new TrackedPushTarget( context, TYPE, null, DispatchPolicy.forName( KernelProperties.PUSH_POLICY_LEAST_OUTSTANDING, 0 ) );
+        PushTarget.Lease first = least.acquire( null );
+        PushTarget.Lease second = least.acquire( null );
+        assertThat( first.getService(), is( (Object) "service-1" ) );
+        assertThat( second.getService(), is( (Object) "service-2" ) );
+        first.release();
+        assertThat( least.acquire( null ).getService(), is( (Object) "service-1" ) );
+
+        // sharding keeps keys on their service, also when another service leaves.
+        TrackedPushTarget sharded = new TrackedPushTarget( context, TYPE, null, DispatchPolicy.forName( KernelProperties.PUSH_POLICY_SHARDED, 1 ) );
+        Object[] owners = new Object[64];
+        for( int key = 0; key < owners.length; key++ )
+        {
+            owners[ key ] = sharded.acquire( new Object[]{ "ignored", key } ).getService();
+            assertThat( sharded.acquire( new Object[]{ "other", key } ).getService(), is( owners[ key ] ) );
+        }
+        Set<Object> used = new HashSet<Object>();
+        for( Object owner : owners )
+        {
+            used.add( owner );
+        }
+        assertThat( used.size(), is( 3 ) );
+        sharded.serviceChanged( new ServiceEvent( ServiceEvent.UNREGISTERING, two ) );
+        for( int key = 0; key < owners.length; key++ )
+        {
+            Object owner = sharded.acquire( new Object[]{ "ignored", key } ).getService();
+            if( !owners[ key ].equals( "service-2" ) )
+            {
+                assertThat( owner, is( owners[ key ] ) );
+            }
+            assertThat( owner.equals( "service-2" ), is( false ) );
+        }
+    }
+
+    /**
+     * Lower service ids rank higher, like services registered earlier with the same ranking.
+     */
+    private static ServiceReference ref( BundleContext context, final long id )
+    {
+        ServiceReference ref = mock( ServiceReference.class );
+        when( ref.getProperty( Constants.SERVICE_ID ) ).thenReturn( id );
+        when( ref.compareTo( any() ) ).thenAnswer( new Answer<Integer>()
+        {
+            public Integer answer( InvocationOnMock invocation )
+            {
+                long other = (Long) ( (ServiceReference) invocation.getArguments()[ 0 ] ).getProperty( Constants.SERVICE_ID );
+                return other < id ? -1 : ( other == id ? 0 : 1 );
+            }
+        }
+        );
+        when( context.getService( ref ) ).thenReturn( "service-" + id );
+        return ref;
+    }
+}